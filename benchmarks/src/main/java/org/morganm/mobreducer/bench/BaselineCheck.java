@@ -0,0 +1,151 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Compares a JMH CSV result file against a stored baseline in the same
+ * format, and exits non-zero if any benchmark got slower by more than the
+ * allowed percentage. Run by the regression-check profile. A missing
+ * baseline, or one sharing no benchmarks with the results, is an error
+ * (exit code 2) rather than a pass.
+ * 
+ * Usage: BaselineCheck results.csv baseline.csv maxRegressionPercent
+ * 
+ * @author morganm
+ *
+ */
+public class BaselineCheck {
+    private static class Result {
+        String mode;
+        double score;
+        String unit;
+    }
+    
+    public static void main(final String[] args) throws IOException {
+        if( args.length != 3 ) {
+            System.err.println("usage: BaselineCheck results.csv baseline.csv maxRegressionPercent");
+            System.exit(2);
+        }
+        
+        final File baselineFile = new File(args[1]);
+        // a check that has nothing to compare against must not pass
+        if( !baselineFile.exists() ) {
+            System.err.println("No baseline at "+baselineFile+". To record one, copy "+args[0]+" to "+baselineFile
+                    +" on the machine the checks run on");
+            System.exit(2);
+        }
+        
+        final Map<String, Result> results = read(new File(args[0]));
+        final Map<String, Result> baseline = read(baselineFile);
+        final double maxRegression = Double.parseDouble(args[2]);
+        
+        int regressions = 0;
+        int compared = 0;
+        for(Map.Entry<String, Result> e : results.entrySet()) {
+            final Result current = e.getValue();
+            final Result base = baseline.get(e.getKey());
+            if( base == null ) {
+                System.out.println(String.format("  NEW   %s: %.3f %s", e.getKey(), current.score, current.unit));
+                continue;
+            }
+            if( !base.unit.equals(current.unit) || !base.mode.equals(current.mode) ) {
+                System.out.println(String.format("  SKIP  %s: baseline is %s %s, now %s %s", e.getKey(),
+                        base.mode, base.unit, current.mode, current.unit));
+                continue;
+            }
+            
+            // throughput is better when higher, every other mode is a time
+            double change = (current.score - base.score) / base.score * 100;
+            if( current.mode.equals("thrpt") )
+                change = -change;
+            
+            compared++;
+            final boolean regressed = change > maxRegression;
+            if( regressed )
+                regressions++;
+            System.out.println(String.format("  %s %s: %.3f -> %.3f %s (%+.1f%% slower)", regressed ? "FAIL " : "ok   ",
+                    e.getKey(), base.score, current.score, current.unit, change));
+        }
+        
+        if( compared == 0 ) {
+            System.err.println("None of the results match a benchmark in "+baselineFile+", record a new baseline");
+            System.exit(2);
+        }
+        if( regressions > 0 ) {
+            System.out.println(regressions+" benchmark(s) regressed by more than "+maxRegression+"%");
+            System.exit(1);
+        }
+        System.out.println("No regressions beyond "+maxRegression+"%");
+    }
+    
+    /** Read a JMH CSV result file, keyed by benchmark name plus its
+     * parameter values.
+     */
+    private static Map<String, Result> read(final File file) throws IOException {
+        final Map<String, Result> results = new LinkedHashMap<String, Result>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            final List<String> header = parseLine(reader.readLine());
+            final int benchmark = header.indexOf("Benchmark");
+            final int mode = header.indexOf("Mode");
+            final int score = header.indexOf("Score");
+            final int unit = header.indexOf("Unit");
+            
+            String line;
+            while( (line = reader.readLine()) != null ) {
+                if( line.trim().length() == 0 )
+                    continue;
+                final List<String> fields = parseLine(line);
+                final StringBuilder key = new StringBuilder(fields.get(benchmark));
+                for(int i=0; i < header.size(); i++) {
+                    if( header.get(i).startsWith("Param: ") && i < fields.size() && fields.get(i).length() > 0 )
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(fields.get(i));
+                }
+                
+                final Result result = new Result();
+                result.mode = fields.get(mode);
+                result.score = Double.parseDouble(fields.get(score));
+                result.unit = fields.get(unit);
+                results.put(key.toString(), result);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return results;
+    }
+    
+    private static List<String> parseLine(final String line) {
+        final List<String> fields = new ArrayList<String>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i=0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if( c == '"' ) {
+                if( quoted && i+1 < line.length() && line.charAt(i+1) == '"' ) {
+                    field.append('"');
+                    i++;
+                }
+                else
+                    quoted = !quoted;
+            }
+            else if( c == ',' && !quoted ) {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
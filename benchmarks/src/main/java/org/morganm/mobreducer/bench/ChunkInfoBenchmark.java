@@ -0,0 +1,69 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.TickClock;
+import org.morganm.mobreducer.bench.fake.FakeChunk;
+import org.morganm.mobreducer.bench.fake.FakeServer;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.morganm.mobreducer.manager.ChunkInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Per-chunk animal bookkeeping: the recount done on chunk load and once
+ * per sweep pass, and the oldest-animal lookup used by kill-oldest-on-spawn.
+ * (This replaces the old ChunkInfo.getAnimals() scan.)
+ * 
+ * Note the recount includes the fake chunk building its entity array, which
+ * a real server does too but at a different cost.
+ * 
+ * @author morganm
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkInfoBenchmark {
+    @Param({"8", "64", "256"})
+    public int animalsPerChunk;
+    
+    private ChunkInfo chunkInfo;
+    
+    @Setup
+    public void setup() {
+        final FakeWorld world = FakeServer.install().createWorld("world");
+        final FakeChunk chunk = world.loadChunk(0, 0);
+        final Random random = new Random(7);
+        for(int i=0; i < animalsPerChunk; i++) {
+            world.spawn(EntityType.COW, random.nextDouble() * 16, 64, random.nextDouble() * 16)
+                .setTicksLived(random.nextInt(100000));
+        }
+        // some monsters in the mix, which the recount must skip
+        for(int i=0; i < animalsPerChunk / 4; i++)
+            world.spawn(EntityType.ZOMBIE, random.nextDouble() * 16, 64, random.nextDouble() * 16);
+        
+        chunkInfo = new ChunkInfo(chunk.getChunk(), new TickClock(0));
+        chunkInfo.reconcileAnimals();
+    }
+    
+    @Benchmark
+    public int reconcileAnimals() {
+        return chunkInfo.reconcileAnimals();
+    }
+    
+    @Benchmark
+    public Object peekOldestAnimal() {
+        return chunkInfo.peekOldestAnimal();
+    }
+}
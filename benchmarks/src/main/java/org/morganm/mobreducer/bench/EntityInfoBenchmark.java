@@ -0,0 +1,116 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.bench.fake.FakeChunk;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.morganm.mobreducer.manager.MobManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** MobManager.getEntityInfo() and the chunk key refresh that follows it,
+ * for entities tracked since their chunk loaded and for entities that came
+ * back with a chunk that was unloaded and reloaded. A reloaded entity is a
+ * new Entity object with its state brought back from the cold store, which
+ * is the case a lookup by Entity has to get right.
+ * 
+ * @author morganm
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EntityInfoBenchmark {
+    private static final int LOOKUPS = 4096;
+    
+    @Param({"1000", "100000"})
+    public int entities;
+    
+    private PluginHarness harness;
+    private MobManager manager;
+    private Entity[] loaded;
+    private Entity[] reloaded;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        harness = new PluginHarness();
+        final FakeWorld world = harness.getServer().createWorld("world");
+        final Random random = new Random(3);
+        final int radius = SyntheticWorld.radiusFor(entities, 16);
+        SyntheticWorld.populate(world, radius, entities, 0.5, random);
+        
+        manager = harness.start(20);
+        for(FakeEntity fake : world.getFakeEntities())
+            manager.getEntityInfo(fake.getEntity());
+        
+        // unload and reload every other chunk, as the server does when
+        // players move away and come back
+        final List<Entity> stayed = new ArrayList<Entity>();
+        final List<Entity> cameBack = new ArrayList<Entity>();
+        for(FakeChunk chunk : world.getLoadedChunks()) {
+            if( ((chunk.getX() + chunk.getZ()) & 1) == 0 ) {
+                addMobs(chunk, stayed);
+                continue;
+            }
+            manager.chunkUnloaded(chunk.getChunk());
+            world.unloadChunk(chunk.getX(), chunk.getZ());
+            world.loadChunk(chunk.getX(), chunk.getZ());
+            manager.chunkLoaded(chunk.getChunk());
+            addMobs(chunk, cameBack);
+        }
+        
+        loaded = pick(stayed, random);
+        reloaded = pick(cameBack, random);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        harness.stop();
+    }
+    
+    private static void addMobs(final FakeChunk chunk, final List<Entity> to) {
+        for(FakeEntity fake : chunk.getFakeEntities()) {
+            if( fake.getType() != EntityType.PLAYER )
+                to.add(fake.getEntity());
+        }
+    }
+    
+    private static Entity[] pick(final List<Entity> from, final Random random) {
+        final Entity[] picked = new Entity[LOOKUPS];
+        for(int i=0; i < LOOKUPS; i++)
+            picked[i] = from.get(random.nextInt(from.size()));
+        return picked;
+    }
+    
+    private int nextIndex() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return next;
+    }
+    
+    @Benchmark
+    public long getEntityInfoLoaded() {
+        return manager.getEntityInfo(loaded[nextIndex()]).getCurrentChunkKey();
+    }
+    
+    @Benchmark
+    public long getEntityInfoReloaded() {
+        return manager.getEntityInfo(reloaded[nextIndex()]).getCurrentChunkKey();
+    }
+}
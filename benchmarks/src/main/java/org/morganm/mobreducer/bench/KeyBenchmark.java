@@ -0,0 +1,67 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Location;
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.bench.fake.FakeServer;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Key generation for chunks and block locations, which runs for every
+ * entity touched by spawns, listeners and sweeps.
+ * 
+ * @author morganm
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyBenchmark {
+    private static final int LOCATIONS = 4096;
+    
+    private Util util;
+    private Location[] locations;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        final FakeServer server = FakeServer.install();
+        final FakeWorld[] worlds = { server.createWorld("world"), server.createWorld("world_nether") };
+        util = new Util();
+        
+        final Random random = new Random(1);
+        locations = new Location[LOCATIONS];
+        for(int i=0; i < LOCATIONS; i++) {
+            locations[i] = new Location(worlds[i & 1].getWorld(),
+                    random.nextInt(20000) - 10000 + random.nextDouble(),
+                    random.nextInt(256),
+                    random.nextInt(20000) - 10000 + random.nextDouble());
+        }
+    }
+    
+    private Location nextLocation() {
+        next = (next + 1) & (LOCATIONS - 1);
+        return locations[next];
+    }
+    
+    @Benchmark
+    public long chunkKey() {
+        return util.getChunkKey(nextLocation());
+    }
+    
+    @Benchmark
+    public long locationKey() {
+        return util.getLocationKey(nextLocation());
+    }
+}
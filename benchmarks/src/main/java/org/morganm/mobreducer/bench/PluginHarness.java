@@ -0,0 +1,186 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.Chunk;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.morganm.mBukkitLib.Logger;
+import org.morganm.mobreducer.Config;
+import org.morganm.mobreducer.TickClock;
+import org.morganm.mobreducer.TickMonitor;
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.bench.fake.FakeServer;
+import org.morganm.mobreducer.manager.ChunkInfo;
+import org.morganm.mobreducer.manager.ChunkInfoFactory;
+import org.morganm.mobreducer.manager.EntityColdStore;
+import org.morganm.mobreducer.manager.MobManager;
+import org.morganm.mobreducer.metrics.Metrics;
+import org.morganm.mobreducer.trace.Trace;
+
+/** Wires up the plugin's core objects the way MobReducerModule does, but by
+ * hand and against a {@link FakeServer}, so they can be driven offline.
+ * Configuration starts from the plugin's own config.yml defaults and can be
+ * overridden with {@link #set(String, Object)} before {@link #start()}.
+ * 
+ * @author morganm
+ *
+ */
+public class PluginHarness {
+    private final FakeServer server;
+    private final YamlConfiguration yaml = new YamlConfiguration();
+    private final Logger log;
+    private final Util util;
+    private final Config config;
+    private final Metrics metrics;
+    private final TickMonitor tickMonitor;
+    // starts at 0 rather than the wall clock, so runs are repeatable
+    private final TickClock tickClock = new TickClock(0);
+    private final Trace trace;
+    private File coldStoreFolder;
+    private EntityColdStore coldStore;
+    private MobManager manager;
+    
+    public PluginHarness() {
+        server = FakeServer.install();
+        
+        final InputStream in = Config.class.getClassLoader().getResourceAsStream("config.yml");
+        if( in == null )
+            throw new IllegalStateException("config.yml not found on the classpath");
+        try {
+            yaml.load(in);
+        }
+        catch(Exception e) {
+            throw new IllegalStateException("couldn't load config.yml defaults", e);
+        }
+        finally {
+            try { in.close(); } catch(IOException e) {}
+        }
+        
+        log = quietLogger();
+        util = new Util();
+        config = new Config(yaml, log);
+        metrics = new Metrics(util);
+        tickMonitor = new TickMonitor(config);
+        trace = new Trace(config, tickClock, log, metrics);
+    }
+    
+    /** A Logger that discards everything, so benchmarks don't measure
+     * logging.
+     */
+    private static Logger quietLogger() {
+        return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if( method.getName().equals("toString") )
+                        return "QuietLogger";
+                    if( method.getReturnType() == boolean.class )
+                        return Boolean.FALSE;
+                    return null;
+                }
+            });
+    }
+    
+    /** Override a config value. Must be called before {@link #start()}.
+     * 
+     * @param path
+     * @param value
+     * @return this, for chaining
+     */
+    public PluginHarness set(final String path, final Object value) {
+        yaml.set(path, value);
+        return this;
+    }
+    
+    /** Create the MobManager and have it pick up all chunks already loaded
+     * in the fake worlds, as the plugin does in onEnable.
+     * 
+     * @param sweepInterval ticks between sweep passes
+     * @return
+     */
+    public MobManager start(final int sweepInterval) {
+        // compile the overridden values, as reloadConfig() does
+        config.setSection(yaml);
+        if( !config.validate() )
+            throw new IllegalStateException("invalid configuration");
+        
+        // cold store logs go to a scratch folder that is removed on stop()
+        try {
+            coldStoreFolder = File.createTempFile("mobreducer-entities", "");
+        }
+        catch(IOException e) {
+            throw new IllegalStateException("couldn't create a scratch folder", e);
+        }
+        coldStoreFolder.delete();
+        coldStore = new EntityColdStore(log, util, metrics, tickClock, coldStoreFolder);
+        
+        manager = new MobManager(log, util, config, new ChunkInfoFactory() {
+            public ChunkInfo create(Chunk chunk) {
+                return new ChunkInfo(chunk, tickClock);
+            }
+        }, metrics, tickMonitor, coldStore, tickClock, trace);
+        manager.setSweepMode(config.getSweepMode(), sweepInterval);
+        manager.trackLoadedChunks();
+        return manager;
+    }
+    
+    /** Stop the manager's worker threads, if any, and remove the cold
+     * store's scratch folder.
+     */
+    public void stop() {
+        if( manager != null )
+            manager.shutdown();
+        if( coldStore != null ) {
+            coldStore.close();
+            final File[] files = coldStoreFolder.listFiles();
+            if( files != null ) {
+                for(File f : files)
+                    f.delete();
+            }
+            coldStoreFolder.delete();
+        }
+    }
+    
+    public FakeServer getServer() {
+        return server;
+    }
+    public Logger getLog() {
+        return log;
+    }
+    public Util getUtil() {
+        return util;
+    }
+    public Config getConfig() {
+        return config;
+    }
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    public TickMonitor getTickMonitor() {
+        return tickMonitor;
+    }
+    /**
+     * 
+     * @return the clock, which the caller advances once per simulated tick
+     */
+    public TickClock getTickClock() {
+        return tickClock;
+    }
+    /**
+     * 
+     * @return the trace, which records events but has no writer thread
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+    public MobManager getManager() {
+        return manager;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.morganm.mobreducer.manager.MobManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Spawn admission (canSpawn) and accounting (entitySpawned) in segments
+ * that are already over their animal limit, which is the case on servers
+ * with large animal farms.
+ * 
+ * @author morganm
+ *
+ */
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpawnBenchmark {
+    private static final int SPAWNS = 10000;
+    
+    @State(Scope.Thread)
+    public static class DenseWorld {
+        @Param({"1", "8"})
+        public int segmentSize;
+        
+        @Param({"8", "32"})
+        public int animalsPerChunk;
+        
+        @Param({"false", "true"})
+        public boolean killOldest;
+        
+        PluginHarness harness;
+        MobManager manager;
+        Entity[] candidates;
+        int next = 0;
+        
+        @Setup(Level.Iteration)
+        public void setup() {
+            harness = new PluginHarness()
+                .set("animals.chunkSegmentSize", segmentSize)
+                .set("animals.killOldestOnSpawn", killOldest);
+            final FakeWorld world = harness.getServer().createWorld("world");
+            final int radius = segmentSize + 4;
+            final int chunks = (radius * 2 + 1) * (radius * 2 + 1);
+            final Random random = new Random(42);
+            SyntheticWorld.populate(world, radius, chunks * animalsPerChunk, 0, random);
+            
+            manager = harness.start(20);
+            world.setDeathListener(new FakeWorld.DeathListener() {
+                public void entityDied(FakeEntity entity) {
+                    manager.entityDied(entity.getEntity());
+                }
+            });
+            
+            // new arrivals, not yet seen by the manager
+            candidates = new Entity[SPAWNS];
+            final int blocks = (radius * 2 + 1) * 16;
+            for(int i=0; i < SPAWNS; i++) {
+                candidates[i] = world.spawn(EntityType.COW, -radius * 16 + random.nextDouble() * blocks, 64,
+                        -radius * 16 + random.nextDouble() * blocks).getEntity();
+            }
+            next = 0;
+        }
+        
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            harness.stop();
+        }
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public boolean canSpawn(final DenseWorld w) {
+        final Entity entity = w.candidates[w.next];
+        if( ++w.next == SPAWNS )
+            w.next = 0;
+        return w.manager.canSpawn(entity, SpawnReason.NATURAL);
+    }
+    
+    /** Each invocation announces all of the candidates to a fresh manager,
+     * since spawned entities can't be un-spawned.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OperationsPerInvocation(SPAWNS)
+    @Warmup(iterations = 5, batchSize = 1)
+    @Measurement(iterations = 20, batchSize = 1)
+    public void entitySpawned(final DenseWorld w) {
+        final MobManager manager = w.manager;
+        final Entity[] candidates = w.candidates;
+        for(int i=0; i < candidates.length; i++)
+            manager.entitySpawned(candidates[i], SpawnReason.NATURAL);
+    }
+}
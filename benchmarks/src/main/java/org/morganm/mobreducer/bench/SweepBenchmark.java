@@ -0,0 +1,69 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.morganm.mobreducer.manager.MobManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** One full sweep pass (MobManager.run() in "full" mode) over synthetic
+ * worlds. Monsters are never idle long enough to be purged, so every pass
+ * does the same work.
+ * 
+ * @author morganm
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SweepBenchmark {
+    @Param({"1000", "10000", "100000", "250000"})
+    public int entities;
+    
+    @Param({"16"})
+    public int entitiesPerChunk;
+    
+    @Param({"20"})
+    public int players;
+    
+    private PluginHarness harness;
+    private MobManager manager;
+    
+    @Setup
+    public void setup() {
+        harness = new PluginHarness()
+            .set("sweep.mode", "full")
+            .set("monsters.idleAge", 24 * 60 * 60);
+        final FakeWorld world = harness.getServer().createWorld("world");
+        final Random random = new Random(11);
+        final int radius = SyntheticWorld.radiusFor(entities, entitiesPerChunk);
+        SyntheticWorld.populate(world, radius, entities, 0.6, random);
+        SyntheticWorld.addPlayers(world, radius, players, random);
+        
+        manager = harness.start(1);
+        // first pass starts tracking everything
+        manager.run();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        harness.stop();
+    }
+    
+    @Benchmark
+    public void fullSweep() {
+        manager.run();
+    }
+}
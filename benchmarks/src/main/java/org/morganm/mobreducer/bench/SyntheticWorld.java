@@ -0,0 +1,66 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench;
+
+import java.util.Random;
+
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+
+/** Fills fake worlds with a seeded, repeatable population of mobs.
+ * 
+ * @author morganm
+ *
+ */
+public class SyntheticWorld {
+    private static final EntityType[] MONSTERS = {
+        EntityType.ZOMBIE, EntityType.SKELETON, EntityType.CREEPER, EntityType.SPIDER
+    };
+    private static final EntityType[] ANIMALS = {
+        EntityType.COW, EntityType.PIG, EntityType.SHEEP, EntityType.CHICKEN
+    };
+    
+    private SyntheticWorld() {}
+    
+    /** Load a square of chunks and scatter entities across it uniformly.
+     * 
+     * @param world
+     * @param radius chunk radius of the loaded square around 0,0
+     * @param entities number of entities to spawn
+     * @param monsterFraction fraction of the entities that are monsters; the
+     * rest are animals
+     * @param random
+     */
+    public static void populate(final FakeWorld world, final int radius, final int entities,
+            final double monsterFraction, final Random random)
+    {
+        world.loadChunks(0, 0, radius);
+        final int blocks = (radius * 2 + 1) * 16;
+        final int min = -radius * 16;
+        for(int i=0; i < entities; i++) {
+            final EntityType type = random.nextDouble() < monsterFraction
+                    ? MONSTERS[random.nextInt(MONSTERS.length)]
+                    : ANIMALS[random.nextInt(ANIMALS.length)];
+            world.spawn(type, min + random.nextDouble() * blocks, 64, min + random.nextDouble() * blocks)
+                .setTicksLived(random.nextInt(20 * 60 * 20));
+        }
+    }
+    
+    /** Add players spread evenly across the loaded square.
+     */
+    public static void addPlayers(final FakeWorld world, final int radius, final int players, final Random random) {
+        final int blocks = (radius * 2 + 1) * 16;
+        final int min = -radius * 16;
+        for(int i=0; i < players; i++)
+            world.spawn(EntityType.PLAYER, min + random.nextDouble() * blocks, 64, min + random.nextDouble() * blocks);
+    }
+    
+    /** The chunk radius that gives roughly the given entity density per
+     * loaded chunk.
+     */
+    public static int radiusFor(final int entities, final int perChunk) {
+        final int chunks = Math.max(1, entities / Math.max(1, perChunk));
+        return Math.max(1, (int) Math.ceil((Math.sqrt(chunks) - 1) / 2));
+    }
+}
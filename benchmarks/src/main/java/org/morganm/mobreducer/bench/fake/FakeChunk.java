@@ -0,0 +1,140 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Chunk;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.CreatureSpawner;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+
+/** In-memory Bukkit Chunk: a list of the entities currently in it, of
+ * those saved with it while it is unloaded, and of its mob spawners.
+ * 
+ * @author morganm
+ *
+ */
+public class FakeChunk implements InvocationHandler {
+    private final FakeWorld world;
+    private final int x;
+    private final int z;
+    private final Chunk chunk;
+    private final ArrayList<FakeEntity> entities = new ArrayList<FakeEntity>();
+    private ArrayList<FakeEntity> saved = new ArrayList<FakeEntity>();
+    private final ArrayList<BlockState> spawners = new ArrayList<BlockState>();
+    private boolean loaded = false;
+    
+    FakeChunk(final FakeWorld world, final int x, final int z) {
+        this.world = world;
+        this.x = x;
+        this.z = z;
+        chunk = (Chunk) Proxy.newProxyInstance(Chunk.class.getClassLoader(),
+                new Class<?>[] { Chunk.class }, this);
+    }
+    
+    public Chunk getChunk() {
+        return chunk;
+    }
+    public FakeWorld getFakeWorld() {
+        return world;
+    }
+    public int getX() {
+        return x;
+    }
+    public int getZ() {
+        return z;
+    }
+    public boolean isLoaded() {
+        return loaded;
+    }
+    void setLoaded(final boolean loaded) {
+        this.loaded = loaded;
+    }
+    
+    public List<FakeEntity> getFakeEntities() {
+        return entities;
+    }
+    
+    void add(final FakeEntity entity) {
+        entities.add(entity);
+    }
+    void remove(final FakeEntity entity) {
+        entities.remove(entity);
+    }
+    
+    /** Add a mob spawner, which shows up in getTileEntities() as a
+     * CreatureSpawner.
+     * 
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param type the mob type it spawns
+     */
+    void addSpawner(final int x, final int y, final int z, final EntityType type) {
+        final String name = "FakeSpawner{"+world.getName()+","+x+","+y+","+z+"}";
+        spawners.add((BlockState) Proxy.newProxyInstance(CreatureSpawner.class.getClassLoader(),
+                new Class<?>[] { CreatureSpawner.class }, new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                final Object o = Fakes.objectMethod(proxy, method, args, name);
+                if( o != null )
+                    return o;
+                
+                final String methodName = method.getName();
+                if( methodName.equals("getX") )
+                    return Integer.valueOf(x);
+                if( methodName.equals("getY") )
+                    return Integer.valueOf(y);
+                if( methodName.equals("getZ") )
+                    return Integer.valueOf(z);
+                if( methodName.equals("getSpawnedType") )
+                    return type;
+                if( methodName.equals("getWorld") )
+                    return world.getWorld();
+                if( methodName.equals("getChunk") )
+                    return chunk;
+                return Fakes.defaultValue(method);
+            }
+        }));
+    }
+    
+    void save(final FakeEntity entity) {
+        saved.add(entity);
+    }
+    List<FakeEntity> takeSaved() {
+        final List<FakeEntity> list = saved;
+        saved = new ArrayList<FakeEntity>();
+        return list;
+    }
+    
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        final Object o = Fakes.objectMethod(proxy, method, args, "FakeChunk{"+world.getName()+","+x+","+z+"}");
+        if( o != null )
+            return o;
+        
+        final String methodName = method.getName();
+        if( methodName.equals("getX") )
+            return Integer.valueOf(x);
+        if( methodName.equals("getZ") )
+            return Integer.valueOf(z);
+        if( methodName.equals("getWorld") )
+            return world.getWorld();
+        if( methodName.equals("isLoaded") )
+            return Boolean.valueOf(loaded);
+        if( methodName.equals("getEntities") ) {
+            final Entity[] array = new Entity[entities.size()];
+            for(int i=0; i < array.length; i++)
+                array[i] = entities.get(i).getEntity();
+            return array;
+        }
+        if( methodName.equals("getTileEntities") )
+            return spawners.toArray(new BlockState[spawners.size()]);
+        return Fakes.defaultValue(method);
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.DyeColor;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.LivingEntity;
+
+/** In-memory Bukkit Entity. The proxy implements the Bukkit interface for
+ * its EntityType (Cow, Zombie, Player, ...), so instanceof checks in the
+ * plugin see what they would on a real server.
+ * 
+ * @author morganm
+ *
+ */
+public class FakeEntity implements InvocationHandler {
+    private static final AtomicInteger nextEntityId = new AtomicInteger(1);
+    
+    private final EntityType type;
+    private final UUID uuid;
+    private final int entityId;
+    private final Entity entity;
+    
+    FakeWorld world;
+    FakeChunk chunk;
+    int worldSlot = -1;
+    double x, y, z;
+    int ticksLived;
+    int health = 10;
+    boolean valid = true;
+    boolean dead = false;
+    boolean tamed = false;
+    LivingEntity target;
+    
+    FakeEntity(final EntityType type, final UUID uuid) {
+        this.type = type;
+        this.uuid = uuid;
+        this.entityId = nextEntityId.getAndIncrement();
+        
+        Class<?> entityClass = type.getEntityClass();
+        if( entityClass == null )
+            entityClass = Entity.class;
+        entity = (Entity) Proxy.newProxyInstance(entityClass.getClassLoader(),
+                new Class<?>[] { entityClass }, this);
+    }
+    
+    /** A new Entity object for an entity coming back with its chunk. Like
+     * Bukkit, it has a new entity id but the same UUID.
+     */
+    FakeEntity(final FakeEntity saved) {
+        this(saved.type, saved.uuid);
+        x = saved.x;
+        y = saved.y;
+        z = saved.z;
+        ticksLived = saved.ticksLived;
+        health = saved.health;
+        tamed = saved.tamed;
+    }
+    
+    /** Return the FakeEntity behind an Entity created by a FakeWorld.
+     * 
+     * @param entity
+     * @return
+     */
+    public static FakeEntity of(final Entity entity) {
+        return (FakeEntity) Proxy.getInvocationHandler(entity);
+    }
+    
+    public Entity getEntity() {
+        return entity;
+    }
+    public EntityType getType() {
+        return type;
+    }
+    public UUID getUniqueId() {
+        return uuid;
+    }
+    public FakeWorld getFakeWorld() {
+        return world;
+    }
+    public boolean isValid() {
+        return valid;
+    }
+    public double getX() {
+        return x;
+    }
+    public double getZ() {
+        return z;
+    }
+    public int getChunkX() {
+        return ((int) Math.floor(x)) >> 4;
+    }
+    public int getChunkZ() {
+        return ((int) Math.floor(z)) >> 4;
+    }
+    
+    public void setTicksLived(final int ticksLived) {
+        this.ticksLived = ticksLived;
+    }
+    public void setTamed(final boolean tamed) {
+        this.tamed = tamed;
+    }
+    public void setTarget(final LivingEntity target) {
+        this.target = target;
+    }
+    
+    public void moveTo(final double x, final double y, final double z) {
+        if( valid )
+            world.move(this, x, y, z);
+    }
+    
+    /** Damage the entity, killing it if its health runs out.
+     * 
+     * @param amount
+     */
+    public void damage(final int amount) {
+        if( !valid )
+            return;
+        health -= amount;
+        if( health <= 0 )
+            world.died(this);
+    }
+    
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        final Object o = Fakes.objectMethod(proxy, method, args, "Fake"+type+"{id="+entityId+"}");
+        if( o != null )
+            return o;
+        
+        final String methodName = method.getName();
+        if( methodName.equals("getType") )
+            return type;
+        if( methodName.equals("getUniqueId") )
+            return uuid;
+        if( methodName.equals("getEntityId") )
+            return Integer.valueOf(entityId);
+        if( methodName.equals("getLocation") )
+            return new Location(world != null ? world.getWorld() : null, x, y, z);
+        if( methodName.equals("getWorld") )
+            return world != null ? world.getWorld() : null;
+        if( methodName.equals("isValid") )
+            return Boolean.valueOf(valid);
+        if( methodName.equals("isDead") )
+            return Boolean.valueOf(dead || !valid);
+        if( methodName.equals("getTicksLived") )
+            return Integer.valueOf(ticksLived);
+        if( methodName.equals("setTicksLived") ) {
+            ticksLived = (Integer) args[0];
+            return null;
+        }
+        if( methodName.equals("getTarget") )
+            return target;
+        if( methodName.equals("setTarget") ) {
+            target = (LivingEntity) args[0];
+            return null;
+        }
+        if( methodName.equals("isTamed") )
+            return Boolean.valueOf(tamed);
+        if( methodName.equals("setTamed") ) {
+            tamed = (Boolean) args[0];
+            return null;
+        }
+        if( methodName.equals("getHealth") )
+            return Integer.valueOf(health);
+        if( methodName.equals("getMaxHealth") )
+            return Integer.valueOf(10);
+        if( methodName.equals("setHealth") ) {
+            health = (Integer) args[0];
+            return null;
+        }
+        if( methodName.equals("getColor") )     // every sheep is white here
+            return DyeColor.WHITE;
+        if( methodName.equals("damage") ) {
+            damage((Integer) args[0]);
+            return null;
+        }
+        if( methodName.equals("remove") ) {
+            if( world != null )
+                world.remove(this);
+            return null;
+        }
+        if( methodName.equals("teleport") ) {
+            final Location l = (Location) args[0];
+            moveTo(l.getX(), l.getY(), l.getZ());
+            return Boolean.TRUE;
+        }
+        if( methodName.equals("getName") || methodName.equals("getDisplayName") )
+            return type == EntityType.PLAYER ? "player"+entityId : type.getName();
+        if( methodName.equals("isOnline") )
+            return Boolean.valueOf(valid);
+        return Fakes.defaultValue(method);
+    }
+}
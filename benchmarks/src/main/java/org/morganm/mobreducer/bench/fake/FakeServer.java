@@ -0,0 +1,108 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/** In-memory Bukkit Server holding a list of {@link FakeWorld}s. Bukkit only
+ * allows its server to be set once per JVM, so there is a single instance
+ * which is reset between runs.
+ * 
+ * @author morganm
+ *
+ */
+public class FakeServer implements InvocationHandler {
+    private static FakeServer instance;
+    
+    private final Server server;
+    private final List<World> worlds = new ArrayList<World>();
+    private final List<FakeWorld> fakeWorlds = new ArrayList<FakeWorld>();
+    
+    private FakeServer() {
+        server = (Server) Proxy.newProxyInstance(Server.class.getClassLoader(),
+                new Class<?>[] { Server.class }, this);
+    }
+    
+    /** Install the fake server into Bukkit, or return the one already
+     * installed. All worlds are removed.
+     * 
+     * @return
+     */
+    public static synchronized FakeServer install() {
+        if( instance == null ) {
+            instance = new FakeServer();
+            Bukkit.setServer(instance.server);
+        }
+        instance.worlds.clear();
+        instance.fakeWorlds.clear();
+        return instance;
+    }
+    
+    public Server getServer() {
+        return server;
+    }
+    
+    public FakeWorld createWorld(final String name) {
+        final FakeWorld world = new FakeWorld(name);
+        fakeWorlds.add(world);
+        worlds.add(world.getWorld());
+        return world;
+    }
+    
+    public List<FakeWorld> getFakeWorlds() {
+        return fakeWorlds;
+    }
+    
+    private FakeWorld findWorld(final String name) {
+        for(FakeWorld world : fakeWorlds) {
+            if( world.getName().equals(name) )
+                return world;
+        }
+        return null;
+    }
+    
+    private FakeWorld findWorld(final UUID uid) {
+        for(FakeWorld world : fakeWorlds) {
+            if( world.getUID().equals(uid) )
+                return world;
+        }
+        return null;
+    }
+    
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        final Object o = Fakes.objectMethod(proxy, method, args, "FakeServer");
+        if( o != null )
+            return o;
+        
+        final String name = method.getName();
+        if( name.equals("getWorlds") )
+            return Collections.unmodifiableList(worlds);
+        if( name.equals("getWorld") ) {
+            final FakeWorld world = args[0] instanceof UUID ? findWorld((UUID) args[0]) : findWorld((String) args[0]);
+            return world != null ? world.getWorld() : null;
+        }
+        if( name.equals("getOnlinePlayers") ) {
+            final List<Player> players = new ArrayList<Player>();
+            for(FakeWorld world : fakeWorlds)
+                players.addAll(world.getPlayers());
+            return players.toArray(new Player[players.size()]);
+        }
+        if( name.equals("getName") || name.equals("getVersion") || name.equals("getBukkitVersion") )
+            return "FakeServer";
+        if( name.equals("getLogger") )
+            return java.util.logging.Logger.getLogger("FakeServer");
+        return Fakes.defaultValue(method);
+    }
+}
@@ -0,0 +1,364 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+
+/** In-memory Bukkit World. Tracks its loaded chunks and the entities in
+ * them; entities in a chunk that is unloaded become invalid and come back
+ * as new Entity objects with the same UUID when the chunk is loaded again,
+ * as they do on a real server.
+ * 
+ * @author morganm
+ *
+ */
+public class FakeWorld implements InvocationHandler {
+    /** Told about entities that die in this world, so that a driver can
+     * fire the matching Bukkit event.
+     */
+    public interface DeathListener {
+        public void entityDied(FakeEntity entity);
+    }
+    
+    private final String name;
+    private final UUID uid;
+    private final World world;
+    private final HashMap<Long, FakeChunk> chunks = new HashMap<Long, FakeChunk>();
+    private final ArrayList<FakeEntity> entities = new ArrayList<FakeEntity>();
+    private final ArrayList<Player> players = new ArrayList<Player>();
+    private DeathListener deathListener;
+    private long fullTime = 0;
+    private int removedCount = 0;
+    // entity UUIDs come from here so that seeded runs are repeatable
+    private Random random;
+    
+    FakeWorld(final String name) {
+        this.name = name;
+        this.uid = UUID.nameUUIDFromBytes(name.getBytes());
+        this.random = new Random(name.hashCode());
+        world = (World) Proxy.newProxyInstance(World.class.getClassLoader(),
+                new Class<?>[] { World.class }, this);
+    }
+    
+    private static long chunkKey(final int x, final int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+    
+    public World getWorld() {
+        return world;
+    }
+    public String getName() {
+        return name;
+    }
+    public UUID getUID() {
+        return uid;
+    }
+    
+    public void setDeathListener(final DeathListener deathListener) {
+        this.deathListener = deathListener;
+    }
+    
+    /** Seed the generator used for new entity UUIDs.
+     */
+    public void setSeed(final long seed) {
+        random = new Random(seed);
+    }
+    
+    /**
+     * 
+     * @return the number of entities removed by a call to Entity.remove(),
+     * ie. by the plugin rather than by dying or despawning
+     */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+    
+    public long getFullTime() {
+        return fullTime;
+    }
+    
+    /** Advance world time by one tick, aging every entity.
+     */
+    public void tick() {
+        fullTime++;
+        for(int i=0; i < entities.size(); i++)
+            entities.get(i).ticksLived++;
+    }
+    
+    public int getEntityCount() {
+        return entities.size();
+    }
+    
+    public List<FakeEntity> getFakeEntities() {
+        return entities;
+    }
+    
+    public List<Player> getPlayers() {
+        return players;
+    }
+    
+    public boolean isChunkLoaded(final int x, final int z) {
+        final FakeChunk chunk = chunks.get(chunkKey(x, z));
+        return chunk != null && chunk.isLoaded();
+    }
+    
+    /** Return a chunk, loading it (and any entities saved with it) if needed.
+     * 
+     * @param x
+     * @param z
+     * @return
+     */
+    public FakeChunk loadChunk(final int x, final int z) {
+        final FakeChunk chunk = getChunk(x, z);
+        if( !chunk.isLoaded() ) {
+            chunk.setLoaded(true);
+            for(FakeEntity saved : chunk.takeSaved()) {
+                final FakeEntity entity = new FakeEntity(saved);
+                add(entity);
+            }
+        }
+        return chunk;
+    }
+    
+    private FakeChunk getChunk(final int x, final int z) {
+        final Long key = chunkKey(x, z);
+        FakeChunk chunk = chunks.get(key);
+        if( chunk == null ) {
+            chunk = new FakeChunk(this, x, z);
+            chunks.put(key, chunk);
+        }
+        return chunk;
+    }
+    
+    /** Place a mob spawner block. The chunk it is in doesn't need to be
+     * loaded.
+     * 
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param type the mob type it spawns
+     */
+    public void addSpawner(final int x, final int y, final int z, final EntityType type) {
+        getChunk(x >> 4, z >> 4).addSpawner(x, y, z, type);
+    }
+    
+    /** Load every chunk in the square of the given radius around a chunk.
+     * 
+     * @return the chunks loaded
+     */
+    public List<FakeChunk> loadChunks(final int centerX, final int centerZ, final int radius) {
+        final List<FakeChunk> loaded = new ArrayList<FakeChunk>();
+        for(int x=centerX-radius; x <= centerX+radius; x++) {
+            for(int z=centerZ-radius; z <= centerZ+radius; z++) {
+                if( !isChunkLoaded(x, z) )
+                    loaded.add(loadChunk(x, z));
+            }
+        }
+        return loaded;
+    }
+    
+    /** Unload a chunk. Its non-player entities are removed from the world
+     * and invalidated, and saved to come back when the chunk is reloaded.
+     * 
+     * @param x
+     * @param z
+     * @return the chunk, or null if it wasn't loaded
+     */
+    public FakeChunk unloadChunk(final int x, final int z) {
+        final FakeChunk chunk = chunks.get(chunkKey(x, z));
+        if( chunk == null || !chunk.isLoaded() )
+            return null;
+        
+        for(FakeEntity entity : new ArrayList<FakeEntity>(chunk.getFakeEntities())) {
+            if( entity.getType() == EntityType.PLAYER )
+                continue;
+            detach(entity);
+            entity.valid = false;
+            chunk.save(entity);
+        }
+        chunk.setLoaded(false);
+        return chunk;
+    }
+    
+    public List<FakeChunk> getLoadedChunks() {
+        final List<FakeChunk> loaded = new ArrayList<FakeChunk>();
+        for(FakeChunk chunk : chunks.values()) {
+            if( chunk.isLoaded() )
+                loaded.add(chunk);
+        }
+        return loaded;
+    }
+    
+    /** Spawn a new entity of the given type, loading its chunk if needed.
+     * 
+     * @return
+     */
+    public FakeEntity spawn(final EntityType type, final double x, final double y, final double z) {
+        final FakeEntity entity = new FakeEntity(type, new UUID(random.nextLong(), random.nextLong()));
+        entity.x = x;
+        entity.y = y;
+        entity.z = z;
+        loadChunk(((int) Math.floor(x)) >> 4, ((int) Math.floor(z)) >> 4);
+        add(entity);
+        return entity;
+    }
+    
+    private void add(final FakeEntity entity) {
+        entity.world = this;
+        entity.worldSlot = entities.size();
+        entities.add(entity);
+        if( entity.getType() == EntityType.PLAYER )
+            players.add((Player) entity.getEntity());
+        
+        final FakeChunk chunk = loadChunk(entity.getChunkX(), entity.getChunkZ());
+        chunk.add(entity);
+        entity.chunk = chunk;
+    }
+    
+    /** Take an entity out of the world's and its chunk's lists.
+     */
+    private void detach(final FakeEntity entity) {
+        final int slot = entity.worldSlot;
+        if( slot < 0 )
+            return;
+        final FakeEntity last = entities.remove(entities.size() - 1);
+        if( last != entity ) {
+            entities.set(slot, last);
+            last.worldSlot = slot;
+        }
+        entity.worldSlot = -1;
+        if( entity.getType() == EntityType.PLAYER )
+            players.remove(entity.getEntity());
+        if( entity.chunk != null ) {
+            entity.chunk.remove(entity);
+            entity.chunk = null;
+        }
+    }
+    
+    /** Move an entity, moving it between chunks (loading the new one) if
+     * it crosses a chunk boundary.
+     */
+    void move(final FakeEntity entity, final double x, final double y, final double z) {
+        entity.x = x;
+        entity.y = y;
+        entity.z = z;
+        final int chunkX = entity.getChunkX();
+        final int chunkZ = entity.getChunkZ();
+        if( entity.chunk != null && entity.chunk.getX() == chunkX && entity.chunk.getZ() == chunkZ )
+            return;
+        if( entity.chunk != null )
+            entity.chunk.remove(entity);
+        final FakeChunk chunk = loadChunk(chunkX, chunkZ);
+        chunk.add(entity);
+        entity.chunk = chunk;
+    }
+    
+    /** Called for Entity.remove().
+     */
+    void remove(final FakeEntity entity) {
+        if( !entity.valid )
+            return;
+        removedCount++;
+        despawn(entity);
+    }
+    
+    /** Remove an entity from the world the way the server does when a mob
+     * despawns naturally.
+     */
+    public void despawn(final FakeEntity entity) {
+        if( !entity.valid )
+            return;
+        detach(entity);
+        entity.valid = false;
+    }
+    
+    void died(final FakeEntity entity) {
+        if( !entity.valid )
+            return;
+        entity.dead = true;
+        if( deathListener != null )
+            deathListener.entityDied(entity);
+        despawn(entity);
+    }
+    
+    private List<Entity> getEntities() {
+        final List<Entity> list = new ArrayList<Entity>(entities.size());
+        for(int i=0; i < entities.size(); i++)
+            list.add(entities.get(i).getEntity());
+        return list;
+    }
+    
+    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        final Object o = Fakes.objectMethod(proxy, method, args, "FakeWorld{"+name+"}");
+        if( o != null )
+            return o;
+        
+        final String methodName = method.getName();
+        if( methodName.equals("getName") )
+            return name;
+        if( methodName.equals("getUID") )
+            return uid;
+        if( methodName.equals("getEntities") )
+            return getEntities();
+        if( methodName.equals("getLivingEntities") ) {
+            final List<LivingEntity> list = new ArrayList<LivingEntity>();
+            for(FakeEntity entity : entities) {
+                if( entity.getEntity() instanceof LivingEntity )
+                    list.add((LivingEntity) entity.getEntity());
+            }
+            return list;
+        }
+        if( methodName.equals("getEntitiesByClass") ) {
+            final Class<?> c = (Class<?>) args[0];
+            final Collection<Entity> list = new ArrayList<Entity>();
+            for(FakeEntity entity : entities) {
+                if( c.isInstance(entity.getEntity()) )
+                    list.add(entity.getEntity());
+            }
+            return list;
+        }
+        if( methodName.equals("getPlayers") )
+            return new ArrayList<Player>(players);
+        if( methodName.equals("isChunkLoaded") && args.length == 2 )
+            return Boolean.valueOf(isChunkLoaded((Integer) args[0], (Integer) args[1]));
+        if( methodName.equals("getChunkAt") ) {
+            if( args.length == 2 )
+                return loadChunk((Integer) args[0], (Integer) args[1]).getChunk();
+            final Location l = (Location) args[0];
+            return loadChunk(l.getBlockX() >> 4, l.getBlockZ() >> 4).getChunk();
+        }
+        if( methodName.equals("getLoadedChunks") ) {
+            final List<FakeChunk> loaded = getLoadedChunks();
+            final Chunk[] array = new Chunk[loaded.size()];
+            for(int i=0; i < array.length; i++)
+                array[i] = loaded.get(i).getChunk();
+            return array;
+        }
+        if( methodName.equals("spawnEntity") || methodName.equals("spawnCreature") ) {
+            final Location l = (Location) args[0];
+            return spawn((EntityType) args[1], l.getX(), l.getY(), l.getZ()).getEntity();
+        }
+        if( methodName.equals("getFullTime") || methodName.equals("getTime") )
+            return Long.valueOf(fullTime);
+        if( methodName.equals("getMaxHeight") )
+            return Integer.valueOf(256);
+        return Fakes.defaultValue(method);
+    }
+}
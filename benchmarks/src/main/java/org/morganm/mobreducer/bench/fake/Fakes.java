@@ -0,0 +1,55 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.bench.fake;
+
+import java.lang.reflect.Method;
+
+/** Helpers shared by the fake Bukkit implementations. Each fake is a
+ * dynamic proxy over the Bukkit interface, so that the fakes only implement
+ * what MobReducer actually calls and keep compiling as the Bukkit API grows.
+ * Anything not implemented returns the zero value for its return type.
+ * 
+ * @author morganm
+ *
+ */
+final class Fakes {
+    private Fakes() {}
+    
+    static Object defaultValue(final Method method) {
+        final Class<?> type = method.getReturnType();
+        if( !type.isPrimitive() || type == void.class )
+            return null;
+        if( type == boolean.class )
+            return Boolean.FALSE;
+        if( type == char.class )
+            return Character.valueOf((char) 0);
+        if( type == byte.class )
+            return Byte.valueOf((byte) 0);
+        if( type == short.class )
+            return Short.valueOf((short) 0);
+        if( type == int.class )
+            return Integer.valueOf(0);
+        if( type == long.class )
+            return Long.valueOf(0);
+        if( type == float.class )
+            return Float.valueOf(0);
+        return Double.valueOf(0);
+    }
+    
+    /** Handle the Object methods every proxy needs: identity equality and
+     * hashing, and a readable toString.
+     * 
+     * @return the result, or null if the method isn't one of them
+     */
+    static Object objectMethod(final Object proxy, final Method method, final Object[] args, final String name) {
+        final String methodName = method.getName();
+        if( methodName.equals("equals") && args != null && args.length == 1 )
+            return Boolean.valueOf(proxy == args[0]);
+        if( methodName.equals("hashCode") && args == null )
+            return Integer.valueOf(System.identityHashCode(proxy));
+        if( methodName.equals("toString") && args == null )
+            return name;
+        return null;
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.bench.SyntheticWorld;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+import org.morganm.mobreducer.bench.fake.FakeServer;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Heap and GC cost of tracking 250k entities the way MobManager does, in
+ * columnar EntityStores behind EntityShards with its uuid directory,
+ * against the HashMap&lt;UUID, EntityInfo&gt; layout it replaced (a boxed
+ * UUID key and an EntityInfo holding a WeakReference, the world name and
+ * two String chunk keys per entity).
+ * 
+ * The JMH benchmark times a sweep over every tracked entity, which updates
+ * its chunk key the way the sweep does, plus 1% churn of entities dying
+ * and spawning. Entities on a region border cross it every sweep, so their
+ * state is handed between shards. Run it with the GC profiler to see allocation and GC
+ * counts per sweep:
+ * 
+ *   java -jar target/benchmarks.jar EntityStoreHeap -prof gc
+ * 
+ * Retained heap can't be measured from inside JMH, so main() builds each
+ * layout in turn and prints retained bytes per entity, the time of a full
+ * collection with the layout live, and the GCs and allocation of a run of
+ * sweeps:
+ * 
+ *   java -Xmx2g -cp target/benchmarks.jar org.morganm.mobreducer.manager.EntityStoreHeapBenchmark
+ * 
+ * @author morganm
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value=1, jvmArgsAppend={"-Xmx2g"})
+public class EntityStoreHeapBenchmark {
+    private static final int SWEEPS = 200;
+    
+    @Param({"250000"})
+    public int entities;
+    
+    @Param({"map", "shards"})
+    public String layout;
+    
+    private Layout tracked;
+    private long tick = 0;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        tracked = createLayout(layout, populate(entities));
+        tracked.trackAll();
+    }
+    
+    @Benchmark
+    public long sweep() {
+        return tracked.sweep(++tick);
+    }
+    
+    /** Entity state as kept before EntityStore, field for field. */
+    private static final class MapEntityInfo {
+        final UUID uuid;
+        final Util util;
+        WeakReference<Entity> entityRef;
+        String worldName;
+        long lastInteractEvent;
+        String currentChunkKey;
+        String spawnChunkKey;
+        boolean isPlayerDamaged = false;
+        
+        MapEntityInfo(final Entity entity, final Util util, final String worldName, final String chunkKey, final long now) {
+            this.entityRef = new WeakReference<Entity>(entity);
+            this.uuid = entity.getUniqueId();
+            this.util = util;
+            this.worldName = worldName;
+            this.currentChunkKey = chunkKey;
+            this.spawnChunkKey = chunkKey;
+            this.lastInteractEvent = now;
+        }
+    }
+    
+    /** One way of tracking the entities of a world. */
+    private static abstract class Layout {
+        final Util util = new Util();
+        final Entity[] entities;
+        // read up front, so the sweeps don't measure the fake entities
+        final UUID[] uuids;
+        final int[] chunkX;
+        final int[] chunkZ;
+        
+        Layout(final FakeWorld world) {
+            final List<FakeEntity> fakes = world.getFakeEntities();
+            entities = new Entity[fakes.size()];
+            uuids = new UUID[entities.length];
+            chunkX = new int[entities.length];
+            chunkZ = new int[entities.length];
+            for(int i=0; i < entities.length; i++) {
+                final FakeEntity fake = fakes.get(i);
+                entities[i] = fake.getEntity();
+                uuids[i] = fake.getUniqueId();
+                chunkX[i] = fake.getChunkX();
+                chunkZ[i] = fake.getChunkZ();
+            }
+        }
+        
+        abstract void track(int i, long now);
+        abstract void untrack(int i);
+        /** Update the chunk of entity i, which moves back and forth across
+         * a chunk border every other sweep. */
+        abstract void update(int i, int chunkX, int chunkZ, long now);
+        
+        void trackAll() {
+            for(int i=0; i < entities.length; i++)
+                track(i, 0);
+        }
+        
+        long sweep(final long tick) {
+            for(int i=0; i < entities.length; i++)
+                update(i, chunkX[i] + (int) (tick & 1), chunkZ[i], tick);
+            
+            // 1% of the entities die and as many spawn
+            final int churn = entities.length / 100;
+            final int from = (int) ((tick * churn) % (entities.length - churn));
+            for(int i=from; i < from + churn; i++) {
+                untrack(i);
+                track(i, tick);
+            }
+            return tick;
+        }
+    }
+    
+    private static class MapLayout extends Layout {
+        private final HashMap<UUID, MapEntityInfo> map = new HashMap<UUID, MapEntityInfo>();
+        private final String worldName;
+        
+        MapLayout(final FakeWorld world) {
+            super(world);
+            worldName = world.getWorld().getName();
+        }
+        
+        private String chunkKey(final int chunkX, final int chunkZ) {
+            return worldName+","+chunkX+","+chunkZ;
+        }
+        
+        void track(final int i, final long now) {
+            map.put(uuids[i], new MapEntityInfo(entities[i], util, worldName, chunkKey(chunkX[i], chunkZ[i]), now));
+        }
+        void untrack(final int i) {
+            map.remove(uuids[i]);
+        }
+        void update(final int i, final int x, final int z, final long now) {
+            final MapEntityInfo info = map.get(uuids[i]);
+            info.currentChunkKey = chunkKey(x, z);
+            if( (now & 7) == 0 )
+                info.lastInteractEvent = now;
+        }
+    }
+    
+    /** EntityStores behind EntityShards, set up and used as MobManager does. */
+    private static class ShardsLayout extends Layout {
+        // the stores grow as entities are tracked, as they do in the plugin
+        private final EntityShards shards = new EntityShards(16, 64);
+        private final int worldIndex;
+        
+        ShardsLayout(final FakeWorld world) {
+            super(world);
+            worldIndex = util.getWorldIndex(world.getWorld());
+            shards.setOwnerOfAll(Thread.currentThread());
+        }
+        
+        void track(final int i, final long now) {
+            final long chunkKey = Util.packChunkKey(worldIndex, chunkX[i], chunkZ[i]);
+            shards.findOrAllocate(shards.shardFor(chunkKey), uuids[i], chunkKey, now);
+        }
+        void untrack(final int i) {
+            shards.release(shards.shardFor(Util.packChunkKey(worldIndex, chunkX[i], chunkZ[i])), uuids[i]);
+        }
+        void update(final int i, final int x, final int z, final long now) {
+            // crossing into another region hands the entity to that shard
+            final long chunkKey = Util.packChunkKey(worldIndex, x, z);
+            final int shard = shards.shardFor(chunkKey);
+            final int slot = shards.find(shard, uuids[i]);
+            final EntityStore store = shards.getStore(shard);
+            store.setCurrentChunk(slot, chunkKey);
+            if( (now & 7) == 0 )
+                store.setLastInteract(slot, now);
+        }
+    }
+    
+    private static FakeWorld populate(final int entities) {
+        final FakeWorld world = FakeServer.install().createWorld("heap-" + entities + "-" + System.nanoTime());
+        SyntheticWorld.populate(world, SyntheticWorld.radiusFor(entities, 16), entities, 0.5, new Random(8));
+        return world;
+    }
+    
+    private static Layout createLayout(final String layout, final FakeWorld world) {
+        if( "map".equals(layout) )
+            return new MapLayout(world);
+        if( "shards".equals(layout) )
+            return new ShardsLayout(world);
+        throw new IllegalArgumentException("unknown layout " + layout);
+    }
+    
+    public static void main(final String[] args) {
+        final int entities = args.length > 0 ? Integer.parseInt(args[0]) : 250000;
+        System.out.println(String.format(Locale.ROOT, "%-6s %10s %12s %10s %12s %12s",
+                "layout", "entities", "bytes/entity", "fullGC ms", "sweep GCs", "sweep MB"));
+        for(String layout : new String[] { "map", "shards" }) {
+            final Layout tracked = createLayout(layout, populate(entities));
+            
+            final long before = usedHeap();
+            tracked.trackAll();
+            final long after = usedHeap();
+            
+            // a full collection has to trace everything the layout holds
+            long gcTime = gcTime();
+            System.gc();
+            gcTime = gcTime() - gcTime;
+            
+            final long gcCount = gcCount();
+            final long allocated = allocatedBytes();
+            for(long tick=1; tick <= SWEEPS; tick++)
+                tracked.sweep(tick);
+            
+            System.out.println(String.format(Locale.ROOT, "%-6s %10d %12d %10d %12d %12d",
+                    layout, entities, (after - before) / entities, gcTime,
+                    gcCount() - gcCount, (allocatedBytes() - allocated) >> 20));
+        }
+    }
+    
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for(int i=0; i < 4; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static long gcCount() {
+        long count = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+    
+    private static long gcTime() {
+        long time = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+    
+    /** Bytes allocated by this thread so far, or 0 if the JVM can't say. */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( !(bean instanceof com.sun.management.ThreadMXBean) )
+            return 0;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+
+/** An animal pen whose owner keeps breeding the animals and now and then
+ * slaughters a few. The owner either stands by the pen or, for pens left
+ * to themselves most of the time, some way off.
+ * 
+ * @author morganm
+ *
+ */
+public class BreedingPen implements Workload {
+    private final int x;
+    private final int z;
+    private final int size;
+    private final EntityType type;
+    private final int initial;
+    private final double breedChance;
+    private final double cullChance;
+    private final int ownerDistance;
+    private FakeEntity owner;
+    private final List<FakeEntity> animals = new ArrayList<FakeEntity>();
+    
+    /**
+     * 
+     * @param x block x of the pen corner
+     * @param z block z of the pen corner
+     * @param size pen width in blocks
+     * @param type animal type
+     * @param initial animals in the pen at startup
+     * @param breedChance chance per tick of a new animal being bred
+     * @param cullChance chance per tick of the owner killing an animal
+     */
+    public BreedingPen(int x, int z, int size, EntityType type, int initial, double breedChance, double cullChance) {
+        this(x, z, size, type, initial, breedChance, cullChance, 2);
+    }
+    
+    /**
+     * 
+     * @param x block x of the pen corner
+     * @param z block z of the pen corner
+     * @param size pen width in blocks
+     * @param type animal type
+     * @param initial animals in the pen at startup
+     * @param breedChance chance per tick of a new animal being bred
+     * @param cullChance chance per tick of the owner killing an animal
+     * @param ownerDistance blocks between the owner and the pen
+     */
+    public BreedingPen(int x, int z, int size, EntityType type, int initial, double breedChance, double cullChance,
+            int ownerDistance) {
+        this.x = x;
+        this.z = z;
+        this.size = size;
+        this.type = type;
+        this.initial = initial;
+        this.breedChance = breedChance;
+        this.cullChance = cullChance;
+        this.ownerDistance = ownerDistance;
+    }
+    
+    public void setup(final Simulation sim) {
+        final Random random = sim.random();
+        owner = sim.addPlayer(x + size / 2.0, z - ownerDistance);
+        for(int i=0; i < initial; i++) {
+            final FakeEntity animal = sim.addExisting(type, x + random.nextDouble() * size, z + random.nextDouble() * size);
+            animal.setTicksLived(random.nextInt(24000));
+            animals.add(animal);
+        }
+    }
+    
+    public void tick(final Simulation sim, final int tick) {
+        final Random random = sim.random();
+        if( random.nextDouble() < breedChance ) {
+            final FakeEntity baby = sim.spawn(type, x + random.nextDouble() * size, z + random.nextDouble() * size,
+                    SpawnReason.BREEDING);
+            if( baby != null )
+                animals.add(baby);
+        }
+        
+        if( random.nextDouble() < cullChance && !animals.isEmpty() )
+            sim.damage(animals.get(random.nextInt(animals.size())), owner, 20);
+        
+        for(FakeEntity animal : animals) {
+            if( animal.isValid() && random.nextInt(20) == 0 ) {
+                final double nx = Math.max(x, Math.min(x + size - 0.01, animal.getX() + random.nextDouble() * 2 - 1));
+                final double nz = Math.max(z, Math.min(z + size - 0.01, animal.getZ() + random.nextDouble() * 2 - 1));
+                animal.moveTo(nx, 64, nz);
+            }
+        }
+        
+        if( tick % 100 == 0 ) {
+            for(int i=animals.size()-1; i >= 0; i--) {
+                if( !animals.get(i).isValid() )
+                    animals.remove(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+
+/** A dark-room mob farm: monsters spawn naturally on a platform, are carried
+ * to a drop shaft and die from the fall with no player involved. An AFK
+ * player nearby keeps it loaded.
+ * 
+ * @author morganm
+ *
+ */
+public class MobFarm implements Workload {
+    private static final EntityType[] TYPES = {
+        EntityType.ZOMBIE, EntityType.SKELETON, EntityType.CREEPER, EntityType.SPIDER
+    };
+    
+    private final int x;
+    private final int z;
+    private final double spawnsPerTick;
+    private final int travelTicks;
+    private final ArrayDeque<FakeEntity> mobs = new ArrayDeque<FakeEntity>();
+    private final ArrayDeque<Integer> dropTicks = new ArrayDeque<Integer>();
+    
+    /**
+     * 
+     * @param x block x of the farm platform corner
+     * @param z block z of the farm platform corner
+     * @param spawnsPerTick average spawns per tick
+     * @param travelTicks ticks from spawn until a mob falls to its death
+     */
+    public MobFarm(int x, int z, double spawnsPerTick, int travelTicks) {
+        this.x = x;
+        this.z = z;
+        this.spawnsPerTick = spawnsPerTick;
+        this.travelTicks = travelTicks;
+    }
+    
+    public void setup(final Simulation sim) {
+        sim.addPlayer(x + 40, z + 8);
+    }
+    
+    public void tick(final Simulation sim, final int tick) {
+        final Random random = sim.random();
+        int spawns = (int) spawnsPerTick;
+        if( random.nextDouble() < spawnsPerTick - spawns )
+            spawns++;
+        for(int i=0; i < spawns; i++) {
+            final FakeEntity mob = sim.spawn(TYPES[random.nextInt(TYPES.length)],
+                    x + random.nextDouble() * 16, z + random.nextDouble() * 16, SpawnReason.NATURAL);
+            if( mob != null ) {
+                mobs.add(mob);
+                dropTicks.add(tick + travelTicks);
+            }
+        }
+        
+        // mobs drift toward the drop shaft in the middle of the platform
+        for(FakeEntity mob : mobs) {
+            if( mob.isValid() && random.nextInt(4) == 0 )
+                mob.moveTo(mob.getX() + (x + 8 - mob.getX()) * 0.1, 64, mob.getZ() + (z + 8 - mob.getZ()) * 0.1);
+        }
+        
+        while( !dropTicks.isEmpty() && dropTicks.peek() <= tick ) {
+            dropTicks.poll();
+            final FakeEntity mob = mobs.poll();
+            if( mob.isValid() ) {
+                mob.moveTo(x + 8.5, 2, z + 8.5);
+                sim.damage(mob, null, 100);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+
+/** Monsters spawning around players, wandering, and despawning when far
+ * from every player, roughly as the vanilla server does.
+ * 
+ * @author morganm
+ *
+ */
+public class NaturalSpawns implements Workload {
+    private static final EntityType[] TYPES = {
+        EntityType.ZOMBIE, EntityType.SKELETON, EntityType.CREEPER, EntityType.SPIDER
+    };
+    
+    private final double spawnsPerTick;
+    private final int maxMonsters;
+    private final List<FakeEntity> monsters = new ArrayList<FakeEntity>();
+    
+    /**
+     * 
+     * @param spawnsPerTick average natural monster spawns per tick
+     * @param maxMonsters no more spawns while this many are alive
+     */
+    public NaturalSpawns(double spawnsPerTick, int maxMonsters) {
+        this.spawnsPerTick = spawnsPerTick;
+        this.maxMonsters = maxMonsters;
+    }
+    
+    public void setup(final Simulation sim) {
+    }
+    
+    public void tick(final Simulation sim, final int tick) {
+        final Random random = sim.random();
+        final List<FakeEntity> players = sim.getPlayers();
+        if( players.isEmpty() )
+            return;
+        
+        int spawns = (int) spawnsPerTick;
+        if( random.nextDouble() < spawnsPerTick - spawns )
+            spawns++;
+        for(int i=0; i < spawns && monsters.size() < maxMonsters; i++) {
+            final FakeEntity player = players.get(random.nextInt(players.size()));
+            final double angle = random.nextDouble() * Math.PI * 2;
+            final double distance = 24 + random.nextDouble() * 40;
+            final FakeEntity monster = sim.spawn(TYPES[random.nextInt(TYPES.length)],
+                    player.getX() + Math.cos(angle) * distance, player.getZ() + Math.sin(angle) * distance,
+                    SpawnReason.NATURAL);
+            if( monster != null )
+                monsters.add(monster);
+        }
+        
+        // wander
+        for(int i=0; i < monsters.size(); i++) {
+            final FakeEntity monster = monsters.get(i);
+            if( monster.isValid() && random.nextInt(10) == 0 )
+                monster.moveTo(monster.getX() + random.nextDouble() * 2 - 1, 64, monster.getZ() + random.nextDouble() * 2 - 1);
+        }
+        
+        if( tick % 20 == 0 )
+            despawn(sim, players, random);
+    }
+    
+    /** Drop monsters that are gone, and despawn those far from players:
+     * always beyond 128 blocks, and with a 1 in 800 chance per tick beyond 32.
+     */
+    private void despawn(final Simulation sim, final List<FakeEntity> players, final Random random) {
+        final List<FakeEntity> alive = new ArrayList<FakeEntity>(monsters.size());
+        for(FakeEntity monster : monsters) {
+            if( !monster.isValid() )
+                continue;
+            
+            double nearest = Double.MAX_VALUE;
+            for(FakeEntity player : players) {
+                final double dx = player.getX() - monster.getX();
+                final double dz = player.getZ() - monster.getZ();
+                nearest = Math.min(nearest, dx * dx + dz * dz);
+            }
+            if( nearest > 128 * 128 || (nearest > 32 * 32 && random.nextInt(40) == 0) )
+                sim.despawn(monster);
+            else
+                alive.add(monster);
+        }
+        monsters.clear();
+        monsters.addAll(alive);
+    }
+}
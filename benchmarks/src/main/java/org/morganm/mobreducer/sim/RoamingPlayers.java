@@ -0,0 +1,100 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+
+/** Players walking between random waypoints, fighting monsters they come
+ * across and being targeted by them.
+ * 
+ * @author morganm
+ *
+ */
+public class RoamingPlayers implements Workload {
+    private final int count;
+    private final int areaRadius;
+    private final double speed;
+    private final double attackChance;
+    private final double targetChance;
+    private FakeEntity[] players;
+    private double[] waypointX;
+    private double[] waypointZ;
+    
+    /**
+     * 
+     * @param count number of players
+     * @param areaRadius players roam within this many blocks of 0,0
+     * @param speed blocks per tick
+     * @param attackChance chance per player per tick of hitting a monster in
+     * the same chunk
+     * @param targetChance chance per player per tick of a monster in the same
+     * chunk targeting the player
+     */
+    public RoamingPlayers(int count, int areaRadius, double speed, double attackChance, double targetChance) {
+        this.count = count;
+        this.areaRadius = areaRadius;
+        this.speed = speed;
+        this.attackChance = attackChance;
+        this.targetChance = targetChance;
+    }
+    
+    public void setup(final Simulation sim) {
+        final Random random = sim.random();
+        players = new FakeEntity[count];
+        waypointX = new double[count];
+        waypointZ = new double[count];
+        for(int i=0; i < count; i++) {
+            players[i] = sim.addPlayer(randomCoord(random), randomCoord(random));
+            waypointX[i] = randomCoord(random);
+            waypointZ[i] = randomCoord(random);
+        }
+    }
+    
+    private double randomCoord(final Random random) {
+        return (random.nextDouble() * 2 - 1) * areaRadius;
+    }
+    
+    public void tick(final Simulation sim, final int tick) {
+        final Random random = sim.random();
+        for(int i=0; i < count; i++) {
+            final FakeEntity player = players[i];
+            final double dx = waypointX[i] - player.getX();
+            final double dz = waypointZ[i] - player.getZ();
+            final double distance = Math.sqrt(dx * dx + dz * dz);
+            if( distance <= speed ) {
+                waypointX[i] = randomCoord(random);
+                waypointZ[i] = randomCoord(random);
+            }
+            else
+                player.moveTo(player.getX() + dx / distance * speed, 64, player.getZ() + dz / distance * speed);
+            
+            final boolean attack = random.nextDouble() < attackChance;
+            final boolean targeted = random.nextDouble() < targetChance;
+            if( !attack && !targeted )
+                continue;
+            
+            final FakeEntity monster = nearbyMonster(sim, player, random);
+            if( monster == null )
+                continue;
+            if( targeted )
+                sim.target(monster, player);
+            if( attack )
+                sim.damage(monster, player, 4 + random.nextInt(4));
+        }
+    }
+    
+    private FakeEntity nearbyMonster(final Simulation sim, final FakeEntity player, final Random random) {
+        final List<FakeEntity> entities = sim.getWorld().loadChunk(player.getChunkX(), player.getChunkZ()).getFakeEntities();
+        if( entities.isEmpty() )
+            return null;
+        final FakeEntity entity = entities.get(random.nextInt(entities.size()));
+        if( entity.getType() == EntityType.PLAYER || !entity.isValid() )
+            return null;
+        return entity;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.entity.EntityType;
+
+/** The standard scenarios, so that every change can be measured against
+ * the same workloads.
+ * 
+ * @author morganm
+ *
+ */
+public class Scenarios {
+    private static final List<String> NAMES = Arrays.asList("players", "farms", "pens", "pastures", "grinders", "mixed");
+    
+    private Scenarios() {}
+    
+    public static List<String> getNames() {
+        return NAMES;
+    }
+    
+    /** Add the workloads for a named scenario to a simulation.
+     * 
+     * @param name
+     * @param sim
+     * @throws IllegalArgumentException if there is no such scenario
+     */
+    public static void configure(final String name, final Simulation sim) {
+        if( name.equals("players") ) {
+            // a busy survival server: lots of players spread out exploring
+            sim.add(new RoamingPlayers(120, 3000, 0.25, 0.02, 0.02));
+            sim.add(new NaturalSpawns(3, 6000));
+        }
+        else if( name.equals("farms") ) {
+            sim.add(new RoamingPlayers(10, 1000, 0.25, 0.02, 0.02));
+            sim.add(new NaturalSpawns(0.5, 600));
+            for(int i=0; i < 4; i++)
+                sim.add(new MobFarm(i * 400 - 600, 600, 0.5, 400));
+        }
+        else if( name.equals("pens") ) {
+            sim.add(new RoamingPlayers(10, 1000, 0.25, 0.02, 0.02));
+            sim.add(new NaturalSpawns(0.5, 600));
+            final EntityType[] types = { EntityType.COW, EntityType.PIG, EntityType.SHEEP, EntityType.CHICKEN };
+            for(int i=0; i < 8; i++)
+                sim.add(new BreedingPen(i * 200 - 800, -600, 12, types[i % types.length], 20, 0.05, 0.01));
+        }
+        else if( name.equals("pastures") ) {
+            // pens left to themselves, their owners off elsewhere
+            sim.add(new RoamingPlayers(10, 1000, 0.25, 0.02, 0.02));
+            sim.add(new NaturalSpawns(0.5, 600));
+            final EntityType[] types = { EntityType.COW, EntityType.PIG, EntityType.SHEEP, EntityType.CHICKEN };
+            for(int i=0; i < 8; i++)
+                sim.add(new BreedingPen(i * 200 - 800, -600, 12, types[i % types.length], 20, 0.05, 0.01, 64));
+        }
+        else if( name.equals("grinders") ) {
+            sim.add(new RoamingPlayers(10, 1000, 0.25, 0.02, 0.02));
+            sim.add(new NaturalSpawns(0.5, 600));
+            final EntityType[] types = { EntityType.ZOMBIE, EntityType.SKELETON, EntityType.SPIDER };
+            for(int i=0; i < 6; i++)
+                sim.add(new SpawnerGrinder(i * 300 - 900, 1200, types[i % types.length], 4, 100, 60));
+        }
+        else if( name.equals("mixed") ) {
+            sim.add(new RoamingPlayers(100, 3000, 0.25, 0.02, 0.02));
+            sim.add(new NaturalSpawns(2, 5000));
+            for(int i=0; i < 2; i++)
+                sim.add(new MobFarm(i * 400 - 200, 600, 0.5, 400));
+            for(int i=0; i < 4; i++)
+                sim.add(new BreedingPen(i * 200 - 400, -600, 12, EntityType.COW, 20, 0.05, 0.01));
+            for(int i=0; i < 3; i++)
+                sim.add(new SpawnerGrinder(i * 300 - 300, 1200, EntityType.ZOMBIE, 4, 100, 60));
+        }
+        else
+            throw new IllegalArgumentException("unknown scenario \""+name+"\", expected one of "+NAMES);
+    }
+}
@@ -0,0 +1,448 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.CreatureSpawnEvent;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.entity.EntityDamageEvent.DamageCause;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityTargetEvent;
+import org.bukkit.event.entity.EntityTargetEvent.TargetReason;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+import org.morganm.mobreducer.AntiGrinder;
+import org.morganm.mobreducer.Config;
+import org.morganm.mobreducer.SpawnerRegistry;
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.bench.PluginHarness;
+import org.morganm.mobreducer.bench.fake.FakeChunk;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+import org.morganm.mobreducer.bench.fake.FakeWorld;
+import org.morganm.mobreducer.listener.ChunkListener;
+import org.morganm.mobreducer.listener.EntityListener;
+import org.morganm.mobreducer.listener.PlayerListener;
+import org.morganm.mobreducer.manager.MobManager;
+import org.morganm.mobreducer.metrics.Metrics;
+
+/** Headless, single-world server simulation. Workloads spawn, move, damage
+ * and kill entities in a fake world; the simulation turns those into the
+ * Bukkit events the plugin listens for, in the order the server would fire
+ * them, and runs the MobManager sweep on the plugin's schedule. Chunks are
+ * loaded and unloaded around players the way the server does.
+ * 
+ * Only time spent inside plugin code is counted as tick cost. The plugin's
+ * tick monitor is fed a tick duration of 50ms, or the simulated server work
+ * per tick (see {@link #setServerTickNanos(long)}) plus the plugin cost if
+ * that is longer, as the server would.
+ * 
+ * @author morganm
+ *
+ */
+public class Simulation {
+    private static final int CHUNK_UPDATE_TICKS = 20;
+    private static final long TICK_NANOS = 50000000L;
+    
+    private final Random random;
+    private final PluginHarness harness;
+    private final FakeWorld world;
+    private final List<Workload> workloads = new ArrayList<Workload>();
+    private final TickStats stats = new TickStats();
+    private final int sweepInterval;
+    private int viewRadius = 5;
+    private int sampleInterval = 200;
+    
+    private MobManager manager;
+    private EntityListener entityListener;
+    private ChunkListener chunkListener;
+    private PlayerListener playerListener;
+    private AntiGrinder antiGrinder;
+    // the chunk each player was in at the end of the last tick
+    private final Map<FakeEntity, Long> playerChunks = new HashMap<FakeEntity, Long>();
+    private long tickNanos;
+    private long serverTickNanos = 0;
+    private boolean workloadDamage = false;
+    
+    private int spawnsAttempted = 0;
+    private int spawnsRefused = 0;
+    private int workloadKills = 0;
+    private int pluginKills = 0;
+    private int naturalDespawns = 0;
+    private long expBase = 0;
+    private long expGranted = 0;
+    
+    /**
+     * 
+     * @param seed seed for all randomness in the run
+     * @param sweepInterval ticks between sweep passes, as MobReducer schedules them
+     */
+    public Simulation(final long seed, final int sweepInterval) {
+        this.random = new Random(seed);
+        this.sweepInterval = sweepInterval;
+        harness = new PluginHarness();
+        world = harness.getServer().createWorld("world");
+        world.setSeed(seed);
+        world.setDeathListener(new FakeWorld.DeathListener() {
+            public void entityDied(FakeEntity entity) {
+                fireDeath(entity);
+            }
+        });
+    }
+    
+    /** Override a plugin config value. Must be called before {@link #run(int)}.
+     */
+    public Simulation set(final String path, final Object value) {
+        harness.set(path, value);
+        return this;
+    }
+    
+    public Simulation add(final Workload workload) {
+        workloads.add(workload);
+        return this;
+    }
+    
+    /** Set the chunk radius kept loaded around each player. */
+    public void setViewRadius(final int viewRadius) {
+        this.viewRadius = viewRadius;
+    }
+    
+    /** Set how long, in nanoseconds, the simulated server spends on each
+     * tick outside the plugin. Over 50ms this lowers the TPS the plugin sees.
+     */
+    public void setServerTickNanos(final long serverTickNanos) {
+        this.serverTickNanos = serverTickNanos;
+    }
+    
+    /** Set how often, in ticks, the population is sampled. */
+    public void setSampleInterval(final int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+    
+    public Random random() {
+        return random;
+    }
+    public FakeWorld getWorld() {
+        return world;
+    }
+    public Config getConfig() {
+        return harness.getConfig();
+    }
+    public Metrics getMetrics() {
+        return harness.getMetrics();
+    }
+    public TickStats getStats() {
+        return stats;
+    }
+    
+    /** Run the simulation: set up the workloads, start the plugin and then
+     * tick the given number of times.
+     * 
+     * @param ticks
+     */
+    public void run(final int ticks) {
+        for(Workload workload : workloads)
+            workload.setup(this);
+        updateLoadedChunks();
+        
+        manager = harness.start(sweepInterval);
+        entityListener = new EntityListener(manager, harness.getConfig(), harness.getTrace());
+        chunkListener = new ChunkListener(manager);
+        playerListener = new PlayerListener(manager, harness.getConfig());
+        if( harness.getConfig().isAntiGrinderEnabled() ) {
+            final SpawnerRegistry spawners = new SpawnerRegistry(harness.getUtil(), harness.getConfig(),
+                    harness.getTickClock(), harness.getMetrics());
+            antiGrinder = new AntiGrinder(harness.getUtil(), harness.getConfig(), spawners, harness.getTrace());
+            antiGrinder.trackLoadedChunks();
+        }
+        
+        try {
+            for(int tick=0; tick < ticks; tick++) {
+                tickNanos = 0;
+                harness.getTickClock().run();
+                world.tick();
+                
+                for(Workload workload : workloads)
+                    workload.tick(this, tick);
+                firePlayerMoves();
+                if( tick % CHUNK_UPDATE_TICKS == 0 )
+                    updateLoadedChunks();
+                
+                // MobReducer runs the sweep every tick, and it starts passes on its own
+                final long start = System.nanoTime();
+                manager.run();
+                tickNanos += System.nanoTime() - start;
+                harness.getTickMonitor().tick(Math.max(TICK_NANOS, serverTickNanos + tickNanos));
+                
+                stats.recordTick(tickNanos);
+                if( tick % sampleInterval == 0 || tick == ticks - 1 )
+                    sample(tick);
+            }
+        }
+        finally {
+            harness.stop();
+        }
+    }
+    
+    private void sample(final int tick) {
+        int monsters = 0, animals = 0, players = 0;
+        final Util util = harness.getUtil();
+        for(FakeEntity entity : world.getFakeEntities()) {
+            if( entity.getType() == EntityType.PLAYER )
+                players++;
+            else if( util.isMonster(entity.getEntity()) )
+                monsters++;
+            else if( util.isAnimal(entity.getEntity()) )
+                animals++;
+        }
+        stats.addSample(new TickStats.Sample(tick, world.getEntityCount(), monsters, animals, players,
+                world.getLoadedChunks().size(), getPurged(), spawnsRefused));
+    }
+    
+    /** Keep the chunks within view radius of every player loaded and unload
+     * the rest, firing chunk events.
+     */
+    private void updateLoadedChunks() {
+        final Set<Long> wanted = new HashSet<Long>();
+        for(FakeEntity player : getPlayers()) {
+            final int px = player.getChunkX();
+            final int pz = player.getChunkZ();
+            for(int x=px-viewRadius; x <= px+viewRadius; x++) {
+                for(int z=pz-viewRadius; z <= pz+viewRadius; z++) {
+                    if( wanted.add(key(x, z)) )
+                        loadChunk(x, z);
+                }
+            }
+        }
+        for(FakeChunk chunk : world.getLoadedChunks()) {
+            if( !wanted.contains(key(chunk.getX(), chunk.getZ())) )
+                unloadChunk(chunk);
+        }
+    }
+    
+    /** Fire PlayerMoveEvent for every player that moved into another chunk
+     * this tick. Moves within a chunk aren't fired; the listener ignores
+     * them anyway.
+     */
+    private void firePlayerMoves() {
+        for(FakeEntity player : getPlayers()) {
+            final long chunk = key(player.getChunkX(), player.getChunkZ());
+            final Long last = playerChunks.put(player, chunk);
+            if( last == null || last.longValue() == chunk )
+                continue;
+            
+            final Location to = player.getEntity().getLocation();
+            final Location from = new Location(world.getWorld(), (int) (last >> 32) << 4, to.getY(), last.intValue() << 4);
+            final long start = System.nanoTime();
+            playerListener.onPlayerMove(new PlayerMoveEvent((Player) player.getEntity(), from, to));
+            tickNanos += System.nanoTime() - start;
+        }
+    }
+    
+    private static long key(final int x, final int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+    
+    public List<FakeEntity> getPlayers() {
+        final List<FakeEntity> players = new ArrayList<FakeEntity>();
+        for(Player player : world.getPlayers())
+            players.add(FakeEntity.of(player));
+        return players;
+    }
+    
+    /** Load a chunk if it isn't already, firing ChunkLoadEvent once the
+     * plugin is running.
+     */
+    public void loadChunk(final int x, final int z) {
+        if( world.isChunkLoaded(x, z) )
+            return;
+        final FakeChunk chunk = world.loadChunk(x, z);
+        if( chunkListener != null ) {
+            final long start = System.nanoTime();
+            final ChunkLoadEvent event = new ChunkLoadEvent(chunk.getChunk(), false);
+            chunkListener.onChunkLoad(event);
+            if( antiGrinder != null )
+                antiGrinder.onChunkLoad(event);
+            tickNanos += System.nanoTime() - start;
+        }
+    }
+    
+    private void unloadChunk(final FakeChunk chunk) {
+        if( chunkListener != null ) {
+            final ChunkUnloadEvent event = new ChunkUnloadEvent(chunk.getChunk());
+            final long start = System.nanoTime();
+            chunkListener.onChunkUnload(event);
+            tickNanos += System.nanoTime() - start;
+            if( event.isCancelled() )
+                return;
+        }
+        world.unloadChunk(chunk.getX(), chunk.getZ());
+    }
+    
+    /** Place a mob spawner block, before the plugin is started.
+     */
+    public void addSpawner(final int x, final int y, final int z, final EntityType type) {
+        if( manager != null )
+            throw new IllegalStateException("the plugin is already running");
+        world.addSpawner(x, y, z, type);
+    }
+    
+    /** Add a player. Players don't fire spawn events.
+     */
+    public FakeEntity addPlayer(final double x, final double z) {
+        loadChunk(((int) Math.floor(x)) >> 4, ((int) Math.floor(z)) >> 4);
+        return world.spawn(EntityType.PLAYER, x, 64, z);
+    }
+    
+    /** Add an entity that already exists when the server starts. Only valid
+     * during setup.
+     */
+    public FakeEntity addExisting(final EntityType type, final double x, final double z) {
+        if( manager != null )
+            throw new IllegalStateException("the plugin is already running");
+        return world.spawn(type, x, 64, z);
+    }
+    
+    /** Spawn a mob, firing CreatureSpawnEvent.
+     * 
+     * @return the mob, or null if the spawn was cancelled
+     */
+    public FakeEntity spawn(final EntityType type, final double x, final double z, final SpawnReason reason) {
+        loadChunk(((int) Math.floor(x)) >> 4, ((int) Math.floor(z)) >> 4);
+        final FakeEntity entity = world.spawn(type, x, 64, z);
+        spawnsAttempted++;
+        
+        final CreatureSpawnEvent event = new CreatureSpawnEvent((LivingEntity) entity.getEntity(), reason);
+        final long start = System.nanoTime();
+        if( antiGrinder != null )
+            antiGrinder.onSpawnerSpawn(event);
+        if( !event.isCancelled() )
+            entityListener.onEntitySpawn(event);
+        if( antiGrinder != null && !event.isCancelled() )
+            antiGrinder.onEntitySpawn(event);
+        tickNanos += System.nanoTime() - start;
+        
+        if( event.isCancelled() ) {
+            world.despawn(entity);
+            spawnsRefused++;
+            return null;
+        }
+        return entity;
+    }
+    
+    /** Damage a mob, firing EntityDamageByEntityEvent if there is an
+     * attacker. Kills it if its health runs out.
+     * 
+     * @param victim
+     * @param attacker the attacking entity, or null for environmental damage
+     * @param amount
+     */
+    public void damage(final FakeEntity victim, final FakeEntity attacker, final int amount) {
+        if( !victim.isValid() )
+            return;
+        if( attacker != null ) {
+            final EntityDamageByEntityEvent event = new EntityDamageByEntityEvent(attacker.getEntity(),
+                    victim.getEntity(), DamageCause.ENTITY_ATTACK, amount);
+            final long start = System.nanoTime();
+            entityListener.onEntityDamage(event);
+            tickNanos += System.nanoTime() - start;
+        }
+        
+        workloadDamage = true;
+        try {
+            victim.damage(amount);
+        }
+        finally {
+            workloadDamage = false;
+        }
+    }
+    
+    /** Have a mob target a player, firing EntityTargetEvent.
+     */
+    public void target(final FakeEntity mob, final FakeEntity player) {
+        if( !mob.isValid() )
+            return;
+        mob.setTarget((LivingEntity) player.getEntity());
+        final EntityTargetEvent event = new EntityTargetEvent(mob.getEntity(), player.getEntity(),
+                TargetReason.CLOSEST_PLAYER);
+        final long start = System.nanoTime();
+        entityListener.onEntityTarget(event);
+        tickNanos += System.nanoTime() - start;
+    }
+    
+    /** Remove a mob the way the server does when it despawns naturally,
+     * which fires no event.
+     */
+    public void despawn(final FakeEntity entity) {
+        if( !entity.isValid() )
+            return;
+        world.despawn(entity);
+        naturalDespawns++;
+    }
+    
+    /** Fire EntityDeathEvent for an entity that just died, with some drops. */
+    private void fireDeath(final FakeEntity entity) {
+        if( entity.getType() == EntityType.PLAYER )
+            return;
+        if( workloadDamage )
+            workloadKills++;
+        else
+            pluginKills++;
+        
+        final List<ItemStack> drops = new ArrayList<ItemStack>();
+        drops.add(new ItemStack(Material.BONE, 1 + random.nextInt(2)));
+        final int exp = harness.getUtil().isMonster(entity.getEntity()) ? 5 : 1 + random.nextInt(3);
+        expBase += exp;
+        
+        final EntityDeathEvent event = new EntityDeathEvent((LivingEntity) entity.getEntity(), drops, exp);
+        final long start = System.nanoTime();
+        entityListener.onEntityDeath(event);
+        if( antiGrinder != null )
+            antiGrinder.onEntityDeath(event);
+        tickNanos += System.nanoTime() - start;
+        expGranted += event.getDroppedExp();
+    }
+    
+    public int getSpawnsAttempted() {
+        return spawnsAttempted;
+    }
+    public int getSpawnsRefused() {
+        return spawnsRefused;
+    }
+    /** Mobs removed by the plugin's idle purge. */
+    public int getPurged() {
+        return world.getRemovedCount();
+    }
+    /** Mobs killed by workloads: players, fall damage and so on. */
+    public int getWorkloadKills() {
+        return workloadKills;
+    }
+    /** Mobs killed by the plugin, ie. kill-oldest-on-spawn. */
+    public int getPluginKills() {
+        return pluginKills;
+    }
+    public int getNaturalDespawns() {
+        return naturalDespawns;
+    }
+    public long getExpBase() {
+        return expBase;
+    }
+    public long getExpGranted() {
+        return expGranted;
+    }
+}
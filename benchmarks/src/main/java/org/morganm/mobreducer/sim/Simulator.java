@@ -0,0 +1,159 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Command line entry point for the simulator. Runs a named scenario with a
+ * seed and prints a report of plugin tick cost, population and plugin
+ * actions. For example:
+ * 
+ *   java -cp target/benchmarks.jar org.morganm.mobreducer.sim.Simulator \
+ *       mixed --seed 1 --ticks 12000 --set sweep.mode=full --csv mixed.csv
+ * 
+ * --server-ms N simulates N milliseconds of server work per tick besides
+ * the plugin, so values over 50 put the plugin under load.
+ * 
+ * Monsters are considered idle after 10 seconds unless overridden with
+ * --set monsters.idleAge=N.
+ * 
+ * A run is repeatable for a given seed as long as the plugin makes no
+ * decisions based on wall-clock time. Idle age is measured in simulated
+ * ticks, so purges are repeatable, but the sliced sweep budget and
+ * AntiGrinder decay are measured in real time, so sliced mode and drop
+ * throttling make results depend on how fast the run goes; use
+ * sweep.mode=full for exactly repeatable populations.
+ * 
+ * @author morganm
+ *
+ */
+public class Simulator {
+    public static void main(final String[] args) throws IOException {
+        String scenario = "mixed";
+        long seed = 1;
+        int ticks = 12000;
+        int interval = 1200;
+        File csv = null;
+        double serverMillis = 0;
+        
+        final List<String[]> overrides = new ArrayList<String[]>();
+        for(int i=0; i < args.length; i++) {
+            final String arg = args[i];
+            if( arg.equals("--seed") )
+                seed = Long.parseLong(args[++i]);
+            else if( arg.equals("--ticks") )
+                ticks = Integer.parseInt(args[++i]);
+            else if( arg.equals("--interval") )
+                interval = Integer.parseInt(args[++i]);
+            else if( arg.equals("--server-ms") )
+                serverMillis = Double.parseDouble(args[++i]);
+            else if( arg.equals("--csv") )
+                csv = new File(args[++i]);
+            else if( arg.equals("--set") ) {
+                final String[] kv = args[++i].split("=", 2);
+                if( kv.length != 2 )
+                    usage("--set expects key=value");
+                overrides.add(kv);
+            }
+            else if( arg.startsWith("--") )
+                usage("unknown option "+arg);
+            else
+                scenario = arg;
+        }
+        
+        final Simulation sim = new Simulation(seed, interval);
+        sim.set("monsters.idleAge", 10);
+        sim.setServerTickNanos((long) (serverMillis * 1000000));
+        for(String[] kv : overrides)
+            sim.set(kv[0], parseValue(kv[1]));
+        try {
+            Scenarios.configure(scenario, sim);
+        }
+        catch(IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        
+        final long start = System.nanoTime();
+        sim.run(ticks);
+        final long elapsed = System.nanoTime() - start;
+        
+        report(scenario, seed, sim, elapsed);
+        if( csv != null ) {
+            sim.getStats().writeCsv(csv);
+            System.out.println("Population samples written to "+csv);
+        }
+    }
+    
+    private static Object parseValue(final String value) {
+        if( value.equals("true") || value.equals("false") )
+            return Boolean.valueOf(value);
+        try {
+            return Integer.valueOf(value);
+        }
+        catch(NumberFormatException e) {}
+        try {
+            return Double.valueOf(value);
+        }
+        catch(NumberFormatException e) {}
+        return value;
+    }
+    
+    private static void usage(final String message) {
+        System.err.println(message);
+        System.err.println("usage: Simulator [scenario] [--seed N] [--ticks N] [--interval N] [--server-ms N] [--set key=value]... [--csv file]");
+        System.err.println("scenarios: "+Scenarios.getNames());
+        System.exit(2);
+    }
+    
+    private static void report(final String scenario, final long seed, final Simulation sim, final long elapsed) {
+        final TickStats stats = sim.getStats();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Scenario %s, seed %d, %d ticks, sweep mode %s (%.1fs wall clock)%n",
+                scenario, seed, stats.getTicks(), sim.getConfig().getSweepMode(), elapsed / 1e9));
+        
+        sb.append(String.format(Locale.ROOT, "%nPlugin cost per tick (microseconds):%n"));
+        sb.append(String.format(Locale.ROOT, "  mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                stats.getMeanNanos() / 1000, stats.getPercentileNanos(50) / 1000.0,
+                stats.getPercentileNanos(90) / 1000.0, stats.getPercentileNanos(99) / 1000.0,
+                stats.getPercentileNanos(99.9) / 1000.0, stats.getPercentileNanos(100) / 1000.0));
+        sb.append(String.format(Locale.ROOT, "  ticks over 1ms: %d, over 5ms: %d, over 50ms: %d%n",
+                countOver(stats, 1000000), countOver(stats, 5000000), countOver(stats, 50000000)));
+        
+        sb.append(String.format(Locale.ROOT, "%nPopulation:%n"));
+        sb.append(String.format(Locale.ROOT, "  %8s %9s %9s %9s %8s %8s%n", "tick", "entities", "monsters", "animals", "players", "chunks"));
+        final int step = Math.max(1, stats.getSamples().size() / 20);
+        for(int i=0; i < stats.getSamples().size(); i++) {
+            if( i % step != 0 && i != stats.getSamples().size() - 1 )
+                continue;
+            final TickStats.Sample s = stats.getSamples().get(i);
+            sb.append(String.format(Locale.ROOT, "  %8d %9d %9d %9d %8d %8d%n", s.tick, s.entities, s.monsters,
+                    s.animals, s.players, s.loadedChunks));
+        }
+        
+        sb.append(String.format(Locale.ROOT, "%nActions:%n"));
+        sb.append(String.format(Locale.ROOT, "  spawns attempted %d, refused %d%n", sim.getSpawnsAttempted(), sim.getSpawnsRefused()));
+        sb.append(String.format(Locale.ROOT, "  purged %d, killed by plugin %d%n", sim.getPurged(), sim.getPluginKills()));
+        sb.append(String.format(Locale.ROOT, "  killed by workloads %d, despawned naturally %d%n", sim.getWorkloadKills(), sim.getNaturalDespawns()));
+        sb.append(String.format(Locale.ROOT, "  XP granted %d of %d%n", sim.getExpGranted(), sim.getExpBase()));
+        
+        sb.append(String.format(Locale.ROOT, "%nPlugin metrics:%n"));
+        for(Map.Entry<String, Number> e : sim.getMetrics().snapshot().entrySet())
+            sb.append(String.format(Locale.ROOT, "  %-40s %d%n", e.getKey(), e.getValue().longValue()));
+        System.out.print(sb);
+    }
+    
+    private static int countOver(final TickStats stats, final long nanos) {
+        int count = 0;
+        for(int i=0; i < stats.getTicks(); i++) {
+            if( stats.getTickNanos(i) > nanos )
+                count++;
+        }
+        return count;
+    }
+}
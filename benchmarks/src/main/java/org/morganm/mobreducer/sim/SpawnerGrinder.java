@@ -0,0 +1,89 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.morganm.mobreducer.bench.fake.FakeEntity;
+
+/** A spawner grinder: a mob spawner releases a few mobs every so often,
+ * water carries them to a kill chamber, and an AFK player standing there
+ * kills them by hand.
+ * 
+ * @author morganm
+ *
+ */
+public class SpawnerGrinder implements Workload {
+    private final int x;
+    private final int z;
+    private final EntityType type;
+    private final int mobsPerSpawn;
+    private final int spawnDelay;
+    private final int travelTicks;
+    private FakeEntity player;
+    private final ArrayDeque<FakeEntity> travelling = new ArrayDeque<FakeEntity>();
+    private final ArrayDeque<Integer> arrivalTicks = new ArrayDeque<Integer>();
+    private final ArrayDeque<FakeEntity> chamber = new ArrayDeque<FakeEntity>();
+    
+    /**
+     * 
+     * @param x block x of the spawner
+     * @param z block z of the spawner
+     * @param type the spawner's mob type
+     * @param mobsPerSpawn mobs released per spawn cycle
+     * @param spawnDelay ticks between spawn cycles
+     * @param travelTicks ticks for a mob to reach the kill chamber
+     */
+    public SpawnerGrinder(int x, int z, EntityType type, int mobsPerSpawn, int spawnDelay, int travelTicks) {
+        this.x = x;
+        this.z = z;
+        this.type = type;
+        this.mobsPerSpawn = mobsPerSpawn;
+        this.spawnDelay = spawnDelay;
+        this.travelTicks = travelTicks;
+    }
+    
+    public void setup(final Simulation sim) {
+        sim.addSpawner(x, 64, z, type);
+        player = sim.addPlayer(x + 12.5, z + 0.5);
+    }
+    
+    public void tick(final Simulation sim, final int tick) {
+        final Random random = sim.random();
+        if( tick % spawnDelay == 0 ) {
+            for(int i=0; i < mobsPerSpawn; i++) {
+                final FakeEntity mob = sim.spawn(type, x + random.nextDouble() * 8 - 4,
+                        z + random.nextDouble() * 8 - 4, SpawnReason.SPAWNER);
+                if( mob != null ) {
+                    travelling.add(mob);
+                    arrivalTicks.add(tick + travelTicks);
+                }
+            }
+        }
+        
+        while( !arrivalTicks.isEmpty() && arrivalTicks.peek() <= tick ) {
+            arrivalTicks.poll();
+            final FakeEntity mob = travelling.poll();
+            if( mob.isValid() ) {
+                // everything ends up in the same block of the kill chamber
+                mob.moveTo(x + 10.5, 64, z + 0.5);
+                sim.target(mob, player);
+                chamber.add(mob);
+            }
+        }
+        
+        // the player swings about twice a second
+        if( tick % 10 == 0 ) {
+            final FakeEntity mob = chamber.peek();
+            if( mob != null ) {
+                sim.damage(mob, player, 4 + random.nextInt(3));
+                if( !mob.isValid() )
+                    chamber.poll();
+            }
+        }
+    }
+}
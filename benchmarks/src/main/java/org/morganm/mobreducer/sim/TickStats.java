@@ -0,0 +1,131 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/** Per-tick plugin cost and periodic population samples from a simulation
+ * run.
+ * 
+ * @author morganm
+ *
+ */
+public class TickStats {
+    /** One population sample. */
+    public static class Sample {
+        public final int tick;
+        public final int entities;
+        public final int monsters;
+        public final int animals;
+        public final int players;
+        public final int loadedChunks;
+        public final int purged;
+        public final int refused;
+        
+        Sample(int tick, int entities, int monsters, int animals, int players, int loadedChunks, int purged, int refused) {
+            this.tick = tick;
+            this.entities = entities;
+            this.monsters = monsters;
+            this.animals = animals;
+            this.players = players;
+            this.loadedChunks = loadedChunks;
+            this.purged = purged;
+            this.refused = refused;
+        }
+    }
+    
+    private long[] tickNanos = new long[1024];
+    private int ticks = 0;
+    private long totalNanos = 0;
+    private long[] sorted;
+    private final List<Sample> samples = new ArrayList<Sample>();
+    
+    void recordTick(final long nanos) {
+        if( ticks == tickNanos.length )
+            tickNanos = Arrays.copyOf(tickNanos, ticks * 2);
+        tickNanos[ticks++] = nanos;
+        totalNanos += nanos;
+        sorted = null;
+    }
+    
+    void addSample(final Sample sample) {
+        samples.add(sample);
+    }
+    
+    public int getTicks() {
+        return ticks;
+    }
+    
+    /**
+     * 
+     * @param tick
+     * @return the plugin cost of the given tick, in nanoseconds
+     */
+    public long getTickNanos(final int tick) {
+        return tickNanos[tick];
+    }
+    
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+    
+    public double getMeanNanos() {
+        return ticks > 0 ? (double) totalNanos / ticks : 0;
+    }
+    
+    /**
+     * 
+     * @param p percentile, 0 to 100
+     * @return the per-tick plugin cost at the given percentile, in nanoseconds
+     */
+    public long getPercentileNanos(final double p) {
+        if( ticks == 0 )
+            return 0;
+        if( sorted == null ) {
+            sorted = Arrays.copyOf(tickNanos, ticks);
+            Arrays.sort(sorted);
+        }
+        final int index = (int) Math.ceil(p / 100 * ticks) - 1;
+        return sorted[Math.max(0, Math.min(ticks - 1, index))];
+    }
+    
+    public List<Sample> getSamples() {
+        return samples;
+    }
+    
+    /** Write the population samples and per-sample-period tick costs as CSV.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void writeCsv(final File file) throws IOException {
+        final PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("tick,entities,monsters,animals,players,loadedChunks,purged,refused,meanTickMicros,maxTickMicros");
+            int from = 0;
+            for(Sample s : samples) {
+                final int to = Math.min(ticks, s.tick + 1);
+                long sum = 0, max = 0;
+                for(int i=from; i < to; i++) {
+                    sum += tickNanos[i];
+                    max = Math.max(max, tickNanos[i]);
+                }
+                final double mean = to > from ? (double) sum / (to - from) : 0;
+                out.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%d,%.1f,%.1f", s.tick, s.entities, s.monsters,
+                        s.animals, s.players, s.loadedChunks, s.purged, s.refused, mean / 1000, max / 1000.0));
+                from = to;
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.sim;
+
+/** One source of activity in a simulated world: players walking around,
+ * a mob farm, a breeding pen and so on. All randomness must come from
+ * {@link Simulation#random()} so that runs with the same seed are repeatable.
+ * 
+ * @author morganm
+ *
+ */
+public interface Workload {
+    /** Called once before the plugin is started, to build whatever already
+     * exists in the world when the server starts.
+     * 
+     * @param sim
+     */
+    public void setup(Simulation sim);
+    
+    /** Called once per tick.
+     * 
+     * @param sim
+     * @param tick the tick number, starting at 0
+     */
+    public void tick(Simulation sim, int tick);
+}
@@ -3,62 +3,293 @@
  */
 package org.morganm.mobreducer;
 
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import javax.inject.Inject;
 
 import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.CreatureSpawnEvent;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
 import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.inventory.ItemStack;
+import org.morganm.mobreducer.trace.Trace;
+import org.morganm.mobreducer.trace.TraceEvent;
+import org.morganm.mobreducer.util.CountMinSketch;
+import org.morganm.mobreducer.util.DecayingHeatmap;
+import org.morganm.mobreducer.util.SpaceSaving;
 
 /** Class that tracks heuristics to identify mob grinders and either
  * disable or tune them down.
  * 
+ * All tracking uses fixed-size structures: count-min sketches estimate the
+ * spawn and death counts of any chunk or block, and Space-Saving trackers
+ * keep the hottest chunks and block locations. Counts are halved at the end
+ * of each time window so old activity fades out. Memory use is the same no
+ * matter how long the server runs or how many grinders get built.
+ * 
+ * Separately, a death-density score per chunk and per block decays
+ * continuously over time. Where the density of deaths goes over the
+ * configured thresholds, drops and XP are scaled down so kill chambers
+ * don't flood the server with item and orb entities.
+ * 
+ * Mob spawner blocks are tracked in a {@link SpawnerRegistry}, and each
+ * spawner gets an output budget: once it has spawned its share of mobs
+ * for the window, its spawns are refused until a cooldown has passed.
+ * 
  * @author morganm
  *
  */
 public class AntiGrinder implements Listener {
-    // LinkedHashMaps used to utilize LRU functionality to trim eldest hash entries
-    private final Map<Entity, String> spawnChunks = new LinkedHashMap<Entity, String>(500);
-    private final Map<String, Integer> deathLocation = new LinkedHashMap<String, Integer>(500);
-    private final Map<String, Integer> deathChunks = new LinkedHashMap<String, Integer>(500);
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int HEATMAP_SIZE = 4096;
+    
+    private final CountMinSketch spawnChunks = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    private final CountMinSketch deathChunks = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    private final CountMinSketch deathLocation = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    private final SpaceSaving hotChunks;
+    private final SpaceSaving hotLocations;
+    private final DecayingHeatmap chunkDensity;
+    private final DecayingHeatmap blockDensity;
+    private final Random random = new Random();
     
-    private final Map<String, Integer> spawnerChunks = new HashMap<String, Integer>(10);
     private final Util util;
+    private final Config config;
+    private final SpawnerRegistry spawners;
+    private final Trace trace;
+    
+    private long windowStart = System.currentTimeMillis();
     
     @Inject
-    public AntiGrinder(Util util) {
+    public AntiGrinder(Util util, Config config, SpawnerRegistry spawners, Trace trace) {
         this.util = util;
+        this.config = config;
+        this.spawners = spawners;
+        this.trace = trace;
+        // sizes are fixed at startup; Config.validate() reports bad values
+        this.hotChunks = new SpaceSaving(Math.max(1, config.getAntiGrinderTrackedChunks()));
+        this.hotLocations = new SpaceSaving(Math.max(1, config.getAntiGrinderTrackedLocations()));
+        
+        final long halfLife = config.getDropDensityHalfLifeSeconds() * 1000L;
+        this.chunkDensity = new DecayingHeatmap(HEATMAP_SIZE, halfLife);
+        this.blockDensity = new DecayingHeatmap(HEATMAP_SIZE, halfLife);
+    }
+    
+    /** Halve all counts once for every window that has passed since the
+     * last decay. Checked lazily on each event so no timer is needed.
+     */
+    private void decayIfWindowElapsed() {
+        final long windowMillis = config.getAntiGrinderWindowSeconds() * 1000L;
+        final long now = System.currentTimeMillis();
+        if( windowMillis <= 0 || now - windowStart < windowMillis )
+            return;
+        
+        final int windows = (int) Math.min((now - windowStart) / windowMillis, 31);
+        spawnChunks.decay(windows);
+        deathChunks.decay(windows);
+        deathLocation.decay(windows);
+        hotChunks.decay(windows);
+        hotLocations.decay(windows);
+        windowStart += windows * windowMillis;
+        if( now - windowStart >= windowMillis )     // we were idle for a long time
+            windowStart = now;
+    }
+    
+    /** Start tracking the spawners in all chunks that are already loaded.
+     * Called when the plugin is enabled.
+     */
+    public void trackLoadedChunks() {
+        spawners.trackLoadedChunks();
     }
     
-    @EventHandler
+    /** Refuse spawns from spawners that have used up their budget. This
+     * runs ahead of the MobManager's spawn limits so a refused spawner
+     * spawn never counts against the segment.
+     * 
+     * @param event
+     */
+    @EventHandler(priority=EventPriority.NORMAL, ignoreCancelled=true)
+    public void onSpawnerSpawn(CreatureSpawnEvent event) {
+        if( event.getSpawnReason() != SpawnReason.SPAWNER || !config.isSpawnerThrottleEnabled() )
+            return;
+        
+        final Entity entity = event.getEntity();
+        if( !spawners.allowSpawn(entity.getLocation(), entity.getType()) ) {
+            event.setCancelled(true);
+            trace.record(TraceEvent.SPAWN_REFUSED, entity, TraceEvent.REFUSED_SPAWNER, SpawnReason.SPAWNER.ordinal());
+        }
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onEntitySpawn(CreatureSpawnEvent event) {
         Entity entity = event.getEntity();
+        if( event.getSpawnReason() == SpawnReason.SPAWNER && config.isSpawnerThrottleEnabled() )
+            spawners.spawned(entity.getLocation(), entity.getType());
+        
         if( !util.isMonster(entity) )
             return;
-        final String chunkKey = util.getChunkKey(entity.getLocation().getChunk());
-        spawnChunks.put(entity, chunkKey);
+        
+        decayIfWindowElapsed();
+        spawnChunks.add(util.getChunkKey(entity.getLocation()), 1);
     }
     
-    @EventHandler
+    @EventHandler(priority=EventPriority.HIGH)
     public void onEntityDeath(EntityDeathEvent event) {
         Entity entity = event.getEntity();
         if( !util.isMonster(entity) )
             return;
         
-        // TODO: update to track lists of entities rather than just a number
+        decayIfWindowElapsed();
         
-        final String chunkKey = util.getChunkKey(entity.getLocation().getChunk());
-        int count = deathChunks.get(chunkKey);
-        deathChunks.put(chunkKey, Integer.valueOf(count+1)); 
+        final Location l = entity.getLocation();
+        final long chunkKey = util.getChunkKey(l);
+        deathChunks.add(chunkKey, 1);
+        hotChunks.offer(chunkKey, 1);
         
-        final String locationKey = util.getLocationKey(entity.getLocation());
-        count = deathLocation.get(locationKey);
-        deathLocation.put(locationKey, Integer.valueOf(count+1)); 
+        final long locationKey = util.getLocationKey(l);
+        deathLocation.add(locationKey, 1);
+        hotLocations.offer(locationKey, 1);
+        
+        if( config.isDropThrottleEnabled() ) {
+            final long now = System.currentTimeMillis();
+            final double multiplier = getDropMultiplier(
+                    chunkDensity.add(chunkKey, 1, now), blockDensity.add(locationKey, 1, now));
+            if( multiplier < 1 )
+                scaleDrops(event, multiplier);
+        }
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        spawners.chunkLoaded(event.getChunk());
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        final Block block = event.getBlockPlaced();
+        if( block.getType() == Material.MOB_SPAWNER )
+            spawners.spawnerPlaced(block);
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        final Block block = event.getBlock();
+        if( block.getType() == Material.MOB_SPAWNER )
+            spawners.spawnerRemoved(block);
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for(Block block : event.blockList()) {
+            if( block.getType() == Material.MOB_SPAWNER )
+                spawners.spawnerRemoved(block);
+        }
+    }
+    
+    /** Work out how much to scale drops by given the death densities at
+     * the chunk and block where a mob died.
+     * 
+     * @param chunkDensity
+     * @param blockDensity
+     * @return a multiplier between the configured minimum and 1
+     */
+    private double getDropMultiplier(final double chunkDensity, final double blockDensity) {
+        double multiplier = 1;
+        
+        final double chunkThreshold = config.getDropChunkDensityThreshold();
+        if( chunkDensity > chunkThreshold )
+            multiplier = chunkThreshold / chunkDensity;
+        
+        final double blockThreshold = config.getDropBlockDensityThreshold();
+        if( blockDensity > blockThreshold )
+            multiplier = Math.min(multiplier, blockThreshold / blockDensity);
+        
+        return Math.max(multiplier, config.getDropMinMultiplier());
+    }
+    
+    /** Scale down the XP and item drops of a death event. Fractional item
+     * amounts are rounded randomly so drops are reduced by the multiplier
+     * on average even for stacks of 1.
+     * 
+     * @param event
+     * @param multiplier
+     */
+    private void scaleDrops(final EntityDeathEvent event, final double multiplier) {
+        event.setDroppedExp(scale(event.getDroppedExp(), multiplier));
+        
+        final List<ItemStack> drops = event.getDrops();
+        for(Iterator<ItemStack> i = drops.iterator(); i.hasNext();) {
+            final ItemStack item = i.next();
+            final int amount = scale(item.getAmount(), multiplier);
+            if( amount > 0 )
+                item.setAmount(amount);
+            else
+                i.remove();
+        }
+    }
+    
+    private int scale(final int amount, final double multiplier) {
+        final double scaled = amount * multiplier;
+        int result = (int) scaled;
+        if( random.nextDouble() < scaled - result )
+            result++;
+        return result;
+    }
+    
+    /**
+     * 
+     * @param chunkKey
+     * @return the estimated number of recent monster spawns in the chunk
+     */
+    public int getChunkSpawnCount(final long chunkKey) {
+        return spawnChunks.estimate(chunkKey);
+    }
+    
+    /**
+     * 
+     * @param chunkKey
+     * @return the estimated number of recent monster deaths in the chunk
+     */
+    public int getChunkDeathCount(final long chunkKey) {
+        return deathChunks.estimate(chunkKey);
+    }
+    
+    /**
+     * 
+     * @param locationKey
+     * @return the estimated number of recent monster deaths at the block location
+     */
+    public int getLocationDeathCount(final long locationKey) {
+        return deathLocation.estimate(locationKey);
+    }
+    
+    /** The chunks with the most recent monster deaths, for reporting. Use
+     * size(), keyAt() and countAt() to read it.
+     * 
+     * @return
+     */
+    public SpaceSaving getHotChunks() {
+        return hotChunks;
+    }
+    
+    /** The block locations with the most recent monster deaths, for
+     * reporting. Use size(), keyAt() and countAt() to read it.
+     * 
+     * @return
+     */
+    public SpaceSaving getHotLocations() {
+        return hotLocations;
     }
 }
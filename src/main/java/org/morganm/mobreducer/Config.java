@@ -3,21 +3,42 @@
  */
 package org.morganm.mobreducer;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.inject.Inject;
 
+import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.morganm.mBukkitLib.Logger;
+import org.morganm.mobreducer.manager.SweepMode;
+import org.morganm.mobreducer.trace.TraceCategory;
 
-/**
+/** Plugin settings. Each time the config is (re)loaded the YAML is
+ * compiled into an immutable snapshot of plain fields, which is then
+ * published with a single volatile write. Getters only read the current
+ * snapshot, so they are cheap enough for hot paths and safe to call from
+ * any thread, and a reload can never be seen half applied.
+ * 
+ * Settings that can differ per world are looked up through
+ * {@link #getWorldConfig(World)}.
+ * 
  * @author morganm
  *
  */
 public class Config {
-    private static final String MONSTER_BASE = "monsters.";
-    private static final String ANIMALS_BASE = "animals.";
+    private static final String WORLDS_BASE = "worlds";
+    private static final String SWEEP_BASE = "sweep.";
+    private static final String ANTIGRINDER_BASE = "antigrinder.";
+    private static final String METRICS_BASE = "metrics.";
+    private static final String ADAPTIVE_BASE = "adaptive.";
+    private static final String TRACE_BASE = "trace.";
+    private static final String STACKING_BASE = "stacking.";
+    private static final String VIRTUALIZE_BASE = "virtualize.";
     
-    private ConfigurationSection section;
-    private Logger log;
+    private final Logger log;
+    private volatile Settings settings;
     
     /** Class accepts a ConfigurationSection as opposed to calling
      * plugin.getConfig() or using a FileConfiguration object. This provides
@@ -27,73 +48,438 @@ public class Config {
      */
     @Inject
     public Config(ConfigurationSection section, Logger log) {
-        this.section = section;
         this.log = log;
+        setSection(section);
     }
     
     /** Used to change the config section in use, most commonly used when
-     * the config is reloaded and a new root section is created.
+     * the config is reloaded and a new root section is created. The section
+     * is compiled into a new snapshot, which then replaces the old one.
      * 
      * @param section
      */
     public void setSection(ConfigurationSection section) {
-        this.section = section;
+        settings = new Settings(section);
+    }
+    
+    /**
+     * 
+     * @return the top level settings, used by worlds that have no overrides
+     */
+    public WorldConfig getDefaults() {
+        return settings.defaults;
     }
     
-    /** The time (in seconds) that a monster must be doing nothing before
-     * we consider it "idle" (and therefore eligible for purge).
+    /** Return the settings for a world: its overrides from the worlds
+     * section, falling back to the top level settings.
      * 
+     * @param world
      * @return
      */
-    public int getMonsterIdleAge() {
-        return section.getInt(MONSTER_BASE+"idleAge");
+    public WorldConfig getWorldConfig(final World world) {
+        final Settings s = settings;
+        if( s.worlds.isEmpty() || world == null )
+            return s.defaults;
+        
+        final WorldConfig worldConfig = s.worlds.get(world.getName());
+        return worldConfig != null ? worldConfig : s.defaults;
+    }
+    
+    /**
+     * 
+     * @return the per mob type and per spawn reason rules
+     */
+    public MobPolicy getPolicy() {
+        return settings.policy;
     }
     
-    /** The square radius around a player that mobs are never considered
-     * idle and despawned. This prevents mobs from respawning in the
-     * same or immediately nearby chunks.
+    private static final String SWEEP_MODE = SWEEP_BASE+"mode";
+    /** How the periodic purge sweep is run: "full" processes every entity
+     * in one tick, "sliced" spreads the work across many ticks and "async"
+     * makes the purge decisions on worker threads.
+     * 
+     * @return the sweep mode, or null if the configured value is invalid
+     */
+    public SweepMode getSweepMode() {
+        return settings.sweepMode;
+    }
+    
+    /** When running an async sweep, the number of worker threads that
+     * make purge decisions.
      * 
      * @return
      */
-    public int getMonsterPlayerChunkRadius() {
-        return section.getInt(MONSTER_BASE+"playerChunkRadius");
+    public int getSweepAsyncThreads() {
+        return settings.sweepAsyncThreads;
     }
-
-    private static final String ANIMAL_SEGMENT_SIZE = ANIMALS_BASE+"chunkSegmentSize";
-    /** Chunks per segment: cocentric squares from chunk being measured.
-     * Examples:
-     *   0 = 1 chunk 
-     *   1 = 9 chunks (3x3 square, ie. tic-tac-toe)
-     *   2 = 25 chunks (5x5 square)
+    
+    /** When running a sliced or async sweep, the amount of time (in
+     * microseconds) the sweep is allowed to use on each tick.
      * 
      * @return
      */
-    public int getAnimalChunkSegmentSize() {
-        return section.getInt(ANIMAL_SEGMENT_SIZE);
+    public int getSweepBudgetMicros() {
+        return settings.sweepBudgetMicros;
     }
     
-    /** Maximum animals allowed per segment before they aren't allowed
-     * to spawn anymore.
+    private static final String SWEEP_MAX_PURGES_PER_TICK = SWEEP_BASE+"maxPurgesPerTick";
+    /** The most idle entities removed in a single tick. Entities a sweep
+     * finds idle are queued, and removed at up to this many per tick.
      * 
      * @return
      */
-    public int getAnimalMaxPerSegment() {
-        return section.getInt(ANIMALS_BASE+"maxPerSegment");
+    public int getSweepMaxPurgesPerTick() {
+        return settings.sweepMaxPurgesPerTick;
     }
     
-    /** Set to true to indicate the oldest animal in the segment should
-     * be killed if a new one is spawned.
+    private static final String SWEEP_MAX_PASS_TICKS = SWEEP_BASE+"maxPassTicks";
+    /** When running a sliced sweep, the maximum number of ticks a full pass
+     * over all entities may take. If the time budget isn't enough to finish
+     * within this many ticks, extra entities are processed each tick to
+     * catch up. An async sweep applies the same limit to each of its main
+     * thread stages.
      * 
      * @return
      */
-    public boolean isAnimalKillOldestOnSpawn() {
-        return section.getBoolean(ANIMALS_BASE+"killOldestOnSpawn");
+    public int getSweepMaxPassTicks() {
+        return settings.sweepMaxPassTicks;
     }
     
-    public boolean isPlayerDamageRequiredForDrops() {
-        return section.getBoolean("playerDamageRequiredForDrops");
+    public boolean isAntiGrinderEnabled() {
+        return settings.antiGrinderEnabled;
     }
-
+    
+    /** The length (in seconds) of the anti-grinder tracking window. At the
+     * end of each window all grinder counts are halved, so activity older
+     * than a few windows no longer counts.
+     * 
+     * @return
+     */
+    public int getAntiGrinderWindowSeconds() {
+        return settings.antiGrinderWindowSeconds;
+    }
+    
+    /** How many of the chunks with the most monster deaths are tracked
+     * individually.
+     * 
+     * @return
+     */
+    public int getAntiGrinderTrackedChunks() {
+        return settings.antiGrinderTrackedChunks;
+    }
+    
+    /** How many of the block locations with the most monster deaths are
+     * tracked individually.
+     * 
+     * @return
+     */
+    public int getAntiGrinderTrackedLocations() {
+        return settings.antiGrinderTrackedLocations;
+    }
+    
+    private static final String SPAWNERS_BASE = ANTIGRINDER_BASE+"spawners.";
+    /** Set to true to limit how many mobs each mob spawner block can put
+     * out. A spawner that uses up its budget is shut off for a cooldown.
+     * 
+     * @return
+     */
+    public boolean isSpawnerThrottleEnabled() {
+        return settings.spawnerThrottleEnabled;
+    }
+    
+    private static final String SPAWNERS_MAX_SPAWNS = SPAWNERS_BASE+"maxSpawns";
+    /** The number of mobs a single spawner may spawn within one spawner
+     * window before it goes into cooldown.
+     * 
+     * @return
+     */
+    public int getSpawnerMaxSpawns() {
+        return settings.spawnerMaxSpawns;
+    }
+    
+    private static final String SPAWNERS_WINDOW_SECONDS = SPAWNERS_BASE+"windowSeconds";
+    /** The length (in seconds) of the window a spawner's budget covers.
+     * The spawn count of a spawner starts over at the beginning of each
+     * window.
+     * 
+     * @return
+     */
+    public int getSpawnerWindowSeconds() {
+        return settings.spawnerWindowSeconds;
+    }
+    
+    private static final String SPAWNERS_COOLDOWN_SECONDS = SPAWNERS_BASE+"cooldownSeconds";
+    /** The time (in seconds) a spawner that has used up its budget is
+     * refused all spawns.
+     * 
+     * @return
+     */
+    public int getSpawnerCooldownSeconds() {
+        return settings.spawnerCooldownSeconds;
+    }
+    
+    private static final String DROPS_BASE = ANTIGRINDER_BASE+"drops.";
+    /** Set to true to scale down drops and XP where monster deaths are
+     * densely packed (ie. grinder kill chambers).
+     * 
+     * @return
+     */
+    public boolean isDropThrottleEnabled() {
+        return settings.dropThrottleEnabled;
+    }
+    
+    /** The time (in seconds) it takes the death density of a chunk or block
+     * to fall by half when nothing else dies there.
+     * 
+     * @return
+     */
+    public int getDropDensityHalfLifeSeconds() {
+        return settings.dropDensityHalfLifeSeconds;
+    }
+    
+    /** Death density of a chunk above which drops start being reduced.
+     * 
+     * @return
+     */
+    public double getDropChunkDensityThreshold() {
+        return settings.dropChunkDensityThreshold;
+    }
+    
+    /** Death density of a single block above which drops start being reduced.
+     * 
+     * @return
+     */
+    public double getDropBlockDensityThreshold() {
+        return settings.dropBlockDensityThreshold;
+    }
+    
+    /** The lowest multiplier that drops and XP will be scaled by, no matter
+     * how dense deaths get.
+     * 
+     * @return
+     */
+    public double getDropMinMultiplier() {
+        return settings.dropMinMultiplier;
+    }
+    
+    /** Set to true to have limits tightened automatically when the
+     * server's TPS drops, and relaxed again once it recovers.
+     * 
+     * @return
+     */
+    public boolean isAdaptiveEnabled() {
+        return settings.adaptiveEnabled;
+    }
+    
+    private static final String ADAPTIVE_LOW_TPS = ADAPTIVE_BASE+"lowTps";
+    /** TPS below which the server is considered under load and limits
+     * start being tightened.
+     * 
+     * @return
+     */
+    public double getAdaptiveLowTps() {
+        return settings.adaptiveLowTps;
+    }
+    
+    private static final String ADAPTIVE_RECOVER_TPS = ADAPTIVE_BASE+"recoverTps";
+    /** TPS the server must get back above before limits are relaxed again.
+     * 
+     * @return
+     */
+    public double getAdaptiveRecoverTps() {
+        return settings.adaptiveRecoverTps;
+    }
+    
+    private static final String ADAPTIVE_MIN_TPS = ADAPTIVE_BASE+"minTps";
+    /** TPS at or below which the strictest limits are used.
+     * 
+     * @return
+     */
+    public double getAdaptiveMinTps() {
+        return settings.adaptiveMinTps;
+    }
+    
+    /** How long (in seconds) TPS must stay above the recovery TPS before
+     * limits are relaxed by one step.
+     * 
+     * @return
+     */
+    public int getAdaptiveRecoverSeconds() {
+        return settings.adaptiveRecoverSeconds;
+    }
+    
+    /** The monster idle age (in seconds) used under full load.
+     * 
+     * @return
+     */
+    public int getAdaptiveMinIdleAge() {
+        return settings.adaptiveMinIdleAge;
+    }
+    
+    /** Maximum animals per segment used under full load.
+     * 
+     * @return
+     */
+    public int getAdaptiveMinMaxPerSegment() {
+        return settings.adaptiveMinMaxPerSegment;
+    }
+    
+    /** The time (in seconds) between sweep passes used under full load.
+     * 
+     * @return
+     */
+    public int getAdaptiveMinSweepIntervalSeconds() {
+        return settings.adaptiveMinSweepIntervalSeconds;
+    }
+    
+    /** Set to true to keep the tracked state of entities in unloaded
+     * chunks on disk rather than on the heap, which also keeps it across
+     * restarts.
+     * 
+     * @return
+     */
+    public boolean isColdStoreEnabled() {
+        return settings.coldStoreEnabled;
+    }
+    
+    private static final String STACKING_ENABLED = STACKING_BASE+"enabled";
+    /** Set to true to merge identical idle mobs into a single entity that
+     * stands for all of them. Stack counts are only kept across chunk
+     * unloads by the cold store, so stacking is off unless the cold store
+     * is on too.
+     * 
+     * @return
+     */
+    public boolean isStackingEnabled() {
+        return settings.stackingEnabled && settings.coldStoreEnabled;
+    }
+    
+    private static final String STACKING_IDLE_SECONDS = STACKING_BASE+"idleSeconds";
+    /** The time (in seconds) a mob must go without an interaction before
+     * it can be stacked.
+     * 
+     * @return
+     */
+    public int getStackingIdleSeconds() {
+        return settings.stackingIdleSeconds;
+    }
+    
+    private static final String STACKING_MAX_SIZE = STACKING_BASE+"maxSize";
+    /** The most mobs a single stack can stand for.
+     * 
+     * @return
+     */
+    public int getStackingMaxSize() {
+        return settings.stackingMaxSize;
+    }
+    
+    private static final String VIRTUALIZE_ENABLED = VIRTUALIZE_BASE+"enabled";
+    /** Set to true to take idle animals far from every player out of the
+     * world, keeping them as records until a player comes near again. The
+     * records are only safe from a crash in the cold store, so virtualizing
+     * is off unless the cold store is on too.
+     * 
+     * @return
+     */
+    public boolean isVirtualizeEnabled() {
+        return settings.virtualizeEnabled && settings.coldStoreEnabled;
+    }
+    
+    private static final String VIRTUALIZE_IDLE_SECONDS = VIRTUALIZE_BASE+"idleSeconds";
+    /** The time (in seconds) an animal must go without an interaction
+     * before it can be virtualized.
+     * 
+     * @return
+     */
+    public int getVirtualizeIdleSeconds() {
+        return settings.virtualizeIdleSeconds;
+    }
+    
+    private static final String VIRTUALIZE_CHUNK_RADIUS = VIRTUALIZE_BASE+"chunkRadius";
+    /** Square radius of chunks around a player in which virtual animals
+     * are put back in the world.
+     * 
+     * @return
+     */
+    public int getVirtualizeChunkRadius() {
+        return settings.virtualizeChunkRadius;
+    }
+    
+    /** How often (in seconds) the metrics are appended to the dump file in
+     * the plugin folder. 0 turns the dump off.
+     * 
+     * @return
+     */
+    public int getMetricsDumpIntervalSeconds() {
+        return settings.metricsDumpIntervalSeconds;
+    }
+    
+    private static final String METRICS_DUMP_FORMAT = METRICS_BASE+"dumpFormat";
+    /** Format of the metrics dump file: "csv" or "json".
+     * 
+     * @return the format in lower case
+     */
+    public String getMetricsDumpFormat() {
+        return settings.metricsDumpFormat;
+    }
+    
+    /** Size (in KB) the metrics dump file can grow to before it is rolled
+     * over to a new file.
+     * 
+     * @return
+     */
+    public int getMetricsDumpMaxKB() {
+        return settings.metricsDumpMaxKB;
+    }
+    
+    private static final String METRICS_DUMP_FILES = METRICS_BASE+"dumpFiles";
+    /** How many rolled over metrics dump files are kept.
+     * 
+     * @return
+     */
+    public int getMetricsDumpFiles() {
+        return settings.metricsDumpFiles;
+    }
+    
+    /** How often events of a category are recorded by the trace: 1 in
+     * every N events, where N is the returned rate.
+     * 
+     * @param category
+     * @return the rate, or 0 if the category isn't recorded (always 0 when
+     * the trace is off)
+     */
+    public int getTraceSampleRate(final TraceCategory category) {
+        return settings.traceSampleRates[category.ordinal()];
+    }
+    
+    private static final String TRACE_SAMPLE = TRACE_BASE+"sample.";
+    private static final String TRACE_BUFFER_SIZE = TRACE_BASE+"bufferSize";
+    /** The number of events the trace can hold before the writer thread has
+     * written them out. Events recorded while it is full are dropped.
+     * 
+     * @return
+     */
+    public int getTraceBufferSize() {
+        return settings.traceBufferSize;
+    }
+    
+    /** Validate the settings that can be overridden per world.
+     * 
+     * @param worldConfig
+     * @return
+     */
+    private boolean validateWorld(final WorldConfig worldConfig) {
+        final String prefix = worldConfig.getName() != null ? WORLDS_BASE+"."+worldConfig.getName()+"." : "";
+        if( worldConfig.getAnimalChunkSegmentSize() < 0
+                || worldConfig.getAnimalChunkSegmentSize() > WorldConfig.MAX_SEGMENT_SIZE ) {
+            log.severe("Invalid config value for "+prefix+WorldConfig.ANIMAL_SEGMENT_SIZE+": "
+                    +worldConfig.getAnimalChunkSegmentSize()+" [value must be between 0 and "
+                    +WorldConfig.MAX_SEGMENT_SIZE+"]");
+            return false;
+        }
+        return true;
+    }
+    
     /** Do validations to warn admin if there are any funky settings.
      * 
      * @return true if validations pass enough that the plugin should run, false if not
@@ -104,12 +490,242 @@ public class Config {
         // we run through all checks, not just the first one. This way the admin gets
         // to see all errors at once that they need to fix.
         
-        if( getAnimalChunkSegmentSize() < 0 || getAnimalChunkSegmentSize() > 2 ) {
-            log.severe("Invalid config value for "+ANIMAL_SEGMENT_SIZE+": "+getAnimalChunkSegmentSize()
-                    +" [value must be between 0 and 2]");
+        final Settings s = settings;
+        if( !validateWorld(s.defaults) )
+            ret = false;
+        for(WorldConfig worldConfig : s.worlds.values()) {
+            if( !validateWorld(worldConfig) )
+                ret = false;
+        }
+        
+        for(String error : s.policy.getErrors()) {
+            log.severe(error);
+            ret = false;
+        }
+        
+        if( getSweepMode() == null ) {
+            log.severe("Invalid config value for "+SWEEP_MODE+": "+settings.sweepModeName
+                    +" [value must be \"full\", \"sliced\" or \"async\"]");
+            ret = false;
+        }
+        
+        if( getAntiGrinderTrackedChunks() < 1 || getAntiGrinderTrackedLocations() < 1 ) {
+            log.severe("Invalid config value for "+ANTIGRINDER_BASE+"trackedChunks/trackedLocations"
+                    +" [values must be 1 or greater]");
             ret = false;
         }
         
+        if( getSpawnerMaxSpawns() < 1 ) {
+            log.severe("Invalid config value for "+SPAWNERS_MAX_SPAWNS+": "+getSpawnerMaxSpawns()
+                    +" [value must be 1 or greater]");
+            ret = false;
+        }
+        if( getSpawnerWindowSeconds() < 1 ) {
+            log.severe("Invalid config value for "+SPAWNERS_WINDOW_SECONDS+": "+getSpawnerWindowSeconds()
+                    +" [value must be 1 or greater]");
+            ret = false;
+        }
+        if( getSpawnerCooldownSeconds() < 0 ) {
+            log.severe("Invalid config value for "+SPAWNERS_COOLDOWN_SECONDS+": "+getSpawnerCooldownSeconds()
+                    +" [value must be 0 or greater]");
+            ret = false;
+        }
+        
+        if( settings.stackingEnabled && !isColdStoreEnabled() )
+            log.warn(STACKING_ENABLED+" is set but coldStore.enabled is not; stacking is off");
+        if( getStackingIdleSeconds() < 0 ) {
+            log.severe("Invalid config value for "+STACKING_IDLE_SECONDS+": "+getStackingIdleSeconds()
+                    +" [value must be 0 or greater]");
+            ret = false;
+        }
+        if( getStackingMaxSize() < 2 ) {
+            log.severe("Invalid config value for "+STACKING_MAX_SIZE+": "+getStackingMaxSize()
+                    +" [value must be 2 or greater]");
+            ret = false;
+        }
+        
+        if( settings.virtualizeEnabled && !isColdStoreEnabled() )
+            log.warn(VIRTUALIZE_ENABLED+" is set but coldStore.enabled is not; virtualizing is off");
+        if( getVirtualizeIdleSeconds() < 0 ) {
+            log.severe("Invalid config value for "+VIRTUALIZE_IDLE_SECONDS+": "+getVirtualizeIdleSeconds()
+                    +" [value must be 0 or greater]");
+            ret = false;
+        }
+        if( getVirtualizeChunkRadius() < 0 ) {
+            log.severe("Invalid config value for "+VIRTUALIZE_CHUNK_RADIUS+": "+getVirtualizeChunkRadius()
+                    +" [value must be 0 or greater]");
+            ret = false;
+        }
+        
+        if( getDropChunkDensityThreshold() <= 0 || getDropBlockDensityThreshold() <= 0 ) {
+            log.severe("Invalid config value for "+DROPS_BASE+"chunkThreshold/blockThreshold"
+                    +" [values must be greater than 0]");
+            ret = false;
+        }
+        
+        if( getSweepMaxPassTicks() < 1 ) {
+            log.severe("Invalid config value for "+SWEEP_MAX_PASS_TICKS+": "+getSweepMaxPassTicks()
+                    +" [value must be 1 or greater]");
+            ret = false;
+        }
+        
+        if( getSweepMaxPurgesPerTick() < 1 ) {
+            log.severe("Invalid config value for "+SWEEP_MAX_PURGES_PER_TICK+": "+getSweepMaxPurgesPerTick()
+                    +" [value must be 1 or greater]");
+            ret = false;
+        }
+        
+        if( !(getAdaptiveMinTps() < getAdaptiveLowTps() && getAdaptiveLowTps() <= getAdaptiveRecoverTps()) ) {
+            log.severe("Invalid config values for "+ADAPTIVE_MIN_TPS+"/"+ADAPTIVE_LOW_TPS+"/"+ADAPTIVE_RECOVER_TPS
+                    +": "+getAdaptiveMinTps()+"/"+getAdaptiveLowTps()+"/"+getAdaptiveRecoverTps()
+                    +" [values must be minTps < lowTps <= recoverTps]");
+            ret = false;
+        }
+        
+        final String dumpFormat = getMetricsDumpFormat();
+        if( !"csv".equals(dumpFormat) && !"json".equals(dumpFormat) ) {
+            log.severe("Invalid config value for "+METRICS_DUMP_FORMAT+": "+settings.metricsDumpFormatName
+                    +" [value must be \"csv\" or \"json\"]");
+            ret = false;
+        }
+        
+        if( getMetricsDumpFiles() < 1 ) {
+            log.severe("Invalid config value for "+METRICS_DUMP_FILES+": "+getMetricsDumpFiles()
+                    +" [value must be 1 or greater]");
+            ret = false;
+        }
+        
+        if( getTraceBufferSize() < 1 ) {
+            log.severe("Invalid config value for "+TRACE_BUFFER_SIZE+": "+getTraceBufferSize()
+                    +" [value must be 1 or greater]");
+            ret = false;
+        }
+        
+        for(TraceCategory category : TraceCategory.values()) {
+            if( getTraceSampleRate(category) < 0 ) {
+                log.severe("Invalid config value for "+TRACE_SAMPLE+category.getKey()+": "
+                        +getTraceSampleRate(category)+" [value must be 0 or greater]");
+                ret = false;
+            }
+        }
+        
         return ret;
     }
+    
+    /** One compiled, immutable snapshot of the config.
+     */
+    private static final class Settings {
+        final WorldConfig defaults;
+        final Map<String, WorldConfig> worlds;
+        final MobPolicy policy;
+        final String sweepModeName;
+        final SweepMode sweepMode;
+        final String metricsDumpFormatName;
+        final String metricsDumpFormat;
+        final int sweepAsyncThreads;
+        final int sweepBudgetMicros;
+        final int sweepMaxPassTicks;
+        final int sweepMaxPurgesPerTick;
+        final boolean antiGrinderEnabled;
+        final int antiGrinderWindowSeconds;
+        final int antiGrinderTrackedChunks;
+        final int antiGrinderTrackedLocations;
+        final boolean spawnerThrottleEnabled;
+        final int spawnerMaxSpawns;
+        final int spawnerWindowSeconds;
+        final int spawnerCooldownSeconds;
+        final boolean dropThrottleEnabled;
+        final int dropDensityHalfLifeSeconds;
+        final double dropChunkDensityThreshold;
+        final double dropBlockDensityThreshold;
+        final double dropMinMultiplier;
+        final boolean adaptiveEnabled;
+        final double adaptiveLowTps;
+        final double adaptiveRecoverTps;
+        final double adaptiveMinTps;
+        final int adaptiveRecoverSeconds;
+        final int adaptiveMinIdleAge;
+        final int adaptiveMinMaxPerSegment;
+        final int adaptiveMinSweepIntervalSeconds;
+        final int metricsDumpIntervalSeconds;
+        final int metricsDumpMaxKB;
+        final int metricsDumpFiles;
+        final boolean coldStoreEnabled;
+        final boolean stackingEnabled;
+        final int stackingIdleSeconds;
+        final int stackingMaxSize;
+        final boolean virtualizeEnabled;
+        final int virtualizeIdleSeconds;
+        final int virtualizeChunkRadius;
+        final int[] traceSampleRates;
+        final int traceBufferSize;
+        
+        Settings(final ConfigurationSection section) {
+            defaults = new WorldConfig(null, section, null);
+            
+            final ConfigurationSection worldsSection = section.getConfigurationSection(WORLDS_BASE);
+            if( worldsSection != null ) {
+                final Map<String, WorldConfig> map = new HashMap<String, WorldConfig>();
+                for(String name : worldsSection.getKeys(false)) {
+                    final ConfigurationSection override = worldsSection.getConfigurationSection(name);
+                    if( override != null )
+                        map.put(name, new WorldConfig(name, section, override));
+                }
+                worlds = Collections.unmodifiableMap(map);
+            }
+            else
+                worlds = Collections.emptyMap();
+            
+            policy = new MobPolicy(section);
+            sweepModeName = section.getString(SWEEP_MODE);
+            sweepMode = SweepMode.fromName(sweepModeName);
+            metricsDumpFormatName = section.getString(METRICS_DUMP_FORMAT);
+            metricsDumpFormat = metricsDumpFormatName != null ? metricsDumpFormatName.toLowerCase() : null;
+            sweepAsyncThreads = section.getInt(SWEEP_BASE+"asyncThreads");
+            sweepBudgetMicros = section.getInt(SWEEP_BASE+"budgetMicros");
+            sweepMaxPassTicks = section.getInt(SWEEP_MAX_PASS_TICKS);
+            sweepMaxPurgesPerTick = section.getInt(SWEEP_MAX_PURGES_PER_TICK);
+            antiGrinderEnabled = section.getBoolean(ANTIGRINDER_BASE+"enabled");
+            antiGrinderWindowSeconds = section.getInt(ANTIGRINDER_BASE+"windowSeconds");
+            antiGrinderTrackedChunks = section.getInt(ANTIGRINDER_BASE+"trackedChunks");
+            antiGrinderTrackedLocations = section.getInt(ANTIGRINDER_BASE+"trackedLocations");
+            spawnerThrottleEnabled = section.getBoolean(SPAWNERS_BASE+"throttle");
+            spawnerMaxSpawns = section.getInt(SPAWNERS_MAX_SPAWNS);
+            spawnerWindowSeconds = section.getInt(SPAWNERS_WINDOW_SECONDS);
+            spawnerCooldownSeconds = section.getInt(SPAWNERS_COOLDOWN_SECONDS);
+            dropThrottleEnabled = section.getBoolean(DROPS_BASE+"throttle");
+            dropDensityHalfLifeSeconds = section.getInt(DROPS_BASE+"halfLifeSeconds");
+            dropChunkDensityThreshold = section.getDouble(DROPS_BASE+"chunkThreshold");
+            dropBlockDensityThreshold = section.getDouble(DROPS_BASE+"blockThreshold");
+            dropMinMultiplier = section.getDouble(DROPS_BASE+"minMultiplier");
+            adaptiveEnabled = section.getBoolean(ADAPTIVE_BASE+"enabled");
+            adaptiveLowTps = section.getDouble(ADAPTIVE_LOW_TPS);
+            adaptiveRecoverTps = section.getDouble(ADAPTIVE_RECOVER_TPS);
+            adaptiveMinTps = section.getDouble(ADAPTIVE_MIN_TPS);
+            adaptiveRecoverSeconds = section.getInt(ADAPTIVE_BASE+"recoverSeconds");
+            adaptiveMinIdleAge = section.getInt(ADAPTIVE_BASE+"minIdleAge");
+            adaptiveMinMaxPerSegment = section.getInt(ADAPTIVE_BASE+"minMaxPerSegment");
+            adaptiveMinSweepIntervalSeconds = section.getInt(ADAPTIVE_BASE+"minSweepIntervalSeconds");
+            metricsDumpIntervalSeconds = section.getInt(METRICS_BASE+"dumpIntervalSeconds");
+            metricsDumpMaxKB = section.getInt(METRICS_BASE+"dumpMaxKB");
+            metricsDumpFiles = section.getInt(METRICS_DUMP_FILES);
+            coldStoreEnabled = section.getBoolean("coldStore.enabled");
+            stackingEnabled = section.getBoolean(STACKING_ENABLED);
+            stackingIdleSeconds = section.getInt(STACKING_IDLE_SECONDS);
+            stackingMaxSize = section.getInt(STACKING_MAX_SIZE);
+            virtualizeEnabled = section.getBoolean(VIRTUALIZE_ENABLED);
+            virtualizeIdleSeconds = section.getInt(VIRTUALIZE_IDLE_SECONDS);
+            virtualizeChunkRadius = section.getInt(VIRTUALIZE_CHUNK_RADIUS);
+            
+            // with the trace off every category is sampled at 0, so the
+            // hot paths only need to check the rate
+            final boolean traceEnabled = section.getBoolean(TRACE_BASE+"enabled");
+            traceSampleRates = new int[TraceCategory.values().length];
+            for(TraceCategory category : TraceCategory.values()) {
+                traceSampleRates[category.ordinal()] = traceEnabled
+                        ? section.getInt(TRACE_SAMPLE+category.getKey()) : 0;
+            }
+            traceBufferSize = section.getInt(TRACE_BUFFER_SIZE);
+        }
+    }
 }
@@ -0,0 +1,222 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+
+/** Per mob type and per spawn reason rules, compiled into flat arrays
+ * indexed by EntityType and SpawnReason ordinals so that every decision is
+ * a single array read. Instances are immutable and belong to a single
+ * config snapshot.
+ * 
+ * Spawn admission is a matrix of EntityType x SpawnReason. Each reason
+ * gets a rule from the spawnReasons section, and a type can override the
+ * rule for any reason under types.&lt;type&gt;.spawnReasons.
+ * 
+ * @author morganm
+ *
+ */
+public class MobPolicy {
+    private static final String TYPES_BASE = "types";
+    private static final String REASONS_BASE = "spawnReasons";
+    
+    /** What happens to a spawn of a given type for a given reason. */
+    public static enum Admission {
+        /** the normal segment limits apply */
+        LIMIT,
+        /** always let the spawn through, ignoring limits */
+        ALLOW,
+        /** always cancel the spawn */
+        DENY;
+        
+        public static Admission fromName(final String name) {
+            if( name == null )
+                return null;
+            for(Admission a : values()) {
+                if( a.name().equalsIgnoreCase(name) )
+                    return a;
+            }
+            return null;
+        }
+    }
+    
+    private static final int TYPES = EntityType.values().length;
+    private static final int REASONS = SpawnReason.values().length;
+    
+    private final Admission[] admission = new Admission[TYPES * REASONS];
+    private final int[] maxPerSegment = new int[TYPES];
+    private final int[] idleAge = new int[TYPES];
+    private final boolean[] exempt = new boolean[TYPES];
+    private final boolean[] purgeable = new boolean[TYPES];
+    private final boolean[] animalLimited = new boolean[TYPES];
+    private final boolean hasTypeCaps;
+    private final List<String> errors;
+    
+    MobPolicy(final ConfigurationSection root) {
+        final List<String> errors = new ArrayList<String>();
+        
+        // default rule for each reason, for every type
+        final Admission[] reasonDefaults = new Admission[REASONS];
+        final ConfigurationSection reasons = root.getConfigurationSection(REASONS_BASE);
+        readReasons(reasons, REASONS_BASE, reasonDefaults, errors);
+        for(int r=0; r < REASONS; r++) {
+            if( reasonDefaults[r] == null )
+                reasonDefaults[r] = Admission.LIMIT;
+        }
+        
+        for(int t=0; t < TYPES; t++) {
+            System.arraycopy(reasonDefaults, 0, admission, t * REASONS, REASONS);
+            maxPerSegment[t] = -1;
+            idleAge[t] = -1;
+        }
+        
+        boolean caps = false;
+        final ConfigurationSection types = root.getConfigurationSection(TYPES_BASE);
+        if( types != null ) {
+            for(String name : types.getKeys(false)) {
+                final EntityType type = typeFromName(name);
+                final ConfigurationSection section = types.getConfigurationSection(name);
+                if( type == null || section == null ) {
+                    errors.add("Invalid config value for "+TYPES_BASE+": "+name+" [not a known entity type]");
+                    continue;
+                }
+                
+                final int t = type.ordinal();
+                maxPerSegment[t] = section.getInt("maxPerSegment", -1);
+                idleAge[t] = section.getInt("idleAge", -1);
+                exempt[t] = section.getBoolean("exempt", false);
+                if( maxPerSegment[t] >= 0 )
+                    caps = true;
+                
+                final Admission[] overrides = new Admission[REASONS];
+                readReasons(section.getConfigurationSection(REASONS_BASE),
+                        TYPES_BASE+"."+name+"."+REASONS_BASE, overrides, errors);
+                for(int r=0; r < REASONS; r++) {
+                    if( overrides[r] != null )
+                        admission[t * REASONS + r] = overrides[r];
+                }
+            }
+        }
+        hasTypeCaps = caps;
+        
+        for(EntityType type : EntityType.values()) {
+            final int t = type.ordinal();
+            purgeable[t] = Util.isMonsterType(type) && !exempt[t];
+            animalLimited[t] = Util.isAnimalType(type) && !exempt[t];
+        }
+        
+        this.errors = Collections.unmodifiableList(errors);
+    }
+    
+    private static void readReasons(final ConfigurationSection section, final String path,
+            final Admission[] into, final List<String> errors)
+    {
+        if( section == null )
+            return;
+        
+        for(String name : section.getKeys(false)) {
+            SpawnReason reason = null;
+            for(SpawnReason r : SpawnReason.values()) {
+                if( r.name().equalsIgnoreCase(name) )
+                    reason = r;
+            }
+            final Admission a = Admission.fromName(section.getString(name));
+            if( reason == null )
+                errors.add("Invalid config value for "+path+": "+name+" [not a known spawn reason]");
+            else if( a == null )
+                errors.add("Invalid config value for "+path+"."+name+": "+section.getString(name)
+                        +" [value must be \"limit\", \"allow\" or \"deny\"]");
+            else
+                into[reason.ordinal()] = a;
+        }
+    }
+    
+    private static EntityType typeFromName(final String name) {
+        for(EntityType type : EntityType.values()) {
+            if( type.name().equalsIgnoreCase(name) )
+                return type;
+        }
+        return null;
+    }
+    
+    /**
+     * 
+     * @param type
+     * @param reason
+     * @return the admission rule for a spawn of the given type for the given reason
+     */
+    public Admission getAdmission(final EntityType type, final SpawnReason reason) {
+        return admission[type.ordinal() * REASONS + reason.ordinal()];
+    }
+    
+    /** Exempt types are never refused a spawn because of limits, and are
+     * never purged. Spawn reasons set to "deny" still apply.
+     * 
+     * @param type
+     * @return
+     */
+    public boolean isExempt(final EntityType type) {
+        return exempt[type.ordinal()];
+    }
+    
+    /**
+     * 
+     * @param type
+     * @return true if idle mobs of this type can be purged
+     */
+    public boolean isPurgeable(final EntityType type) {
+        return purgeable[type.ordinal()];
+    }
+    
+    /**
+     * 
+     * @param type
+     * @return true if spawns of this type count against animals.maxPerSegment
+     */
+    public boolean isAnimalLimited(final EntityType type) {
+        return animalLimited[type.ordinal()];
+    }
+    
+    /** Maximum of this type per segment, on top of the animal limit.
+     * 
+     * @param type
+     * @return the cap, or -1 if this type has no cap of its own
+     */
+    public int getMaxPerSegment(final EntityType type) {
+        return maxPerSegment[type.ordinal()];
+    }
+    
+    /**
+     * 
+     * @param type
+     * @return true if any type has a cap of its own
+     */
+    public boolean hasTypeCaps() {
+        return hasTypeCaps;
+    }
+    
+    /** Idle age (in seconds) for this type, used in place of the world's
+     * monsters.idleAge.
+     * 
+     * @param type
+     * @return the idle age, or -1 if this type uses the world's idle age
+     */
+    public int getIdleAge(final EntityType type) {
+        return idleAge[type.ordinal()];
+    }
+    
+    /**
+     * 
+     * @return problems found while compiling the policy, for Config.validate()
+     */
+    List<String> getErrors() {
+        return errors;
+    }
+}
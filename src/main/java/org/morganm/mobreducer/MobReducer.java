@@ -3,6 +3,8 @@
  */
 package org.morganm.mobreducer;
 
+import java.io.File;
+
 import javax.inject.Inject;
 
 import org.bukkit.plugin.java.JavaPlugin;
@@ -10,8 +12,14 @@ import org.morganm.mBukkitLib.Debug;
 import org.morganm.mBukkitLib.JarUtils;
 import org.morganm.mBukkitLib.Logger;
 import org.morganm.mBukkitLib.PermissionSystem;
+import org.morganm.mobreducer.command.MobReducerCommand;
+import org.morganm.mobreducer.listener.ChunkListener;
 import org.morganm.mobreducer.listener.EntityListener;
+import org.morganm.mobreducer.listener.PlayerListener;
+import org.morganm.mobreducer.manager.EntityColdStore;
 import org.morganm.mobreducer.manager.MobManager;
+import org.morganm.mobreducer.metrics.MetricsDump;
+import org.morganm.mobreducer.trace.Trace;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -22,6 +30,7 @@ import com.google.inject.Injector;
  */
 public class MobReducer extends JavaPlugin {
     private final static int TICKS_ONE_MINUTE = 1200;   // how many ticks in a minute (20 * 60)
+    private final static int TICKS_ONE_SECOND = 20;
     
     // these dependencies are auto-injected by Guice
     private MobManager mobManager;
@@ -30,6 +39,15 @@ public class MobReducer extends JavaPlugin {
     private PermissionSystem permSystem;
     private Config config;
     private EntityListener entityListener;
+    private ChunkListener chunkListener;
+    private PlayerListener playerListener;
+    private AntiGrinder antiGrinder;
+    private MobReducerCommand command;
+    private MetricsDump metricsDump;
+    private TickMonitor tickMonitor;
+    private TickClock tickClock;
+    private EntityColdStore coldStore;
+    private Trace trace;
     
     private int buildNumber = -1;
     private boolean enableAborted = false;
@@ -56,14 +74,38 @@ public class MobReducer extends JavaPlugin {
         debug.setLogFileName("plugins/MobReducer/debug.log");
         debug.setDebug(getConfig().getBoolean("debug", false));
         debug.debug("DEBUG ENABLED");   // prints only if debug is enabled
+        trace.start(new File(getDataFolder(), "trace.log"));
         
         int ticks = TICKS_ONE_MINUTE;
         if( debug.isDebug() )
             ticks /= 4;         // run scheduled tasks more often when debugging
         
-        getServer().getScheduler().scheduleSyncRepeatingTask(this, mobManager, ticks, ticks);
+        // the sweep runs every tick and starts a new pass on its own once
+        // every interval, or sooner if the tick monitor sees the server
+        // is under load
+        mobManager.setSweepMode(config.getSweepMode(), ticks);
+        // carry the tick count on from the last run before any saved entity
+        // state is read back, so the downtime doesn't count as idle time
+        tickClock.resume(coldStore.getSavedTick());
+        mobManager.trackLoadedChunks();
+        // the clock is scheduled first so the other tasks see the new tick
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, tickClock, 1, 1);
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, tickMonitor, 1, 1);
+        getServer().getScheduler().scheduleSyncRepeatingTask(this, mobManager, 1, 1);
         permSystem.setupPermissions();
         getServer().getPluginManager().registerEvents(entityListener, this);
+        getServer().getPluginManager().registerEvents(chunkListener, this);
+        // checks virtualize.enabled itself, so it follows config reloads
+        getServer().getPluginManager().registerEvents(playerListener, this);
+        if( config.isAntiGrinderEnabled() ) {
+            antiGrinder.trackLoadedChunks();
+            getServer().getPluginManager().registerEvents(antiGrinder, this);
+        }
+        getCommand("mobreducer").setExecutor(command);
+        
+        final int dumpTicks = config.getMetricsDumpIntervalSeconds() * TICKS_ONE_SECOND;
+        if( dumpTicks > 0 )
+            getServer().getScheduler().scheduleSyncRepeatingTask(this, metricsDump, dumpTicks, dumpTicks);
         
         log.info("version "+getDescription().getVersion()+", build "+buildNumber+" is enabled");
 	}
@@ -89,6 +131,12 @@ public class MobReducer extends JavaPlugin {
 	
 	@Override
 	public void onDisable() {
+	    if( mobManager != null ) {
+	        mobManager.shutdown();
+	        mobManager.saveEntities();
+	    }
+	    if( trace != null )
+	        trace.stop();
         log.info("version "+getDescription().getVersion()+", build "+buildNumber+" is disabled");
 	}
 	
@@ -121,4 +169,49 @@ public class MobReducer extends JavaPlugin {
     public void setEntityListener(EntityListener entityListener) {
         this.entityListener = entityListener;
     }
+    
+    @Inject
+    public void setChunkListener(ChunkListener chunkListener) {
+        this.chunkListener = chunkListener;
+    }
+    
+    @Inject
+    public void setPlayerListener(PlayerListener playerListener) {
+        this.playerListener = playerListener;
+    }
+    
+    @Inject
+    public void setAntiGrinder(AntiGrinder antiGrinder) {
+        this.antiGrinder = antiGrinder;
+    }
+    
+    @Inject
+    public void setTickMonitor(TickMonitor tickMonitor) {
+        this.tickMonitor = tickMonitor;
+    }
+    
+    @Inject
+    public void setTickClock(TickClock tickClock) {
+        this.tickClock = tickClock;
+    }
+    
+    @Inject
+    public void setColdStore(EntityColdStore coldStore) {
+        this.coldStore = coldStore;
+    }
+    
+    @Inject
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
+    
+    @Inject
+    public void setCommand(MobReducerCommand command) {
+        this.command = command;
+    }
+    
+    @Inject
+    public void setMetricsDump(MetricsDump metricsDump) {
+        this.metricsDump = metricsDump;
+    }
 }
@@ -12,9 +12,10 @@ import org.morganm.mBukkitLib.LoggerImpl;
 import org.morganm.mBukkitLib.PermissionSystem;
 import org.morganm.mobreducer.manager.ChunkInfo;
 import org.morganm.mobreducer.manager.ChunkInfoFactory;
-import org.morganm.mobreducer.manager.EntityInfo;
-import org.morganm.mobreducer.manager.EntityInfoFactory;
+import org.morganm.mobreducer.manager.EntityColdStore;
 import org.morganm.mobreducer.manager.MobManager;
+import org.morganm.mobreducer.metrics.Metrics;
+import org.morganm.mobreducer.trace.Trace;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provider;
@@ -51,15 +52,25 @@ public class MobReducerModule extends AbstractModule {
             .in(Scopes.SINGLETON);
         bind(MobManager.class)
             .in(Scopes.SINGLETON);
+        bind(EntityColdStore.class)
+            .in(Scopes.SINGLETON);
+        bind(AntiGrinder.class)
+            .in(Scopes.SINGLETON);
+        bind(SpawnerRegistry.class)
+            .in(Scopes.SINGLETON);
+        bind(Metrics.class)
+            .in(Scopes.SINGLETON);
+        bind(TickMonitor.class)
+            .in(Scopes.SINGLETON);
+        bind(TickClock.class)
+            .in(Scopes.SINGLETON);
+        bind(Trace.class)
+            .in(Scopes.SINGLETON);
         
         install(new FactoryModuleBuilder()
             .implement(ChunkInfo.class, ChunkInfo.class)
             .build(ChunkInfoFactory.class)
         );
-        install(new FactoryModuleBuilder()
-            .implement(EntityInfo.class, EntityInfo.class)
-            .build(EntityInfoFactory.class)
-        );
     }
 
     @Provides
@@ -0,0 +1,294 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.CreatureSpawner;
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.metrics.Counter;
+import org.morganm.mobreducer.metrics.Gauge;
+import org.morganm.mobreducer.metrics.Metrics;
+import org.morganm.mobreducer.util.LongObjectHashMap;
+
+/** Registry of the mob spawner blocks in all worlds, indexed by chunk, and
+ * the output budget of each one.
+ * 
+ * Spawners are found by scanning the tile entities of each chunk as it
+ * loads, and kept up to date as spawner blocks are placed and broken. The
+ * entries of a chunk are kept when it unloads so a spawner's budget isn't
+ * reset by walking away from it; a spawner is only forgotten when it is
+ * broken, or when its chunk is scanned again and it is gone.
+ * 
+ * A SPAWNER spawn is matched to its spawner by looking in the (at most
+ * four) chunks within spawning range of where the mob appeared, so each
+ * check is a few hash lookups no matter how many spawners there are.
+ * 
+ * Each spawner may spawn up to antigrinder.spawners.maxSpawns mobs per
+ * window; once it has used them up, all its spawns are refused until its
+ * cooldown has passed. Time is measured in ticks by the TickClock.
+ * 
+ * @author morganm
+ *
+ */
+public class SpawnerRegistry {
+    // vanilla spawners place mobs up to 4 blocks away horizontally and
+    // 1 block up or down. Height gets a block of slack for mobs placed
+    // on slabs and the like.
+    private static final int SPAWN_RANGE = 4;
+    private static final int SPAWN_HEIGHT = 2;
+    // added to the distance of a spawner of another type, so a spawner of
+    // the spawned type always wins when there is one in range
+    private static final int TYPE_MISMATCH = 1 << 16;
+    
+    private static final Spawner[] NONE = new Spawner[0];
+    
+    /** A single spawner block and its budget. */
+    private static class Spawner {
+        final int x, y, z;
+        EntityType type;
+        int spawns;
+        long windowStart;
+        long cooldownUntil;
+        
+        Spawner(final int x, final int y, final int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+        
+        boolean isAt(final int x, final int y, final int z) {
+            return this.x == x && this.y == y && this.z == z;
+        }
+    }
+    
+    // chunk key -> spawners in that chunk. Only chunks with spawners in
+    // them have an entry.
+    private final LongObjectHashMap<Spawner[]> byChunk = new LongObjectHashMap<Spawner[]>(256);
+    private int size = 0;
+    
+    private final Util util;
+    private final Config config;
+    private final TickClock clock;
+    private final Counter refused;
+    private final Counter unmatched;
+    
+    @Inject
+    public SpawnerRegistry(Util util, Config config, TickClock clock, Metrics metrics) {
+        this.util = util;
+        this.config = config;
+        this.clock = clock;
+        this.refused = metrics.counter("spawners.refused");
+        this.unmatched = metrics.counter("spawners.unmatched");
+        metrics.gauge("tracked.spawners", new Gauge() {
+            public long getValue() {
+                return size();
+            }
+        });
+    }
+    
+    /**
+     * 
+     * @return the number of spawners in the registry
+     */
+    public int size() {
+        return size;
+    }
+    
+    /** Scan a chunk for spawners, replacing whatever the registry had for
+     * it. Spawners that were already known keep their budgets.
+     * 
+     * @param chunk
+     */
+    public void chunkLoaded(final Chunk chunk) {
+        final long key = util.getChunkKey(chunk);
+        final Spawner[] old = get(key);
+        
+        Spawner[] found = NONE;
+        int count = 0;
+        for(BlockState state : chunk.getTileEntities()) {
+            if( !(state instanceof CreatureSpawner) )
+                continue;
+            
+            Spawner spawner = find(old, state.getX(), state.getY(), state.getZ());
+            if( spawner == null )
+                spawner = new Spawner(state.getX(), state.getY(), state.getZ());
+            spawner.type = ((CreatureSpawner) state).getSpawnedType();
+            
+            if( count == found.length )
+                found = Arrays.copyOf(found, Math.max(4, count * 2));
+            found[count++] = spawner;
+        }
+        
+        set(key, old, count == found.length ? found : Arrays.copyOf(found, count));
+    }
+    
+    /** Scan all chunks that are already loaded. Called when the plugin is
+     * enabled, since we won't see load events for those chunks.
+     */
+    public void trackLoadedChunks() {
+        for(World world : Bukkit.getWorlds()) {
+            for(Chunk chunk : world.getLoadedChunks())
+                chunkLoaded(chunk);
+        }
+    }
+    
+    /** To be called when a spawner block is placed.
+     * 
+     * @param block
+     */
+    public void spawnerPlaced(final Block block) {
+        final long key = getChunkKey(block);
+        final Spawner[] old = get(key);
+        if( find(old, block.getX(), block.getY(), block.getZ()) != null )
+            return;
+        
+        final Spawner spawner = new Spawner(block.getX(), block.getY(), block.getZ());
+        final BlockState state = block.getState();
+        // a newly placed spawner spawns pigs until something changes it
+        spawner.type = state instanceof CreatureSpawner ? ((CreatureSpawner) state).getSpawnedType() : EntityType.PIG;
+        
+        final Spawner[] spawners = Arrays.copyOf(old, old.length + 1);
+        spawners[old.length] = spawner;
+        set(key, old, spawners);
+    }
+    
+    /** To be called when a spawner block is broken or blown up.
+     * 
+     * @param block
+     */
+    public void spawnerRemoved(final Block block) {
+        final long key = getChunkKey(block);
+        final Spawner[] old = get(key);
+        for(int i=0; i < old.length; i++) {
+            if( old[i].isAt(block.getX(), block.getY(), block.getZ()) ) {
+                final Spawner[] spawners = new Spawner[old.length - 1];
+                System.arraycopy(old, 0, spawners, 0, i);
+                System.arraycopy(old, i + 1, spawners, i, spawners.length - i);
+                set(key, old, spawners);
+                return;
+            }
+        }
+    }
+    
+    /** Check a SPAWNER spawn against the budget of the spawner it came from.
+     * 
+     * @param l where the mob is spawning
+     * @param type the type of mob spawning
+     * @return false if the spawner is in cooldown and the spawn should be
+     * refused. Spawns that can't be matched to a known spawner are allowed.
+     */
+    public boolean allowSpawn(final Location l, final EntityType type) {
+        final Spawner spawner = match(l, type);
+        if( spawner == null || clock.getTick() >= spawner.cooldownUntil )
+            return true;
+        
+        refused.increment();
+        return false;
+    }
+    
+    /** Charge a SPAWNER spawn that went ahead to the budget of the spawner
+     * it came from, putting the spawner into cooldown if that used up its
+     * budget.
+     * 
+     * @param l where the mob spawned
+     * @param type the type of mob spawned
+     */
+    public void spawned(final Location l, final EntityType type) {
+        final Spawner spawner = match(l, type);
+        if( spawner == null ) {
+            unmatched.increment();
+            return;
+        }
+        
+        final long now = clock.getTick();
+        if( now - spawner.windowStart >= TickClock.secondsToTicks(config.getSpawnerWindowSeconds()) ) {
+            spawner.windowStart = now;
+            spawner.spawns = 0;
+        }
+        
+        if( ++spawner.spawns >= config.getSpawnerMaxSpawns() ) {
+            // the next window starts once the cooldown is over
+            spawner.cooldownUntil = now + TickClock.secondsToTicks(config.getSpawnerCooldownSeconds());
+            spawner.windowStart = spawner.cooldownUntil;
+            spawner.spawns = 0;
+        }
+    }
+    
+    /** Find the spawner a mob spawned at the given location most likely
+     * came from: the nearest one in range that spawns that type, or failing
+     * that the nearest one in range.
+     * 
+     * @param l
+     * @param type
+     * @return the spawner, or null if there is no known spawner in range
+     */
+    private Spawner match(final Location l, final EntityType type) {
+        final int world = util.getWorldIndex(l.getWorld());
+        final int x = l.getBlockX();
+        final int y = l.getBlockY();
+        final int z = l.getBlockZ();
+        
+        Spawner best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for(int cx = (x - SPAWN_RANGE) >> 4; cx <= (x + SPAWN_RANGE) >> 4; cx++) {
+            for(int cz = (z - SPAWN_RANGE) >> 4; cz <= (z + SPAWN_RANGE) >> 4; cz++) {
+                final Spawner[] spawners = byChunk.get(Util.packChunkKey(world, cx, cz));
+                if( spawners == null )
+                    continue;
+                
+                for(int i=0; i < spawners.length; i++) {
+                    final Spawner s = spawners[i];
+                    final int dx = s.x - x;
+                    final int dy = s.y - y;
+                    final int dz = s.z - z;
+                    if( Math.abs(dx) > SPAWN_RANGE || Math.abs(dz) > SPAWN_RANGE || Math.abs(dy) > SPAWN_HEIGHT )
+                        continue;
+                    
+                    int distance = dx*dx + dy*dy + dz*dz;
+                    if( s.type != type )
+                        distance += TYPE_MISMATCH;
+                    if( distance < bestDistance ) {
+                        best = s;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+    
+    private long getChunkKey(final Block block) {
+        return Util.packChunkKey(util.getWorldIndex(block.getWorld()), block.getX() >> 4, block.getZ() >> 4);
+    }
+    
+    private Spawner[] get(final long key) {
+        final Spawner[] spawners = byChunk.get(key);
+        return spawners != null ? spawners : NONE;
+    }
+    
+    private void set(final long key, final Spawner[] old, final Spawner[] spawners) {
+        if( spawners.length > 0 )
+            byChunk.put(key, spawners);
+        else if( old.length > 0 )
+            byChunk.remove(key);
+        size += spawners.length - old.length;
+    }
+    
+    private static Spawner find(final Spawner[] spawners, final int x, final int y, final int z) {
+        for(int i=0; i < spawners.length; i++) {
+            if( spawners[i].isAt(x, y, z) )
+                return spawners[i];
+        }
+        return null;
+    }
+}
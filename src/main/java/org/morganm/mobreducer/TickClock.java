@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer;
+
+import javax.inject.Inject;
+
+/** Counts server ticks, for everything in the plugin that measures time:
+ * entity interaction times, idle ages and animal ages. Time measured in
+ * ticks passes the way it does in the game, so a mob that has been idle
+ * for 300 seconds of game time is idle for 300 seconds however slow the
+ * server is running, and no tick boundaries have to be guessed from the
+ * wall clock.
+ * 
+ * The count carries on across restarts: the cold store saves it with the
+ * entity logs, and the plugin resumes from the saved value when it is
+ * enabled, so tick values saved by a previous run are still in the past and
+ * time the server was down doesn't count as time a mob was idle. With
+ * nothing saved, the count starts at 0.
+ * 
+ * This is scheduled to run every tick, on the main thread, ahead of the
+ * plugin's other tasks.
+ * 
+ * @author morganm
+ *
+ */
+public class TickClock implements Runnable {
+    public static final int TICKS_PER_SECOND = 20;
+    
+    private long tick;
+    
+    @Inject
+    public TickClock() {
+        this(0);
+    }
+    
+    /**
+     * 
+     * @param start the tick to start counting from
+     */
+    public TickClock(final long start) {
+        this.tick = start;
+    }
+    
+    /** Carry the count on from a tick saved by a previous run. The count
+     * never goes back, so a saved tick behind the current one is ignored.
+     * 
+     * @param savedTick the last tick of the previous run, or a negative
+     * value if none was saved
+     */
+    public void resume(final long savedTick) {
+        if( savedTick > tick )
+            tick = savedTick;
+    }
+    
+    public void run() {
+        tick++;
+    }
+    
+    /**
+     * 
+     * @return the current tick
+     */
+    public long getTick() {
+        return tick;
+    }
+    
+    /**
+     * 
+     * @param seconds
+     * @return the number of ticks in the given number of seconds at 20 TPS
+     */
+    public static long secondsToTicks(final int seconds) {
+        return seconds * (long) TICKS_PER_SECOND;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer;
+
+import javax.inject.Inject;
+
+/** Measures how long server ticks actually take and turns that into a
+ * load "pressure" between 0 (server is keeping up) and 1 (server is at or
+ * below the configured minimum TPS). The rest of the plugin scales its
+ * limits between their normal and strictest values by this pressure.
+ * 
+ * Pressure goes up as soon as TPS drops, but only comes back down one
+ * step at a time, after TPS has stayed above the recovery TPS for the
+ * configured time. TPS between the low and recovery marks holds the
+ * current pressure, so the limits don't flap around a single threshold.
+ * 
+ * This is scheduled to run every tick, on the main thread.
+ * 
+ * @author morganm
+ *
+ */
+public class TickMonitor implements Runnable {
+    private static final double TICK_NANOS = 50000000.0;       // 20 TPS
+    // weight of each new tick in the smoothed tick time, ~5 seconds of ticks
+    private static final double SMOOTHING = 1.0 / 100;
+    // a single very long tick (ie. a world save) counts as no more than this
+    private static final long MAX_SAMPLE_NANOS = 1000000000L;
+    // how far pressure falls after each recovery period
+    private static final double RELAX_STEP = 0.25;
+    
+    private final Config config;
+    private long lastRunNanos = 0;
+    private double meanTickNanos = TICK_NANOS;
+    private double pressure = 0;
+    private int recoveredTicks = 0;     // ticks in a row above the recovery TPS
+    
+    @Inject
+    public TickMonitor(Config config) {
+        this.config = config;
+    }
+    
+    public void run() {
+        final long now = System.nanoTime();
+        if( lastRunNanos != 0 )
+            tick(now - lastRunNanos);
+        lastRunNanos = now;
+    }
+    
+    /** Record the duration of one server tick and update the pressure.
+     * 
+     * @param nanos
+     */
+    public void tick(final long nanos) {
+        meanTickNanos += (Math.min(nanos, MAX_SAMPLE_NANOS) - meanTickNanos) * SMOOTHING;
+        
+        if( !config.isAdaptiveEnabled() ) {
+            pressure = 0;
+            return;
+        }
+        
+        final double tps = getTps();
+        final double lowTps = config.getAdaptiveLowTps();
+        if( tps < lowTps ) {
+            final double raw = Math.min(1, (lowTps - tps) / (lowTps - config.getAdaptiveMinTps()));
+            if( raw > pressure )
+                pressure = raw;
+            recoveredTicks = 0;
+        }
+        else if( tps >= config.getAdaptiveRecoverTps() ) {
+            if( pressure > 0 && ++recoveredTicks >= config.getAdaptiveRecoverSeconds() * 20 ) {
+                pressure = Math.max(0, pressure - RELAX_STEP);
+                recoveredTicks = 0;
+            }
+        }
+        else
+            recoveredTicks = 0;
+    }
+    
+    /**
+     * 
+     * @return recent ticks per second, at most 20
+     */
+    public double getTps() {
+        return Math.min(20, 1000000000.0 / meanTickNanos);
+    }
+    
+    /**
+     * 
+     * @return current load pressure, from 0 (no load) to 1 (full load)
+     */
+    public double getPressure() {
+        return pressure;
+    }
+    
+    public boolean isUnderLoad() {
+        return pressure > 0;
+    }
+    
+    /** Scale a limit between its normal value and its strictest value by
+     * the current pressure. The strictest value is never allowed to be more
+     * lenient than the normal one.
+     * 
+     * @param normal the value used with no load
+     * @param strictest the value used under full load, smaller is stricter
+     * @return
+     */
+    public int scale(final int normal, final int strictest) {
+        if( pressure == 0 || strictest >= normal )
+            return normal;
+        return (int) Math.round(normal - (normal - strictest) * pressure);
+    }
+}
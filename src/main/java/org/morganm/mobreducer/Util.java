@@ -3,32 +3,170 @@
  */
 package org.morganm.mobreducer;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
 
 /**
  * @author morganm
  *
  */
 public class Util {
+    /** Key value that never matches a real chunk or location, used where
+     * a null String key would have been used previously.
+     */
+    public static final long NO_KEY = Long.MIN_VALUE;
+    
+    // worlds are referred to by a small index in packed keys. The index for
+    // a given world name never changes while the plugin is running. Lookups
+    // read the published array without locking; a new world is added under
+    // the lock by publishing a copy one longer.
+    private volatile String[] worldNames = new String[0];
+    private final Object worldLock = new Object();
+    
+    /** Return the index used for the given world in packed keys, assigning
+     * a new index if this world hasn't been seen before.
+     * 
+     * @param world
+     * @return
+     */
+    public int getWorldIndex(final World world) {
+        final String name = world.getName();
+        final int index = indexOf(worldNames, name);
+        if( index >= 0 )
+            return index;
+        
+        synchronized(worldLock) {
+            // another thread may have added it since we looked
+            final String[] names = worldNames;
+            final int existing = indexOf(names, name);
+            if( existing >= 0 )
+                return existing;
+            
+            final String[] newNames = new String[names.length + 1];
+            System.arraycopy(names, 0, newNames, 0, names.length);
+            newNames[names.length] = name;
+            worldNames = newNames;
+            return names.length;
+        }
+    }
+    
+    private static int indexOf(final String[] names, final String name) {
+        // Bukkit hands back the same name String every time, so the equals()
+        // below almost always succeeds on its identity check
+        for(int i=0; i < names.length; i++) {
+            if( names[i].equals(name) )
+                return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * 
+     * @param worldIndex
+     * @return the world for the given index, or null if that world is not loaded
+     */
+    public World getWorld(final int worldIndex) {
+        final String name = getWorldName(worldIndex);
+        return name != null ? Bukkit.getWorld(name) : null;
+    }
+    
+    /**
+     * 
+     * @param worldIndex
+     * @return the name of the world for the given index, or null if the index is unknown
+     */
+    public String getWorldName(final int worldIndex) {
+        final String[] names = worldNames;
+        if( worldIndex < 0 || worldIndex >= names.length )
+            return null;
+        return names[worldIndex];
+    }
+    
+    /** Pack a world index and chunk coordinates into a single key. Layout is
+     * 16 bits of world index, then 24 bits each of chunk x and z, which
+     * covers chunk coordinates +/- 8 million (far beyond the world border).
+     * 
+     * @param worldIndex
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    public static long packChunkKey(final int worldIndex, final int chunkX, final int chunkZ) {
+        return ((long) worldIndex << 48)
+                | ((chunkX & 0xFFFFFFL) << 24)
+                | (chunkZ & 0xFFFFFFL);
+    }
+    public static int getChunkKeyWorld(final long chunkKey) {
+        return (int) (chunkKey >>> 48);
+    }
+    public static int getChunkKeyX(final long chunkKey) {
+        return (int) (chunkKey << 16 >> 40);
+    }
+    public static int getChunkKeyZ(final long chunkKey) {
+        return (int) (chunkKey << 40 >> 40);
+    }
+    
     /** Return a specific key to a chunk that can be referenced even if the Chunk
      * is unloaded and no longer a valid reference.
      * 
      * @param chunk
      * @return
      */
-    public String getChunkKey(Chunk chunk) {
-        return chunk.getWorld().getName()+","+chunk.getX()+","+chunk.getZ();
+    public long getChunkKey(Chunk chunk) {
+        return packChunkKey(getWorldIndex(chunk.getWorld()), chunk.getX(), chunk.getZ());
     }
+    /** Return the key to the chunk a location is in. This is computed from the
+     * block coordinates and so avoids the cost of a Location.getChunk() lookup.
+     * 
+     * @param l
+     * @return
+     */
+    public long getChunkKey(Location l) {
+        return packChunkKey(getWorldIndex(l.getWorld()), l.getBlockX() >> 4, l.getBlockZ() >> 4);
+    }
+    
     /** Return a specific key to a location at the block level (ie. ignores
-     * decimal precision and pitch/yaw). 
+     * decimal precision and pitch/yaw). Layout is 6 bits of world index, 25 bits
+     * each of block x and z and 8 bits of block y. x/z beyond +/- 16 million
+     * and world indexes beyond 63 wrap around, so treat the key as a hash
+     * rather than something that can be unpacked.
      * 
      * @param chunk
      * @return
      */
-    public String getLocationKey(Location l) {
-        return l.getWorld().getName()+","+l.getBlockX()+","+l.getBlockY()+","+l.getBlockZ();
+    public long getLocationKey(Location l) {
+        return ((long) (getWorldIndex(l.getWorld()) & 0x3F) << 58)
+                | ((l.getBlockX() & 0x1FFFFFFL) << 33)
+                | ((l.getBlockZ() & 0x1FFFFFFL) << 8)
+                | (l.getBlockY() & 0xFFL);
+    }
+    
+    // entity categories, indexed by EntityType ordinal
+    private static final boolean[] MONSTERS = typeTable(EntityType.BLAZE, EntityType.CAVE_SPIDER,
+            EntityType.CREEPER, EntityType.ENDER_DRAGON, EntityType.ENDERMAN, EntityType.GHAST,
+            EntityType.GIANT, EntityType.MAGMA_CUBE, EntityType.PIG_ZOMBIE, EntityType.SKELETON,
+            EntityType.SLIME, EntityType.SILVERFISH, EntityType.SPIDER, EntityType.ZOMBIE);
+    private static final boolean[] ANIMALS = typeTable(EntityType.CHICKEN, EntityType.COW,
+            EntityType.MUSHROOM_COW, EntityType.OCELOT, EntityType.PIG, EntityType.SHEEP,
+            EntityType.SNOWMAN, EntityType.SQUID, EntityType.WOLF);
+    private static final boolean[] VILLAGE = typeTable(EntityType.VILLAGER, EntityType.IRON_GOLEM);
+    
+    private static boolean[] typeTable(final EntityType... types) {
+        final boolean[] table = new boolean[EntityType.values().length];
+        for(EntityType type : types)
+            table[type.ordinal()] = true;
+        return table;
+    }
+    
+    public static boolean isMonsterType(final EntityType type) {
+        return MONSTERS[type.ordinal()];
+    }
+    public static boolean isAnimalType(final EntityType type) {
+        return ANIMALS[type.ordinal()];
     }
     
     /** 
@@ -37,25 +175,7 @@ public class Util {
      * @return true if entity is a monster, false if not
      */
     public boolean isMonster(final Entity entity) {
-        switch(entity.getType()) {
-        case BLAZE:
-        case CAVE_SPIDER:
-        case CREEPER:
-        case ENDER_DRAGON:
-        case ENDERMAN:
-        case GHAST:
-        case GIANT:
-        case MAGMA_CUBE:
-        case PIG_ZOMBIE:
-        case SKELETON:
-        case SLIME:
-        case SILVERFISH:
-        case SPIDER:
-        case ZOMBIE:
-            return true;
-        default:
-            return false;
-        }
+        return MONSTERS[entity.getType().ordinal()];
     }
     
     /**
@@ -64,20 +184,7 @@ public class Util {
      * @return true if entity is an animal, false if not
      */
     public boolean isAnimal(final Entity entity) {
-       switch(entity.getType()) {
-       case CHICKEN:
-       case COW:
-       case MUSHROOM_COW:
-       case OCELOT:
-       case PIG:
-       case SHEEP:
-       case SNOWMAN:
-       case SQUID:
-       case WOLF:
-           return true;
-       default:
-           return false;
-       }
+        return ANIMALS[entity.getType().ordinal()];
     }
     
     /**
@@ -86,12 +193,6 @@ public class Util {
      * @return true if entity is a village entity (villager or golem), false if not
      */
     public boolean isVillageEntity(final Entity entity) {
-           switch(entity.getType()) {
-           case VILLAGER:
-           case IRON_GOLEM:
-               return true;
-           default:
-               return false;
-           }
+        return VILLAGE[entity.getType().ordinal()];
     }
 }
@@ -0,0 +1,127 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/** The settings that can be overridden per world, compiled into final
+ * fields. Instances are immutable and belong to a single config snapshot,
+ * so they can be read from any thread without locking.
+ * 
+ * A world's overrides live under worlds.&lt;world name&gt; in config.yml,
+ * using the same keys as the top level, ie. worlds.world_nether.monsters.idleAge.
+ * Anything not overridden falls back to the top level value.
+ * 
+ * @author morganm
+ *
+ */
+public class WorldConfig {
+    private static final String MONSTER_BASE = "monsters.";
+    private static final String ANIMALS_BASE = "animals.";
+    static final String ANIMAL_SEGMENT_SIZE = ANIMALS_BASE+"chunkSegmentSize";
+    // killOldestOnSpawn still looks at each chunk of the segment that has
+    // animals, so the segment can't grow without bound
+    static final int MAX_SEGMENT_SIZE = 16;
+    
+    private final String name;
+    private final int monsterIdleAge;
+    private final int monsterPlayerChunkRadius;
+    private final int animalChunkSegmentSize;
+    private final int animalMaxPerSegment;
+    private final boolean animalKillOldestOnSpawn;
+    private final boolean playerDamageRequiredForDrops;
+    
+    /**
+     * 
+     * @param name the world name, or null for the top level defaults
+     * @param root the root config section
+     * @param override the world's override section, or null if it has none
+     */
+    WorldConfig(final String name, final ConfigurationSection root, final ConfigurationSection override) {
+        this.name = name;
+        monsterIdleAge = getInt(root, override, MONSTER_BASE+"idleAge");
+        monsterPlayerChunkRadius = getInt(root, override, MONSTER_BASE+"playerChunkRadius");
+        animalChunkSegmentSize = getInt(root, override, ANIMAL_SEGMENT_SIZE);
+        animalMaxPerSegment = getInt(root, override, ANIMALS_BASE+"maxPerSegment");
+        animalKillOldestOnSpawn = getBoolean(root, override, ANIMALS_BASE+"killOldestOnSpawn");
+        playerDamageRequiredForDrops = getBoolean(root, override, "playerDamageRequiredForDrops");
+    }
+    
+    private static int getInt(final ConfigurationSection root, final ConfigurationSection override, final String path) {
+        if( override != null && override.isSet(path) )
+            return override.getInt(path);
+        return root.getInt(path);
+    }
+    
+    private static boolean getBoolean(final ConfigurationSection root, final ConfigurationSection override, final String path) {
+        if( override != null && override.isSet(path) )
+            return override.getBoolean(path);
+        return root.getBoolean(path);
+    }
+    
+    /**
+     * 
+     * @return the world name, or null if these are the top level defaults
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /** The time (in seconds) that a monster must be doing nothing before
+     * we consider it "idle" (and therefore eligible for purge).
+     * 
+     * @return
+     */
+    public int getMonsterIdleAge() {
+        return monsterIdleAge;
+    }
+    
+    /** The square radius around a player that mobs are never considered
+     * idle and despawned. This prevents mobs from respawning in the
+     * same or immediately nearby chunks.
+     * 
+     * @return
+     */
+    public int getMonsterPlayerChunkRadius() {
+        return monsterPlayerChunkRadius;
+    }
+    
+    /** Chunks per segment: cocentric squares from chunk being measured.
+     * Examples:
+     *   0 = 1 chunk
+     *   1 = 9 chunks (3x3 square, ie. tic-tac-toe)
+     *   2 = 25 chunks (5x5 square)
+     *   8 = 289 chunks (17x17 square)
+     * 
+     * Segment counts are answered in constant time regardless of size, so
+     * large values are fine, up to 16 (33x33 chunks).
+     * 
+     * @return
+     */
+    public int getAnimalChunkSegmentSize() {
+        return animalChunkSegmentSize;
+    }
+    
+    /** Maximum animals allowed per segment before they aren't allowed
+     * to spawn anymore.
+     * 
+     * @return
+     */
+    public int getAnimalMaxPerSegment() {
+        return animalMaxPerSegment;
+    }
+    
+    /** Set to true to indicate the oldest animal in the segment should
+     * be killed if a new one is spawned.
+     * 
+     * @return
+     */
+    public boolean isAnimalKillOldestOnSpawn() {
+        return animalKillOldestOnSpawn;
+    }
+    
+    public boolean isPlayerDamageRequiredForDrops() {
+        return playerDamageRequiredForDrops;
+    }
+}
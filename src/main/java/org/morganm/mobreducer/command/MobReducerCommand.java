@@ -0,0 +1,148 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.command;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.metrics.Counter;
+import org.morganm.mobreducer.metrics.Gauge;
+import org.morganm.mobreducer.metrics.Histogram;
+import org.morganm.mobreducer.metrics.Metrics;
+import org.morganm.mobreducer.metrics.TypeCounter;
+
+/** Handles the /mobreducer command.
+ * 
+ *   /mobreducer stats          show the plugin metrics
+ *   /mobreducer stats reset    zero the metrics
+ * 
+ * @author morganm
+ *
+ */
+public class MobReducerCommand implements CommandExecutor {
+    private static final String PERM_ADMIN = "mobreducer.admin";
+    // how many of the busiest world/type pairs are shown per counter
+    private static final int TOP_TYPES = 5;
+    
+    private final Metrics metrics;
+    
+    @Inject
+    public MobReducerCommand(Metrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if( !sender.hasPermission(PERM_ADMIN) ) {
+            sender.sendMessage("You don't have permission to use that command");
+            return true;
+        }
+        
+        if( args.length < 1 || !args[0].equalsIgnoreCase("stats") )
+            return false;   // Bukkit shows the usage from plugin.yml
+        
+        if( args.length > 1 && args[1].equalsIgnoreCase("reset") ) {
+            metrics.reset();
+            sender.sendMessage("MobReducer stats reset");
+        }
+        else
+            sendStats(sender);
+        return true;
+    }
+    
+    private void sendStats(final CommandSender sender) {
+        final long minutes = (System.currentTimeMillis() - metrics.getSince()) / 60000;
+        sender.sendMessage("MobReducer stats for the last "+minutes+" minutes:");
+        
+        for(Map.Entry<String, Histogram> e : metrics.getHistograms().entrySet()) {
+            final Histogram h = e.getValue();
+            if( h.getCount() == 0 )
+                continue;
+            sender.sendMessage("  "+e.getKey()+": n="+h.getCount()
+                    +" mean="+formatNanos(h.getMean())
+                    +" p50="+formatNanos(h.getPercentile(50))
+                    +" p99="+formatNanos(h.getPercentile(99))
+                    +" max="+formatNanos(h.getMax()));
+        }
+        
+        for(Map.Entry<String, TypeCounter> e : metrics.getTypeCounters().entrySet())
+            sender.sendMessage("  "+e.getKey()+": "+e.getValue().getTotal()+topTypes(e.getValue()));
+        
+        // counters come in name.hit/name.miss pairs for caches, shown as a hit rate
+        final Map<String, Counter> counters = metrics.getCounters();
+        final StringBuilder plain = new StringBuilder();
+        for(Map.Entry<String, Counter> e : counters.entrySet()) {
+            final String name = e.getKey();
+            if( name.endsWith(".hit") ) {
+                final String base = name.substring(0, name.length() - 4);
+                final Counter miss = counters.get(base+".miss");
+                final long hits = e.getValue().get();
+                final long total = hits + (miss != null ? miss.get() : 0);
+                sender.sendMessage("  "+base+" hit rate: "
+                        +(total > 0 ? String.format("%.1f%%", hits * 100.0 / total) : "-")
+                        +" of "+total);
+            }
+            else if( !name.endsWith(".miss") )
+                plain.append(' ').append(name).append('=').append(e.getValue().get());
+        }
+        if( plain.length() > 0 )
+            sender.sendMessage(" "+plain);
+        
+        final StringBuilder sizes = new StringBuilder();
+        for(Map.Entry<String, Gauge> e : metrics.getGauges().entrySet())
+            sizes.append(' ').append(e.getKey()).append('=').append(e.getValue().getValue());
+        if( sizes.length() > 0 )
+            sender.sendMessage(" "+sizes);
+    }
+    
+    /** Return the busiest world/type pairs of a counter, ie. " (world/COW=12, ...)"
+     * 
+     * @param counter
+     * @return
+     */
+    private String topTypes(final TypeCounter counter) {
+        final List<Object[]> pairs = new ArrayList<Object[]>();
+        for(int world=0; world < counter.getWorldCount(); world++) {
+            for(EntityType type : EntityType.values()) {
+                final long count = counter.get(world, type);
+                if( count > 0 )
+                    pairs.add(new Object[] { metrics.getWorldName(world)+"/"+type.name(), count });
+            }
+        }
+        if( pairs.isEmpty() )
+            return "";
+        
+        Collections.sort(pairs, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                return ((Long) b[1]).compareTo((Long) a[1]);
+            }
+        });
+        
+        final StringBuilder sb = new StringBuilder(" (");
+        for(int i=0; i < pairs.size() && i < TOP_TYPES; i++) {
+            if( i > 0 )
+                sb.append(", ");
+            sb.append(pairs.get(i)[0]).append('=').append(pairs.get(i)[1]);
+        }
+        if( pairs.size() > TOP_TYPES )
+            sb.append(", ...");
+        return sb.append(')').toString();
+    }
+    
+    private static String formatNanos(final long nanos) {
+        if( nanos >= 10000000L )
+            return (nanos / 1000000L)+"ms";
+        if( nanos >= 10000L )
+            return (nanos / 1000L)+"us";
+        return nanos+"ns";
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.listener;
+
+import javax.inject.Inject;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.morganm.mobreducer.manager.MobManager;
+
+/** Class to listen for Bukkit chunk events so that per-chunk tracking
+ * data follows chunks as they are loaded and unloaded.
+ * 
+ * @author morganm
+ *
+ */
+public class ChunkListener implements Listener {
+    private final MobManager manager;
+    
+    @Inject
+    public ChunkListener(MobManager manager) {
+        this.manager = manager;
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        manager.chunkLoaded(event.getChunk());
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        manager.chunkUnloaded(event.getChunk());
+    }
+}
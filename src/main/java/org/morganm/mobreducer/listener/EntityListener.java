@@ -3,6 +3,8 @@
  */
 package org.morganm.mobreducer.listener;
 
+import java.util.List;
+
 import javax.inject.Inject;
 
 import org.bukkit.entity.Arrow;
@@ -18,10 +20,12 @@ import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.entity.EntityDeathEvent;
 import org.bukkit.event.entity.EntityTargetEvent;
 import org.bukkit.event.entity.PotionSplashEvent;
-import org.morganm.mBukkitLib.Logger;
+import org.bukkit.inventory.ItemStack;
 import org.morganm.mobreducer.Config;
 import org.morganm.mobreducer.manager.EntityInfo;
 import org.morganm.mobreducer.manager.MobManager;
+import org.morganm.mobreducer.trace.Trace;
+import org.morganm.mobreducer.trace.TraceEvent;
 
 /** Class to listen for Bukkit entity events and record interesting details
  * or respond to events as appropriate.
@@ -30,34 +34,34 @@ import org.morganm.mobreducer.manager.MobManager;
  *
  */
 public class EntityListener implements Listener {
-    private final Logger log;
     private final MobManager manager;
     private final Config config;
+    private final Trace trace;
     
     @Inject
-    public EntityListener(MobManager manager, Logger log, Config config) {
+    public EntityListener(MobManager manager, Config config, Trace trace) {
         this.manager = manager;
-        this.log = log;
         this.config = config;
+        this.trace = trace;
     }
     
     @EventHandler(priority=EventPriority.HIGH, ignoreCancelled=true)
     public void onEntitySpawn(CreatureSpawnEvent event) {
         Entity entity = event.getEntity();
-        if( !manager.canSpawn(entity) ) {
+        if( !manager.canSpawn(entity, event.getSpawnReason()) ) {
             event.setCancelled(true);
-        }
-        else {
-            manager.updatePosition(entity);
+            return;
         }
         
+        manager.updatePosition(entity);
+        
         // spawning is considered an interaction. This makes sure that entities being
         // loaded due to ChunkLoad don't get despawned immediately at the next idle
         // check because maybe their last update time was from when the Chunk was
         // last loaded (possibly a long time ago).
         manager.interact(entity);
         
-        manager.entitySpawned(entity);
+        manager.entitySpawned(entity, event.getSpawnReason());
     }
     
     @EventHandler(ignoreCancelled=true)
@@ -65,13 +69,42 @@ public class EntityListener implements Listener {
         if( event.getEntity() instanceof Player )
             return;
         
+        manager.entityDied(event.getEntity());
+        
         EntityInfo info = manager.getEntityInfo(event.getEntity());
         
         // if not damaged by a player, don't drop anything
-        if( config.isPlayerDamageRequiredForDrops() && !info.isPlayerDamaged() ) {
+        if( config.getWorldConfig(event.getEntity().getWorld()).isPlayerDamageRequiredForDrops() && !info.isPlayerDamaged() ) {
             event.setDroppedExp(0);
             event.getDrops().clear();
         }
+        else if( info.getStackCount() > 1 )
+            multiplyDrops(event, info.getStackCount());
+    }
+    
+    /** Multiply the drops and XP of a stack that died by the number of mobs
+     * it stood for. Items are split into stacks no bigger than the item's
+     * max stack size.
+     * 
+     * @param event
+     * @param count
+     */
+    private static void multiplyDrops(final EntityDeathEvent event, final int count) {
+        event.setDroppedExp(event.getDroppedExp() * count);
+        
+        final List<ItemStack> drops = event.getDrops();
+        final int size = drops.size();
+        for(int i=0; i < size; i++) {
+            final ItemStack item = drops.get(i);
+            final int maxStackSize = Math.max(1, item.getMaxStackSize());
+            int amount = item.getAmount() * count;
+            item.setAmount(Math.min(amount, maxStackSize));
+            for(amount -= item.getAmount(); amount > 0; amount -= maxStackSize) {
+                final ItemStack more = item.clone();
+                more.setAmount(Math.min(amount, maxStackSize));
+                drops.add(more);
+            }
+        }
     }
     
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
@@ -81,7 +114,8 @@ public class EntityListener implements Listener {
         
         manager.interact(event.getEntity());
         
-        log.info("EntityDamageByEntityEvent: cause=",event.getCause(),", damager=",event.getDamager());
+        trace.record(TraceEvent.DAMAGED, event.getEntity(), event.getCause().ordinal(),
+                event.getDamager().getType().ordinal());
         boolean isPlayerDamage = false;
         
         if( event.getDamager() instanceof Player ) {
@@ -89,7 +123,7 @@ public class EntityListener implements Listener {
         }
         else if( event.getDamager() instanceof Arrow ) { 
             Arrow arrow = (Arrow) event.getDamager();
-            log.info("EntityDamageByEntityEvent: shooter=",arrow.getShooter());
+            trace.record(TraceEvent.SHOT, event.getEntity(), 0, typeOrdinal(arrow.getShooter()));
             if( arrow.getShooter() instanceof Player )
                 isPlayerDamage = true;
         }
@@ -107,7 +141,7 @@ public class EntityListener implements Listener {
         
         ThrownPotion potion = event.getPotion();
         if( potion != null ) {
-            log.info("onPotionSplashEent: shooter=",potion.getShooter());
+            trace.record(TraceEvent.POTION_SPLASH, event.getEntity(), 0, typeOrdinal(potion.getShooter()));
             if( potion.getShooter() instanceof Player ) {
                 manager.playerDamage(event.getEntity());
             }
@@ -119,6 +153,15 @@ public class EntityListener implements Listener {
 //        log.info("EntityDamageEvent: cause=",event.getCause());
 //  }
     
+    /**
+     * 
+     * @param entity
+     * @return the entity's EntityType ordinal, or -1 if there is no entity
+     */
+    private static int typeOrdinal(final Entity entity) {
+        return entity != null ? entity.getType().ordinal() : -1;
+    }
+    
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onEntityTarget(EntityTargetEvent event) {
         if( event.getEntity() instanceof Player )   // do nothing if targeting entity is a player
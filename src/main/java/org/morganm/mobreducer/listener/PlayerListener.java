@@ -0,0 +1,67 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.listener;
+
+import javax.inject.Inject;
+
+import org.bukkit.Location;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.morganm.mobreducer.Config;
+import org.morganm.mobreducer.manager.MobManager;
+
+/** Class to listen for players moving into new chunks, so that virtual
+ * mobs are put back in the world as players come near them.
+ * 
+ * Move events fire many times a second for every player, so a move that
+ * stays in the same chunk costs a couple of compares and nothing more.
+ * The listener is always registered and checks on each event whether
+ * virtualizing is enabled, so turning it on with a config reload works.
+ * 
+ * @author morganm
+ *
+ */
+public class PlayerListener implements Listener {
+    private final MobManager manager;
+    private final Config config;
+    
+    @Inject
+    public PlayerListener(MobManager manager, Config config) {
+        this.manager = manager;
+        this.config = config;
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        changedChunk(event.getFrom(), event.getTo());
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        changedChunk(event.getFrom(), event.getTo());
+    }
+    
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if( !config.isVirtualizeEnabled() )
+            return;
+        final Location l = event.getPlayer().getLocation();
+        if( l != null )
+            manager.restoreNear(l);
+    }
+    
+    private void changedChunk(final Location from, final Location to) {
+        if( to == null || !config.isVirtualizeEnabled() )
+            return;
+        if( from != null && (from.getBlockX() >> 4) == (to.getBlockX() >> 4)
+                && (from.getBlockZ() >> 4) == (to.getBlockZ() >> 4) && from.getWorld() == to.getWorld() )
+            return;
+        
+        manager.restoreNear(to);
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.util.LongObjectHashMap;
+
+/** Per-chunk counters for a single world, stored densely in 32x32 chunk
+ * regions that are paged in as they are used. Each region keeps a 2D Fenwick
+ * tree (binary indexed tree) of its counts, so changing a count and summing
+ * any rectangle of a region both take O(log² 32) steps, and the total of
+ * any square of chunks is a few lookups per overlapped region no matter how
+ * large the square is.
+ * 
+ * Small rectangles (such as the 3x3 segment of the default segment size)
+ * are cheaper to add up directly from the counts than through the tree, so
+ * they are.
+ * 
+ * @author morganm
+ *
+ */
+public class ChunkCountGrid {
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;     // 32 chunks
+    private static final int REGION_MASK = REGION_SIZE - 1;
+    private static final int TREE_SIZE = REGION_SIZE + 1;
+    // rectangles of up to this many chunks are summed from the counts
+    private static final int DIRECT_SUM_CELLS = 16;
+    
+    private final LongObjectHashMap<Region> regions = new LongObjectHashMap<Region>(16);
+    
+    /** Visitor for {@link ChunkCountGrid#forEachNonZero}. */
+    public interface CellVisitor {
+        void visit(int chunkX, int chunkZ, int count);
+    }
+    
+    private static class Region {
+        final int[] counts = new int[REGION_SIZE * REGION_SIZE];
+        // 1-based Fenwick tree: tree[z*TREE_SIZE + x] for x, z in 1..REGION_SIZE
+        final int[] tree = new int[TREE_SIZE * TREE_SIZE];
+        int total = 0;
+        
+        void add(final int x, final int z, final int delta) {
+            for(int i = z+1; i <= REGION_SIZE; i += i & -i) {
+                final int row = i * TREE_SIZE;
+                for(int j = x+1; j <= REGION_SIZE; j += j & -j)
+                    tree[row + j] += delta;
+            }
+        }
+        
+        /** Sum of counts over local x 0..x and z 0..z; 0 if either is -1. */
+        int prefix(final int x, final int z) {
+            int sum = 0;
+            for(int i = z+1; i > 0; i -= i & -i) {
+                final int row = i * TREE_SIZE;
+                for(int j = x+1; j > 0; j -= j & -j)
+                    sum += tree[row + j];
+            }
+            return sum;
+        }
+        
+        /** Sum of counts over the inclusive local rectangle. */
+        int sum(final int x0, final int z0, final int x1, final int z1) {
+            if( (x1 - x0 + 1) * (z1 - z0 + 1) <= DIRECT_SUM_CELLS ) {
+                int sum = 0;
+                for(int z = z0; z <= z1; z++) {
+                    final int row = z << REGION_SHIFT;
+                    for(int x = x0; x <= x1; x++)
+                        sum += counts[row + x];
+                }
+                return sum;
+            }
+            
+            return prefix(x1, z1) - prefix(x0-1, z1) - prefix(x1, z0-1) + prefix(x0-1, z0-1);
+        }
+    }
+    
+    private static long regionKey(final int regionX, final int regionZ) {
+        return Util.packChunkKey(0, regionX, regionZ);
+    }
+    
+    private Region getRegion(final int chunkX, final int chunkZ, final boolean create) {
+        final long key = regionKey(chunkX >> REGION_SHIFT, chunkZ >> REGION_SHIFT);
+        Region region = regions.get(key);
+        if( region == null && create ) {
+            region = new Region();
+            regions.put(key, region);
+        }
+        return region;
+    }
+    
+    private static int index(final int chunkX, final int chunkZ) {
+        return ((chunkZ & REGION_MASK) << REGION_SHIFT) + (chunkX & REGION_MASK);
+    }
+    
+    /**
+     * 
+     * @param chunkX
+     * @param chunkZ
+     * @return the count for the given chunk, 0 if it has never been set
+     */
+    public int get(final int chunkX, final int chunkZ) {
+        final Region region = getRegion(chunkX, chunkZ, false);
+        return region != null ? region.counts[index(chunkX, chunkZ)] : 0;
+    }
+    
+    /** Set the count for a chunk. Counts never go below 0.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     * @param value
+     */
+    public void set(final int chunkX, final int chunkZ, int value) {
+        if( value < 0 )
+            value = 0;
+        
+        final Region region = getRegion(chunkX, chunkZ, value != 0);
+        if( region == null )
+            return;
+        
+        final int i = index(chunkX, chunkZ);
+        final int old = region.counts[i];
+        if( old == value )
+            return;
+        
+        region.counts[i] = value;
+        region.total += value - old;
+        region.add(chunkX & REGION_MASK, chunkZ & REGION_MASK, value - old);
+        
+        // page out regions that no longer hold anything
+        if( region.total == 0 )
+            regions.remove(regionKey(chunkX >> REGION_SHIFT, chunkZ >> REGION_SHIFT));
+    }
+    
+    /** Adjust the count for a chunk. Counts never go below 0.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     * @param delta
+     */
+    public void add(final int chunkX, final int chunkZ, final int delta) {
+        set(chunkX, chunkZ, get(chunkX, chunkZ) + delta);
+    }
+    
+    /** Return the sum of the counts in the square of chunks centered on the
+     * given chunk.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     * @param radius 0 is just the center chunk, 1 is a 3x3 square, etc
+     * @return
+     */
+    public int sumSquare(final int chunkX, final int chunkZ, final int radius) {
+        return sum(chunkX-radius, chunkZ-radius, chunkX+radius, chunkZ+radius);
+    }
+    
+    /** Return the sum of the counts in the inclusive rectangle of chunks.
+     * 
+     * @param minX
+     * @param minZ
+     * @param maxX
+     * @param maxZ
+     * @return
+     */
+    public int sum(final int minX, final int minZ, final int maxX, final int maxZ) {
+        int total = 0;
+        final int minRegionX = minX >> REGION_SHIFT, maxRegionX = maxX >> REGION_SHIFT;
+        final int minRegionZ = minZ >> REGION_SHIFT, maxRegionZ = maxZ >> REGION_SHIFT;
+        
+        for(int rx = minRegionX; rx <= maxRegionX; rx++) {
+            for(int rz = minRegionZ; rz <= maxRegionZ; rz++) {
+                final Region region = regions.get(regionKey(rx, rz));
+                if( region == null )
+                    continue;
+                
+                // clip the rectangle to this region, in region-local coordinates
+                final int x0 = rx == minRegionX ? minX & REGION_MASK : 0;
+                final int x1 = rx == maxRegionX ? maxX & REGION_MASK : REGION_MASK;
+                final int z0 = rz == minRegionZ ? minZ & REGION_MASK : 0;
+                final int z1 = rz == maxRegionZ ? maxZ & REGION_MASK : REGION_MASK;
+                
+                // whole region covered, no need for the table
+                if( x0 == 0 && z0 == 0 && x1 == REGION_MASK && z1 == REGION_MASK )
+                    total += region.total;
+                else
+                    total += region.sum(x0, z0, x1, z1);
+            }
+        }
+        
+        return total;
+    }
+    
+    /** Visit every chunk with a non-zero count in the inclusive rectangle
+     * of chunks. Regions that aren't paged in are skipped with a single
+     * lookup, so the cost depends on the regions that hold counts rather
+     * than the size of the rectangle. The grid must not be changed while
+     * visiting.
+     * 
+     * @param minX
+     * @param minZ
+     * @param maxX
+     * @param maxZ
+     * @param visitor
+     */
+    public void forEachNonZero(final int minX, final int minZ, final int maxX, final int maxZ,
+            final CellVisitor visitor)
+    {
+        final int minRegionX = minX >> REGION_SHIFT, maxRegionX = maxX >> REGION_SHIFT;
+        final int minRegionZ = minZ >> REGION_SHIFT, maxRegionZ = maxZ >> REGION_SHIFT;
+        
+        for(int rx = minRegionX; rx <= maxRegionX; rx++) {
+            for(int rz = minRegionZ; rz <= maxRegionZ; rz++) {
+                final Region region = regions.get(regionKey(rx, rz));
+                if( region == null )
+                    continue;
+                
+                final int x0 = rx == minRegionX ? minX & REGION_MASK : 0;
+                final int x1 = rx == maxRegionX ? maxX & REGION_MASK : REGION_MASK;
+                final int z0 = rz == minRegionZ ? minZ & REGION_MASK : 0;
+                final int z1 = rz == maxRegionZ ? maxZ & REGION_MASK : REGION_MASK;
+                for(int z = z0; z <= z1; z++) {
+                    final int row = z << REGION_SHIFT;
+                    for(int x = x0; x <= x1; x++) {
+                        final int count = region.counts[row + x];
+                        if( count != 0 )
+                            visitor.visit((rx << REGION_SHIFT) + x, (rz << REGION_SHIFT) + z, count);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return the number of regions currently paged in
+     */
+    public int getRegionCount() {
+        return regions.size();
+    }
+}
@@ -1,14 +1,16 @@
 package org.morganm.mobreducer.manager;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.PriorityQueue;
 
 import javax.inject.Inject;
 
 import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Animals;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.Tameable;
+import org.morganm.mobreducer.TickClock;
 
 import com.google.inject.assistedinject.Assisted;
 
@@ -24,22 +26,109 @@ public class ChunkInfo {
     private final World world;
     private final int x;
     private final int z;
+    private final TickClock clock;
     
-	/* A bukkit tick is 50ms (or longer). Rather than schedule a tick counter
-	 * to run on every tick, we just use this fact to cache data for no more than
-	 * 50ms, thus guaranteeing we reset the cache on every tick (>50ms since last call)
-	 * and never use stale data (never use data past 50ms). 
-	 * 
+	/* Untamed animals in this chunk, oldest first. Entries go stale as animals
+	 * die, get tamed or wander off; those are dropped lazily when they reach the
+	 * top of the queue, and the whole queue is rebuilt each time the chunk is
+	 * reconciled by the sweep.
 	 */
-	private long lastCacheTick;
-	private final Set<Animals> cachedAnimals = new HashSet<Animals>();
-
+	private final PriorityQueue<AnimalAge> oldestAnimals = new PriorityQueue<AnimalAge>();
+	
+	// the sweep pass during which this chunk's counters were last reconciled
+	private int reconciledPass = -1;
+	
 	@Inject
-	public ChunkInfo(@Assisted Chunk chunk) {
+	public ChunkInfo(@Assisted Chunk chunk, TickClock clock) {
         this.world = chunk.getWorld();
 	    this.x = chunk.getX();
 	    this.z = chunk.getZ();
+	    this.clock = clock;
+	}
+	
+	public int getX() {
+	    return x;
+	}
+	public int getZ() {
+	    return z;
+	}
+	
+	/** Count the animals currently in this chunk by walking its entities,
+	 * rebuilding the oldest animal queue along the way.
+	 * 
+	 * @return the count, or 0 if the chunk is not loaded
+	 */
+	public int reconcileAnimals() {
+	    oldestAnimals.clear();
+	    
+	    final Chunk chunk = getChunk();
+	    if( chunk == null )
+	        return 0;
+	    
+	    final long now = clock.getTick();
+	    final Entity[] entities = chunk.getEntities();
+	    int count = 0;
+	    for(int i=0; i < entities.length; i++) {
+	        if( entities[i] instanceof Animals ) {
+	            count++;
+	            addAnimal((Animals) entities[i], now);
+	        }
+	    }
+	    return count;
+	}
+	
+	/** Record an animal that is now in this chunk, so it can be considered
+	 * by {@link #peekOldestAnimal()}.
+	 * 
+	 * @param animal
+	 */
+	public void animalAdded(final Animals animal) {
+	    addAnimal(animal, clock.getTick());
 	}
+	
+	private void addAnimal(final Animals animal, final long now) {
+	    if( isTamed(animal) )
+	        return;
+	    oldestAnimals.add(new AnimalAge(animal, now - animal.getTicksLived()));
+	}
+	
+	/** Return the oldest untamed animal in this chunk, discarding any stale
+	 * entries found along the way.
+	 * 
+	 * @return the oldest animal, or null if there are none
+	 */
+	public AnimalAge peekOldestAnimal() {
+	    AnimalAge oldest;
+	    while( (oldest = oldestAnimals.peek()) != null ) {
+	        final Animals animal = oldest.getAnimal();
+	        if( animal.isValid() && !animal.isDead() && !isTamed(animal) && isInChunk(animal) )
+	            return oldest;
+	        oldestAnimals.poll();
+	    }
+	    return null;
+	}
+	
+	private boolean isInChunk(final Entity entity) {
+	    final Location l = entity.getLocation();
+	    return l != null && (l.getBlockX() >> 4) == x && (l.getBlockZ() >> 4) == z;
+	}
+	
+	private static boolean isTamed(final Animals animal) {
+	    return animal instanceof Tameable && ((Tameable) animal).isTamed();
+	}
+	
+	/** Mark this chunk as reconciled for the given sweep pass.
+	 * 
+	 * @param pass the id of the current sweep pass
+	 * @return true if the chunk had not yet been reconciled during this pass
+	 */
+	public boolean markReconciled(final int pass) {
+	    if( reconciledPass == pass )
+	        return false;
+	    reconciledPass = pass;
+	    return true;
+	}
+	
 	public boolean isChunkLoaded() {
 		return world.isChunkLoaded(x, z);
 	}
@@ -52,31 +141,28 @@ public class ChunkInfo {
 	public Entity[] getEntities() {
 	    return getChunk().getEntities();
 	}
-
-	/** Return the animals that are in the current chunk. The result is
-	 * cached per-tick (since entities won't move between successive calls
-	 * in the same tick to this method), so it is efficient to call
-	 * repeatedly.
-	 * 
-	 * @return
+	
+	/** An animal along with the tick it was born, ordered
+	 * oldest first.
 	 */
-	public Set<Animals> getAnimals() {
-	    // cache still valid?
-	    if( System.currentTimeMillis() < lastCacheTick+50 ) {
-	        return cachedAnimals;
+	public static class AnimalAge implements Comparable<AnimalAge> {
+	    private final Animals animal;
+	    private final long birthTick;
+	    
+	    AnimalAge(final Animals animal, final long birthTick) {
+	        this.animal = animal;
+	        this.birthTick = birthTick;
 	    }
-	    // cache no longer valid, reload cache and reset timer
-	    else {
-	        lastCacheTick=System.currentTimeMillis();
-	        cachedAnimals.clear();
-	        Entity[] entities = getEntities();
-	        for(int i=0; i < entities.length; i++) {
-//              if( util.isAnimal(entities[i]) )
-	            if( entities[i] instanceof Animals )
-	                cachedAnimals.add((Animals) entities[i]);
-	        }
+	    
+	    public Animals getAnimal() {
+	        return animal;
+	    }
+	    public long getBirthTick() {
+	        return birthTick;
 	    }
 	    
-	    return cachedAnimals;
+	    public int compareTo(AnimalAge o) {
+	        return birthTick < o.birthTick ? -1 : (birthTick == o.birthTick ? 0 : 1);
+	    }
 	}
-}
\ No newline at end of file
+}
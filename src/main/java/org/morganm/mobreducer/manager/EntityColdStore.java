@@ -0,0 +1,1027 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.inject.Inject;
+
+import org.bukkit.plugin.Plugin;
+import org.morganm.mBukkitLib.Logger;
+import org.morganm.mobreducer.TickClock;
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.metrics.Counter;
+import org.morganm.mobreducer.metrics.Gauge;
+import org.morganm.mobreducer.metrics.Metrics;
+import org.morganm.mobreducer.util.LongIntHashMap;
+import org.morganm.mobreducer.util.LongObjectHashMap;
+
+/** Cold tier for tracked-entity state. When a chunk unloads, the state of
+ * its entities is moved out of the heap into an append-only log of fixed
+ * size records, one log per world in the plugin folder, and it is moved
+ * back when the chunk loads again. Logs survive restarts, so mobs keep
+ * their interaction times, player damage and stack counts across a restart
+ * or reload.
+ * 
+ * State can also be written through while an entity stays on the heap, for
+ * state that would be lost for good in a crash, such as the mobs a stack
+ * stands for. Virtual mobs are written through the same way, with the
+ * extra fields needed to put them back in the world, and are put back when
+ * their chunk next loads if the server went down while they were virtual.
+ * A log holds at most one live record per entity; writing a new one kills
+ * the old.
+ * 
+ * Logs are memory-mapped, so appends and reads are plain memory access and
+ * the OS decides when to write pages out. Records are never moved while in
+ * use: a record is dead once it has been read back, and dead records are
+ * reclaimed by rewriting the live ones to a new log on a background thread.
+ * The main thread only swaps the new log in once it is finished. The new
+ * log is written under a temporary name and renamed to the next generation
+ * only once it is complete and forced to disk, so whenever the server stops
+ * the newest generation on disk is a complete log.
+ * 
+ * Each log's header also holds the tick count as of its last write, and
+ * {@link #getSavedTick()} hands the latest back on the next start so the
+ * {@link TickClock} carries on from it; interaction times in the records
+ * stay comparable with the clock across a restart.
+ * 
+ * Chunk keys in the logs carry world index 0, since world indexes are only
+ * stable while the plugin is running; the world is given by the log file.
+ * 
+ * All methods are main thread only.
+ * 
+ * @author morganm
+ *
+ */
+public class EntityColdStore {
+    private static final int MAGIC = 0x4D52434C;   // "MRCL"
+    private static final int VERSION = 5;         // 2: interaction times are ticks, 3: stack counts, 4: saved tick, 5: virtual mobs
+    private static final int HEADER_SIZE = 24;     // magic, version, record count, tick
+    private static final int COUNT_OFFSET = 8;
+    private static final int TICK_OFFSET = 16;
+    
+    // record layout
+    private static final int UUID_HI = 0;
+    private static final int UUID_LO = 8;
+    private static final int CURRENT_CHUNK = 16;
+    private static final int SPAWN_CHUNK = 24;
+    private static final int LAST_INTERACT = 32;
+    private static final int FLAGS = 40;
+    private static final int STACK_COUNT = 41;
+    // virtual mobs only, see VirtualMobs
+    private static final int TYPE = 45;
+    private static final int X = 47;
+    private static final int Y = 55;
+    private static final int Z = 63;
+    private static final int YAW = 71;
+    private static final int TICKS_LIVED = 75;
+    private static final int AGE = 79;
+    private static final int HEALTH = 83;
+    private static final int ATTRIBUTES = 87;
+    private static final int RECORD_SIZE = 91;
+    
+    // record flags, on top of the EntityStore flags
+    private static final byte FLAG_VIRTUAL = 0x4;  // a virtual mob, out of the world
+    
+    private static final int INITIAL_RECORDS = 4096;
+    // compact once dead records outnumber live ones, and there are at least this many
+    private static final int COMPACT_MIN_DEAD = 16384;
+    
+    private final Logger log;
+    private final Util util;
+    private final TickClock clock;
+    private final File folder;
+    private WorldLog[] logs = new WorldLog[4];      // by Util world index
+    private ExecutorService compactor;
+    
+    private final Counter spilled;
+    private final Counter saved;
+    private final Counter rehydrated;
+    private final Counter dropped;
+    private final Counter compactions;
+    
+    @Inject
+    public EntityColdStore(Logger log, Util util, Metrics metrics, TickClock clock, Plugin plugin) {
+        this(log, util, metrics, clock, new File(plugin.getDataFolder(), "entities"));
+    }
+    
+    /**
+     * 
+     * @param log
+     * @param util
+     * @param metrics
+     * @param clock
+     * @param folder the folder the logs are kept in
+     */
+    public EntityColdStore(Logger log, Util util, Metrics metrics, TickClock clock, File folder) {
+        this.log = log;
+        this.util = util;
+        this.clock = clock;
+        this.folder = folder;
+        
+        spilled = metrics.counter("coldStore.spilled");
+        saved = metrics.counter("coldStore.saved");
+        rehydrated = metrics.counter("coldStore.rehydrated");
+        dropped = metrics.counter("coldStore.dropped");
+        compactions = metrics.counter("coldStore.compactions");
+        metrics.gauge("tracked.coldRecords", new Gauge() {
+            public long getValue() {
+                long live = 0;
+                for(WorldLog worldLog : logs) {
+                    if( worldLog != null )
+                        live += worldLog.live;
+                }
+                return live;
+            }
+        });
+    }
+    
+    /** The records of one chunk, read back from the log by {@link #take}.
+     * Chunk keys carry the world index they were taken with.
+     */
+    public static class Records {
+        private long[] uuidHi = new long[16];
+        private long[] uuidLo = new long[16];
+        private long[] currentChunk = new long[16];
+        private long[] spawnChunk = new long[16];
+        private long[] lastInteract = new long[16];
+        private boolean[] playerDamaged = new boolean[16];
+        private int[] stackCount = new int[16];
+        private boolean[] virtual = new boolean[16];
+        private short[] type = new short[16];
+        private double[] x = new double[16];
+        private double[] y = new double[16];
+        private double[] z = new double[16];
+        private float[] yaw = new float[16];
+        private int[] ticksLived = new int[16];
+        private int[] age = new int[16];
+        private int[] health = new int[16];
+        private int[] attributes = new int[16];
+        private int size = 0;
+        
+        private void add(final ByteBuffer buffer, final int offset, final int worldIndex) {
+            if( size == uuidHi.length ) {
+                final int capacity = size * 2;
+                uuidHi = Arrays.copyOf(uuidHi, capacity);
+                uuidLo = Arrays.copyOf(uuidLo, capacity);
+                currentChunk = Arrays.copyOf(currentChunk, capacity);
+                spawnChunk = Arrays.copyOf(spawnChunk, capacity);
+                lastInteract = Arrays.copyOf(lastInteract, capacity);
+                playerDamaged = Arrays.copyOf(playerDamaged, capacity);
+                stackCount = Arrays.copyOf(stackCount, capacity);
+                virtual = Arrays.copyOf(virtual, capacity);
+                type = Arrays.copyOf(type, capacity);
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                z = Arrays.copyOf(z, capacity);
+                yaw = Arrays.copyOf(yaw, capacity);
+                ticksLived = Arrays.copyOf(ticksLived, capacity);
+                age = Arrays.copyOf(age, capacity);
+                health = Arrays.copyOf(health, capacity);
+                attributes = Arrays.copyOf(attributes, capacity);
+            }
+            uuidHi[size] = buffer.getLong(offset + UUID_HI);
+            uuidLo[size] = buffer.getLong(offset + UUID_LO);
+            currentChunk[size] = withWorld(buffer.getLong(offset + CURRENT_CHUNK), worldIndex);
+            spawnChunk[size] = withWorld(buffer.getLong(offset + SPAWN_CHUNK), worldIndex);
+            lastInteract[size] = buffer.getLong(offset + LAST_INTERACT);
+            playerDamaged[size] = (buffer.get(offset + FLAGS) & EntityStore.FLAG_PLAYER_DAMAGED) != 0;
+            stackCount[size] = buffer.getInt(offset + STACK_COUNT);
+            virtual[size] = (buffer.get(offset + FLAGS) & FLAG_VIRTUAL) != 0;
+            if( virtual[size] ) {
+                type[size] = buffer.getShort(offset + TYPE);
+                x[size] = buffer.getDouble(offset + X);
+                y[size] = buffer.getDouble(offset + Y);
+                z[size] = buffer.getDouble(offset + Z);
+                yaw[size] = buffer.getFloat(offset + YAW);
+                ticksLived[size] = buffer.getInt(offset + TICKS_LIVED);
+                age[size] = buffer.getInt(offset + AGE);
+                health[size] = buffer.getInt(offset + HEALTH);
+                attributes[size] = buffer.getInt(offset + ATTRIBUTES);
+            }
+            size++;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * 
+         * @param hi
+         * @param lo
+         * @return the index of the record for the given uuid, or -1 if there is none
+         */
+        public int find(final long hi, final long lo) {
+            for(int i=0; i < size; i++) {
+                if( uuidHi[i] == hi && uuidLo[i] == lo )
+                    return i;
+            }
+            return -1;
+        }
+        
+        public long getCurrentChunk(final int i) {
+            return currentChunk[i];
+        }
+        public long getSpawnChunk(final int i) {
+            return spawnChunk[i];
+        }
+        public long getLastInteract(final int i) {
+            return lastInteract[i];
+        }
+        public boolean isPlayerDamaged(final int i) {
+            return playerDamaged[i];
+        }
+        public int getStackCount(final int i) {
+            return stackCount[i];
+        }
+        public UUID getUniqueId(final int i) {
+            return new UUID(uuidHi[i], uuidLo[i]);
+        }
+        
+        /**
+         * 
+         * @param i
+         * @return true if the record is of a virtual mob, which has the
+         * fields below
+         */
+        public boolean isVirtual(final int i) {
+            return virtual[i];
+        }
+        short getType(final int i) {
+            return type[i];
+        }
+        double getX(final int i) {
+            return x[i];
+        }
+        double getY(final int i) {
+            return y[i];
+        }
+        double getZ(final int i) {
+            return z[i];
+        }
+        float getYaw(final int i) {
+            return yaw[i];
+        }
+        int getTicksLived(final int i) {
+            return ticksLived[i];
+        }
+        int getAge(final int i) {
+            return age[i];
+        }
+        int getHealth(final int i) {
+            return health[i];
+        }
+        int getAttributes(final int i) {
+            return attributes[i];
+        }
+    }
+    
+    private static long withWorld(final long chunkKey, final int worldIndex) {
+        return Util.packChunkKey(worldIndex, Util.getChunkKeyX(chunkKey), Util.getChunkKeyZ(chunkKey));
+    }
+    
+    /** Record numbers of the live records in one chunk. */
+    private static class RecordList {
+        int[] records = new int[4];
+        int size = 0;
+        
+        void add(final int record) {
+            if( size == records.length )
+                records = Arrays.copyOf(records, size * 2);
+            records[size++] = record;
+        }
+        
+        boolean remove(final int record) {
+            for(int i=0; i < size; i++) {
+                if( records[i] == record ) {
+                    records[i] = records[--size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /** The log of one world. */
+    private class WorldLog {
+        final String worldName;
+        final LongObjectHashMap<RecordList> byChunk = new LongObjectHashMap<RecordList>(64);
+        // high uuid bits -> record number + 1 of the entity's live record;
+        // the low bits are checked against the record itself
+        final LongIntHashMap byUuid = new LongIntHashMap(64);
+        int generation;
+        File file;
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        int records;        // records in the log, live and dead
+        int live;
+        Future<Compacted> pendingCompaction;
+        
+        WorldLog(final String worldName) {
+            this.worldName = worldName;
+        }
+        
+        /** Open the newest log for this world, or start a new one, and index
+         * its live records. Older generations left behind by a compaction,
+         * and unfinished compactions, are deleted.
+         */
+        void open() throws IOException {
+            generation = -1;
+            final String prefix = worldName+".";
+            final File[] files = folder.listFiles();
+            if( files != null ) {
+                for(File f : files) {
+                    final int gen = parseGeneration(f.getName(), prefix, ".dat");
+                    if( gen > generation )
+                        generation = gen;
+                }
+                for(File f : files) {
+                    final int gen = parseGeneration(f.getName(), prefix, ".dat");
+                    if( (gen >= 0 && gen < generation) || parseGeneration(f.getName(), prefix, ".tmp") >= 0 )
+                        f.delete();
+                }
+            }
+            
+            if( generation < 0 ) {
+                generation = 0;
+                map(fileFor(generation), INITIAL_RECORDS);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                setRecordCount(0);
+                buffer.force();
+                return;
+            }
+            
+            map(fileFor(generation), INITIAL_RECORDS);
+            if( buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ) {
+                final File current = file;
+                final boolean olderVersion = buffer.getInt(0) == MAGIC;
+                close();
+                if( olderVersion ) {
+                    log.info("Entity log "+current+" is from an older version, starting a new one");
+                    current.delete();
+                }
+                else {
+                    // keep it for inspection rather than losing it
+                    final File aside = new File(folder, current.getName()+".bad");
+                    log.severe("Entity log "+current+" is not a valid log, moving it to "+aside+" and starting a new one");
+                    aside.delete();
+                    if( !current.renameTo(aside) )
+                        throw new IOException("can't move "+current+" aside");
+                }
+                open();
+                return;
+            }
+            
+            records = (int) Math.min(buffer.getLong(COUNT_OFFSET), (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+            index();
+        }
+        
+        private File fileFor(final int gen) {
+            return new File(folder, worldName+"."+gen+".dat");
+        }
+        
+        /** The file a compaction to the given generation is written to. */
+        private File tempFileFor(final int gen) {
+            return new File(folder, worldName+"."+gen+".tmp");
+        }
+        
+        /** Index the live records of the mapped log. */
+        void index() {
+            byChunk.clear();
+            byUuid.clear();
+            live = 0;
+            for(int r=0; r < records; r++) {
+                final int offset = offset(r);
+                if( buffer.get(offset + FLAGS) == 0 )
+                    continue;
+                indexRecord(buffer.getLong(offset + UUID_HI), buffer.getLong(offset + CURRENT_CHUNK), r);
+            }
+        }
+        
+        void indexRecord(final long hi, final long chunkKey, final int record) {
+            RecordList list = byChunk.get(chunkKey);
+            if( list == null ) {
+                list = new RecordList();
+                byChunk.put(chunkKey, list);
+            }
+            list.add(record);
+            byUuid.put(hi, record + 1);
+            live++;
+        }
+        
+        /**
+         * 
+         * @return the live record of the given entity, or -1 if it has none
+         */
+        int findRecord(final long hi, final long lo) {
+            final int record = byUuid.get(hi) - 1;
+            if( record < 0 )
+                return -1;
+            final int offset = offset(record);
+            if( buffer.getLong(offset + UUID_LO) != lo || buffer.get(offset + FLAGS) == 0 )
+                return -1;
+            return record;
+        }
+        
+        /** Mark a live record dead and drop it from the indexes. */
+        void kill(final int record) {
+            final int offset = offset(record);
+            final long chunkKey = buffer.getLong(offset + CURRENT_CHUNK);
+            final RecordList list = byChunk.get(chunkKey);
+            if( list != null && list.remove(record) && list.size == 0 )
+                byChunk.remove(chunkKey);
+            unindex(buffer.getLong(offset + UUID_HI), record);
+            buffer.put(offset + FLAGS, (byte) 0);
+            live--;
+        }
+        
+        void unindex(final long hi, final int record) {
+            if( byUuid.get(hi) == record + 1 )
+                byUuid.remove(hi);
+        }
+        
+        /** Map the given file with room for at least the given number of
+         * records, growing the file if needed.
+         */
+        void map(final File f, final int minRecords) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            final FileChannel ch = raf.getChannel();
+            final long existing = Math.max(0, (ch.size() - HEADER_SIZE) / RECORD_SIZE);
+            final long capacity = Math.max(existing, minRecords);
+            file = f;
+            channel = ch;
+            buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity * RECORD_SIZE);
+        }
+        
+        void setRecordCount(final int count) {
+            records = count;
+            buffer.putLong(COUNT_OFFSET, count);
+            buffer.putLong(TICK_OFFSET, clock.getTick());
+        }
+        
+        /** Append a record, remapping the log twice as large if it is full.
+         * Any earlier live record of the same entity is killed.
+         * 
+         * @return the offset of the record, for the caller to fill in any
+         * fields beyond the ones given before calling {@link #commit}
+         */
+        int append(final long hi, final long lo, final long chunkKey, final long spawnChunkKey,
+                final long lastInteract, final byte flags, final int stackCount) throws IOException
+        {
+            final int previous = findRecord(hi, lo);
+            if( previous >= 0 )
+                kill(previous);
+            
+            if( offset(records + 1) > buffer.capacity() ) {
+                buffer.force();
+                final int capacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * 2 * RECORD_SIZE);
+            }
+            
+            final int offset = offset(records);
+            // space past the record count may hold a record torn by a crash
+            for(int i=0; i < RECORD_SIZE; i++)
+                buffer.put(offset + i, (byte) 0);
+            buffer.putLong(offset + UUID_HI, hi);
+            buffer.putLong(offset + UUID_LO, lo);
+            buffer.putLong(offset + CURRENT_CHUNK, chunkKey);
+            buffer.putLong(offset + SPAWN_CHUNK, spawnChunkKey);
+            buffer.putLong(offset + LAST_INTERACT, lastInteract);
+            buffer.put(offset + FLAGS, flags);
+            buffer.putInt(offset + STACK_COUNT, stackCount);
+            return offset;
+        }
+        
+        /** Count in and index the record just written by {@link #append}. */
+        void commit(final int offset) {
+            final int record = records;
+            setRecordCount(record + 1);
+            indexRecord(buffer.getLong(offset + UUID_HI), buffer.getLong(offset + CURRENT_CHUNK), record);
+        }
+        
+        void close() {
+            if( pendingCompaction != null ) {
+                pendingCompaction.cancel(true);
+                pendingCompaction = null;
+            }
+            if( buffer != null ) {
+                buffer.force();
+                buffer = null;
+            }
+            try {
+                if( channel != null )
+                    channel.close();
+            }
+            catch(IOException e) {}
+            channel = null;
+        }
+    }
+    
+    private static int parseGeneration(final String name, final String prefix, final String suffix) {
+        if( !name.startsWith(prefix) || !name.endsWith(suffix) )
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+        }
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static int offset(final int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+    
+    /** Return the log for a world, opening it the first time it is used.
+     * 
+     * @param worldIndex
+     * @return the log, or null if it couldn't be opened
+     */
+    private WorldLog getLog(final int worldIndex) {
+        if( worldIndex >= logs.length )
+            logs = Arrays.copyOf(logs, Math.max(worldIndex+1, logs.length*2));
+        
+        WorldLog worldLog = logs[worldIndex];
+        if( worldLog == null ) {
+            final String name = util.getWorldName(worldIndex);
+            if( name == null )
+                return null;
+            worldLog = new WorldLog(name);
+            try {
+                folder.mkdirs();
+                worldLog.open();
+            }
+            catch(IOException e) {
+                log.severe("Error opening entity log for world "+name+", entity state for it won't be kept: "+e);
+                worldLog.close();
+                return null;
+            }
+            logs[worldIndex] = worldLog;
+        }
+        return worldLog.channel != null ? worldLog : null;
+    }
+    
+    /** Move an entity's state into the log. The caller then stops tracking
+     * it in the heap.
+     * 
+     * @param store
+     * @param slot
+     * @return true if the state was written
+     */
+    public boolean spill(final EntityStore store, final int slot) {
+        if( !write(store, slot) )
+            return false;
+        spilled.increment();
+        return true;
+    }
+    
+    /** Write an entity's state through to the log while it stays tracked
+     * in the heap, so it survives a crash. The record is read back like a
+     * spilled one when the entity's chunk next loads, unless it is
+     * replaced or forgotten first.
+     * 
+     * @param store
+     * @param slot
+     * @return true if the state was written
+     */
+    public boolean save(final EntityStore store, final int slot) {
+        if( !write(store, slot) )
+            return false;
+        saved.increment();
+        return true;
+    }
+    
+    private boolean write(final EntityStore store, final int slot) {
+        final long chunkKey = store.getCurrentChunk(slot);
+        final WorldLog worldLog = getLog(Util.getChunkKeyWorld(chunkKey));
+        if( worldLog == null )
+            return false;
+        
+        final UUID uuid = store.getUniqueId(slot);
+        final byte flags = store.hasFlag(slot, EntityStore.FLAG_PLAYER_DAMAGED)
+                ? (byte) (EntityStore.FLAG_USED | EntityStore.FLAG_PLAYER_DAMAGED) : EntityStore.FLAG_USED;
+        try {
+            worldLog.commit(worldLog.append(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                    withWorld(chunkKey, 0), withWorld(store.getSpawnChunk(slot), 0),
+                    store.getLastInteract(slot), flags, store.getStackCount(slot)));
+        }
+        catch(IOException e) {
+            log.severe("Error writing entity log "+worldLog.file+": "+e);
+            return false;
+        }
+        checkCompaction(worldLog);
+        return true;
+    }
+    
+    /** Write a virtual mob through to the log, so it is put back if the
+     * server goes down before it is. The record is keyed by the UUID of the
+     * entity the mob was before it was virtualized, and replaces any record
+     * that entity had.
+     * 
+     * @param chunkKey the chunk the mob is in
+     * @param records the virtual mobs of the chunk
+     * @param i the index of the mob in the records
+     * @return true if the mob was written
+     */
+    public boolean saveVirtual(final long chunkKey, final VirtualMobs.Records records, final int i) {
+        final WorldLog worldLog = getLog(Util.getChunkKeyWorld(chunkKey));
+        if( worldLog == null )
+            return false;
+        
+        final byte flags = records.isPlayerDamaged(i)
+                ? (byte) (EntityStore.FLAG_USED | EntityStore.FLAG_PLAYER_DAMAGED | FLAG_VIRTUAL)
+                : (byte) (EntityStore.FLAG_USED | FLAG_VIRTUAL);
+        try {
+            final int offset = worldLog.append(records.getUniqueIdHi(i), records.getUniqueIdLo(i),
+                    withWorld(chunkKey, 0), withWorld(records.getSpawnChunk(i), 0),
+                    records.getLastInteract(i), flags, records.getStackCount(i));
+            final MappedByteBuffer buffer = worldLog.buffer;
+            buffer.putShort(offset + TYPE, (short) records.getType(i).ordinal());
+            buffer.putDouble(offset + X, records.getX(i));
+            buffer.putDouble(offset + Y, records.getY(i));
+            buffer.putDouble(offset + Z, records.getZ(i));
+            buffer.putFloat(offset + YAW, records.getYaw(i));
+            buffer.putInt(offset + TICKS_LIVED, records.getTicksLived(i));
+            buffer.putInt(offset + AGE, records.getAge(i));
+            buffer.putInt(offset + HEALTH, records.getHealth(i));
+            buffer.putInt(offset + ATTRIBUTES, records.getAttributes(i));
+            worldLog.commit(offset);
+        }
+        catch(IOException e) {
+            log.severe("Error writing entity log "+worldLog.file+": "+e);
+            return false;
+        }
+        saved.increment();
+        checkCompaction(worldLog);
+        return true;
+    }
+    
+    /** Drop the record written for an entity, if it has one, once its
+     * state no longer needs to survive a restart. Only logs that are
+     * already open are looked at, since the entity's chunk being loaded
+     * means its world's log is open.
+     * 
+     * @param worldIndex
+     * @param uuid
+     */
+    public void forget(final int worldIndex, final UUID uuid) {
+        final WorldLog worldLog = worldIndex < logs.length ? logs[worldIndex] : null;
+        if( worldLog == null || worldLog.channel == null )
+            return;
+        final int record = worldLog.findRecord(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if( record >= 0 ) {
+            worldLog.kill(record);
+            checkCompaction(worldLog);
+        }
+    }
+    
+    /** Read back and remove the records of a chunk. Records that the caller
+     * doesn't find a loaded entity for are simply gone; those entities have
+     * left the world while their chunk was unloaded.
+     * 
+     * @param worldIndex
+     * @param chunkX
+     * @param chunkZ
+     * @return the chunk's records, or null if it has none
+     */
+    public Records take(final int worldIndex, final int chunkX, final int chunkZ) {
+        final WorldLog worldLog = getLog(worldIndex);
+        if( worldLog == null )
+            return null;
+        final RecordList list = worldLog.byChunk.remove(Util.packChunkKey(0, chunkX, chunkZ));
+        if( list == null )
+            return null;
+        
+        final Records result = new Records();
+        final MappedByteBuffer buffer = worldLog.buffer;
+        for(int i=0; i < list.size; i++) {
+            final int offset = offset(list.records[i]);
+            result.add(buffer, offset, worldIndex);
+            worldLog.unindex(buffer.getLong(offset + UUID_HI), list.records[i]);
+            buffer.put(offset + FLAGS, (byte) 0);
+        }
+        worldLog.live -= list.size;
+        checkCompaction(worldLog);
+        return result;
+    }
+    
+    /** Read back and remove the record of one entity, wherever it is. For
+     * an entity that has no record in its own chunk, because it moved after
+     * its record was written through.
+     * 
+     * @param worldIndex
+     * @param uuid
+     * @return the entity's record, or null if it has none
+     */
+    public Records takeEntity(final int worldIndex, final UUID uuid) {
+        final WorldLog worldLog = getLog(worldIndex);
+        if( worldLog == null || worldLog.live == 0 )
+            return null;
+        final int record = worldLog.findRecord(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if( record < 0 )
+            return null;
+        
+        final Records result = new Records();
+        result.add(worldLog.buffer, offset(record), worldIndex);
+        worldLog.kill(record);
+        checkCompaction(worldLog);
+        return result;
+    }
+    
+    /** Start compacting a log once dead records outnumber live ones. */
+    private void checkCompaction(final WorldLog worldLog) {
+        if( worldLog.pendingCompaction == null && worldLog.records - worldLog.live >= COMPACT_MIN_DEAD
+                && worldLog.records - worldLog.live > worldLog.live )
+            startCompaction(worldLog);
+    }
+    
+    /** Record how many of the records handed out by take() were matched to
+     * an entity, for the metrics.
+     * 
+     * @param taken
+     * @param matched
+     */
+    public void taken(final int taken, final int matched) {
+        rehydrated.add(matched);
+        dropped.add(taken - matched);
+    }
+    
+    /** The result of a background compaction: the new log, for each
+     * record in it the record it was copied from in the old log, and the
+     * end of the old log as the worker saw it.
+     */
+    private static class Compacted {
+        final File file;
+        final int[] source;
+        final int end;
+        
+        Compacted(final File file, final int[] source, final int end) {
+            this.file = file;
+            this.source = source;
+            this.end = end;
+        }
+    }
+    
+    /** Copy the live records of a log to a temporary file on the background
+     * thread. Records appended or read back in the meantime are sorted out
+     * when the new log is swapped in.
+     * 
+     * @param worldLog
+     */
+    private void startCompaction(final WorldLog worldLog) {
+        if( compactor == null )
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MobReducer-compact");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        
+        // records are only ever appended and their flags cleared, so the
+        // worker can read its own view of everything up to here
+        final ByteBuffer source = worldLog.buffer.duplicate();
+        final int end = worldLog.records;
+        final File target = worldLog.tempFileFor(worldLog.generation + 1);
+        worldLog.pendingCompaction = compactor.submit(new Callable<Compacted>() {
+            public Compacted call() throws IOException {
+                return compact(source, end, target);
+            }
+        });
+    }
+    
+    private static Compacted compact(final ByteBuffer source, final int end, final File target) throws IOException {
+        int[] copied = new int[1024];
+        int count = 0;
+        final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            final FileChannel out = raf.getChannel();
+            out.truncate(0);
+            final ByteBuffer batch = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            batch.putInt(MAGIC).putInt(VERSION).putLong(0).putLong(0);
+            final byte[] record = new byte[RECORD_SIZE];
+            for(int r=0; r < end; r++) {
+                final int offset = offset(r);
+                if( source.get(offset + FLAGS) == 0 )
+                    continue;
+                if( Thread.interrupted() )
+                    throw new IOException("compaction cancelled");
+                
+                for(int i=0; i < RECORD_SIZE; i++)
+                    record[i] = source.get(offset + i);
+                if( batch.remaining() < RECORD_SIZE ) {
+                    batch.flip();
+                    out.write(batch);
+                    batch.clear();
+                }
+                batch.put(record);
+                if( count == copied.length )
+                    copied = Arrays.copyOf(copied, count * 2);
+                copied[count++] = r;
+            }
+            batch.flip();
+            out.write(batch);
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(0, count);
+            out.write(header, COUNT_OFFSET);
+            out.force(true);
+        }
+        finally {
+            raf.close();
+        }
+        return new Compacted(target, Arrays.copyOf(copied, count), end);
+    }
+    
+    /** Swap in any compactions that have finished. Called every tick.
+     * 
+     */
+    public void tick() {
+        for(int w=0; w < logs.length; w++) {
+            final WorldLog worldLog = logs[w];
+            if( worldLog != null && worldLog.pendingCompaction != null && worldLog.pendingCompaction.isDone() )
+                finishCompaction(worldLog);
+        }
+    }
+    
+    /** Swap a compacted log in. Records that were read back while it was
+     * being written are marked dead in the new log, and records appended in
+     * the meantime are copied over. Only then is it renamed to the next
+     * generation, which replaces the old log on disk.
+     * 
+     * @param worldLog
+     */
+    private void finishCompaction(final WorldLog worldLog) {
+        final Future<Compacted> future = worldLog.pendingCompaction;
+        worldLog.pendingCompaction = null;
+        final Compacted compacted;
+        try {
+            compacted = future.get();
+        }
+        catch(Exception e) {
+            log.severe("Error compacting entity log "+worldLog.file+": "+e);
+            worldLog.tempFileFor(worldLog.generation + 1).delete();
+            return;
+        }
+        
+        final int count;
+        try {
+            count = catchUp(worldLog, compacted, clock.getTick());
+        }
+        catch(IOException e) {
+            log.severe("Error writing compacted entity log "+compacted.file+": "+e);
+            compacted.file.delete();
+            return;
+        }
+        final File next = worldLog.fileFor(worldLog.generation + 1);
+        if( !compacted.file.renameTo(next) ) {
+            log.severe("Error renaming compacted entity log "+compacted.file+" to "+next);
+            compacted.file.delete();
+            return;
+        }
+        
+        final FileChannel oldChannel = worldLog.channel;
+        final MappedByteBuffer old = worldLog.buffer;
+        final File oldFile = worldLog.file;
+        try {
+            worldLog.map(next, Math.max(INITIAL_RECORDS, count * 2));
+        }
+        catch(IOException e) {
+            // keep using the old log, and make it the newest on disk again
+            log.severe("Error opening compacted entity log "+next+": "+e);
+            worldLog.buffer = old;
+            worldLog.channel = oldChannel;
+            worldLog.file = oldFile;
+            next.delete();
+            return;
+        }
+        worldLog.generation++;
+        worldLog.records = count;
+        // record numbers have all changed, so index the new log from scratch
+        worldLog.index();
+        
+        try {
+            oldChannel.close();
+        }
+        catch(IOException e) {}
+        // may fail while the old mapping is still around; the next start
+        // cleans up old generations either way
+        oldFile.delete();
+        compactions.increment();
+    }
+    
+    /** Bring a compacted log up to date with the current one and force it
+     * to disk.
+     * 
+     * @return the number of records in the compacted log
+     */
+    private static int catchUp(final WorldLog worldLog, final Compacted compacted, final long tick) throws IOException {
+        final MappedByteBuffer old = worldLog.buffer;
+        final RandomAccessFile raf = new RandomAccessFile(compacted.file, "rw");
+        try {
+            final FileChannel out = raf.getChannel();
+            final ByteBuffer dead = ByteBuffer.allocate(1);
+            for(int r=0; r < compacted.source.length; r++) {
+                if( old.get(offset(compacted.source[r]) + FLAGS) == 0 ) {
+                    dead.clear();
+                    out.write(dead, offset(r) + FLAGS);
+                }
+            }
+            
+            // anything appended after the worker's view ended
+            int count = compacted.source.length;
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for(int r=compacted.end; r < worldLog.records; r++) {
+                final int offset = offset(r);
+                if( old.get(offset + FLAGS) == 0 )
+                    continue;
+                record.clear();
+                for(int i=0; i < RECORD_SIZE; i++)
+                    record.put(old.get(offset + i));
+                record.flip();
+                out.write(record, offset(count++));
+            }
+            
+            final ByteBuffer header = ByteBuffer.allocate(16);
+            header.putLong(0, count).putLong(8, tick);
+            out.write(header, COUNT_OFFSET);
+            out.force(true);
+            return count;
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    /** Return the latest tick saved in any log header, so the clock can
+     * carry on from where the previous run left off. Logs that can't be
+     * read, or are from another version, are skipped.
+     * 
+     * @return the saved tick, or -1 if no log has one
+     */
+    public long getSavedTick() {
+        long saved = -1;
+        final File[] files = folder.listFiles();
+        if( files == null )
+            return saved;
+        
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        for(File f : files) {
+            if( !f.getName().endsWith(".dat") )
+                continue;
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(f, "r");
+                try {
+                    header.clear();
+                    raf.getChannel().read(header, 0);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch(IOException e) {
+                log.warn("Error reading entity log "+f+": "+e);
+                continue;
+            }
+            if( header.position() == HEADER_SIZE && header.getInt(0) == MAGIC && header.getInt(4) == VERSION )
+                saved = Math.max(saved, header.getLong(TICK_OFFSET));
+        }
+        return saved;
+    }
+    
+    /** Flush and close all logs. Any compaction in progress is abandoned.
+     * 
+     */
+    public void close() {
+        if( compactor != null ) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        for(int w=0; w < logs.length; w++) {
+            if( logs[w] != null ) {
+                final boolean compacting = logs[w].pendingCompaction != null;
+                final File next = logs[w].tempFileFor(logs[w].generation + 1);
+                if( logs[w].buffer != null )
+                    logs[w].buffer.putLong(TICK_OFFSET, clock.getTick());
+                logs[w].close();
+                if( compacting )
+                    next.delete();
+                logs[w] = null;
+            }
+        }
+    }
+}
@@ -1,87 +1,56 @@
 package org.morganm.mobreducer.manager;
 
-import java.lang.ref.WeakReference;
-import java.util.List;
 import java.util.UUID;
 
-import javax.inject.Inject;
-
-import org.bukkit.Bukkit;
-import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Entity;
 import org.morganm.mobreducer.Util;
 
-import com.google.inject.assistedinject.Assisted;
-
 /** Class to track meta information about an Entity and specifically to
  * be hash key/value safe even as entities are loaded/unloaded as chunks
  * come and go.
  * 
+ * This is a lightweight view over one slot of the {@link EntityStore}, which
+ * holds the actual state. Views are cheap to create and are meant to be short
+ * lived: once the entity is no longer tracked its slot may be reused by
+ * another entity, so don't hold onto a view across ticks.
+ * 
  */
 public class EntityInfo {
-    private final UUID uuid;
+    private final EntityStore store;
+    private final int slot;
     private final Util util;
-    // WeakReference serves as a cache to the entity object. Might be null if
-    // the entity has been unloaded or removed.
-    private WeakReference<Entity> entityRef;
-    private String worldName;
-    private long lastInteractEvent;
-    private String currentChunkKey;       // our last known chunk position
-//    private Location spawnLocation;
-    private String spawnChunkKey;
-    private boolean isPlayerDamaged=false;
+    // the entity this view was created for
+    private final Entity entity;
     
-    @Inject
-    public EntityInfo(@Assisted Entity entity, Util util) {
-        this.entityRef = new WeakReference<Entity>(entity);
-        this.uuid = entity.getUniqueId();
+    EntityInfo(EntityStore store, int slot, Entity entity, Util util) {
+        this.store = store;
+        this.slot = slot;
+        this.entity = entity;
         this.util = util;
-        
-        /* Though not documented explicitly one way or another, as best I can tell
-         * an entity will always have a location when being created. It's possible
-         * it could be null if the entity has been removed, but this constructor
-         * is only called as entities are being created. So rather than write a
-         * bunch of code here and elsewhere in this class to protect against it
-         * possibly being null, I'll go with the assumption that it is never null
-         * until I see an NPE that proves otherwise.
-         */
-        final Location l = entity.getLocation();
-        this.worldName = l.getWorld().getName();
-        this.currentChunkKey = util.getChunkKey(l.getChunk());
-        this.spawnChunkKey = currentChunkKey;
-        
-        this.lastInteractEvent = System.currentTimeMillis();
+    }
+    
+    EntityStore getStore() {
+        return store;
+    }
+    
+    int getSlot() {
+        return slot;
+    }
+    
+    public UUID getUniqueId() {
+        return store.getUniqueId(slot);
     }
     
     public World getWorld() {
-        return Bukkit.getWorld(worldName);
+        return util.getWorld(Util.getChunkKeyWorld(store.getCurrentChunk(slot)));
     }
     
     /**
      * 
-     * @return the entity this EntityInfo represents. Can be null if the backing entity
-     * is currently unloaded (because the Chunk it is in has been unloaded by Bukkit).
+     * @return the entity this EntityInfo represents
      */
     public Entity getEntity() {
-        Entity entity = entityRef.get();   // use WeakReference object if set
-        
-        if( entity == null ) {
-            World world = getWorld();
-            
-            // possible world was deleted by MultiVerse since this entity was created
-            if( world != null ) {
-                List<Entity> entities = world.getEntities();
-                for(Entity e : entities) {
-                    if( e.getUniqueId().equals(uuid) ) {
-                        entity = e;
-                        entityRef = new WeakReference<Entity>(e);
-                        break;
-                    }
-                }
-            }
-        }
-        
         return entity;
     }
     
@@ -89,35 +58,47 @@ public class EntityInfo {
      * 
      */
     public void setPlayerDamaged() {
-        isPlayerDamaged=true;
+        store.setFlag(slot, EntityStore.FLAG_PLAYER_DAMAGED);
     }
     public boolean isPlayerDamaged() {
-        return this.isPlayerDamaged;
+        return store.hasFlag(slot, EntityStore.FLAG_PLAYER_DAMAGED);
+    }
+    
+    /** The number of mobs this entity stands for. This is 1 for a normal
+     * mob, and more for an idle mob that other identical mobs have been
+     * stacked into.
+     * 
+     * @return
+     */
+    public int getStackCount() {
+        return store.getStackCount(slot);
+    }
+    public void setStackCount(int count) {
+        store.setStackCount(slot, count);
     }
     
     public long getLastInteractEventTime() {
-        return lastInteractEvent;
+        return store.getLastInteract(slot);
     }
     public void setLastInteractEventTime(long time) {
-        this.lastInteractEvent = time;
+        store.setLastInteract(slot, time);
     }
     
-    public String getCurrentChunkKey() {
+    public long getCurrentChunkKey() {
         Entity entity = getEntity();
         
         // make sure chunkKey and world is current
         if( entity != null ) {
-            worldName = entity.getLocation().getWorld().getName();
-            currentChunkKey = util.getChunkKey(entity.getLocation().getChunk());
+            store.setCurrentChunk(slot, util.getChunkKey(entity.getLocation()));
         }
         
-        return currentChunkKey;
+        return store.getCurrentChunk(slot);
     }
-    public void setCurrentChunkKey(String chunkKey) {
-        this.currentChunkKey = chunkKey;
+    public void setCurrentChunkKey(long chunkKey) {
+        store.setCurrentChunk(slot, chunkKey);
     }
     
-    public String getSpawnChunkKey() {
-        return spawnChunkKey;
+    public long getSpawnChunkKey() {
+        return store.getSpawnChunk(slot);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,668 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.util.LongHash;
+import org.morganm.mobreducer.util.UuidByteHashMap;
+
+/** Tracked-entity state partitioned into shards by world and chunk region,
+ * so threads ticking different regions (as on region-threaded server forks)
+ * don't contend with each other.
+ * 
+ * A shard can be owned by a thread. The owner uses it without locking, and
+ * any other thread touching it is an error. A shard with no owner is shared,
+ * and every use of it takes its lock. On a stock server the main thread owns
+ * every shard and nothing here ever locks.
+ * 
+ * An entity lives in the shard of the region it was last seen in. When it
+ * crosses into another region, its state is handed off to the new shard:
+ * - between shards the calling thread can use, directly, taking the locks of
+ *   any shared ones lowest index first so two threads handing entities in
+ *   opposite directions can't deadlock.
+ * - from a shard owned by another thread, by posting a request to that
+ *   shard's inbox. Its owner answers from {@link #drainHandOffs()} by
+ *   posting the state back. Until it arrives, the entity is tracked in a
+ *   fresh slot, and the arriving state is merged into it.
+ * 
+ * A directory of which shard holds each entity, kept in primitive maps
+ * striped by uuid, lets a lookup that misses its home shard go straight to
+ * the right one rather than probing every shard. It names the shard holding
+ * the entity's real state, or the one that state is on its way to.
+ * 
+ * @author morganm
+ * 
+ */
+public class EntityShards {
+    /** Regions are 32x32 chunks, matching ChunkCountGrid. */
+    public static final int REGION_SHIFT = 5;
+    /** Shards are recorded in the directory as a byte. */
+    public static final int MAX_SHARDS = 128;
+
+    /** requested[] values: a request for the entity's state is out, or it
+     * was, but the entity has been released here since. */
+    private static final byte REQUESTED = 1;
+    private static final byte CANCELLED = 2;
+
+    private final EntityStore[] stores;
+    private final ReentrantLock[] locks;
+    private final Inbox[] inboxes;
+    /** Entities each shard has asked another thread's shard for. Only used
+     * by whoever may use the shard itself. */
+    private final UuidByteHashMap[] requested;
+    private final UuidByteHashMap[] directory;
+    private final ReentrantLock[] directoryLocks;
+    private final int mask;
+    /** Replaced rather than updated, so other threads see a consistent set. */
+    private volatile Thread[] owners;
+    /** The thread owning every shard, if one does. No other thread can then
+     * use the shards at all, so the directory needs no locking either. */
+    private volatile Thread soleOwner;
+
+    /**
+     * 
+     * @param shardCount the number of shards, rounded up to a power of two
+     * @param initialCapacity initial entity capacity of each shard
+     */
+    public EntityShards(final int shardCount, final int initialCapacity) {
+        int count = 1;
+        while( count < shardCount )
+            count <<= 1;
+        if( count > MAX_SHARDS )
+            throw new IllegalArgumentException("at most "+MAX_SHARDS+" shards are supported, not "+count);
+
+        stores = new EntityStore[count];
+        locks = new ReentrantLock[count];
+        inboxes = new Inbox[count];
+        requested = new UuidByteHashMap[count];
+        directory = new UuidByteHashMap[count];
+        directoryLocks = new ReentrantLock[count];
+        for(int i=0; i < count; i++) {
+            stores[i] = new EntityStore(initialCapacity);
+            locks[i] = new ReentrantLock();
+            inboxes[i] = new Inbox();
+            requested[i] = new UuidByteHashMap();
+            directory[i] = new UuidByteHashMap(initialCapacity);
+            directoryLocks[i] = new ReentrantLock();
+        }
+        owners = new Thread[count];
+        mask = count - 1;
+    }
+
+    public int getShardCount() {
+        return stores.length;
+    }
+
+    /** Return the shard that owns the region containing the given chunk.
+     * 
+     * @param chunkKey packed chunk key, see {@link Util#packChunkKey(int, int, int)}
+     * @return
+     */
+    public int shardFor(final long chunkKey) {
+        if( chunkKey == Util.NO_KEY )
+            return 0;
+        final long regionKey = Util.packChunkKey(Util.getChunkKeyWorld(chunkKey),
+                Util.getChunkKeyX(chunkKey) >> REGION_SHIFT,
+                Util.getChunkKeyZ(chunkKey) >> REGION_SHIFT);
+        return LongHash.mix(regionKey) & mask;
+    }
+
+    /** Return the store for a shard. The caller must own the shard, or hold
+     * its lock if it is shared, while using the store or any EntityInfo view
+     * over it.
+     * 
+     * @param shard
+     * @return
+     */
+    public EntityStore getStore(final int shard) {
+        return stores[shard];
+    }
+
+    /** Set the thread that owns a shard. Only change ownership while no
+     * other thread is using the shards, such as at startup.
+     * 
+     * @param shard
+     * @param thread the owning thread, or null to share the shard
+     */
+    public synchronized void setOwner(final int shard, final Thread thread) {
+        final Thread[] updated = owners.clone();
+        updated[shard] = thread;
+
+        Thread sole = updated[0];
+        for(int i=1; i < updated.length && sole != null; i++) {
+            if( updated[i] != sole )
+                sole = null;
+        }
+        owners = updated;
+        soleOwner = sole;
+    }
+
+    /** Make the given thread the owner of every shard, as on a stock server
+     * where the main thread ticks every region.
+     * 
+     * @param thread
+     */
+    public void setOwnerOfAll(final Thread thread) {
+        for(int i=0; i < stores.length; i++)
+            setOwner(i, thread);
+    }
+
+    public boolean isOwner(final int shard) {
+        return owners[shard] == Thread.currentThread();
+    }
+
+    /** Lock a shared shard, to use its store directly.
+     * 
+     * @param shard
+     */
+    public void lock(final int shard) {
+        locks[shard].lock();
+    }
+
+    public void unlock(final int shard) {
+        locks[shard].unlock();
+    }
+
+    /** Find the slot of an entity in the given home shard, handing it off
+     * from whichever other shard holds it if it has moved regions. An entity
+     * held by another thread's shard is not found; findOrAllocate() asks for
+     * it instead.
+     * 
+     * @param home the shard for the entity's current chunk
+     * @param uuid
+     * @return the entity's slot in the home shard, or -1 if it isn't here
+     */
+    public int find(final int home, final UUID uuid) {
+        final long hi = uuid.getMostSignificantBits();
+        final long lo = uuid.getLeastSignificantBits();
+
+        while( true ) {
+            final int where;
+            enter(home);
+            try {
+                final int slot = stores[home].find(hi, lo);
+                if( slot >= 0 )
+                    return slot;
+                // the directory says where it is without probing the other shards
+                where = directoryGet(hi, lo);
+                if( where < 0 || where == home || !canUse(where) )
+                    return -1;
+            }
+            finally {
+                exit(home);
+            }
+
+            final int slot = handOff(where, home, hi, lo);
+            if( slot >= 0 )
+                return slot;
+            // it moved or was released while we looked; ask again
+        }
+    }
+
+    /** Find the slot of an entity in its home shard, starting to track it
+     * there if it isn't already. If another thread's shard holds it, its
+     * state is requested and the returned slot starts fresh until the state
+     * arrives, on a later {@link #drainHandOffs()}.
+     * 
+     * @param home
+     * @param uuid
+     * @param chunkKey
+     * @param now
+     * @return
+     */
+    public int findOrAllocate(final int home, final UUID uuid, final long chunkKey, final long now) {
+        final long hi = uuid.getMostSignificantBits();
+        final long lo = uuid.getLeastSignificantBits();
+
+        while( true ) {
+            final int where;
+            enter(home);
+            try {
+                final int slot = stores[home].find(hi, lo);
+                if( slot >= 0 )
+                    return slot;
+
+                /* Claim it in the directory before allocating, so two threads
+                 * can't each start tracking it in a different shard. If the
+                 * directory already names this shard, its state is on the way.
+                 */
+                where = directoryPutIfAbsent(hi, lo, home);
+                if( where < 0 || where == home )
+                    return stores[home].allocate(hi, lo, chunkKey, now);
+                if( !canUse(where) ) {
+                    requestFrom(where, home, hi, lo);
+                    return stores[home].allocate(hi, lo, chunkKey, now);
+                }
+            }
+            finally {
+                exit(home);
+            }
+
+            final int slot = handOff(where, home, hi, lo);
+            if( slot >= 0 )
+                return slot;
+        }
+    }
+
+    /** Stop tracking an entity in whichever shard holds it.
+     * 
+     * @param hint the shard to check first, usually that of its last known chunk
+     * @param uuid
+     * @return true if the entity was being tracked
+     */
+    public boolean release(final int hint, final UUID uuid) {
+        final long hi = uuid.getMostSignificantBits();
+        final long lo = uuid.getLeastSignificantBits();
+
+        boolean released = false;
+        int shard = hint;
+        while( true ) {
+            final int where;
+            enter(shard);
+            try {
+                released |= releaseIn(shard, hi, lo);
+                where = directoryGet(hi, lo);
+            }
+            finally {
+                exit(shard);
+            }
+
+            if( where < 0 )
+                return released;
+            if( !canUse(where) ) {
+                inboxes[where].offer(new HandOff(HandOff.RELEASE, shard, hi, lo));
+                return true;
+            }
+            shard = where;
+        }
+    }
+
+    /** Answer hand-offs posted to the shards the calling thread owns, and to
+     * any shared shard that isn't busy. Each owning thread should call this
+     * once a tick; it does nothing when one thread owns every shard.
+     */
+    public void drainHandOffs() {
+        final Thread current = Thread.currentThread();
+        if( soleOwner == current )
+            return;
+
+        final Thread[] owners = this.owners;
+        for(int i=0; i < owners.length; i++) {
+            if( owners[i] == current )
+                drain(i);
+            else if( owners[i] == null && locks[i].tryLock() ) {
+                try {
+                    drain(i);
+                }
+                finally {
+                    locks[i].unlock();
+                }
+            }
+        }
+    }
+
+    /** Whether any hand-off is posted but not yet answered, or any request
+     * for state is still out. Only meaningful while no thread is using the
+     * shards.
+     */
+    boolean hasPendingHandOffs() {
+        for(int i=0; i < stores.length; i++) {
+            if( !inboxes[i].isEmpty() || requested[i].size() > 0 )
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @param uuid
+     * @return the shard the directory names for the entity, or -1
+     */
+    int getDirectoryShard(final UUID uuid) {
+        return directoryGet(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * 
+     * @return the number of entities tracked across all shards. Shards
+     * owned by other threads are read without synchronizing, so while they
+     * are busy this is an estimate.
+     */
+    public int size() {
+        final Thread[] owners = this.owners;
+        int size = 0;
+        for(int i=0; i < stores.length; i++) {
+            if( owners[i] == null ) {
+                locks[i].lock();
+                try {
+                    size += stores[i].size();
+                }
+                finally {
+                    locks[i].unlock();
+                }
+            }
+            else
+                size += stores[i].size();
+        }
+        return size;
+    }
+
+    private boolean canUse(final int shard) {
+        final Thread owner = owners[shard];
+        return owner == null || owner == Thread.currentThread();
+    }
+
+    /** Start using a shard: nothing to do for its owner, lock it if shared.
+     * A shared shard's inbox is answered as soon as it's locked, since no
+     * one thread is around to do it.
+     */
+    private void enter(final int shard) {
+        final Thread owner = owners[shard];
+        if( owner == null ) {
+            locks[shard].lock();
+            drain(shard);
+        }
+        else if( owner != Thread.currentThread() )
+            throw new IllegalStateException("shard "+shard+" is owned by thread "+owner.getName());
+    }
+
+    private void exit(final int shard) {
+        if( owners[shard] == null )
+            locks[shard].unlock();
+    }
+
+    /** Move an entity's state between two shards the calling thread can use.
+     * Shared shards are locked lowest index first.
+     * 
+     * @return the entity's slot in the destination shard, or -1 if it was
+     * moved elsewhere or released from the source before we got the locks
+     */
+    private int handOff(final int from, final int to, final long hi, final long lo) {
+        final int first = Math.min(from, to);
+        final int second = Math.max(from, to);
+        enter(first);
+        try {
+            enter(second);
+            try {
+                // another thread may have already moved it
+                int slot = stores[to].find(hi, lo);
+                final int fromSlot = stores[from].find(hi, lo);
+                if( fromSlot < 0 )
+                    return slot;
+                if( slot >= 0 ) {
+                    final EntityStore source = stores[from];
+                    merge(stores[to], slot, source.getLastInteract(fromSlot), source.getSpawnChunk(fromSlot),
+                            source.getStackCount(fromSlot), source.getFlags(fromSlot));
+                    source.release(fromSlot);
+                }
+                else
+                    slot = stores[from].transferTo(fromSlot, stores[to]);
+                directoryPut(hi, lo, to);
+                return slot;
+            }
+            finally {
+                exit(second);
+            }
+        }
+        finally {
+            exit(first);
+        }
+    }
+
+    /** Ask another thread's shard for an entity's state. The caller must be
+     * able to use the home shard.
+     */
+    private void requestFrom(final int where, final int home, final long hi, final long lo) {
+        // if a request is already out, even a cancelled one, it will still be answered
+        if( requested[home].put(hi, lo, REQUESTED) == 0 )
+            inboxes[where].offer(new HandOff(HandOff.REQUEST, home, hi, lo));
+    }
+
+    /** Release an entity from a shard the caller is using, along with any
+     * state that was requested for it.
+     * 
+     * @return true if it was tracked here or on its way here
+     */
+    private boolean releaseIn(final int shard, final long hi, final long lo) {
+        boolean released = false;
+        if( requested[shard].get(hi, lo) == REQUESTED ) {
+            requested[shard].put(hi, lo, CANCELLED);
+            released = true;
+        }
+        final int slot = stores[shard].find(hi, lo);
+        if( slot >= 0 ) {
+            stores[shard].release(slot);
+            released = true;
+        }
+        directoryRemove(hi, lo, shard);
+        return released;
+    }
+
+    /** Answer the hand-offs posted to a shard the caller is using. Nothing
+     * here takes a shard lock, so it's safe with other shards locked.
+     */
+    private void drain(final int shard) {
+        HandOff message;
+        while( (message = inboxes[shard].poll()) != null ) {
+            switch( message.kind ) {
+            case HandOff.REQUEST:
+                send(shard, message);
+                break;
+            case HandOff.STATE:
+                receive(shard, message);
+                break;
+            case HandOff.GONE:
+                gone(shard, message);
+                break;
+            case HandOff.RELEASE:
+                if( !releaseIn(shard, message.hi, message.lo) ) {
+                    // it moved on; chase it once more
+                    final int where = directoryGet(message.hi, message.lo);
+                    if( where >= 0 && where != shard )
+                        inboxes[where].offer(message);
+                }
+                break;
+            }
+        }
+    }
+
+    /** Answer a request by sending the entity's state to the shard asking. */
+    private void send(final int shard, final HandOff request) {
+        final EntityStore store = stores[shard];
+        final int slot = store.find(request.hi, request.lo);
+        // a slot still waiting on its own state isn't ours to give away
+        if( slot < 0 || requested[shard].get(request.hi, request.lo) != 0 ) {
+            inboxes[request.shard].offer(new HandOff(HandOff.GONE, shard, request.hi, request.lo));
+            return;
+        }
+
+        final HandOff state = new HandOff(HandOff.STATE, shard, request.hi, request.lo);
+        state.lastInteract = store.getLastInteract(slot);
+        state.currentChunk = store.getCurrentChunk(slot);
+        state.spawnChunk = store.getSpawnChunk(slot);
+        state.stackCount = store.getStackCount(slot);
+        state.flags = store.getFlags(slot);
+        store.release(slot);
+        // point the directory at where it's going before it gets there
+        directoryReplace(request.hi, request.lo, shard, request.shard);
+        inboxes[request.shard].offer(state);
+    }
+
+    private void receive(final int shard, final HandOff state) {
+        final EntityStore store = stores[shard];
+        int slot = store.find(state.hi, state.lo);
+        if( requested[shard].remove(state.hi, state.lo) == CANCELLED ) {
+            // released here while it was on its way; a slot here now is a fresh sighting
+            if( slot < 0 )
+                directoryRemove(state.hi, state.lo, shard);
+            return;
+        }
+        if( slot >= 0 ) {
+            merge(store, slot, state.lastInteract, state.spawnChunk, state.stackCount, state.flags);
+            return;
+        }
+
+        final int where = directoryGet(state.hi, state.lo);
+        if( where == shard ) {
+            slot = store.allocate(state.hi, state.lo, state.currentChunk, state.lastInteract);
+            store.setSpawnChunk(slot, state.spawnChunk);
+            store.setStackCount(slot, state.stackCount);
+            store.setFlag(slot, state.flags);
+        }
+        else if( where >= 0 )
+            // the slot started for it here has since moved to another shard
+            inboxes[where].offer(state);
+        // else released elsewhere while it was on its way
+    }
+
+    /** The shard we asked no longer had the entity. If it went elsewhere, ask
+     * there. If nothing tracks it any more it was released while we waited,
+     * and the slot started for it here goes too; if it's still around, the
+     * next sighting tracks it afresh.
+     */
+    private void gone(final int shard, final HandOff gone) {
+        requested[shard].remove(gone.hi, gone.lo);
+        final int slot = stores[shard].find(gone.hi, gone.lo);
+        if( slot < 0 )
+            return;
+        final int where = directoryGet(gone.hi, gone.lo);
+        if( where < 0 )
+            stores[shard].release(slot);
+        else if( where != shard )
+            requestFrom(where, shard, gone.hi, gone.lo);
+    }
+
+    /** Merge arriving state into a slot started while it was on its way. The
+     * slot's stack count of 1 stands for the entity itself, which the
+     * arriving count already includes.
+     */
+    private static void merge(final EntityStore store, final int slot, final long lastInteract,
+            final long spawnChunk, final int stackCount, final byte flags) {
+        store.setLastInteract(slot, Math.max(store.getLastInteract(slot), lastInteract));
+        store.setSpawnChunk(slot, spawnChunk);
+        store.setStackCount(slot, store.getStackCount(slot) + stackCount - 1);
+        store.setFlag(slot, flags);
+    }
+
+    /* Directory access. Stripes are picked with a different hash than the
+     * maps use internally, so each stripe's keys still spread over its table.
+     * Entries hold the shard + 1, as 0 marks an empty slot.
+     */
+    private int stripeOf(final long hi, final long lo) {
+        return LongHash.mix(lo ^ (hi * 31)) & mask;
+    }
+
+    private boolean lockDirectory(final int stripe) {
+        if( soleOwner == Thread.currentThread() )
+            return false;
+        directoryLocks[stripe].lock();
+        return true;
+    }
+
+    private int directoryGet(final long hi, final long lo) {
+        final int stripe = stripeOf(hi, lo);
+        final boolean locked = lockDirectory(stripe);
+        try {
+            return (directory[stripe].get(hi, lo) & 0xff) - 1;
+        }
+        finally {
+            if( locked )
+                directoryLocks[stripe].unlock();
+        }
+    }
+
+    private void directoryPut(final long hi, final long lo, final int shard) {
+        final int stripe = stripeOf(hi, lo);
+        final boolean locked = lockDirectory(stripe);
+        try {
+            directory[stripe].put(hi, lo, (byte) (shard + 1));
+        }
+        finally {
+            if( locked )
+                directoryLocks[stripe].unlock();
+        }
+    }
+
+    /**
+     * 
+     * @return the shard already named, or -1 if the entry was added
+     */
+    private int directoryPutIfAbsent(final long hi, final long lo, final int shard) {
+        final int stripe = stripeOf(hi, lo);
+        final boolean locked = lockDirectory(stripe);
+        try {
+            return (directory[stripe].putIfAbsent(hi, lo, (byte) (shard + 1)) & 0xff) - 1;
+        }
+        finally {
+            if( locked )
+                directoryLocks[stripe].unlock();
+        }
+    }
+
+    /** Point the entry at another shard, if it still names the given one. */
+    private void directoryReplace(final long hi, final long lo, final int from, final int to) {
+        final int stripe = stripeOf(hi, lo);
+        final boolean locked = lockDirectory(stripe);
+        try {
+            if( directory[stripe].get(hi, lo) == (byte) (from + 1) )
+                directory[stripe].put(hi, lo, (byte) (to + 1));
+        }
+        finally {
+            if( locked )
+                directoryLocks[stripe].unlock();
+        }
+    }
+
+    /** Remove the entry, if it names the given shard. */
+    private void directoryRemove(final long hi, final long lo, final int shard) {
+        final int stripe = stripeOf(hi, lo);
+        final boolean locked = lockDirectory(stripe);
+        try {
+            if( directory[stripe].get(hi, lo) == (byte) (shard + 1) )
+                directory[stripe].remove(hi, lo);
+        }
+        finally {
+            if( locked )
+                directoryLocks[stripe].unlock();
+        }
+    }
+
+    /** A hand-off posted from one shard to another. */
+    private static final class HandOff {
+        /** Asks for an entity's state be sent to the shard posting it. */
+        static final int REQUEST = 0;
+        /** Carries an entity's state to the shard that asked for it. */
+        static final int STATE = 1;
+        /** Tells the shard that asked that the entity wasn't here. */
+        static final int GONE = 2;
+        /** Asks the shard to stop tracking the entity. */
+        static final int RELEASE = 3;
+
+        final int kind;
+        final int shard;       // the shard posting it
+        final long hi;
+        final long lo;
+        long lastInteract;
+        long currentChunk;
+        long spawnChunk;
+        int stackCount;
+        byte flags;
+
+        HandOff(final int kind, final int shard, final long hi, final long lo) {
+            this.kind = kind;
+            this.shard = shard;
+            this.hi = hi;
+            this.lo = lo;
+        }
+    }
+
+    /** Named so an array of them can be created. */
+    private static final class Inbox extends ConcurrentLinkedQueue<HandOff> {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.morganm.mobreducer.util.LongHash;
+
+/** Columnar store of tracked-entity state. Each tracked entity occupies a
+ * slot, and each field lives in its own primitive array indexed by slot, so
+ * there are no per-entity objects for the garbage collector to trace. An
+ * open-addressing index maps UUID (as its two longs) to slot, and freed slots
+ * are recycled.
+ * 
+ * Per entity this costs 5 longs and 1 int of columns, 1 byte of flags and
+ * about 2 ints of index: roughly 55 bytes, versus 190 or so for a HashMap
+ * entry holding a boxed UUID and an EntityInfo object with its references
+ * and keys. The uuid directory of {@link EntityShards} adds 17 bytes a
+ * table slot; EntityStoreHeapBenchmark measures around 105 bytes an entity
+ * for the two together, with the stores and tables part grown.
+ * 
+ * {@link EntityInfo} is a lightweight view over one slot of this store.
+ * 
+ * @author morganm
+ *
+ */
+public class EntityStore {
+    static final byte FLAG_USED = 0x1;
+    static final byte FLAG_PLAYER_DAMAGED = 0x2;
+    
+    private static final int NO_SLOT = -1;
+    
+    // columns, indexed by slot
+    private long[] uuidHi;
+    private long[] uuidLo;
+    private long[] lastInteract;
+    private long[] currentChunk;
+    private long[] spawnChunk;
+    private int[] stackCount;
+    private byte[] flags;
+    
+    // slots that have been used and released, reused before growing
+    private int[] freeSlots;
+    private int freeCount = 0;
+    private int highWater = 0;      // slots below this have been handed out at some point
+    private int size = 0;
+    
+    // UUID -> slot index. Holds slot+1 so that 0 means empty.
+    private int[] index;
+    private int indexMask;
+    
+    public EntityStore() {
+        this(512);
+    }
+    
+    public EntityStore(int initialCapacity) {
+        int capacity = 16;
+        while( capacity < initialCapacity )
+            capacity <<= 1;
+        
+        uuidHi = new long[capacity];
+        uuidLo = new long[capacity];
+        lastInteract = new long[capacity];
+        currentChunk = new long[capacity];
+        spawnChunk = new long[capacity];
+        stackCount = new int[capacity];
+        flags = new byte[capacity];
+        freeSlots = new int[capacity];
+        index = new int[capacity * 2];
+        indexMask = index.length - 1;
+    }
+    
+    private static int hash(final long hi, final long lo) {
+        return LongHash.mix(hi ^ (lo * 31));
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * 
+     * @return the number of slots currently allocated in the columns
+     */
+    public int capacity() {
+        return flags.length;
+    }
+    
+    /**
+     * 
+     * @param uuid
+     * @return the slot for the uuid, or -1 if it isn't tracked
+     */
+    public int find(final UUID uuid) {
+        return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+    
+    public int find(final long hi, final long lo) {
+        int i = hash(hi, lo) & indexMask;
+        int entry;
+        while( (entry = index[i]) != 0 ) {
+            final int slot = entry - 1;
+            if( uuidHi[slot] == hi && uuidLo[slot] == lo )
+                return slot;
+            i = (i + 1) & indexMask;
+        }
+        return NO_SLOT;
+    }
+    
+    /** Start tracking a new entity. The caller must have checked that the
+     * uuid is not already tracked.
+     * 
+     * @param uuid
+     * @param chunkKey the chunk the entity is in, used for both its current
+     * and spawn chunk
+     * @param now the initial interaction time
+     * @return the slot assigned to the entity
+     */
+    public int allocate(final UUID uuid, final long chunkKey, final long now) {
+        return allocate(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), chunkKey, now);
+    }
+    
+    int allocate(final long hi, final long lo, final long chunkKey, final long now) {
+        final int slot;
+        if( freeCount > 0 )
+            slot = freeSlots[--freeCount];
+        else {
+            if( highWater == flags.length )
+                grow();
+            slot = highWater++;
+        }
+        
+        uuidHi[slot] = hi;
+        uuidLo[slot] = lo;
+        lastInteract[slot] = now;
+        currentChunk[slot] = chunkKey;
+        spawnChunk[slot] = chunkKey;
+        stackCount[slot] = 1;
+        flags[slot] = FLAG_USED;
+        
+        int i = hash(hi, lo) & indexMask;
+        while( index[i] != 0 )
+            i = (i + 1) & indexMask;
+        index[i] = slot + 1;
+        
+        size++;
+        return slot;
+    }
+    
+    /** Stop tracking the entity in the given slot, making the slot available
+     * for reuse. Any EntityInfo view of this slot must no longer be used.
+     * 
+     * @param slot
+     */
+    public void release(final int slot) {
+        if( (flags[slot] & FLAG_USED) == 0 )
+            return;
+        
+        // remove from the index with backward-shift deletion
+        int gap = hash(uuidHi[slot], uuidLo[slot]) & indexMask;
+        while( index[gap] != slot + 1 )
+            gap = (gap + 1) & indexMask;
+        int i = gap;
+        while( true ) {
+            i = (i + 1) & indexMask;
+            final int entry = index[i];
+            if( entry == 0 )
+                break;
+            final int home = hash(uuidHi[entry-1], uuidLo[entry-1]) & indexMask;
+            if( gap <= i ? (home <= gap || home > i) : (home <= gap && home > i) ) {
+                index[gap] = entry;
+                gap = i;
+            }
+        }
+        index[gap] = 0;
+        
+        flags[slot] = 0;
+        freeSlots[freeCount++] = slot;
+        size--;
+    }
+    
+    /** Move the entity in the given slot to another store, carrying all of
+     * its state with it, and release the slot here. Used to hand an entity
+     * off between shards.
+     * 
+     * @param slot
+     * @param dest
+     * @return the entity's slot in dest
+     */
+    public int transferTo(final int slot, final EntityStore dest) {
+        final int destSlot = dest.allocate(uuidHi[slot], uuidLo[slot], currentChunk[slot], lastInteract[slot]);
+        dest.spawnChunk[destSlot] = spawnChunk[slot];
+        dest.stackCount[destSlot] = stackCount[slot];
+        dest.flags[destSlot] = flags[slot];
+        release(slot);
+        return destSlot;
+    }
+    
+    public boolean isUsed(final int slot) {
+        return (flags[slot] & FLAG_USED) != 0;
+    }
+    
+    public UUID getUniqueId(final int slot) {
+        return new UUID(uuidHi[slot], uuidLo[slot]);
+    }
+    
+    public long getLastInteract(final int slot) {
+        return lastInteract[slot];
+    }
+    public void setLastInteract(final int slot, final long time) {
+        lastInteract[slot] = time;
+    }
+    
+    public long getCurrentChunk(final int slot) {
+        return currentChunk[slot];
+    }
+    public void setCurrentChunk(final int slot, final long chunkKey) {
+        currentChunk[slot] = chunkKey;
+    }
+    
+    public long getSpawnChunk(final int slot) {
+        return spawnChunk[slot];
+    }
+    public void setSpawnChunk(final int slot, final long chunkKey) {
+        spawnChunk[slot] = chunkKey;
+    }
+    
+    /**
+     * 
+     * @param slot
+     * @return the number of mobs the entity stands for, 1 unless idle mobs
+     * have been stacked into it
+     */
+    public int getStackCount(final int slot) {
+        return stackCount[slot];
+    }
+    public void setStackCount(final int slot, final int count) {
+        stackCount[slot] = count;
+    }
+    
+    public boolean hasFlag(final int slot, final byte flag) {
+        return (flags[slot] & flag) != 0;
+    }
+    public void setFlag(final int slot, final byte flag) {
+        flags[slot] |= flag;
+    }
+    public void clearFlag(final int slot, final byte flag) {
+        flags[slot] &= ~flag;
+    }
+    byte getFlags(final int slot) {
+        return flags[slot];
+    }
+    
+    /**
+     * 
+     * @return the highest slot ever handed out plus one; slots at and above
+     * this have never been used. Used to iterate all slots with isUsed().
+     */
+    public int getSlotLimit() {
+        return highWater;
+    }
+    
+    private void grow() {
+        final int capacity = flags.length * 2;
+        uuidHi = Arrays.copyOf(uuidHi, capacity);
+        uuidLo = Arrays.copyOf(uuidLo, capacity);
+        lastInteract = Arrays.copyOf(lastInteract, capacity);
+        currentChunk = Arrays.copyOf(currentChunk, capacity);
+        spawnChunk = Arrays.copyOf(spawnChunk, capacity);
+        stackCount = Arrays.copyOf(stackCount, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        
+        // rebuild the index at twice the column capacity to keep load <= 0.5
+        index = new int[capacity * 2];
+        indexMask = index.length - 1;
+        for(int slot=0; slot < highWater; slot++) {
+            if( (flags[slot] & FLAG_USED) == 0 )
+                continue;
+            int i = hash(uuidHi[slot], uuidLo[slot]) & indexMask;
+            while( index[i] != 0 )
+                i = (i + 1) & indexMask;
+            index[i] = slot + 1;
+        }
+    }
+}
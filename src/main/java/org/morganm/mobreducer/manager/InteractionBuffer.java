@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.Arrays;
+
+import org.bukkit.entity.Entity;
+import org.morganm.mobreducer.util.LongHashSet;
+
+/** Write-combining buffer for entity interactions. Interaction events
+ * (targeting especially) can fire for the same mob many times a tick
+ * around a mob farm, so rather than update the tracked state of the mob on
+ * every event, the mob is added to a set of dirty entities for the tick.
+ * Once per tick the set is drained and every entity in it gets a single
+ * interaction time update.
+ * 
+ * An event for a mob that is already in the set costs a single hash
+ * probe.
+ * 
+ * @author morganm
+ *
+ */
+public class InteractionBuffer {
+    // entity ids in the buffer, so each entity is only added once
+    private final LongHashSet ids = new LongHashSet(256);
+    private Entity[] entities = new Entity[256];
+    private int size = 0;
+    private long tick;
+    
+    /** Record an interaction for an entity.
+     * 
+     * @param entity
+     * @param tick the current tick
+     */
+    public void add(final Entity entity, final long tick) {
+        if( !ids.add(entity.getEntityId()) )
+            return;
+        
+        if( size == entities.length )
+            entities = Arrays.copyOf(entities, size * 2);
+        entities[size++] = entity;
+        this.tick = tick;
+    }
+    
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * 
+     * @param i
+     * @return the i'th entity in the buffer
+     */
+    public Entity get(final int i) {
+        return entities[i];
+    }
+    
+    /** The tick the buffered interactions happened in. The buffer is
+     * drained every tick, so this is the same for all of them.
+     * 
+     * @return
+     */
+    public long getTick() {
+        return tick;
+    }
+    
+    public void clear() {
+        Arrays.fill(entities, 0, size, null);
+        size = 0;
+        ids.clear();
+    }
+}
@@ -3,9 +3,14 @@
  */
 package org.morganm.mobreducer.manager;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.inject.Inject;
 
@@ -16,12 +21,25 @@ import org.bukkit.World;
 import org.bukkit.entity.Animals;
 import org.bukkit.entity.Creature;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
-import org.bukkit.entity.Tameable;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
 import org.morganm.mBukkitLib.Logger;
 import org.morganm.mobreducer.Config;
+import org.morganm.mobreducer.MobPolicy;
+import org.morganm.mobreducer.TickClock;
+import org.morganm.mobreducer.TickMonitor;
 import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.WorldConfig;
+import org.morganm.mobreducer.metrics.Counter;
+import org.morganm.mobreducer.metrics.Gauge;
+import org.morganm.mobreducer.metrics.Histogram;
+import org.morganm.mobreducer.metrics.Metrics;
+import org.morganm.mobreducer.metrics.TypeCounter;
+import org.morganm.mobreducer.trace.Trace;
+import org.morganm.mobreducer.trace.TraceEvent;
+import org.morganm.mobreducer.util.LongObjectHashMap;
 
 /** Class that manages active mobs on the server, tracking information
  * about them for use by the rest of the plugin.
@@ -30,52 +48,324 @@ import org.morganm.mobreducer.Util;
  *
  */
 public class MobManager implements Runnable {
-	private final HashMap<String, ChunkInfo> chunks = new HashMap<String, ChunkInfo>(100);
-	private final HashMap<UUID, EntityInfo> entities = new HashMap<UUID, EntityInfo>(500);
+	private final LongObjectHashMap<ChunkInfo> chunks = new LongObjectHashMap<ChunkInfo>(100);
+	// tracked entity state, sharded by world and chunk region
+	private final EntityShards entities = new EntityShards(16, 64);
+	// per-world animal counts by chunk, indexed by Util world index
+	private ChunkCountGrid[] animalGrids = new ChunkCountGrid[4];
+	// per-world counts of each type that has a cap of its own, indexed by
+	// Util world index then EntityType ordinal
+	private ChunkCountGrid[][] typeGrids = new ChunkCountGrid[4][];
+	private static final EntityType[] TYPES = EntityType.values();
+	private final int[] chunkTypeCounts = new int[TYPES.length];     // scratch for reconcileTypeCounts
 	private final Logger log;
 	private final Util util;
 	private final Config config;
 	private final ChunkInfoFactory chunkInfoFactory;
-	private final EntityInfoFactory entityInfoFactory;
+	private final PlayerChunkIndex playerChunkIndex;
+	// chunks too close to a player for their mobs to be virtualized
+	private final PlayerChunkIndex virtualChunkIndex;
+	private final TickMonitor tickMonitor;
+	private final EntityColdStore coldStore;
+	private final TickClock clock;
+	private final Trace trace;
 	private int entitySpawnCounter=0;  // debug counter
+	private int tickCount = 0;
+	private int playersIndexedTick = -1;   // the tick the player chunk index was last rebuilt
+	
+	// entities found idle, waiting to be removed a few per tick
+	private final PurgeQueue purgeQueue = new PurgeQueue();
+	// entities that had an interaction this tick, stamped once per tick
+	private final InteractionBuffer interactions = new InteractionBuffer();
+	// idle mobs the current pass can stack others into
+	private final StackCandidates stackCandidates = new StackCandidates();
+	private boolean respawning = false;    // a mob is being split off a stack or put back in the world
+	private boolean hasStacks = false;    // any entity has ever stood for more than one mob
+	// mobs taken out of the world while no player is near
+	private final VirtualMobs virtualMobs = new VirtualMobs();
+	
+	// sliced sweep state: the entities snapshotted at the start of the current
+	// pass and a cursor to the next one to be processed
+	private final ArrayList<Entity> sweepEntities = new ArrayList<Entity>(1000);
+	private int sweepCursor = 0;
+	private boolean sweepInProgress = false;
+	private int sweepPassTicks = 0;        // ticks the current pass has been running
+	private int ticksUntilNextPass = 0;
+	private SweepMode sweepMode = SweepMode.FULL;
+	private int sweepInterval = 1;
+	private int sweepPassId = 0;           // incremented each pass, used to reconcile chunk counts
+	
+	// async sweep state: the snapshot being filled a slice at a time from
+	// sweepEntities, the snapshot whose decisions are being made on the
+	// worker threads or applied, the outstanding work for it and a cursor
+	// to the next decision to be applied
+	private ExecutorService sweepExecutor;
+	private SweepSnapshot buildingSnapshot;
+	private SweepSnapshot pendingSnapshot;
+	private final List<Future<?>> pendingDecisions = new ArrayList<Future<?>>();
+	private int applyCursor = 0;
+	private int applyTicks = 0;            // ticks the apply stage has been running
+	private int applyQueued = 0;           // purges queued by the apply stage
+	
+	// metrics, looked up once so the hot paths only touch the fields
+	private final Histogram canSpawnTime;
+	private final Histogram sweepPlayersTime;    // player index rebuild
+	private final Histogram sweepEntitiesTime;   // checking and purging entities
+	private final Histogram sweepSnapshotTime;   // async pass, main thread snapshot slice
+	private final Histogram sweepApplyTime;      // async pass, main thread apply slice
+	private final Counter sweepPasses;
+	private final Histogram purgeDrainTime;
+	private final Counter purgeSkipped;
+	private final TypeCounter refused;
+	private final TypeCounter purged;
+	private final Counter killedOldest;
+	private final Counter chunkInfoHits;
+	private final Counter chunkInfoMisses;
+	private final Counter entityInfoHits;
+	private final Counter entityInfoMisses;
+	private final Counter interactionEvents;
+	private final Counter interactionsFlushed;
+	private final Counter stacksMerged;
+	private final Counter stacksSplit;
+	private final Counter virtualized;
+	private final Counter virtualRestored;
+	private final Histogram virtualRestoreTime;
 	
 	@Inject
 	public MobManager(Logger log, Util util, Config config, ChunkInfoFactory chunkInfoFactory,
-	        EntityInfoFactory entityInfoFactory)
+	        Metrics metrics, TickMonitor tickMonitor, EntityColdStore coldStore,
+	        TickClock clock, Trace trace)
 	{
 	    this.log = log;
 	    this.util = util;
 	    this.config = config;
 	    this.chunkInfoFactory = chunkInfoFactory;
-	    this.entityInfoFactory = entityInfoFactory;
+	    this.playerChunkIndex = new PlayerChunkIndex(util);
+	    this.virtualChunkIndex = new PlayerChunkIndex(util);
+	    this.tickMonitor = tickMonitor;
+	    this.coldStore = coldStore;
+	    this.clock = clock;
+	    this.trace = trace;
+	    
+	    // on a stock server the main thread ticks every region
+	    entities.setOwnerOfAll(Thread.currentThread());
+	    
+	    canSpawnTime = metrics.histogram("canSpawn");
+	    sweepPlayersTime = metrics.histogram("sweep.players");
+	    sweepEntitiesTime = metrics.histogram("sweep.entities");
+	    sweepSnapshotTime = metrics.histogram("sweep.async.snapshot");
+	    sweepApplyTime = metrics.histogram("sweep.async.apply");
+	    sweepPasses = metrics.counter("sweep.passes");
+	    purgeDrainTime = metrics.histogram("purgeQueue.drain");
+	    purgeSkipped = metrics.counter("purgeQueue.skipped");
+	    refused = metrics.typeCounter("spawns.refused");
+	    purged = metrics.typeCounter("purged");
+	    killedOldest = metrics.counter("animals.killedOldest");
+	    chunkInfoHits = metrics.counter("chunkInfo.hit");
+	    chunkInfoMisses = metrics.counter("chunkInfo.miss");
+	    entityInfoHits = metrics.counter("entityInfo.hit");
+	    entityInfoMisses = metrics.counter("entityInfo.miss");
+	    interactionEvents = metrics.counter("interactions.events");
+	    interactionsFlushed = metrics.counter("interactions.flushed");
+	    stacksMerged = metrics.counter("stacks.merged");
+	    stacksSplit = metrics.counter("stacks.split");
+	    virtualized = metrics.counter("virtual.stored");
+	    virtualRestored = metrics.counter("virtual.restored");
+	    virtualRestoreTime = metrics.histogram("virtual.restore");
+	    
+	    metrics.gauge("tracked.chunks", new Gauge() {
+	        public long getValue() {
+	            return chunks.size();
+	        }
+	    });
+	    metrics.gauge("tracked.entities", new Gauge() {
+	        public long getValue() {
+	            return entities.size();
+	        }
+	    });
+	    metrics.gauge("tracked.virtualMobs", new Gauge() {
+	        public long getValue() {
+	            return virtualMobs.size();
+	        }
+	    });
+	    metrics.gauge("tracked.sweepBacklog", new Gauge() {
+	        public long getValue() {
+	            return sweepInProgress ? sweepEntities.size() - sweepCursor : 0;
+	        }
+	    });
+	    metrics.gauge("purgeQueue.depth", new Gauge() {
+	        public long getValue() {
+	            return purgeQueue.size();
+	        }
+	    });
+	    metrics.gauge("purgeQueue.maxPerTick", new Gauge() {
+	        public long getValue() {
+	            return config.getSweepMaxPurgesPerTick();
+	        }
+	    });
+	    metrics.gauge("load.tps", new Gauge() {
+	        public long getValue() {
+	            return Math.round(MobManager.this.tickMonitor.getTps());
+	        }
+	    });
+	    metrics.gauge("load.pressurePercent", new Gauge() {
+	        public long getValue() {
+	            return Math.round(MobManager.this.tickMonitor.getPressure() * 100);
+	        }
+	    });
+	    metrics.gauge("load.idleAge", new Gauge() {
+	        public long getValue() {
+	            return getIdleAgeTicks(config.getDefaults().getMonsterIdleAge()) / TickClock.TICKS_PER_SECOND;
+	        }
+	    });
+	    metrics.gauge("load.maxPerSegment", new Gauge() {
+	        public long getValue() {
+	            return getAnimalMaxPerSegment(config.getDefaults());
+	        }
+	    });
+	    metrics.gauge("load.sweepInterval", new Gauge() {
+	        public long getValue() {
+	            return getSweepInterval();
+	        }
+	    });
 	}
-
+	
+	/** The idle age in effect, which is shortened while the server is
+	 * under load.
+	 * 
+	 * @param idleAge the configured idle age, in seconds
+	 * @return idle age in ticks
+	 */
+	private long getIdleAgeTicks(final int idleAge) {
+	    return TickClock.secondsToTicks(tickMonitor.scale(idleAge, config.getAdaptiveMinIdleAge()));
+	}
+	
+	/** The idle age in effect for a type in a world: the type's own idle
+	 * age if it has one, otherwise the world's.
+	 * 
+	 * @param worldConfig
+	 * @param policy
+	 * @param type
+	 * @return idle age in ticks
+	 */
+	private long getIdleAgeTicks(final WorldConfig worldConfig, final MobPolicy policy, final EntityType type) {
+	    final int typeIdleAge = policy.getIdleAge(type);
+	    return getIdleAgeTicks(typeIdleAge >= 0 ? typeIdleAge : worldConfig.getMonsterIdleAge());
+	}
+	
+	/** The max animals per segment in effect for a world, which is lowered
+	 * while the server is under load.
+	 * 
+	 * @param worldConfig
+	 * @return
+	 */
+	private int getAnimalMaxPerSegment(final WorldConfig worldConfig) {
+	    return tickMonitor.scale(worldConfig.getAnimalMaxPerSegment(), config.getAdaptiveMinMaxPerSegment());
+	}
+	
+	/** Killing the oldest animal costs far more than refusing a spawn, so
+	 * while the server is under load spawns over the limit are refused.
+	 * 
+	 * @param worldConfig
+	 * @return
+	 */
+	private boolean isAnimalKillOldestOnSpawn(final WorldConfig worldConfig) {
+	    return worldConfig.isAnimalKillOldestOnSpawn() && !tickMonitor.isUnderLoad();
+	}
+	
+	/** The number of ticks between sweep passes in effect, which is
+	 * shortened while the server is under load.
+	 * 
+	 * @return
+	 */
+	private int getSweepInterval() {
+	    return tickMonitor.scale(sweepInterval, config.getAdaptiveMinSweepIntervalSeconds() * 20);
+	}
+	
+	/** Count one tick towards the next pass. If the interval has shrunk
+	 * because of load, a pass that is already being waited for is brought
+	 * forward too.
+	 */
+	private void countDownToPass() {
+	    final int interval = getSweepInterval();
+	    if( ticksUntilNextPass > interval )
+	        ticksUntilNextPass = interval;
+	    ticksUntilNextPass--;
+	}
+	
 	/** Method to determine whether we will allow a given entity to spawn
 	 * or not.
 	 * 
 	 * @param entity
+	 * @param reason
 	 * @return
 	 */
-	public boolean canSpawn(Entity entity) {
-	    // curently only animals are limited
-	    if( util.isAnimal(entity) && !config.isAnimalKillOldestOnSpawn() ) {
-            if( isAnimalSegmentCountExceeded(entity.getLocation()) ) {
-                log.debug("refusing entity spawn due to chunk size limits for entity ", entity);
-                return false;
+	public boolean canSpawn(final Entity entity, final SpawnReason reason) {
+	    // a mob split off a stack or put back in the world is already counted
+	    if( respawning )
+	        return true;
+	    
+	    final long start = System.nanoTime();
+	    final MobPolicy policy = config.getPolicy();
+	    final EntityType type = entity.getType();
+	    boolean allowed = true;
+	    
+	    final MobPolicy.Admission admission = policy.getAdmission(type, reason);
+	    if( admission == MobPolicy.Admission.DENY ) {
+	        trace.record(TraceEvent.SPAWN_REFUSED, entity, TraceEvent.REFUSED_SPAWN_REASON, reason.ordinal());
+	        allowed = false;
+	    }
+	    else if( admission == MobPolicy.Admission.LIMIT && !policy.isExempt(type) ) {
+	        final Location l = entity.getLocation();
+	        final WorldConfig worldConfig = config.getWorldConfig(l != null ? l.getWorld() : null);
+	        if( policy.isAnimalLimited(type) && !isAnimalKillOldestOnSpawn(worldConfig)
+	                && isAnimalSegmentCountExceeded(l, worldConfig) ) {
+                trace.record(TraceEvent.SPAWN_REFUSED, entity, TraceEvent.REFUSED_ANIMAL_LIMIT, reason.ordinal());
+                allowed = false;
             }
+	        else if( isTypeSegmentCountExceeded(l, type, policy, worldConfig) ) {
+	            trace.record(TraceEvent.SPAWN_REFUSED, entity, TraceEvent.REFUSED_TYPE_LIMIT, reason.ordinal());
+	            allowed = false;
+	        }
 	    }
 	    
-	    return true;
+	    canSpawnTime.record(System.nanoTime() - start);
+	    if( !allowed )
+	        countByType(refused, entity);
+	    return allowed;
+	}
+	
+	/** Count an event for the world and type of the given entity.
+	 * 
+	 * @param counter
+	 * @param entity
+	 */
+	private void countByType(final TypeCounter counter, final Entity entity) {
+	    final Location l = entity.getLocation();
+	    counter.increment(l != null ? util.getWorldIndex(l.getWorld()) : 0, entity.getType());
+	}
+	
+	/** Count a number of events for the world and type of the given entity.
+	 * 
+	 * @param counter
+	 * @param entity
+	 * @param n
+	 */
+	private void countByType(final TypeCounter counter, final Entity entity, final int n) {
+	    final Location l = entity.getLocation();
+	    counter.add(l != null ? util.getWorldIndex(l.getWorld()) : 0, entity.getType(), n);
 	}
 	
 	/** Return true if the segment identified by the location is currently
 	 * exceeding the amount of animals allowed per segment.
 	 * 
+	 * @param l
+	 * @param worldConfig the settings for the location's world
 	 * @return
 	 */
-	private boolean isAnimalSegmentCountExceeded(final Location l) {
-        final int maxPerSegment = config.getAnimalMaxPerSegment();
-        if( getAnimalSegmentCount(l) > maxPerSegment ) {
+	private boolean isAnimalSegmentCountExceeded(final Location l, final WorldConfig worldConfig) {
+        final int maxPerSegment = getAnimalMaxPerSegment(worldConfig);
+        if( getAnimalSegmentCount(l, worldConfig.getAnimalChunkSegmentSize()) > maxPerSegment ) {
             return true;
         }
         else {
@@ -83,110 +373,462 @@ public class MobManager implements Runnable {
         }
 	}
 	
+	/** Return true if the segment identified by the location already has
+	 * as many of the given type as that type's own cap allows.
+	 * 
+	 * @param l
+	 * @param type
+	 * @param policy
+	 * @param worldConfig the settings for the location's world
+	 * @return false if the type has no cap of its own
+	 */
+	private boolean isTypeSegmentCountExceeded(final Location l, final EntityType type,
+	        final MobPolicy policy, final WorldConfig worldConfig)
+	{
+	    final int cap = policy.getMaxPerSegment(type);
+	    if( cap < 0 || l == null )
+	        return false;
+	    
+	    final int max = tickMonitor.scale(cap, config.getAdaptiveMinMaxPerSegment());
+	    return getTypeGrid(util.getWorldIndex(l.getWorld()), type.ordinal())
+	            .sumSquare(l.getBlockX() >> 4, l.getBlockZ() >> 4, worldConfig.getAnimalChunkSegmentSize()) >= max;
+	}
+	
 	/** Return the current count of animals in the segment identified by
-	 * the location. 
+	 * the location. This is answered from the per-world count grid in
+	 * constant time for any segment size.
 	 * 
 	 * @param l
+	 * @param segmentSize
 	 * @return
 	 */
-	private int getAnimalSegmentCount(final Location l) {
-        int count = 0;
+	private int getAnimalSegmentCount(final Location l, final int segmentSize) {
+        if( l == null )
+            return 0;
         
-        if( l != null ) {
-            final int chunkX = l.getChunk().getX();
-            final int chunkZ = l.getChunk().getZ();
-            final int segmentSize = config.getAnimalChunkSegmentSize();
-
-            // iterate through all chunks in the segment and count the animals
-            for(int x=chunkX-segmentSize; x <= chunkX+segmentSize; x++) {
-                for(int z=chunkZ-segmentSize; z <= chunkZ+segmentSize; z++) {
-                    ChunkInfo chunkInfo = getChunkInfo(l.getChunk());
-                    count += chunkInfo.getAnimals().size();
-                }
-            }
-        }
-        
-        return count;
+        return getAnimalGrid(util.getWorldIndex(l.getWorld()))
+                .sumSquare(l.getBlockX() >> 4, l.getBlockZ() >> 4, segmentSize);
 	}
 	
-	private Animals getOldestSegmentAnimal(final Location l, boolean ignoreTamed) {
-	    int oldestTime = -1;
-	    Animals oldestAnimal = null;
+	/** Return the animal count grid for a world, creating it if needed.
+	 * 
+	 * @param worldIndex
+	 * @return
+	 */
+	private ChunkCountGrid getAnimalGrid(final int worldIndex) {
+	    if( worldIndex >= animalGrids.length ) {
+	        ChunkCountGrid[] newGrids = new ChunkCountGrid[Math.max(worldIndex+1, animalGrids.length*2)];
+	        System.arraycopy(animalGrids, 0, newGrids, 0, animalGrids.length);
+	        animalGrids = newGrids;
+	    }
 	    
-        if( l != null ) {
-            final int chunkX = l.getChunk().getX();
-            final int chunkZ = l.getChunk().getZ();
-            final int segmentSize = config.getAnimalChunkSegmentSize();
-
-            // iterate through all chunks in the segment and count the animals
-            for(int x=chunkX-segmentSize; x <= chunkX+segmentSize; x++) {
-                for(int z=chunkZ-segmentSize; z <= chunkZ+segmentSize; z++) {
-                    ChunkInfo chunkInfo = getChunkInfo(l.getChunk());
-                    for(Animals entity : chunkInfo.getAnimals()) {
-                    	// skip invalid or dead animals
-                    	if( !entity.isValid() || entity.isDead() )
-                    		continue;
-                    	
-                        // ignore Tamed animals if directed to do so 
-                        if( ignoreTamed && entity instanceof Tameable ) {
-                            Tameable tameable = (Tameable) entity;
-                            if( tameable.isTamed() ) {
-                                continue;
-                            }
-                        }
-                        
-                        int ticks = entity.getTicksLived();
-                        
-                        // is this animal older than the oldest found so far?
-                        if( ticks > oldestTime ) {
-                            oldestTime = ticks;
-                            oldestAnimal = entity;
-                        }
-                    }
-                }
-            }
-        }
+	    ChunkCountGrid grid = animalGrids[worldIndex];
+	    if( grid == null ) {
+	        grid = new ChunkCountGrid();
+	        animalGrids[worldIndex] = grid;
+	    }
+	    return grid;
+	}
+	
+	/** Return the count grid for a world and type, creating it if needed.
+	 * 
+	 * @param worldIndex
+	 * @param typeOrdinal
+	 * @return
+	 */
+	private ChunkCountGrid getTypeGrid(final int worldIndex, final int typeOrdinal) {
+	    if( worldIndex >= typeGrids.length ) {
+	        ChunkCountGrid[][] newGrids = new ChunkCountGrid[Math.max(worldIndex+1, typeGrids.length*2)][];
+	        System.arraycopy(typeGrids, 0, newGrids, 0, typeGrids.length);
+	        typeGrids = newGrids;
+	    }
+	    
+	    ChunkCountGrid[] worldGrids = typeGrids[worldIndex];
+	    if( worldGrids == null ) {
+	        worldGrids = new ChunkCountGrid[TYPES.length];
+	        typeGrids[worldIndex] = worldGrids;
+	    }
+	    ChunkCountGrid grid = worldGrids[typeOrdinal];
+	    if( grid == null ) {
+	        grid = new ChunkCountGrid();
+	        worldGrids[typeOrdinal] = grid;
+	    }
+	    return grid;
+	}
+	
+	/** Adjust the per type counter of the chunk the entity is currently in,
+	 * if its type has a cap of its own.
+	 * 
+	 * @param entity
+	 * @param delta
+	 */
+	private void adjustTypeCount(final Entity entity, final int delta) {
+	    if( config.getPolicy().getMaxPerSegment(entity.getType()) < 0 )
+	        return;
+	    final Location l = entity.getLocation();
+	    if( l == null )
+	        return;
+	    
+	    getTypeGrid(util.getWorldIndex(l.getWorld()), entity.getType().ordinal())
+	        .add(l.getBlockX() >> 4, l.getBlockZ() >> 4, delta);
+	}
+	
+	/** Recount the per type counters of a chunk by walking its entities.
+	 * Nothing is done unless some type has a cap of its own.
+	 * 
+	 * @param worldIndex
+	 * @param chunk
+	 */
+	private void reconcileTypeCounts(final int worldIndex, final Chunk chunk) {
+	    final MobPolicy policy = config.getPolicy();
+	    if( !policy.hasTypeCaps() )
+	        return;
+	    
+	    final int[] counts = chunkTypeCounts;
+	    Arrays.fill(counts, 0);
+	    final Entity[] chunkEntities = chunk.getEntities();
+	    for(int i=0; i < chunkEntities.length; i++)
+	        counts[chunkEntities[i].getType().ordinal()] += getStackCount(chunkEntities[i]);
+	    final VirtualMobs.Records virtual = virtualMobs.get(getChunkKey(chunk));
+	    if( virtual != null )
+	        virtual.addTypeCounts(counts);
 	    
-        return oldestAnimal;
+	    for(int t=0; t < TYPES.length; t++) {
+	        if( policy.getMaxPerSegment(TYPES[t]) >= 0 )
+	            getTypeGrid(worldIndex, t).set(chunk.getX(), chunk.getZ(), counts[t]);
+	    }
+	}
+	
+	/** Return true if the entity is one that is included in the per-chunk
+	 * animal counts.
+	 * 
+	 * @param entity
+	 * @return
+	 */
+	private boolean isCountedAnimal(final Entity entity) {
+	    return entity instanceof Animals;
+	}
+	
+	/** Adjust the animal counter of the chunk the entity is currently in.
+	 * 
+	 * @param entity
+	 * @param delta
+	 */
+	private void adjustAnimalCount(final Entity entity, final int delta) {
+	    final Location l = entity.getLocation();
+	    if( l == null )
+	        return;
+	    
+	    getAnimalGrid(util.getWorldIndex(l.getWorld())).add(l.getBlockX() >> 4, l.getBlockZ() >> 4, delta);
+	}
+	
+	/** Return the oldest untamed animal in the segment identified by the
+	 * location. Each chunk keeps its animals ordered by age, so this only
+	 * compares the oldest animal of each chunk in the segment, and only
+	 * chunks the count grid says have animals are looked at.
+	 * 
+	 * @param l
+	 * @param segmentSize
+	 * @return the oldest animal, or null if there are none
+	 */
+	private Animals getOldestSegmentAnimal(final Location l, final int segmentSize) {
+	    if( l == null )
+	        return null;
+	    
+	    final World world = l.getWorld();
+	    final int chunkX = l.getBlockX() >> 4;
+	    final int chunkZ = l.getBlockZ() >> 4;
+	    final OldestAnimalFinder finder = new OldestAnimalFinder(world);
+	    getAnimalGrid(util.getWorldIndex(world)).forEachNonZero(chunkX-segmentSize, chunkZ-segmentSize,
+	            chunkX+segmentSize, chunkZ+segmentSize, finder);
+	    return finder.oldest != null ? finder.oldest.getAnimal() : null;
+	}
+	
+	/** Merges the oldest animal from each chunk of a segment that has
+	 * animals in it.
+	 */
+	private class OldestAnimalFinder implements ChunkCountGrid.CellVisitor {
+	    private final World world;
+	    ChunkInfo.AnimalAge oldest = null;
+	    
+	    OldestAnimalFinder(final World world) {
+	        this.world = world;
+	    }
+	    
+	    public void visit(final int chunkX, final int chunkZ, final int count) {
+	        final ChunkInfo chunkInfo = getChunkInfo(world, chunkX, chunkZ);
+	        if( chunkInfo == null )
+	            return;
+	        
+	        final ChunkInfo.AnimalAge candidate = chunkInfo.peekOldestAnimal();
+	        if( candidate != null && (oldest == null || candidate.compareTo(oldest) < 0) )
+	            oldest = candidate;
+	    }
 	}
 	
 	/** Called to inform us when an entity has spawned.
 	 * 
 	 * @param entity
+	 * @param reason
 	 */
-	public void entitySpawned(final Entity entity) {
-		log.devDebug("entitySpawned: entity=",entity);
-        if( util.isAnimal(entity) ) {
-    		log.debug("entitySpawned: entity is animal");
+	public void entitySpawned(final Entity entity, final SpawnReason reason) {
+		trace.record(TraceEvent.SPAWNED, entity, 0, reason.ordinal());
+        if( respawning ) {
+            // a mob split off a stack or put back in the world is already counted
+            return;
+        }
+        
+		final MobPolicy policy = config.getPolicy();
+		final EntityType type = entity.getType();
+        if( policy.isAnimalLimited(type) && policy.getAdmission(type, reason) == MobPolicy.Admission.LIMIT ) {
             // are we over the max animals allowed per segment? If so and the right
             // config flag is set, we kill off the oldest animal to make room for
             // the new one.
-            if( config.isAnimalKillOldestOnSpawn() && isAnimalSegmentCountExceeded(entity.getLocation()) ) {
-        		log.debug("entitySpawned: animal count exceeded");
-                Animals oldestAnimal = getOldestSegmentAnimal(entity.getLocation(), true);
+            final Location l = entity.getLocation();
+            final WorldConfig worldConfig = config.getWorldConfig(l != null ? l.getWorld() : null);
+            if( isAnimalKillOldestOnSpawn(worldConfig) && isAnimalSegmentCountExceeded(l, worldConfig) ) {
+                Animals oldestAnimal = getOldestSegmentAnimal(l, worldConfig.getAnimalChunkSegmentSize());
+                if( oldestAnimal != null && getStackCount(oldestAnimal) > 1 ) {
+                    // only one of the mobs a stack stands for makes room
+                    final Entity split = splitStack(oldestAnimal, getEntityInfo(oldestAnimal));
+                    oldestAnimal = split instanceof Animals ? (Animals) split : null;
+                }
                 if( oldestAnimal != null ) {
-                    log.debug("Killing oldest animal "+oldestAnimal);
+                    trace.record(TraceEvent.KILLED_OLDEST, oldestAnimal, 0, 0);
                     
                     // set animal as "player damaged" so it will drop items
                     EntityInfo entityInfo = getEntityInfo(oldestAnimal);
                     entityInfo.setPlayerDamaged();
                     
                     oldestAnimal.damage(1000);
+                    killedOldest.increment();
                 }
             }
         }
         
+        if( isCountedAnimal(entity) ) {
+            adjustAnimalCount(entity, 1);
+            animalAdded((Animals) entity);
+        }
+        adjustTypeCount(entity, 1);
+        
         entitySpawnCounter++;
 	}
 	
+	/** Add a new animal to the age order of its chunk.
+	 * 
+	 * @param animal
+	 */
+	private void animalAdded(final Animals animal) {
+	    final Location l = animal.getLocation();
+	    final ChunkInfo chunkInfo = getChunkInfo(l.getWorld(), l.getBlockX() >> 4, l.getBlockZ() >> 4);
+	    if( chunkInfo != null )
+	        chunkInfo.animalAdded(animal);
+	}
+	
+	/** Called to inform us when an entity has died.
+	 * 
+	 * @param entity
+	 */
+	public void entityDied(final Entity entity) {
+	    // every mob a stack stands for dies with it
+	    final int count = getStackCount(entity);
+	    if( isCountedAnimal(entity) )
+	        adjustAnimalCount(entity, -count);
+	    adjustTypeCount(entity, -count);
+	}
+	
+	/** Called when a chunk is loaded, to start tracking it.
+	 * 
+	 * @param chunk
+	 */
+	public void chunkLoaded(final Chunk chunk) {
+	    final ChunkInfo chunkInfo = chunkInfoFactory.create(chunk);
+	    chunks.put(getChunkKey(chunk), chunkInfo);
+	    
+	    final int worldIndex = util.getWorldIndex(chunk.getWorld());
+	    if( config.isColdStoreEnabled() ) {
+	        rehydrateEntities(worldIndex, chunk);
+	        // mobs that were virtual when the server went down
+	        if( virtualMobs.get(getChunkKey(chunk)) != null )
+	            restoreVirtualMobs(chunk.getWorld(), getChunkKey(chunk));
+	    }
+	    
+	    // count the animals that were loaded with the chunk
+	    getAnimalGrid(worldIndex).set(chunk.getX(), chunk.getZ(), chunkInfo.reconcileAnimals() + getStackedAnimals(chunk));
+	    reconcileTypeCounts(worldIndex, chunk);
+	}
+	
+	/** Called when a chunk is unloaded. Its entities are no longer in the
+	 * world, so its tracking data is dropped. Its virtual mobs are put back
+	 * first, so the server saves them with the chunk.
+	 * 
+	 * @param chunk
+	 */
+	public void chunkUnloaded(final Chunk chunk) {
+	    if( !virtualMobs.isEmpty() )
+	        restoreVirtualMobs(chunk.getWorld(), getChunkKey(chunk));
+	    
+	    if( config.isColdStoreEnabled() ) {
+	        flushInteractions();
+	        spillEntities(chunk);
+	    }
+	    
+	    chunks.remove(getChunkKey(chunk));
+	    final int worldIndex = util.getWorldIndex(chunk.getWorld());
+	    getAnimalGrid(worldIndex).set(chunk.getX(), chunk.getZ(), 0);
+	    if( worldIndex < typeGrids.length && typeGrids[worldIndex] != null ) {
+	        for(ChunkCountGrid grid : typeGrids[worldIndex]) {
+	            if( grid != null )
+	                grid.set(chunk.getX(), chunk.getZ(), 0);
+	        }
+	    }
+	}
+	
+	/** Move the tracked state of a chunk's entities from the heap to the
+	 * cold store.
+	 * 
+	 * @param chunk
+	 */
+	private void spillEntities(final Chunk chunk) {
+	    final int shard = entities.shardFor(getChunkKey(chunk));
+	    final Entity[] chunkEntities = chunk.getEntities();
+	    for(int i=0; i < chunkEntities.length; i++) {
+	        final UUID uuid = chunkEntities[i].getUniqueId();
+	        final int slot = entities.find(shard, uuid);
+	        if( slot < 0 )
+	            continue;
+	        
+	        // if it can't be written, keep it on the heap rather than lose it
+	        if( coldStore.spill(entities.getStore(shard), slot) )
+	            entities.release(shard, uuid);
+	    }
+	}
+	
+	/** Restore the tracked state of a chunk's entities from the cold store.
+	 * Virtual mobs the chunk had when the server went down are added back
+	 * to the virtual mobs, unless the chunk was saved with the mob still in
+	 * it, in which case the record is that entity's state.
+	 * 
+	 * @param worldIndex
+	 * @param chunk
+	 */
+	private void rehydrateEntities(final int worldIndex, final Chunk chunk) {
+	    final EntityColdStore.Records records = coldStore.take(worldIndex, chunk.getX(), chunk.getZ());
+	    
+	    final long chunkKey = getChunkKey(chunk);
+	    final int shard = entities.shardFor(chunkKey);
+	    final EntityStore store = entities.getStore(shard);
+	    final Entity[] chunkEntities = chunk.getEntities();
+	    int taken = records != null ? records.size() : 0;
+	    final boolean[] recordMatched = records != null ? new boolean[records.size()] : null;
+	    int matched = 0;
+	    for(int i=0; i < chunkEntities.length; i++) {
+	        final UUID uuid = chunkEntities[i].getUniqueId();
+	        EntityColdStore.Records from = records;
+	        int r = records != null ? records.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) : -1;
+	        if( r >= 0 )
+	            recordMatched[r] = true;
+	        else {
+	            // a stack's record stays in the chunk it was written in if the
+	            // stack moved before the server went down
+	            from = coldStore.takeEntity(worldIndex, uuid);
+	            if( from == null )
+	                continue;
+	            r = 0;
+	            taken++;
+	        }
+	        
+	        final int slot = entities.findOrAllocate(shard, uuid, chunkKey, from.getLastInteract(r));
+	        store.setLastInteract(slot, from.getLastInteract(r));
+	        store.setSpawnChunk(slot, from.getSpawnChunk(r));
+	        if( from.isPlayerDamaged(r) )
+	            store.setFlag(slot, EntityStore.FLAG_PLAYER_DAMAGED);
+	        if( from.getStackCount(r) > 1 ) {
+	            store.setStackCount(slot, from.getStackCount(r));
+	            hasStacks = true;
+	            // taking the record dropped it from the log, so write it again
+	            coldStore.save(store, slot);
+	        }
+	        matched++;
+	    }
+	    
+	    if( records != null ) {
+	        for(int r=0; r < records.size(); r++) {
+	            if( !recordMatched[r] && records.isVirtual(r) ) {
+	                virtualMobs.add(chunkKey, records, r);
+	                matched++;
+	            }
+	        }
+	    }
+	    if( taken > 0 )
+	        coldStore.taken(taken, matched);
+	}
+	
+	/** Put every virtual mob back in the world, so the server saves it,
+	 * and move the tracked state of every loaded entity to the cold store, so
+	 * it is still there after a restart. Called when the plugin is disabled.
+	 */
+	public void saveEntities() {
+	    for(long chunkKey : virtualMobs.getChunkKeys()) {
+	        final World world = util.getWorld(Util.getChunkKeyWorld(chunkKey));
+	        if( world != null )
+	            restoreVirtualMobs(world, chunkKey);
+	    }
+	    
+	    if( config.isColdStoreEnabled() ) {
+	        flushInteractions();
+	        for(World world : Bukkit.getWorlds()) {
+	            for(Chunk chunk : world.getLoadedChunks())
+	                spillEntities(chunk);
+	        }
+	    }
+	    coldStore.close();
+	}
+	
+	/** Start tracking all chunks that are already loaded. Called when the
+	 * plugin is enabled, since we won't see load events for those chunks.
+	 */
+	public void trackLoadedChunks() {
+	    for(World world : Bukkit.getWorlds()) {
+	        for(Chunk chunk : world.getLoadedChunks()) {
+	            chunkLoaded(chunk);
+	        }
+	    }
+	}
+	
 	/** To be called when an entity has an "interaction" that keeps it active. Being
 	 * active means it won't be purged.
 	 * 
+	 * The interaction is buffered and applied to the entity's tracked state
+	 * by {@link #flushInteractions()}, so any number of interactions with the
+	 * same entity in one tick cost a single update.
+	 * 
 	 * @param entity
 	 */
 	public void interact(final Entity entity) {
-	    EntityInfo entityInfo = getEntityInfo(entity);
-	    entityInfo.setLastInteractEventTime(System.currentTimeMillis());
+	    interactionEvents.increment();
+	    interactions.add(entity, clock.getTick());
+	}
+	
+	/** Apply the interactions buffered since the last flush. This runs at
+	 * the start of every tick, and before anything that reads or saves
+	 * interaction times outside of the tick's normal run.
+	 */
+	public void flushInteractions() {
+	    final int size = interactions.size();
+	    if( size == 0 )
+	        return;
+	    
+	    final long tick = interactions.getTick();
+	    for(int i=0; i < size; i++) {
+	        final Entity entity = interactions.get(i);
+	        // don't start tracking an entity that is already gone
+	        if( entity.isValid() )
+	            getEntityInfo(entity).setLastInteractEventTime(tick);
+	    }
+	    interactions.clear();
+	    interactionsFlushed.add(size);
 	}
 	
 	/** Called to indicate a player damaged the given entity. This is tracked so
@@ -197,9 +839,311 @@ public class MobManager implements Runnable {
 	public void playerDamage(final Entity entity) {
         EntityInfo entityInfo = getEntityInfo(entity);
         entityInfo.setPlayerDamaged();
+        
+        // a stack gives up one mob to fight for every hit
+        if( entityInfo.getStackCount() > 1 )
+            splitStack(entity, entityInfo);
 	}
 	
-	String getChunkKey(Chunk chunk) {
+	/**
+	 * 
+	 * @param entity
+	 * @return the number of mobs the entity stands for, 1 unless idle mobs have
+	 * been stacked into it
+	 */
+	public int getStackCount(final Entity entity) {
+	    if( !hasStacks )
+	        return 1;
+	    final Location location = entity.getLocation();
+	    if( location == null )
+	        return 1;
+	    
+	    // look the entity up without starting to track it
+	    final int shard = entities.shardFor(util.getChunkKey(location));
+	    final int slot = entities.find(shard, entity.getUniqueId());
+	    return slot >= 0 ? entities.getStore(shard).getStackCount(slot) : 1;
+	}
+	
+	/** The number of mobs stacked into the animals of a chunk on top of the
+	 * animals themselves, so chunk animal counts include every mob a stack
+	 * stands for.
+	 * 
+	 * @param chunk
+	 * @return
+	 */
+	private int getStackedAnimals(final Chunk chunk) {
+	    if( !hasStacks )
+	        return 0;
+	    
+	    int stacked = 0;
+	    final Entity[] chunkEntities = chunk.getEntities();
+	    for(int i=0; i < chunkEntities.length; i++) {
+	        if( isCountedAnimal(chunkEntities[i]) )
+	            stacked += getStackCount(chunkEntities[i]) - 1;
+	    }
+	    return stacked;
+	}
+	
+	/** Check if a mob has gone the given time without an interaction and
+	 * isn't targeting a player.
+	 * 
+	 * @param entity
+	 * @param entityInfo
+	 * @param seconds
+	 * @return
+	 */
+	private boolean isIdleFor(final Entity entity, final EntityInfo entityInfo, final int seconds) {
+	    if( entity instanceof Creature && ((Creature) entity).getTarget() instanceof Player )
+	        return false;
+	    return clock.getTick() - entityInfo.getLastInteractEventTime() > TickClock.secondsToTicks(seconds);
+	}
+	
+	/** Stack an idle mob into an idle mob of the same kind in its chunk, if
+	 * there is one with room, removing it from the world. Otherwise it
+	 * becomes a candidate for the idle mobs after it. Mobs with a player
+	 * nearby are left alone.
+	 * 
+	 * Stacked mobs still count towards the segment limits, since the stack
+	 * stands for them.
+	 * 
+	 * @param entity
+	 * @param players the player chunk index of the current pass
+	 */
+	private void stackIfIdle(final Entity entity, final PlayerChunkIndex players) {
+	    final EntityType type = entity.getType();
+	    if( !(Util.isMonsterType(type) || Util.isAnimalType(type)) || config.getPolicy().isExempt(type)
+	            || !StackCandidates.isStackable(entity) )
+	        return;
+	    
+	    final EntityInfo entityInfo = getEntityInfo(entity);
+	    final long chunkKey = entityInfo.getCurrentChunkKey();
+	    final int idleSeconds = config.getStackingIdleSeconds();
+	    if( !isIdleFor(entity, entityInfo, idleSeconds) || players.isPlayerNearby(chunkKey) )
+	        return;
+	    
+	    final int maxSize = config.getStackingMaxSize();
+	    final int count = entityInfo.getStackCount();
+	    final List<Entity> candidates = stackCandidates.get(chunkKey);
+	    if( candidates != null ) {
+	        for(int i=0; i < candidates.size(); i++) {
+	            final Entity stack = candidates.get(i);
+	            if( !stack.isValid() || !StackCandidates.isSameKind(stack, entity) )
+	                continue;
+	            // candidates can go active or wander off during a sliced pass
+	            final EntityInfo stackInfo = getEntityInfo(stack);
+	            if( stackInfo.getStackCount() + count > maxSize || stackInfo.getCurrentChunkKey() != chunkKey
+	                    || !isIdleFor(stack, stackInfo, idleSeconds) )
+	                continue;
+	            
+	            stackInfo.setStackCount(stackInfo.getStackCount() + count);
+	            if( entityInfo.isPlayerDamaged() )
+	                stackInfo.setPlayerDamaged();
+	            hasStacks = true;
+	            saveStack(stackInfo);
+	            stacksMerged.add(count);
+	            entity.remove();
+	            cleanupEntity(entity);
+	            return;
+	        }
+	    }
+	    if( count < maxSize )
+	        stackCandidates.add(chunkKey, entity);
+	}
+	
+	/** Split one mob off a stack, as a new entity of the same kind where the
+	 * stack is.
+	 * 
+	 * @param stack
+	 * @param stackInfo
+	 * @return the new entity, or null if it couldn't be spawned
+	 */
+	private Entity splitStack(final Entity stack, final EntityInfo stackInfo) {
+	    final Location l = stack.getLocation();
+	    if( l == null )
+	        return null;
+	    
+	    final Entity split;
+	    respawning = true;
+	    try {
+	        split = l.getWorld().spawnEntity(l, stack.getType());
+	    }
+	    finally {
+	        respawning = false;
+	    }
+	    // another plugin may have cancelled the spawn
+	    if( split == null || !split.isValid() )
+	        return null;
+	    
+	    StackCandidates.copyKind(stack, split);
+	    stackInfo.setStackCount(stackInfo.getStackCount() - 1);
+	    saveStack(stackInfo);
+	    stacksSplit.increment();
+	    return split;
+	}
+	
+	/** Write a stack's count through to the cold store, since the mobs
+	 * merged into it are gone from the world and would otherwise be lost if
+	 * the server went down before its chunk unloads. A stack that is down
+	 * to one mob has nothing to lose, so its record is dropped instead.
+	 * 
+	 * @param stackInfo
+	 */
+	private void saveStack(final EntityInfo stackInfo) {
+	    if( stackInfo.getStackCount() > 1 )
+	        coldStore.save(stackInfo.getStore(), stackInfo.getSlot());
+	    else
+	        coldStore.forget(Util.getChunkKeyWorld(stackInfo.getCurrentChunkKey()), stackInfo.getUniqueId());
+	}
+	
+	/** Take an idle animal with no player nearby out of the world, keeping
+	 * it as a virtual mob until a player comes near. Virtual mobs still
+	 * count towards the segment limits, so the counts are left as they are.
+	 * 
+	 * Monsters are left to the purge, and tamed animals and animals riding
+	 * or being ridden belong to something bigger, so they stay.
+	 * 
+	 * @param entity
+	 */
+	private void virtualizeIfIdle(final Entity entity) {
+	    final EntityType type = entity.getType();
+	    if( !Util.isAnimalType(type) || config.getPolicy().isExempt(type) || !StackCandidates.isStackable(entity) )
+	        return;
+	    
+	    final EntityInfo entityInfo = getEntityInfo(entity);
+	    final long chunkKey = util.getChunkKey(entity.getLocation());
+	    if( !isIdleFor(entity, entityInfo, config.getVirtualizeIdleSeconds())
+	            || virtualChunkIndex.isPlayerNearby(chunkKey) )
+	        return;
+	    
+	    virtualMobs.add(chunkKey, entity, entityInfo, isCountedAnimal(entity));
+	    // a virtual mob only lives on the heap, so unless it is on disk as
+	    // well it stays in the world
+	    final VirtualMobs.Records records = virtualMobs.get(chunkKey);
+	    if( !coldStore.saveVirtual(chunkKey, records, records.size() - 1) ) {
+	        virtualMobs.removeLast(chunkKey);
+	        return;
+	    }
+	    
+	    trace.record(TraceEvent.VIRTUALIZED, entity, clock.getTick() - entityInfo.getLastInteractEventTime(), 0);
+	    virtualized.add(entityInfo.getStackCount());
+	    entity.remove();
+	    // the record just written replaced any it had, so don't drop it
+	    untrackEntity(entity);
+	}
+	
+	/** Put the virtual mobs of a chunk back in the world, along with their
+	 * tracked state, and drop their records from the cold store.
+	 * 
+	 * @param world
+	 * @param chunkKey
+	 */
+	private void restoreVirtualMobs(final World world, final long chunkKey) {
+	    final VirtualMobs.Records records = virtualMobs.remove(chunkKey);
+	    if( records == null )
+	        return;
+	    
+	    final long start = System.nanoTime();
+	    final int shard = entities.shardFor(chunkKey);
+	    final EntityStore store = entities.getStore(shard);
+	    final int worldIndex = Util.getChunkKeyWorld(chunkKey);
+	    int restored = 0;
+	    for(int i=0; i < records.size(); i++) {
+	        coldStore.forget(worldIndex, records.getUniqueId(i));
+	        
+	        final Entity entity;
+	        respawning = true;
+	        try {
+	            entity = records.spawn(world, i);
+	        }
+	        finally {
+	            respawning = false;
+	        }
+	        
+	        if( entity == null ) {
+	            // the mobs it stood for are gone, so take them off the counts
+	            final int x = Util.getChunkKeyX(chunkKey);
+	            final int z = Util.getChunkKeyZ(chunkKey);
+	            if( records.isAnimal(i) )
+	                getAnimalGrid(worldIndex).add(x, z, -records.getStackCount(i));
+	            if( config.getPolicy().getMaxPerSegment(records.getType(i)) >= 0 )
+	                getTypeGrid(worldIndex, records.getType(i).ordinal()).add(x, z, -records.getStackCount(i));
+	            continue;
+	        }
+	        
+	        final int slot = entities.findOrAllocate(shard, entity.getUniqueId(), chunkKey, records.getLastInteract(i));
+	        store.setLastInteract(slot, records.getLastInteract(i));
+	        store.setSpawnChunk(slot, records.getSpawnChunk(i));
+	        if( records.isPlayerDamaged(i) )
+	            store.setFlag(slot, EntityStore.FLAG_PLAYER_DAMAGED);
+	        if( records.getStackCount(i) > 1 ) {
+	            store.setStackCount(slot, records.getStackCount(i));
+	            hasStacks = true;
+	            coldStore.save(store, slot);
+	        }
+	        if( isCountedAnimal(entity) )
+	            animalAdded((Animals) entity);
+	        restored += records.getStackCount(i);
+	    }
+	    virtualRestored.add(restored);
+	    virtualRestoreTime.record(System.nanoTime() - start);
+	}
+	
+	/** Put back the virtual mobs within the restore radius of a location.
+	 * Called as a player crosses into a new chunk.
+	 * 
+	 * @param l
+	 */
+	public void restoreNear(final Location l) {
+	    if( virtualMobs.isEmpty() )
+	        return;
+	    
+	    final World world = l.getWorld();
+	    final int worldIndex = util.getWorldIndex(world);
+	    final int radius = config.getVirtualizeChunkRadius();
+	    final int chunkX = l.getBlockX() >> 4;
+	    final int chunkZ = l.getBlockZ() >> 4;
+	    for(int x=chunkX-radius; x <= chunkX+radius; x++) {
+	        for(int z=chunkZ-radius; z <= chunkZ+radius; z++) {
+	            final long chunkKey = Util.packChunkKey(worldIndex, x, z);
+	            if( virtualMobs.get(chunkKey) != null )
+	                restoreVirtualMobs(world, chunkKey);
+	        }
+	    }
+	}
+	
+	/** Put back the virtual mobs near every player. The player listener
+	 * catches players as they move into range; this catches anything it
+	 * doesn't see, and runs once per pass.
+	 * 
+	 * @param worlds
+	 */
+	private void restoreNearPlayers(final List<World> worlds) {
+	    if( virtualMobs.isEmpty() )
+	        return;
+	    
+	    for(World world : worlds) {
+	        for(Player player : world.getPlayers()) {
+	            final Location l = player.getLocation();
+	            if( l != null )
+	                restoreNear(l);
+	        }
+	    }
+	}
+	
+	/** Get ready to virtualize mobs in a pass: put back any virtual mobs a
+	 * player has come near, and rebuild the index of chunks too close to a
+	 * player to virtualize in. That reaches a chunk further out than the
+	 * restore radius, so a player moving along its edge doesn't have the
+	 * same mobs taken out and put back over and over.
+	 * 
+	 * @param worlds
+	 */
+	private void startVirtualizing(final List<World> worlds) {
+	    restoreNearPlayers(worlds);
+	    virtualChunkIndex.rebuild(worlds, config.getVirtualizeChunkRadius() + 1);
+	}
+	
+	long getChunkKey(Chunk chunk) {
 	    return util.getChunkKey(chunk);
 	}
 	
@@ -209,22 +1153,66 @@ public class MobManager implements Runnable {
 	 * @return
 	 */
 	private ChunkInfo getChunkInfo(final Chunk chunk) {
-	    final String chunkKey = getChunkKey(chunk);
+	    final long chunkKey = getChunkKey(chunk);
 	    ChunkInfo chunkInfo = chunks.get(chunkKey);
 	    if( chunkInfo == null ) {
+	        chunkInfoMisses.increment();
 	        chunkInfo = chunkInfoFactory.create(chunk);
 	        chunks.put(chunkKey, chunkInfo);
 	    }
+	    else
+	        chunkInfoHits.increment();
+	    return chunkInfo;
+	}
+	
+	/** Return ChunkInfo object for the given chunk coordinates, creating one
+	 * if the chunk is loaded but not yet tracked.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param z
+	 * @return the ChunkInfo, or null if the chunk is not loaded
+	 */
+	private ChunkInfo getChunkInfo(final World world, final int x, final int z) {
+	    final long chunkKey = Util.packChunkKey(util.getWorldIndex(world), x, z);
+	    ChunkInfo chunkInfo = chunks.get(chunkKey);
+	    if( chunkInfo != null ) {
+	        chunkInfoHits.increment();
+	        return chunkInfo;
+	    }
+	    
+	    chunkInfoMisses.increment();
+	    if( world.isChunkLoaded(x, z) ) {
+	        chunkInfo = chunkInfoFactory.create(world.getChunkAt(x, z));
+	        chunks.put(chunkKey, chunkInfo);
+	    }
 	    return chunkInfo;
 	}
 	
+	/** Return the EntityInfo view for an entity, starting to track the
+	 * entity if it isn't already.
+	 * 
+	 * @param entity
+	 * @return
+	 */
 	public EntityInfo getEntityInfo(final Entity entity) {
-	    EntityInfo entityInfo = entities.get(entity.getUniqueId());
-	    if( entityInfo == null ) {
-	        entityInfo = entityInfoFactory.create(entity);
-	        entities.put(entity.getUniqueId(), entityInfo);
+	    /* Though not documented explicitly one way or another, as best I can tell
+	     * an entity will always have a location when being created. It's possible
+	     * it could be null if the entity has been removed, but we only start
+	     * tracking entities as they are being created or seen in the world. So
+	     * I'll go with the assumption that it is never null until I see an NPE
+	     * that proves otherwise.
+	     */
+	    final long chunkKey = util.getChunkKey(entity.getLocation());
+	    final int shard = entities.shardFor(chunkKey);
+	    int slot = entities.find(shard, entity.getUniqueId());
+	    if( slot >= 0 )
+	        entityInfoHits.increment();
+	    else {
+	        entityInfoMisses.increment();
+	        slot = entities.findOrAllocate(shard, entity.getUniqueId(), chunkKey, clock.getTick());
 	    }
-	    return entityInfo;
+	    return new EntityInfo(entities.getStore(shard), slot, entity, util);
 	}
 	
 	/** Update any position-related data for a given entity.
@@ -234,14 +1222,13 @@ public class MobManager implements Runnable {
 	public void updatePosition(Entity entity) {
 	    EntityInfo entityInfo = getEntityInfo(entity);
 	    
-	    String currentChunkKey = null;
+	    long currentChunkKey = Util.NO_KEY;
 	    Location currentLocation = entity.getLocation();
 	    if( currentLocation != null )
-	        currentChunkKey = getChunkKey(currentLocation.getChunk());
+	        currentChunkKey = util.getChunkKey(currentLocation);
 	    
 	    // if position has changed, delete old position
-	    if( currentChunkKey == null ||
-	            (entityInfo.getCurrentChunkKey() != null && !entityInfo.getCurrentChunkKey().equals(currentChunkKey)) ) {
+	    if( currentChunkKey == Util.NO_KEY || entityInfo.getCurrentChunkKey() != currentChunkKey ) {
 	        // remove 
 //	        ChunkInfo chunkInfo = chunks.get(entityInfo.currentChunkKey);
 //	        if( chunkInfo != null ) {
@@ -250,7 +1237,7 @@ public class MobManager implements Runnable {
 	    }
 	    
 	    // if there is a current position, update new position
-	    if( currentChunkKey != null ) {
+	    if( currentChunkKey != Util.NO_KEY ) {
 	        // update entity->chunk mapping
             entityInfo.setCurrentChunkKey(currentChunkKey);
             
@@ -261,14 +1248,26 @@ public class MobManager implements Runnable {
 	}
 	
 	private void cleanupEntity(final Entity entity) {
-	    EntityInfo entityInfo = getEntityInfo(entity);
-	    entities.remove(entity.getUniqueId());
-	    chunks.remove(entityInfo.getCurrentChunkKey());
+	    untrackEntity(entity);
+	    // a stack's count is written through, so drop its record with it
+	    final Location location = entity.getLocation();
+	    if( hasStacks && location != null )
+	        coldStore.forget(util.getWorldIndex(location.getWorld()), entity.getUniqueId());
 	}
 	
-	/** Check if a player is nearby the given entity. This checks for a player in
-	 * the current chunk or in any of the 8 adjacent chunks (think of a tic-tac-toe
-	 * grid, with current chunk being the middle grid).
+	/** Stop tracking an entity, leaving any record it has in the cold store.
+	 * 
+	 * @param entity
+	 */
+	private void untrackEntity(final Entity entity) {
+	    final Location location = entity.getLocation();
+	    final int shard = location != null ? entities.shardFor(util.getChunkKey(location)) : 0;
+	    entities.release(shard, entity.getUniqueId());
+	}
+	
+	/** Check if a player is nearby the given entity. This checks for a player
+	 * within the configured chunk radius of the entity's chunk, using the
+	 * player chunk index built at the start of the sweep.
 	 * 
 	 * @param entity
 	 * @return
@@ -281,28 +1280,7 @@ public class MobManager implements Runnable {
 	    if( location == null )
 	        return false;
 	    
-	    final World world = location.getWorld();
-	    final int chunkX = location.getChunk().getX();
-	    final int chunkZ = location.getChunk().getZ();
-	    
-	    for(Player p : world.getPlayers()) {
-	        Location playerLocation = p.getLocation();
-	        if( playerLocation != null ) {
-	            int playerChunkX = p.getLocation().getChunk().getX();
-                int playerChunkZ = p.getLocation().getChunk().getZ();
-                
-                int distance = config.getMonsterPlayerChunkRadius();
-                
-                // is the player within the configured chunk distance?
-                if( playerChunkX >= chunkX-distance && playerChunkX <= chunkX+distance
-                        && playerChunkZ >= chunkZ-distance && playerChunkZ <= chunkZ+distance ) {
-                    return true;
-                }
-	        }
-	    }
-	    
-	    // if we get here, no players are nearby
-	    return false;
+	    return playerChunkIndex.isPlayerNearby(util.getChunkKey(location));
 	}
 	
 	/** Check if an entity should be purged based on entity type and activity.
@@ -311,67 +1289,614 @@ public class MobManager implements Runnable {
 	 * @return
 	 */
 	private boolean shouldPurge(final Entity entity) {
-	    if( !util.isMonster(entity) )   // only monsters can be purged
+	    final MobPolicy policy = config.getPolicy();
+	    if( !policy.isPurgeable(entity.getType()) )   // only monsters can be purged
 	        return false;
 	    
-	    boolean ret = true;
-	    String debugReason = "";
+	    byte decision = SweepSnapshot.PURGE;
 	    
 	    EntityInfo entityInfo = getEntityInfo(entity);
-	    long timeSinceLastInteract = System.currentTimeMillis() - entityInfo.getLastInteractEventTime();
-	    if( timeSinceLastInteract > (config.getMonsterIdleAge() * 1000) ) {
+	    long ticksSinceLastInteract = clock.getTick() - entityInfo.getLastInteractEventTime();
+	    if( ticksSinceLastInteract > getIdleAgeTicks(config.getWorldConfig(entity.getWorld()), policy, entity.getType()) ) {
 	        if( entity instanceof Creature ) {
 	            Creature creature = (Creature) entity;
 	            
 	            // don't purge if we're currently targeting a player
 	            LivingEntity target = creature.getTarget();
-	            if( target instanceof Player ) {
-	                debugReason = "entity is targeting player";
-	                ret = false;
+	            if( target instanceof Player )
+	                decision = SweepSnapshot.KEEP_TARGETING_PLAYER;
+	            else if( playerIsNearby(entity) )
+	                decision = SweepSnapshot.KEEP_PLAYER_NEARBY;
+	        }
+	    }
+	    else
+	        decision = SweepSnapshot.KEEP_ACTIVE;   // entity is active, don't purge
+	    
+	    trace.record(TraceEvent.PURGE_CHECK, entity, ticksSinceLastInteract, decision);
+	    return decision == SweepSnapshot.PURGE;
+	}
+	
+	/** Set how this manager's sweep is run. This should be called before the
+	 * manager is scheduled. In every mode the manager should be scheduled to
+	 * run every tick and it will start a new pass once per interval on its
+	 * own; the interval is shortened while the server is under load.
+	 * 
+	 * @param mode
+	 * @param interval the normal number of ticks between the start of each pass
+	 */
+	public void setSweepMode(final SweepMode mode, final int interval) {
+	    this.sweepMode = mode;
+	    this.sweepInterval = interval;
+	    this.ticksUntilNextPass = interval;
+	    
+	    // discard any pass that was in progress under the old mode
+	    sweepEntities.clear();
+	    sweepInProgress = false;
+	    shutdown();
+	    
+	    if( mode == SweepMode.ASYNC )
+	        sweepExecutor = Executors.newFixedThreadPool(Math.max(1, config.getSweepAsyncThreads()),
+	                new SweepThreadFactory());
+	}
+	
+	/** Stop any worker threads. Pending async decisions and queued purges
+	 * are discarded.
+	 * 
+	 */
+	public void shutdown() {
+	    if( sweepExecutor != null ) {
+	        sweepExecutor.shutdownNow();
+	        sweepExecutor = null;
+	    }
+	    buildingSnapshot = null;
+	    pendingSnapshot = null;
+	    pendingDecisions.clear();
+	    purgeQueue.clear();
+	    stackCandidates.clear();
+	}
+	
+	/** Worker threads for async sweeps. They are daemon threads so they can
+	 * never hold up a server shutdown.
+	 */
+	private static class SweepThreadFactory implements ThreadFactory {
+	    private int count = 0;
+	    
+	    public Thread newThread(Runnable r) {
+	        Thread t = new Thread(r, "MobReducer-sweep-"+(++count));
+	        t.setDaemon(true);
+	        return t;
+	    }
+	}
+	
+	/** Check a single entity as part of a sweep, purging it if it is idle and
+	 * stacking it or updating our tracking data otherwise, then virtualizing
+	 * it if it is idle and far from every player.
+	 * 
+	 * @param entity
+	 */
+	private void sweepEntity(final Entity entity) {
+	    // if the entity is no longer valid (dead or Bukkit cleanup), remove it
+	    if( !entity.isValid() ) {
+	        cleanupEntity(entity);
+	        return;
+	    }
+	    
+	    // queued entities stay in the world for now, so they are still tracked
+	    if( shouldPurge(entity) )
+	        purgeQueue.add(entity, getEntityInfo(entity).getLastInteractEventTime());
+	    else if( config.isStackingEnabled() ) {
+	        stackIfIdle(entity, playerChunkIndex);
+	        if( !entity.isValid() )     // it was stacked into another mob
+	            return;
+	    }
+	    trackEntity(entity);
+	    if( config.isVirtualizeEnabled() )
+	        virtualizeIfIdle(entity);
+	}
+	
+	/** Rebuild the player chunk index, unless it was already rebuilt this
+	 * tick.
+	 */
+	private void rebuildPlayerIndex() {
+	    if( playersIndexedTick == tickCount )
+	        return;
+	    playerChunkIndex.rebuild(Bukkit.getWorlds(), config);
+	    playersIndexedTick = tickCount;
+	}
+	
+	/** Remove queued entities, up to the configured number per tick. Each
+	 * one is checked again first, and is left alone if it has become
+	 * invalid, had an interaction, is targeting a player or has a player
+	 * nearby since it was queued.
+	 */
+	private void drainPurgeQueue() {
+	    if( purgeQueue.isEmpty() )
+	        return;
+	    
+	    final long start = System.nanoTime();
+	    rebuildPlayerIndex();
+	    
+	    final int max = config.getSweepMaxPurgesPerTick();
+	    int removed = 0;
+	    while( removed < max && !purgeQueue.isEmpty() ) {
+	        final Entity entity = purgeQueue.peek();
+	        final long lastInteract = purgeQueue.peekLastInteract();
+	        purgeQueue.remove();
+	        
+	        if( !entity.isValid() ) {
+	            cleanupEntity(entity);
+	            continue;
+	        }
+	        final Location l = entity.getLocation();
+	        if( l == null || !l.getWorld().isChunkLoaded(l.getBlockX() >> 4, l.getBlockZ() >> 4)
+	                || getEntityInfo(entity).getLastInteractEventTime() != lastInteract
+	                || (entity instanceof Creature && ((Creature) entity).getTarget() instanceof Player)
+	                || playerIsNearby(entity) )
+	        {
+	            purgeSkipped.increment();
+	            continue;
+	        }
+	        
+	        trace.record(TraceEvent.PURGED, entity, clock.getTick() - lastInteract, 0);
+	        purgeEntity(entity);
+	        removed++;
+	    }
+	    purgeDrainTime.record(System.nanoTime() - start);
+	}
+	
+	/** Remove an entity from the world and stop tracking it.
+	 * 
+	 * @param entity
+	 */
+	private void purgeEntity(final Entity entity) {
+	    final int count = getStackCount(entity);
+	    if( isCountedAnimal(entity) )
+	        adjustAnimalCount(entity, -count);
+	    adjustTypeCount(entity, -count);
+	    countByType(purged, entity, count);
+	    entity.remove();
+	    cleanupEntity(entity);
+	}
+	
+	/** Update our tracking data for an entity that is staying in the world.
+	 * 
+	 * @param entity
+	 */
+	private void trackEntity(final Entity entity) {
+	    updatePosition(entity);
+	    
+	    // recount each chunk once per pass to correct any counter drift
+	    final Location l = entity.getLocation();
+	    final ChunkInfo chunkInfo = getChunkInfo(l.getWorld(), l.getBlockX() >> 4, l.getBlockZ() >> 4);
+	    if( chunkInfo != null && chunkInfo.markReconciled(sweepPassId) ) {
+	        final int worldIndex = util.getWorldIndex(l.getWorld());
+	        final Chunk chunk = chunkInfo.getChunk();
+	        // virtual animals are still counted, though they aren't in the chunk
+	        final VirtualMobs.Records virtual = virtualMobs.get(
+	                Util.packChunkKey(worldIndex, chunkInfo.getX(), chunkInfo.getZ()));
+	        getAnimalGrid(worldIndex).set(chunkInfo.getX(), chunkInfo.getZ(), chunkInfo.reconcileAnimals()
+	                + (chunk != null ? getStackedAnimals(chunk) : 0) + (virtual != null ? virtual.getAnimalCount() : 0));
+	        if( chunk != null )
+	            reconcileTypeCounts(worldIndex, chunk);
+	    }
+	}
+	
+	/** Snapshot the entities of all worlds to begin a new sliced pass.
+	 * 
+	 */
+	private void startSweepPass() {
+	    sweepEntities.clear();
+	    for(World world : Bukkit.getWorlds()) {
+	        sweepEntities.addAll(world.getEntities());
+	    }
+	    sweepCursor = 0;
+	    sweepPassTicks = 0;
+	    sweepPassId++;
+	    sweepInProgress = true;
+	    stackCandidates.clear();
+	    if( config.isVirtualizeEnabled() )
+	        startVirtualizing(Bukkit.getWorlds());
+	}
+	
+	private void endSweepPass() {
+	    log.debug("Sweep pass finished: entities=",sweepEntities.size(),", ticks=",sweepPassTicks);
+	    sweepEntities.clear();
+	    sweepInProgress = false;
+	    stackCandidates.clear();
+	    sweepPasses.increment();
+	    
+	    log.debug("Entities spawned since last reset=",entitySpawnCounter);
+	    entitySpawnCounter=0;
+	}
+	
+	/** Return the fewest entities a slice must process so that a stage
+	 * with the given number of entities left finishes within the configured
+	 * max ticks.
+	 * 
+	 * @param remaining entities the stage has left to process
+	 * @param ticksRun ticks the stage has been running, counting this one
+	 * @return
+	 */
+	private int getSliceMinimum(final int remaining, final int ticksRun) {
+	    final int ticksLeft = Math.max(1, config.getSweepMaxPassTicks() - ticksRun + 1);
+	    return (remaining + ticksLeft - 1) / ticksLeft;
+	}
+	
+	/** Run one slice of a sliced pass. This processes entities until the
+	 * per-tick time budget is used up, with a floor on the number processed
+	 * so that the full pass always finishes within the configured max ticks.
+	 */
+	private void runSlice() {
+	    countDownToPass();
+	    if( !sweepInProgress ) {
+	        if( ticksUntilNextPass > 0 )
+	            return;
+	        ticksUntilNextPass = getSweepInterval();
+	        startSweepPass();
+	    }
+	    
+	    sweepPassTicks++;
+	    
+	    // players move while a sliced pass is in progress, so the index is
+	    // rebuilt for every slice rather than once per pass
+	    final long start = System.nanoTime();
+	    rebuildPlayerIndex();
+	    final long playersDone = System.nanoTime();
+	    sweepPlayersTime.record(playersDone - start);
+	    
+	    final int size = sweepEntities.size();
+	    final int minimum = getSliceMinimum(size - sweepCursor, sweepPassTicks);
+	    final long deadline = System.nanoTime() + config.getSweepBudgetMicros() * 1000L;
+	    
+	    int processed = 0;
+	    while( sweepCursor < size ) {
+	        final Entity entity = sweepEntities.get(sweepCursor);
+	        sweepEntities.set(sweepCursor, null);     // don't hold onto entities we're done with
+	        sweepCursor++;
+	        
+	        sweepEntity(entity);
+	        
+	        if( ++processed >= minimum && System.nanoTime() >= deadline )
+	            break;
+	    }
+	    sweepEntitiesTime.record(System.nanoTime() - playersDone);
+	    
+	    if( sweepCursor >= size )
+	        endSweepPass();
+	}
+	
+	/** Start an async pass: fix the rules the workers will decide by and
+	 * take the list of entities to snapshot. The snapshot itself is filled
+	 * a slice at a time by snapshotSlice().
+	 */
+	private void startAsyncPass() {
+	    final long start = System.nanoTime();
+	    final List<World> worlds = Bukkit.getWorlds();
+	    sweepPassId++;
+	    
+	    // a fresh index per pass, since the workers read it while later
+	    // ticks carry on
+	    final PlayerChunkIndex players = new PlayerChunkIndex(util);
+	    players.rebuild(worlds, config);
+	    
+	    // idle age can differ per world and per type, so the workers get one
+	    // per world index and one per type that has its own
+	    long[] worldIdleTicks = new long[0];
+	    for(World world : worlds) {
+	        final int worldIndex = util.getWorldIndex(world);
+	        if( worldIndex >= worldIdleTicks.length )
+	            worldIdleTicks = Arrays.copyOf(worldIdleTicks, worldIndex + 1);
+	        worldIdleTicks[worldIndex] = getIdleAgeTicks(config.getWorldConfig(world).getMonsterIdleAge());
+	    }
+	    final MobPolicy policy = config.getPolicy();
+	    final long[] typeIdleTicks = new long[TYPES.length];
+	    for(int t=0; t < TYPES.length; t++) {
+	        final int idleAge = policy.getIdleAge(TYPES[t]);
+	        typeIdleTicks[t] = idleAge >= 0 ? getIdleAgeTicks(idleAge) : -1;
+	    }
+	    
+	    final SweepSnapshot snapshot = new SweepSnapshot(entities.size(), clock.getTick(),
+	            worldIdleTicks, getIdleAgeTicks(config.getDefaults().getMonsterIdleAge()), typeIdleTicks, players);
+	    
+	    // the workers also pick out the mobs idle enough to stack or
+	    // virtualize; the apply stage does the stacking and virtualizing
+	    final boolean stacking = config.isStackingEnabled();
+	    final boolean virtualizing = config.isVirtualizeEnabled();
+	    if( stacking || virtualizing ) {
+	        PlayerChunkIndex virtualPlayers = null;
+	        if( virtualizing ) {
+	            startVirtualizing(worlds);
+	            // the workers get their own copy of virtualChunkIndex, for the
+	            // same reason they get their own player index
+	            virtualPlayers = new PlayerChunkIndex(util);
+	            virtualPlayers.rebuild(worlds, config.getVirtualizeChunkRadius() + 1);
+	        }
+	        snapshot.setIdleActions(
+	                stacking ? TickClock.secondsToTicks(config.getStackingIdleSeconds()) : Long.MAX_VALUE,
+	                virtualizing ? TickClock.secondsToTicks(config.getVirtualizeIdleSeconds()) : Long.MAX_VALUE,
+	                virtualPlayers);
+	    }
+	    
+	    sweepEntities.clear();
+	    for(World world : worlds)
+	        sweepEntities.addAll(world.getEntities());
+	    sweepCursor = 0;
+	    sweepPassTicks = 0;
+	    buildingSnapshot = snapshot;
+	    sweepSnapshotTime.record(System.nanoTime() - start);
+	}
+	
+	/** Main thread stage of an async pass, run a slice per tick like a
+	 * sliced pass: update tracking data for the next entities of the pass
+	 * and copy what the decisions need for each candidate into the
+	 * snapshot. Once every entity is copied, the snapshot is handed to the
+	 * worker threads.
+	 */
+	private void snapshotSlice() {
+	    final long start = System.nanoTime();
+	    final SweepSnapshot snapshot = buildingSnapshot;
+	    final MobPolicy policy = config.getPolicy();
+	    final boolean stacking = config.isStackingEnabled();
+	    final boolean virtualizing = config.isVirtualizeEnabled();
+	    sweepPassTicks++;
+	    
+	    final int size = sweepEntities.size();
+	    final int minimum = getSliceMinimum(size - sweepCursor, sweepPassTicks);
+	    final long deadline = start + config.getSweepBudgetMicros() * 1000L;
+	    
+	    int processed = 0;
+	    while( sweepCursor < size ) {
+	        final Entity entity = sweepEntities.get(sweepCursor);
+	        sweepEntities.set(sweepCursor, null);     // don't hold onto entities we're done with
+	        sweepCursor++;
+	        
+	        snapshotEntity(snapshot, entity, policy, stacking, virtualizing);
+	        
+	        if( ++processed >= minimum && System.nanoTime() >= deadline )
+	            break;
+	    }
+	    
+	    if( sweepCursor >= size ) {
+	        sweepEntities.clear();
+	        buildingSnapshot = null;
+	        submitDecisions(snapshot);
+	    }
+	    sweepSnapshotTime.record(System.nanoTime() - start);
+	}
+	
+	/** Update our tracking data for an entity and, if it is a candidate for
+	 * purging, stacking or virtualizing, copy it into the snapshot.
+	 * 
+	 * @param snapshot
+	 * @param entity
+	 * @param policy
+	 * @param stacking
+	 * @param virtualizing
+	 */
+	private void snapshotEntity(final SweepSnapshot snapshot, final Entity entity, final MobPolicy policy,
+	        final boolean stacking, final boolean virtualizing)
+	{
+	    if( !entity.isValid() ) {
+	        cleanupEntity(entity);
+	        return;
+	    }
+	    trackEntity(entity);
+	    
+	    final EntityType type = entity.getType();
+	    byte candidate = 0;
+	    if( policy.isPurgeable(type) )     // only monsters can be purged
+	        candidate |= SweepSnapshot.FLAG_PURGEABLE;
+	    if( !policy.isExempt(type) ) {
+	        if( stacking && (Util.isMonsterType(type) || Util.isAnimalType(type)) )
+	            candidate |= SweepSnapshot.FLAG_STACKABLE;
+	        if( virtualizing && Util.isAnimalType(type) )
+	            candidate |= SweepSnapshot.FLAG_VIRTUALIZABLE;
+	    }
+	    if( candidate == 0 )
+	        return;
+	    
+	    final EntityInfo entityInfo = getEntityInfo(entity);
+	    boolean isCreature = false;
+	    boolean targetsPlayer = false;
+	    if( entity instanceof Creature ) {
+	        isCreature = true;
+	        targetsPlayer = ((Creature) entity).getTarget() instanceof Player;
+	    }
+	    snapshot.add(entity, entityInfo.getCurrentChunkKey(), entityInfo.getLastInteractEventTime(),
+	            isCreature, targetsPlayer, candidate);
+	}
+	
+	/** Split the decisions for a filled snapshot evenly across the worker
+	 * threads.
+	 * 
+	 * @param snapshot
+	 */
+	private void submitDecisions(final SweepSnapshot snapshot) {
+	    snapshot.seal();
+	    final int size = snapshot.size();
+	    final int threads = Math.max(1, config.getSweepAsyncThreads());
+	    final int perThread = (size + threads - 1) / threads;
+	    for(int from=0; from < size; from += perThread) {
+	        final int start = from;
+	        final int end = Math.min(size, from + perThread);
+	        pendingDecisions.add(sweepExecutor.submit(new Runnable() {
+	            public void run() {
+	                snapshot.decide(start, end);
 	            }
-
-	            if( playerIsNearby(entity) ) {
-                    debugReason = "player is nearby";
-                    ret = false;
+	        }));
+	    }
+	    pendingSnapshot = snapshot;
+	    applyCursor = 0;
+	    applyTicks = 0;
+	    applyQueued = 0;
+	}
+	
+	/** Final main thread stage of an async pass, run a slice per tick once
+	 * the workers are done: queue the entities they decided to purge, and
+	 * stack and virtualize the ones they found idle enough. Entities that
+	 * became invalid or had an interaction since the snapshot was taken are
+	 * left alone.
+	 */
+	private void applySlice() {
+	    final long start = System.nanoTime();
+	    final SweepSnapshot snapshot = pendingSnapshot;
+	    if( applyTicks++ == 0 )
+	        stackCandidates.clear();
+	    
+	    final int size = snapshot.size();
+	    final int minimum = getSliceMinimum(size - applyCursor, applyTicks);
+	    final long deadline = start + config.getSweepBudgetMicros() * 1000L;
+	    boolean playersIndexed = false;
+	    
+	    int processed = 0;
+	    while( applyCursor < size ) {
+	        final int i = applyCursor++;
+	        final Entity entity = snapshot.getEntity(i);
+	        final byte decision = snapshot.getDecision(i);
+	        final byte actions = snapshot.getActions(i);
+	        if( snapshot.isPurgeable(i) )
+	            trace.record(TraceEvent.PURGE_CHECK, entity, snapshot.getTime() - snapshot.getLastInteract(i), decision);
+	        
+	        if( (decision == SweepSnapshot.PURGE || actions != 0) && entity.isValid()
+	                && getEntityInfo(entity).getLastInteractEventTime() == snapshot.getLastInteract(i) )
+	        {
+	            if( decision == SweepSnapshot.PURGE ) {
+	                if( purgeQueue.add(entity, snapshot.getLastInteract(i)) )
+	                    applyQueued++;
+	            }
+	            else {
+	                if( (actions & SweepSnapshot.ACTION_STACK) != 0 ) {
+	                    // players have moved since the snapshot, so check against where they are now
+	                    if( !playersIndexed ) {
+	                        rebuildPlayerIndex();
+	                        playersIndexed = true;
+	                    }
+	                    stackIfIdle(entity, playerChunkIndex);
+	                }
+	                if( (actions & SweepSnapshot.ACTION_VIRTUALIZE) != 0 && entity.isValid() )
+	                    virtualizeIfIdle(entity);
 	            }
 	        }
+	        
+	        if( ++processed >= minimum && System.nanoTime() >= deadline )
+	            break;
 	    }
-	    else {
-            debugReason = "entity is not idle";
-	        ret = false;   // entity is active, don't purge
+	    sweepApplyTime.record(System.nanoTime() - start);
+	    
+	    if( applyCursor >= size )
+	        endAsyncPass(snapshot);
+	}
+	
+	private void endAsyncPass(final SweepSnapshot snapshot) {
+	    pendingSnapshot = null;
+	    stackCandidates.clear();
+	    sweepPasses.increment();
+	    
+	    log.debug("Async sweep pass finished: candidates=",snapshot.size(),", queued=",applyQueued,
+	            ", ticks=",sweepPassTicks + applyTicks);
+	    log.debug("Entities spawned since last reset=",entitySpawnCounter);
+	    entitySpawnCounter=0;
+	}
+	
+	/** Run the async sweep for this tick: snapshot the next slice of the
+	 * current pass, apply the next slice of its decisions once they are all
+	 * made, or start a new pass when one is due.
+	 */
+	private void runAsync() {
+	    countDownToPass();
+	    
+	    if( buildingSnapshot != null ) {
+	        snapshotSlice();
+	        return;
+	    }
+	    
+	    if( pendingSnapshot != null ) {
+	        if( !pendingDecisions.isEmpty() ) {
+	            for(Future<?> f : pendingDecisions) {
+	                if( !f.isDone() )
+	                    return;
+	            }
+	            for(Future<?> f : pendingDecisions) {
+	                try {
+	                    f.get();
+	                }
+	                catch(Exception e) {
+	                    // decisions for this pass are incomplete, so apply none of them
+	                    log.severe("Async sweep decision failed: "+e);
+	                    pendingSnapshot = null;
+	                    pendingDecisions.clear();
+	                    return;
+	                }
+	            }
+	            pendingDecisions.clear();
+	        }
+	        applySlice();
+	        return;
 	    }
 	    
-        log.debug("shouldPurge() ret=",ret,", time=",timeSinceLastInteract,", entity=",entity,", reason=",debugReason,", id=",entity.getEntityId(),", uniqueId=",entity.getUniqueId());
-	    return ret;
+	    if( ticksUntilNextPass > 0 || sweepExecutor == null )
+	        return;
+	    ticksUntilNextPass = getSweepInterval();
+	    startAsyncPass();
+	    snapshotSlice();
 	}
 	
-	/** We run on a regular schedule to update entity positions.
-	 * Possibly chunk into smaller segments for separate runs if performance
-	 * becomes an issue. However, it would be lots of work to keep track of
-	 * state between runs so for now use simple algorithm and keep it
-	 * lightweight so we get through it quickly.
+	/** We run every tick to update entity positions. In FULL mode every
+	 * entity is processed in a single run once per interval. In SLICED mode
+	 * we process a budgeted slice of the current pass each tick, keeping a
+	 * cursor so the next tick picks up where this one stopped. In ASYNC
+	 * mode we start passes and apply their results. In every mode, the last
+	 * tick's buffered interactions are applied first, finished cold store
+	 * compactions are swapped in and entities the sweep found idle are
+	 * removed from the purge queue, a limited number per tick.
 	 */
 	public void run() {
+	    tickCount++;
+	    // answer entity hand-offs from other region threads; none on a stock server
+	    entities.drainHandOffs();
+	    flushInteractions();
+	    coldStore.tick();
+	    
+	    if( sweepMode == SweepMode.SLICED )
+	        runSlice();
+	    else if( sweepMode == SweepMode.ASYNC )
+	        runAsync();
+	    else
+	        runFull();
+	    
+	    drainPurgeQueue();
+	}
+	
+	/** Process every entity in a single run, once per interval.
+	 */
+	private void runFull() {
+	    countDownToPass();
+	    if( ticksUntilNextPass > 0 )
+	        return;
+	    ticksUntilNextPass = getSweepInterval();
+	    
+	    final long start = System.nanoTime();
 	    List<World> worlds = Bukkit.getWorlds();
+	    sweepPassId++;
+	    rebuildPlayerIndex();
+	    stackCandidates.clear();
+	    if( config.isVirtualizeEnabled() )
+	        startVirtualizing(worlds);
+	    final long playersDone = System.nanoTime();
 	    
 	    // process all entities on all worlds
 	    for(World world : worlds) {
 	        List<Entity> entities = world.getEntities();
 	        for(Entity entity : entities) {
-	            // if the entity is no longer valid (dead or Bukkit cleanup), remove it
-	            if( !entity.isValid() ) {
-	                cleanupEntity(entity);
-	                continue;
-	            }
-	            
-	            if( shouldPurge(entity) ) {
-	                entity.remove();
-	                cleanupEntity(entity);
-	            }
-	            else
-	                updatePosition(entity);
+	            sweepEntity(entity);
 	        }
 	    }
+	    final long entitiesDone = System.nanoTime();
+	    stackCandidates.clear();
+	    
+	    sweepPlayersTime.record(playersDone - start);
+	    sweepEntitiesTime.record(entitiesDone - playersDone);
+	    sweepPasses.increment();
 	    
 	    log.debug("Entities spawned since last reset=",entitySpawnCounter);
 	    entitySpawnCounter=0;
@@ -0,0 +1,94 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.morganm.mobreducer.Config;
+import org.morganm.mobreducer.Util;
+import org.morganm.mobreducer.util.LongHashSet;
+
+/** Index of the chunks that are within a given radius of any player. Since
+ * packed chunk keys include the world index, a single set holds the
+ * occupied chunks of every world without them colliding.
+ * 
+ * The index is a snapshot: it is rebuilt by the sweep and does not follow
+ * players as they move in between rebuilds.
+ * 
+ * @author morganm
+ *
+ */
+public class PlayerChunkIndex {
+    private final Util util;
+    private final LongHashSet nearbyChunks = new LongHashSet(256);
+    
+    public PlayerChunkIndex(Util util) {
+        this.util = util;
+    }
+    
+    /** Rebuild the index from the current player positions, marking every
+     * chunk within the world's player chunk radius of a player as occupied.
+     * 
+     * @param worlds
+     * @param config
+     */
+    public void rebuild(final List<World> worlds, final Config config) {
+        nearbyChunks.clear();
+        for(World world : worlds)
+            addPlayers(world, config.getWorldConfig(world).getMonsterPlayerChunkRadius());
+    }
+    
+    /** Rebuild the index from the current player positions, marking every
+     * chunk within the given radius of a player as occupied.
+     * 
+     * @param worlds
+     * @param radius
+     */
+    public void rebuild(final List<World> worlds, final int radius) {
+        nearbyChunks.clear();
+        for(World world : worlds)
+            addPlayers(world, radius);
+    }
+    
+    private void addPlayers(final World world, final int radius) {
+        final List<Player> players = world.getPlayers();
+        if( players.isEmpty() )
+            return;
+        
+        final int worldIndex = util.getWorldIndex(world);
+        for(Player p : players) {
+            final Location l = p.getLocation();
+            if( l == null )
+                continue;
+            
+            final int chunkX = l.getBlockX() >> 4;
+            final int chunkZ = l.getBlockZ() >> 4;
+            for(int x=chunkX-radius; x <= chunkX+radius; x++) {
+                for(int z=chunkZ-radius; z <= chunkZ+radius; z++) {
+                    nearbyChunks.add(Util.packChunkKey(worldIndex, x, z));
+                }
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @param chunkKey
+     * @return true if the chunk was within range of a player at the last rebuild
+     */
+    public boolean isPlayerNearby(final long chunkKey) {
+        return nearbyChunks.contains(chunkKey);
+    }
+    
+    /**
+     * 
+     * @return the number of chunks currently marked as near a player
+     */
+    public int size() {
+        return nearbyChunks.size();
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.Arrays;
+
+import org.bukkit.entity.Entity;
+import org.morganm.mobreducer.util.LongHashSet;
+
+/** FIFO queue of entities a sweep has decided to purge, so the removals
+ * can be spread over several ticks instead of all landing in the tick the
+ * sweep ran. Each entry keeps the entity's last interaction time as of when
+ * it was queued, so an interaction while queued can be noticed.
+ * 
+ * An entity is only queued once; adding it again while it is queued does
+ * nothing.
+ * 
+ * @author morganm
+ *
+ */
+public class PurgeQueue {
+    // ring buffer columns
+    private Entity[] entities = new Entity[256];
+    private long[] lastInteract = new long[256];
+    private int head = 0;
+    private int size = 0;
+    
+    // ids of the entities currently queued
+    private final LongHashSet queued = new LongHashSet(256);
+    
+    /**
+     * 
+     * @param entity
+     * @param lastInteractTime the entity's last interaction time when it was found idle
+     * @return false if the entity was already queued
+     */
+    public boolean add(final Entity entity, final long lastInteractTime) {
+        if( !queued.add(entity.getEntityId()) )
+            return false;
+        
+        if( size == entities.length )
+            grow();
+        final int tail = (head + size) & (entities.length - 1);
+        entities[tail] = entity;
+        lastInteract[tail] = lastInteractTime;
+        size++;
+        return true;
+    }
+    
+    private void grow() {
+        final int capacity = entities.length * 2;
+        final Entity[] newEntities = new Entity[capacity];
+        final long[] newLastInteract = new long[capacity];
+        for(int i=0; i < size; i++) {
+            final int from = (head + i) & (entities.length - 1);
+            newEntities[i] = entities[from];
+            newLastInteract[i] = lastInteract[from];
+        }
+        entities = newEntities;
+        lastInteract = newLastInteract;
+        head = 0;
+    }
+    
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * 
+     * @return the entity at the head of the queue; the queue must not be empty
+     */
+    public Entity peek() {
+        return entities[head];
+    }
+    
+    /**
+     * 
+     * @return the queued last interaction time of the entity at the head of the queue
+     */
+    public long peekLastInteract() {
+        return lastInteract[head];
+    }
+    
+    /** Remove the entity at the head of the queue.
+     * 
+     */
+    public void remove() {
+        queued.remove(entities[head].getEntityId());
+        entities[head] = null;
+        head = (head + 1) & (entities.length - 1);
+        size--;
+    }
+    
+    public void clear() {
+        Arrays.fill(entities, null);
+        head = 0;
+        size = 0;
+        queued.clear();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.entity.Ageable;
+import org.bukkit.entity.Creeper;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Pig;
+import org.bukkit.entity.Sheep;
+import org.bukkit.entity.Slime;
+import org.bukkit.entity.Tameable;
+import org.morganm.mobreducer.util.LongObjectHashMap;
+
+/** The idle mobs a sweep pass has found that later idle mobs can be
+ * stacked into, by chunk. An idle mob that can't be stacked into any of
+ * the candidates of its chunk becomes a candidate itself, so the first
+ * idle mob of each kind in a chunk ends up standing for the rest.
+ * 
+ * Candidates are only good for the pass that found them, so this is
+ * cleared at the start and end of every pass.
+ * 
+ * @author morganm
+ *
+ */
+public class StackCandidates {
+    private final LongObjectHashMap<ArrayList<Entity>> byChunk = new LongObjectHashMap<ArrayList<Entity>>(64);
+    
+    /**
+     * 
+     * @param chunkKey
+     * @return the candidates in the given chunk, or null if there are none
+     */
+    public List<Entity> get(final long chunkKey) {
+        return byChunk.get(chunkKey);
+    }
+    
+    public void add(final long chunkKey, final Entity entity) {
+        ArrayList<Entity> list = byChunk.get(chunkKey);
+        if( list == null ) {
+            list = new ArrayList<Entity>(4);
+            byChunk.put(chunkKey, list);
+        }
+        list.add(entity);
+    }
+    
+    public void clear() {
+        if( !byChunk.isEmpty() )
+            byChunk.clear();
+    }
+    
+    /** Tamed mobs belong to someone and mobs riding or being ridden are
+     * part of something bigger, so neither are ever stacked.
+     * 
+     * @param entity
+     * @return true if the entity may be stacked with others of its kind
+     */
+    public static boolean isStackable(final Entity entity) {
+        if( entity instanceof Tameable && ((Tameable) entity).isTamed() )
+            return false;
+        return entity.getPassenger() == null && !entity.isInsideVehicle();
+    }
+    
+    /** Two mobs are the same kind if one could stand in for the other: the
+     * same type, and the same in every way a player can see or use.
+     * 
+     * @param a
+     * @param b
+     * @return
+     */
+    public static boolean isSameKind(final Entity a, final Entity b) {
+        if( a.getType() != b.getType() )
+            return false;
+        if( a instanceof Ageable && ((Ageable) a).isAdult() != ((Ageable) b).isAdult() )
+            return false;
+        if( a instanceof Sheep ) {
+            final Sheep sa = (Sheep) a;
+            final Sheep sb = (Sheep) b;
+            if( sa.getColor() != sb.getColor() || sa.isSheared() != sb.isSheared() )
+                return false;
+        }
+        if( a instanceof Pig && ((Pig) a).hasSaddle() != ((Pig) b).hasSaddle() )
+            return false;
+        if( a instanceof Slime && ((Slime) a).getSize() != ((Slime) b).getSize() )
+            return false;
+        if( a instanceof Creeper && ((Creeper) a).isPowered() != ((Creeper) b).isPowered() )
+            return false;
+        return true;
+    }
+    
+    /** Make a newly spawned mob the same kind as another, as checked by
+     * {@link #isSameKind(Entity, Entity)}.
+     * 
+     * @param from
+     * @param to a mob of the same type as from
+     */
+    public static void copyKind(final Entity from, final Entity to) {
+        if( from instanceof Ageable && !((Ageable) from).isAdult() )
+            ((Ageable) to).setBaby();
+        if( from instanceof Sheep ) {
+            ((Sheep) to).setColor(((Sheep) from).getColor());
+            ((Sheep) to).setSheared(((Sheep) from).isSheared());
+        }
+        if( from instanceof Pig )
+            ((Pig) to).setSaddle(((Pig) from).hasSaddle());
+        if( from instanceof Slime )
+            ((Slime) to).setSize(((Slime) from).getSize());
+        if( from instanceof Creeper )
+            ((Creeper) to).setPowered(((Creeper) from).isPowered());
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+/** How the periodic MobManager sweep walks the entities of the server.
+ * 
+ * @author morganm
+ *
+ */
+public enum SweepMode {
+    /** Process every entity of every world in a single tick. */
+    FULL,
+    /** Process entities in small time-budgeted slices spread across many
+     * ticks, resuming where the previous slice stopped.
+     */
+    SLICED,
+    /** Copy the state needed for purge, stacking and virtualizing decisions
+     * on the main thread, make the decisions on worker threads, then apply
+     * them back on the main thread once the workers are done. Both main
+     * thread stages are time-budgeted slices spread across ticks, as in
+     * SLICED.
+     */
+    ASYNC;
+    
+    /** Lookup a mode by name, ignoring case.
+     * 
+     * @param name
+     * @return the matching mode or null if there is no such mode
+     */
+    public static SweepMode fromName(final String name) {
+        if( name == null )
+            return null;
+        
+        for(SweepMode mode : values()) {
+            if( mode.name().equalsIgnoreCase(name) )
+                return mode;
+        }
+        return null;
+    }
+}
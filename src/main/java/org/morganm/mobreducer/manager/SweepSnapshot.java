@@ -0,0 +1,230 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.Arrays;
+
+import org.bukkit.entity.Entity;
+import org.morganm.mobreducer.Util;
+
+/** Compact copy of the state the purge, stacking and virtualizing rules need
+ * for each candidate entity, taken on the main thread so the decisions can
+ * be made on worker threads without touching any Bukkit objects.
+ * 
+ * The main thread fills the snapshot with add(), worker threads then call
+ * decide() over disjoint ranges, and once all of them are done the main
+ * thread reads the decisions back to apply them. The hand-off between
+ * threads is through the executor, which guarantees visibility.
+ * 
+ * Each candidate gets a purge decision, which only means anything for
+ * candidates added as purgeable, and a set of idle actions: whether it is
+ * idle enough, and far enough from players, to be stacked or virtualized.
+ * The main thread checks those again before acting on them, since only it
+ * can compare mobs with each other or see their current state.
+ * 
+ * @author morganm
+ *
+ */
+public class SweepSnapshot {
+    public static final byte KEEP_ACTIVE = 0;
+    public static final byte KEEP_TARGETING_PLAYER = 1;
+    public static final byte KEEP_PLAYER_NEARBY = 2;
+    public static final byte PURGE = 3;
+    
+    // idle actions, as bits
+    public static final byte ACTION_STACK = 0x1;
+    public static final byte ACTION_VIRTUALIZE = 0x2;
+    
+    // candidate flags
+    public static final byte FLAG_PURGEABLE = 0x4;
+    public static final byte FLAG_STACKABLE = 0x8;
+    public static final byte FLAG_VIRTUALIZABLE = 0x10;
+    private static final byte FLAG_CREATURE = 0x1;
+    private static final byte FLAG_TARGETS_PLAYER = 0x2;
+    
+    // decision inputs, fixed when the snapshot is created
+    private final long now;
+    private final long[] worldIdleTicks;
+    private final long idleTicks;
+    private final long[] typeIdleTicks;
+    private final PlayerChunkIndex players;
+    private long stackIdleTicks = Long.MAX_VALUE;
+    private long virtualIdleTicks = Long.MAX_VALUE;
+    private PlayerChunkIndex virtualPlayers;
+    
+    // per-entity columns
+    private Entity[] entities;
+    private long[] chunkKeys;
+    private long[] lastInteract;
+    private short[] types;
+    private byte[] flags;
+    private byte[] decisions;
+    private byte[] actions;
+    private int size = 0;
+    
+    /**
+     * 
+     * @param capacity expected number of entities
+     * @param now the tick the snapshot is taken
+     * @param worldIdleTicks ticks an entity must go without interaction to
+     * be idle, by Util world index; must not be changed after being handed to
+     * the snapshot
+     * @param idleTicks idle ticks for worlds not covered by worldIdleTicks
+     * @param typeIdleTicks idle ticks by EntityType ordinal, used in place of
+     * the world's idle ticks where it is not -1; must not be changed after being
+     * handed to the snapshot
+     * @param players index of chunks near players; must not be changed after
+     * being handed to the snapshot
+     */
+    public SweepSnapshot(int capacity, long now, long[] worldIdleTicks, long idleTicks,
+            long[] typeIdleTicks, PlayerChunkIndex players)
+    {
+        this.now = now;
+        this.worldIdleTicks = worldIdleTicks;
+        this.idleTicks = idleTicks;
+        this.typeIdleTicks = typeIdleTicks;
+        this.players = players;
+        
+        capacity = Math.max(capacity, 16);
+        entities = new Entity[capacity];
+        chunkKeys = new long[capacity];
+        lastInteract = new long[capacity];
+        types = new short[capacity];
+        flags = new byte[capacity];
+    }
+    
+    /** Set the rules for the idle actions. Without this no candidate is
+     * given any. Must be called before any candidates are added.
+     * 
+     * @param stackIdleTicks ticks a stackable candidate must go without
+     * interaction to be stacked
+     * @param virtualIdleTicks ticks a virtualizable candidate must go
+     * without interaction to be virtualized
+     * @param virtualPlayers index of chunks too close to a player to
+     * virtualize in; must not be changed after being handed to the snapshot
+     */
+    public void setIdleActions(final long stackIdleTicks, final long virtualIdleTicks,
+            final PlayerChunkIndex virtualPlayers)
+    {
+        this.stackIdleTicks = stackIdleTicks;
+        this.virtualIdleTicks = virtualIdleTicks;
+        this.virtualPlayers = virtualPlayers;
+    }
+    
+    /** Record a candidate. Main thread only.
+     * 
+     * @param entity
+     * @param chunkKey
+     * @param lastInteractTime
+     * @param isCreature
+     * @param targetsPlayer
+     * @param candidateFlags what the entity is a candidate for, any of
+     * FLAG_PURGEABLE, FLAG_STACKABLE and FLAG_VIRTUALIZABLE
+     */
+    public void add(final Entity entity, final long chunkKey, final long lastInteractTime,
+            final boolean isCreature, final boolean targetsPlayer, final byte candidateFlags)
+    {
+        if( size == entities.length )
+            grow();
+        
+        entities[size] = entity;
+        chunkKeys[size] = chunkKey;
+        lastInteract[size] = lastInteractTime;
+        types[size] = (short) entity.getType().ordinal();
+        flags[size] = (byte) (candidateFlags | (isCreature ? FLAG_CREATURE : 0) | (targetsPlayer ? FLAG_TARGETS_PLAYER : 0));
+        size++;
+    }
+    
+    private void grow() {
+        final int capacity = entities.length * 2;
+        entities = Arrays.copyOf(entities, capacity);
+        chunkKeys = Arrays.copyOf(chunkKeys, capacity);
+        lastInteract = Arrays.copyOf(lastInteract, capacity);
+        types = Arrays.copyOf(types, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+    }
+    
+    /** Called once all candidates are added, before any decide() call.
+     * 
+     */
+    public void seal() {
+        decisions = new byte[size];
+        actions = new byte[size];
+    }
+    
+    /** Apply the idle and player proximity rules to the candidates in
+     * [from, to). Safe to call from a worker thread, as long as ranges
+     * given to concurrent calls don't overlap.
+     * 
+     * @param from
+     * @param to
+     */
+    public void decide(final int from, final int to) {
+        for(int i=from; i < to; i++) {
+            final byte f = flags[i];
+            final long idleFor = now - lastInteract[i];
+            byte decision = KEEP_ACTIVE;
+            if( (f & FLAG_PURGEABLE) != 0 ) {
+                long idle = typeIdleTicks[types[i]];
+                if( idle < 0 ) {
+                    final int world = Util.getChunkKeyWorld(chunkKeys[i]);
+                    idle = world >= 0 && world < worldIdleTicks.length ? worldIdleTicks[world] : idleTicks;
+                }
+                if( idleFor <= idle )
+                    decision = KEEP_ACTIVE;
+                else if( (f & FLAG_CREATURE) != 0 && (f & FLAG_TARGETS_PLAYER) != 0 )
+                    decision = KEEP_TARGETING_PLAYER;
+                else if( (f & FLAG_CREATURE) != 0 && players.isPlayerNearby(chunkKeys[i]) )
+                    decision = KEEP_PLAYER_NEARBY;
+                else
+                    decision = PURGE;
+            }
+            decisions[i] = decision;
+            
+            // mobs being purged or targeting a player are never stacked or virtualized
+            byte action = 0;
+            if( decision != PURGE && (f & FLAG_TARGETS_PLAYER) == 0 ) {
+                if( (f & FLAG_STACKABLE) != 0 && idleFor > stackIdleTicks && !players.isPlayerNearby(chunkKeys[i]) )
+                    action |= ACTION_STACK;
+                if( (f & FLAG_VIRTUALIZABLE) != 0 && virtualPlayers != null && idleFor > virtualIdleTicks
+                        && !virtualPlayers.isPlayerNearby(chunkKeys[i]) )
+                    action |= ACTION_VIRTUALIZE;
+            }
+            actions[i] = action;
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    public Entity getEntity(final int i) {
+        return entities[i];
+    }
+    public long getChunkKey(final int i) {
+        return chunkKeys[i];
+    }
+    public long getLastInteract(final int i) {
+        return lastInteract[i];
+    }
+    public boolean isPurgeable(final int i) {
+        return (flags[i] & FLAG_PURGEABLE) != 0;
+    }
+    public int getTypeOrdinal(final int i) {
+        return types[i];
+    }
+    public byte getDecision(final int i) {
+        return decisions[i];
+    }
+    /**
+     * 
+     * @param i
+     * @return the idle actions for the candidate, as ACTION_ bits
+     */
+    public byte getActions(final int i) {
+        return actions[i];
+    }
+    public long getTime() {
+        return now;
+    }
+}
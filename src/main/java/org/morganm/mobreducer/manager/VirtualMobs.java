@@ -0,0 +1,368 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.bukkit.DyeColor;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Ageable;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Pig;
+import org.bukkit.entity.Sheep;
+import org.morganm.mobreducer.util.LongObjectHashMap;
+
+/** Mobs that have been taken out of the world while no player is near,
+ * kept by chunk as compact records of everything needed to put them back:
+ * type, position, age, health, the attributes a player can see and our
+ * own tracked state. Each chunk's records are a column per field, like
+ * {@link EntityStore}, so a virtual mob costs around 90 bytes of heap
+ * rather than a whole entity.
+ * 
+ * Virtual mobs are only ever in loaded chunks; they are put back before
+ * their chunk unloads, so the server saves them with it. Each one is also
+ * written through to the {@link EntityColdStore} under the UUID of the
+ * entity it was, so a crash doesn't lose it.
+ * 
+ * All methods are main thread only.
+ * 
+ * @author morganm
+ *
+ */
+public class VirtualMobs {
+    private static final EntityType[] TYPES = EntityType.values();
+    
+    // attribute bits
+    private static final int SHEARED = 1;
+    private static final int SADDLED = 2;
+    private static final int PLAYER_DAMAGED = 4;
+    private static final int ANIMAL = 8;           // counted in the chunk animal counts
+    private static final int COLOR_SHIFT = 8;      // 8 bits of sheep colour
+    
+    /** The virtual mobs of one chunk. There is no column for a tamed
+     * animal's owner: tamed animals are never virtualized, as
+     * {@link StackCandidates#isStackable(Entity)} turns them away.
+     */
+    public static class Records {
+        private long[] uuidHi = new long[8];
+        private long[] uuidLo = new long[8];
+        private short[] type = new short[8];
+        private double[] x = new double[8];
+        private double[] y = new double[8];
+        private double[] z = new double[8];
+        private float[] yaw = new float[8];
+        private int[] ticksLived = new int[8];
+        private int[] age = new int[8];
+        private int[] health = new int[8];
+        private int[] attributes = new int[8];
+        private int[] stackCount = new int[8];
+        private long[] lastInteract = new long[8];
+        private long[] spawnChunk = new long[8];
+        private int size = 0;
+        private int mobs = 0;          // mobs the records stand for, counting stacks
+        private int animals = 0;       // of those, the ones counted as animals
+        
+        private void grow() {
+            if( size == type.length ) {
+                final int capacity = size * 2;
+                uuidHi = Arrays.copyOf(uuidHi, capacity);
+                uuidLo = Arrays.copyOf(uuidLo, capacity);
+                type = Arrays.copyOf(type, capacity);
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                z = Arrays.copyOf(z, capacity);
+                yaw = Arrays.copyOf(yaw, capacity);
+                ticksLived = Arrays.copyOf(ticksLived, capacity);
+                age = Arrays.copyOf(age, capacity);
+                health = Arrays.copyOf(health, capacity);
+                attributes = Arrays.copyOf(attributes, capacity);
+                stackCount = Arrays.copyOf(stackCount, capacity);
+                lastInteract = Arrays.copyOf(lastInteract, capacity);
+                spawnChunk = Arrays.copyOf(spawnChunk, capacity);
+            }
+        }
+        
+        private void add(final Entity entity, final EntityInfo entityInfo, final boolean animal) {
+            grow();
+            final Location l = entity.getLocation();
+            final UUID uuid = entity.getUniqueId();
+            uuidHi[size] = uuid.getMostSignificantBits();
+            uuidLo[size] = uuid.getLeastSignificantBits();
+            type[size] = (short) entity.getType().ordinal();
+            x[size] = l.getX();
+            y[size] = l.getY();
+            z[size] = l.getZ();
+            yaw[size] = l.getYaw();
+            ticksLived[size] = entity.getTicksLived();
+            age[size] = entity instanceof Ageable ? ((Ageable) entity).getAge() : 0;
+            health[size] = entity instanceof LivingEntity ? ((LivingEntity) entity).getHealth() : 0;
+            
+            int bits = 0;
+            if( entity instanceof Sheep ) {
+                final Sheep sheep = (Sheep) entity;
+                if( sheep.isSheared() )
+                    bits |= SHEARED;
+                bits |= (sheep.getColor().getData() & 0xFF) << COLOR_SHIFT;
+            }
+            if( entity instanceof Pig && ((Pig) entity).hasSaddle() )
+                bits |= SADDLED;
+            if( entityInfo.isPlayerDamaged() )
+                bits |= PLAYER_DAMAGED;
+            if( animal )
+                bits |= ANIMAL;
+            attributes[size] = bits;
+            
+            stackCount[size] = entityInfo.getStackCount();
+            lastInteract[size] = entityInfo.getLastInteractEventTime();
+            spawnChunk[size] = entityInfo.getSpawnChunkKey();
+            added();
+        }
+        
+        /** Add a virtual mob read back from the cold store. */
+        private void add(final EntityColdStore.Records records, final int r) {
+            grow();
+            final UUID uuid = records.getUniqueId(r);
+            uuidHi[size] = uuid.getMostSignificantBits();
+            uuidLo[size] = uuid.getLeastSignificantBits();
+            type[size] = records.getType(r);
+            x[size] = records.getX(r);
+            y[size] = records.getY(r);
+            z[size] = records.getZ(r);
+            yaw[size] = records.getYaw(r);
+            ticksLived[size] = records.getTicksLived(r);
+            age[size] = records.getAge(r);
+            health[size] = records.getHealth(r);
+            attributes[size] = records.getAttributes(r);
+            stackCount[size] = records.getStackCount(r);
+            lastInteract[size] = records.getLastInteract(r);
+            spawnChunk[size] = records.getSpawnChunk(r);
+            added();
+        }
+        
+        private void added() {
+            mobs += stackCount[size];
+            if( (attributes[size] & ANIMAL) != 0 )
+                animals += stackCount[size];
+            size++;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * 
+         * @param i
+         * @return the UUID of the entity the mob was before it was virtualized
+         */
+        public UUID getUniqueId(final int i) {
+            return new UUID(uuidHi[i], uuidLo[i]);
+        }
+        long getUniqueIdHi(final int i) {
+            return uuidHi[i];
+        }
+        long getUniqueIdLo(final int i) {
+            return uuidLo[i];
+        }
+        public EntityType getType(final int i) {
+            return TYPES[type[i]];
+        }
+        double getX(final int i) {
+            return x[i];
+        }
+        double getY(final int i) {
+            return y[i];
+        }
+        double getZ(final int i) {
+            return z[i];
+        }
+        float getYaw(final int i) {
+            return yaw[i];
+        }
+        int getTicksLived(final int i) {
+            return ticksLived[i];
+        }
+        int getAge(final int i) {
+            return age[i];
+        }
+        int getHealth(final int i) {
+            return health[i];
+        }
+        int getAttributes(final int i) {
+            return attributes[i];
+        }
+        public int getStackCount(final int i) {
+            return stackCount[i];
+        }
+        public long getLastInteract(final int i) {
+            return lastInteract[i];
+        }
+        public long getSpawnChunk(final int i) {
+            return spawnChunk[i];
+        }
+        public boolean isPlayerDamaged(final int i) {
+            return (attributes[i] & PLAYER_DAMAGED) != 0;
+        }
+        public boolean isAnimal(final int i) {
+            return (attributes[i] & ANIMAL) != 0;
+        }
+        
+        /**
+         * 
+         * @return the number of mobs counted as animals these records stand
+         * for, counting every mob in a stack
+         */
+        public int getAnimalCount() {
+            return animals;
+        }
+        
+        /** Add the mobs these records stand for to per type counts.
+         * 
+         * @param counts counts indexed by EntityType ordinal
+         */
+        public void addTypeCounts(final int[] counts) {
+            for(int i=0; i < size; i++)
+                counts[type[i]] += stackCount[i];
+        }
+        
+        /** Put a mob back in the world as it was when it was virtualized.
+         * Our tracked state is left for the caller to restore.
+         * 
+         * @param world
+         * @param i
+         * @return the new entity, or null if it couldn't be spawned
+         */
+        public Entity spawn(final World world, final int i) {
+            final Entity entity = world.spawnEntity(new Location(world, x[i], y[i], z[i], yaw[i], 0), getType(i));
+            // another plugin may have cancelled the spawn
+            if( entity == null || !entity.isValid() )
+                return null;
+            
+            entity.setTicksLived(Math.max(1, ticksLived[i]));
+            if( entity instanceof Ageable )
+                ((Ageable) entity).setAge(age[i]);
+            if( entity instanceof LivingEntity && health[i] > 0 ) {
+                final LivingEntity living = (LivingEntity) entity;
+                living.setHealth(Math.min(health[i], living.getMaxHealth()));
+            }
+            if( entity instanceof Sheep ) {
+                final Sheep sheep = (Sheep) entity;
+                sheep.setSheared((attributes[i] & SHEARED) != 0);
+                sheep.setColor(DyeColor.getByData((byte) (attributes[i] >> COLOR_SHIFT)));
+            }
+            if( entity instanceof Pig )
+                ((Pig) entity).setSaddle((attributes[i] & SADDLED) != 0);
+            return entity;
+        }
+    }
+    
+    private final LongObjectHashMap<Records> byChunk = new LongObjectHashMap<Records>(64);
+    private int mobs = 0;
+    
+    /**
+     * 
+     * @return the number of mobs that are virtual, counting every mob in a stack
+     */
+    public int size() {
+        return mobs;
+    }
+    
+    public boolean isEmpty() {
+        return byChunk.isEmpty();
+    }
+    
+    /** Record a mob as virtual. The caller then removes it from the world.
+     * 
+     * @param chunkKey the chunk the mob is in
+     * @param entity
+     * @param entityInfo the mob's tracked state
+     * @param animal true if the mob is counted in the chunk animal counts
+     */
+    public void add(final long chunkKey, final Entity entity, final EntityInfo entityInfo, final boolean animal) {
+        final Records records = getOrCreate(chunkKey);
+        final int before = records.mobs;
+        records.add(entity, entityInfo, animal);
+        mobs += records.mobs - before;
+    }
+    
+    /** Record a mob as virtual from its record in the cold store, as when
+     * the server went down while it was virtual.
+     * 
+     * @param chunkKey the chunk the mob is in
+     * @param records
+     * @param r the index of a virtual record in records
+     */
+    public void add(final long chunkKey, final EntityColdStore.Records records, final int r) {
+        final Records chunkRecords = getOrCreate(chunkKey);
+        final int before = chunkRecords.mobs;
+        chunkRecords.add(records, r);
+        mobs += chunkRecords.mobs - before;
+    }
+    
+    private Records getOrCreate(final long chunkKey) {
+        Records records = byChunk.get(chunkKey);
+        if( records == null ) {
+            records = new Records();
+            byChunk.put(chunkKey, records);
+        }
+        return records;
+    }
+    
+    /** Drop the last mob added to a chunk, when it couldn't be written
+     * through and so stays in the world after all.
+     * 
+     * @param chunkKey
+     */
+    public void removeLast(final long chunkKey) {
+        final Records records = byChunk.get(chunkKey);
+        if( records == null || records.size == 0 )
+            return;
+        final int last = --records.size;
+        records.mobs -= records.stackCount[last];
+        mobs -= records.stackCount[last];
+        if( (records.attributes[last] & ANIMAL) != 0 )
+            records.animals -= records.stackCount[last];
+        if( records.size == 0 )
+            byChunk.remove(chunkKey);
+    }
+    
+    /**
+     * 
+     * @param chunkKey
+     * @return the records of the virtual mobs in the chunk, or null if there are none
+     */
+    public Records get(final long chunkKey) {
+        return byChunk.get(chunkKey);
+    }
+    
+    /** Take the records of a chunk, for its mobs to be put back.
+     * 
+     * @param chunkKey
+     * @return the chunk's records, or null if it has none
+     */
+    public Records remove(final long chunkKey) {
+        final Records records = byChunk.remove(chunkKey);
+        if( records != null )
+            mobs -= records.mobs;
+        return records;
+    }
+    
+    /**
+     * 
+     * @return the keys of all chunks with virtual mobs in them
+     */
+    public long[] getChunkKeys() {
+        final long[] keys = new long[byChunk.size()];
+        int n = 0;
+        for(int slot=0; slot < byChunk.capacity(); slot++) {
+            if( byChunk.isUsed(slot) )
+                keys[n++] = byChunk.keyAt(slot);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.metrics;
+
+/** A simple event counter. Like the rest of the metrics it is only
+ * updated and read on the main thread, so it is a plain field.
+ * 
+ * @author morganm
+ *
+ */
+public class Counter {
+    private long count;
+    
+    public void increment() {
+        count++;
+    }
+    
+    public void add(final long n) {
+        count += n;
+    }
+    
+    public long get() {
+        return count;
+    }
+    
+    public void reset() {
+        count = 0;
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.metrics;
+
+/** A value that is read on demand, such as the size of a map, rather
+ * than counted as things happen.
+ * 
+ * @author morganm
+ *
+ */
+public interface Gauge {
+    public long getValue();
+}
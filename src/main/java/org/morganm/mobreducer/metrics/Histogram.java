@@ -0,0 +1,93 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.metrics;
+
+/** Latency histogram with fixed power-of-two buckets. Recording a value
+ * is a few array and field updates with no allocation, so it is cheap
+ * enough to use on every spawn event. Percentiles are only as precise as
+ * the buckets, ie. within a factor of two, which is plenty to tell a
+ * 50us call from a 5ms one.
+ * 
+ * @author morganm
+ *
+ */
+public class Histogram {
+    // bucket i holds values from 2^(i-1) to 2^i - 1 nanoseconds, bucket 0
+    // holds 0 and the last bucket holds everything from ~9 minutes up
+    public static final int BUCKETS = 40;
+    
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+    
+    /** Record one measurement.
+     * 
+     * @param nanos
+     */
+    public void record(final long nanos) {
+        final long value = nanos < 0 ? 0 : nanos;
+        int bucket = 64 - Long.numberOfLeadingZeros(value);
+        if( bucket >= BUCKETS )
+            bucket = BUCKETS - 1;
+        
+        buckets[bucket]++;
+        count++;
+        sum += value;
+        if( value > max )
+            max = value;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    /**
+     * 
+     * @return total of all recorded values, in nanoseconds
+     */
+    public long getSum() {
+        return sum;
+    }
+    
+    public long getMax() {
+        return max;
+    }
+    
+    public long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+    
+    /** Return an estimate of the given percentile: the upper bound of the
+     * bucket it falls in, capped at the largest value seen.
+     * 
+     * @param percentile from 0 to 100
+     * @return the estimate in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentile(final double percentile) {
+        if( count == 0 )
+            return 0;
+        
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i=0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if( seen >= rank )
+                return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+    
+    private static long upperBound(final int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+    
+    public void reset() {
+        for(int i=0; i < BUCKETS; i++)
+            buckets[i] = 0;
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+}
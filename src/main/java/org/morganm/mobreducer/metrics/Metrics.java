@@ -0,0 +1,179 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.bukkit.entity.EntityType;
+import org.morganm.mobreducer.Util;
+
+/** Registry of the plugin's counters, histograms and gauges. Components
+ * look up the metrics they update once, when they are constructed, and
+ * keep the reference, so the hot paths never touch the registry maps.
+ * 
+ * Metrics are only updated and read on the main thread. Anything that
+ * needs them elsewhere (such as the file dump) takes a {@link #snapshot()}
+ * on the main thread first.
+ * 
+ * @author morganm
+ *
+ */
+public class Metrics {
+    private final Util util;
+    private final Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+    private final Map<String, TypeCounter> typeCounters = new LinkedHashMap<String, TypeCounter>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private long since = System.currentTimeMillis();
+    
+    @Inject
+    public Metrics(Util util) {
+        this.util = util;
+    }
+    
+    /** Return the named counter, creating it if needed.
+     * 
+     * @param name
+     * @return
+     */
+    public Counter counter(final String name) {
+        Counter counter = counters.get(name);
+        if( counter == null ) {
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+    
+    /** Return the named latency histogram, creating it if needed.
+     * 
+     * @param name
+     * @return
+     */
+    public Histogram histogram(final String name) {
+        Histogram histogram = histograms.get(name);
+        if( histogram == null ) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+    
+    /** Return the named per world and entity type counter, creating it if
+     * needed.
+     * 
+     * @param name
+     * @return
+     */
+    public TypeCounter typeCounter(final String name) {
+        TypeCounter counter = typeCounters.get(name);
+        if( counter == null ) {
+            counter = new TypeCounter();
+            typeCounters.put(name, counter);
+        }
+        return counter;
+    }
+    
+    /** Register a gauge, replacing any previous gauge of the same name.
+     * 
+     * @param name
+     * @param gauge
+     */
+    public void gauge(final String name, final Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    public Map<String, Counter> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+    
+    public Map<String, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+    
+    public Map<String, TypeCounter> getTypeCounters() {
+        return Collections.unmodifiableMap(typeCounters);
+    }
+    
+    public Map<String, Gauge> getGauges() {
+        return Collections.unmodifiableMap(gauges);
+    }
+    
+    /**
+     * 
+     * @return the time (in milliseconds) the metrics were created or last reset
+     */
+    public long getSince() {
+        return since;
+    }
+    
+    /**
+     * 
+     * @param worldIndex
+     * @return the name of the world with the given Util world index
+     */
+    public String getWorldName(final int worldIndex) {
+        return util.getWorldName(worldIndex);
+    }
+    
+    /** Zero all counters and histograms. Gauges are live values and are
+     * not affected.
+     */
+    public void reset() {
+        for(Counter counter : counters.values())
+            counter.reset();
+        for(Histogram histogram : histograms.values())
+            histogram.reset();
+        for(TypeCounter counter : typeCounters.values())
+            counter.reset();
+        since = System.currentTimeMillis();
+    }
+    
+    /** Flatten every metric into a name -> value map. Histograms become a
+     * set of summary values in microseconds and per type counters one
+     * entry per world and type that has a count.
+     * 
+     * @return
+     */
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> values = new LinkedHashMap<String, Number>();
+        values.put("uptimeSeconds", (System.currentTimeMillis() - since) / 1000);
+        
+        for(Map.Entry<String, Counter> e : counters.entrySet())
+            values.put(e.getKey(), e.getValue().get());
+        
+        for(Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            final String name = e.getKey();
+            final Histogram h = e.getValue();
+            values.put(name+".count", h.getCount());
+            values.put(name+".meanMicros", h.getMean() / 1000);
+            values.put(name+".p50Micros", h.getPercentile(50) / 1000);
+            values.put(name+".p99Micros", h.getPercentile(99) / 1000);
+            values.put(name+".maxMicros", h.getMax() / 1000);
+        }
+        
+        final EntityType[] types = EntityType.values();
+        for(Map.Entry<String, TypeCounter> e : typeCounters.entrySet()) {
+            final String name = e.getKey();
+            final TypeCounter c = e.getValue();
+            values.put(name+".total", c.getTotal());
+            for(int world=0; world < c.getWorldCount(); world++) {
+                for(EntityType type : types) {
+                    final long count = c.get(world, type);
+                    if( count > 0 )
+                        values.put(name+"."+getWorldName(world)+"."+type.name(), count);
+                }
+            }
+        }
+        
+        for(Map.Entry<String, Gauge> e : gauges.entrySet())
+            values.put(e.getKey(), e.getValue().getValue());
+        
+        return values;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.bukkit.plugin.Plugin;
+import org.morganm.mBukkitLib.Logger;
+import org.morganm.mobreducer.Config;
+
+/** Scheduled task that appends the current metrics to a rolling file in
+ * the plugin folder. The snapshot is taken on the main thread when the
+ * task runs, the file is written from an async task so disk I/O never
+ * holds up a tick.
+ * 
+ * @author morganm
+ *
+ */
+public class MetricsDump implements Runnable {
+    private final Plugin plugin;
+    private final Metrics metrics;
+    private final Config config;
+    private final Logger log;
+    
+    @Inject
+    public MetricsDump(Plugin plugin, Metrics metrics, Config config, Logger log) {
+        this.plugin = plugin;
+        this.metrics = metrics;
+        this.config = config;
+        this.log = log;
+    }
+    
+    public void run() {
+        final Map<String, Number> snapshot = metrics.snapshot();
+        final long time = System.currentTimeMillis();
+        final String format = config.getMetricsDumpFormat();
+        final File file = new File(plugin.getDataFolder(), "metrics."+format);
+        final long maxBytes = config.getMetricsDumpMaxKB() * 1024L;
+        final int keep = config.getMetricsDumpFiles();
+        
+        plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
+            public void run() {
+                write(file, format, time, snapshot, maxBytes, keep);
+            }
+        });
+    }
+    
+    private void write(final File file, final String format, final long time,
+            final Map<String, Number> snapshot, final long maxBytes, final int keep)
+    {
+        try {
+            if( file.length() >= maxBytes )
+                roll(file, keep);
+            
+            final boolean newFile = !file.exists();
+            final BufferedWriter out = new BufferedWriter(new FileWriter(file, true));
+            try {
+                final String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date(time));
+                if( "json".equals(format) )
+                    writeJson(out, timestamp, snapshot);
+                else
+                    writeCsv(out, newFile, timestamp, snapshot);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch(IOException e) {
+            log.severe("Error writing metrics to "+file+": "+e);
+        }
+    }
+    
+    /** Shift file.1 .. file.(keep-1) up by one, dropping the oldest, and
+     * move the current file to file.1.
+     * 
+     * @param file
+     * @param keep
+     */
+    private void roll(final File file, final int keep) {
+        final String path = file.getPath();
+        new File(path+"."+keep).delete();
+        for(int i=keep-1; i >= 1; i--) {
+            final File f = new File(path+"."+i);
+            if( f.exists() )
+                f.renameTo(new File(path+"."+(i+1)));
+        }
+        file.renameTo(new File(path+".1"));
+    }
+    
+    /** One row per metric, so new metrics (such as a world or entity type
+     * seen for the first time) never change the columns.
+     */
+    private void writeCsv(final BufferedWriter out, final boolean newFile, final String timestamp,
+            final Map<String, Number> snapshot) throws IOException
+    {
+        if( newFile ) {
+            out.write("time,metric,value");
+            out.newLine();
+        }
+        for(Map.Entry<String, Number> e : snapshot.entrySet()) {
+            out.write(timestamp);
+            out.write(',');
+            out.write(csvQuote(e.getKey()));
+            out.write(',');
+            out.write(String.valueOf(e.getValue()));
+            out.newLine();
+        }
+    }
+    
+    /** One JSON object per line: {"time":"...","metrics":{"name":value,...}}
+     */
+    private void writeJson(final BufferedWriter out, final String timestamp,
+            final Map<String, Number> snapshot) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder(snapshot.size() * 32);
+        sb.append("{\"time\":\"").append(timestamp).append("\",\"metrics\":{");
+        boolean first = true;
+        for(Map.Entry<String, Number> e : snapshot.entrySet()) {
+            if( !first )
+                sb.append(',');
+            first = false;
+            sb.append('"').append(jsonEscape(e.getKey())).append("\":").append(e.getValue());
+        }
+        sb.append("}}");
+        out.write(sb.toString());
+        out.newLine();
+    }
+    
+    private static String csvQuote(final String s) {
+        if( s.indexOf(',') < 0 && s.indexOf('"') < 0 )
+            return s;
+        return "\""+s.replace("\"", "\"\"")+"\"";
+    }
+    
+    private static String jsonEscape(final String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
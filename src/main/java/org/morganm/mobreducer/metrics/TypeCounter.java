@@ -0,0 +1,71 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.metrics;
+
+import org.bukkit.entity.EntityType;
+
+/** Counter broken down by world and entity type. Counts are kept in a flat
+ * array indexed by Util world index and EntityType ordinal, so counting is
+ * an array increment with no map lookups or boxing.
+ * 
+ * @author morganm
+ *
+ */
+public class TypeCounter {
+    private static final EntityType[] TYPES = EntityType.values();
+    
+    private long[] counts = new long[TYPES.length * 4];
+    private long total;
+    
+    /** Count one event.
+     * 
+     * @param worldIndex Util world index
+     * @param type the entity type, or null if not known
+     */
+    public void increment(final int worldIndex, final EntityType type) {
+        add(worldIndex, type, 1);
+    }
+    
+    /** Count a number of events at once.
+     * 
+     * @param worldIndex Util world index
+     * @param type the entity type, or null if not known
+     * @param n
+     */
+    public void add(final int worldIndex, final EntityType type, final long n) {
+        total += n;
+        if( type == null )
+            return;
+        
+        final int i = worldIndex * TYPES.length + type.ordinal();
+        if( i >= counts.length ) {
+            long[] newCounts = new long[Math.max(i + TYPES.length, counts.length * 2)];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+        }
+        counts[i] += n;
+    }
+    
+    public long get(final int worldIndex, final EntityType type) {
+        final int i = worldIndex * TYPES.length + type.ordinal();
+        return i < counts.length ? counts[i] : 0;
+    }
+    
+    public long getTotal() {
+        return total;
+    }
+    
+    /**
+     * 
+     * @return one more than the highest world index that may have counts
+     */
+    public int getWorldCount() {
+        return counts.length / TYPES.length;
+    }
+    
+    public void reset() {
+        counts = new long[TYPES.length * 4];
+        total = 0;
+    }
+}
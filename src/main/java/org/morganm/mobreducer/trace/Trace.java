@@ -0,0 +1,185 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.trace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.inject.Inject;
+
+import org.bukkit.entity.Entity;
+import org.morganm.mBukkitLib.Logger;
+import org.morganm.mobreducer.Config;
+import org.morganm.mobreducer.TickClock;
+import org.morganm.mobreducer.metrics.Counter;
+import org.morganm.mobreducer.metrics.Gauge;
+import org.morganm.mobreducer.metrics.Metrics;
+
+/** Diagnostics for the hot paths (idle checks, spawns, damage events)
+ * that are cheap enough to leave on in production. Unlike the debug log,
+ * recording an event doesn't build a message: a sampled event is written
+ * as a fixed size record into a preallocated ring buffer, and a background
+ * thread formats the records and appends them to trace.log, kept apart
+ * from debug.log so the two writers never interleave. An event that isn't
+ * sampled costs a config read and a countdown.
+ * 
+ * Each {@link TraceCategory} is sampled at its own rate, set under
+ * trace.sample in config.yml. A rate of N records one in every N events of
+ * the category, and 0 records none.
+ * 
+ * Events are only recorded on the main thread.
+ * 
+ * @author morganm
+ *
+ */
+public class Trace {
+    private static final long WRITE_INTERVAL_MILLIS = 100;
+    
+    private final Config config;
+    private final TickClock clock;
+    private final Logger log;
+    private final Counter dropped;
+    // events left until the next one of each category is sampled
+    private final int[] countdown = new int[TraceCategory.values().length];
+    private volatile TraceRing ring;
+    private Thread writer;
+    private volatile boolean running = false;
+    
+    @Inject
+    public Trace(Config config, TickClock clock, Logger log, Metrics metrics) {
+        this.config = config;
+        this.clock = clock;
+        this.log = log;
+        
+        dropped = metrics.counter("trace.dropped");
+        metrics.gauge("trace.pending", new Gauge() {
+            public long getValue() {
+                final TraceRing r = ring;
+                return r != null ? r.size() : 0;
+            }
+        });
+    }
+    
+    /** Decide whether the next event of a category is recorded.
+     * 
+     * @param category
+     * @return
+     */
+    public boolean isSampled(final TraceCategory category) {
+        final int rate = config.getTraceSampleRate(category);
+        if( rate <= 0 )
+            return false;
+        
+        // a countdown left over from before a reload lowered the rate is cut short
+        final int c = category.ordinal();
+        if( --countdown[c] > 0 && countdown[c] < rate )
+            return false;
+        countdown[c] = rate;
+        return true;
+    }
+    
+    /** Record an event about an entity, if it is sampled.
+     * 
+     * @param event
+     * @param entity
+     * @param a event specific value, see {@link TraceEvent}
+     * @param b event specific value, see {@link TraceEvent}
+     */
+    public void record(final TraceEvent event, final Entity entity, final long a, final long b) {
+        if( !isSampled(event.getCategory()) )
+            return;
+        
+        TraceRing r = ring;
+        if( r == null ) {
+            r = new TraceRing(config.getTraceBufferSize());
+            ring = r;
+        }
+        if( !r.offer(clock.getTick(), event, entity.getEntityId(), entity.getType().ordinal(), a, b) )
+            dropped.increment();
+    }
+    
+    /** Start the thread that writes recorded events to the given file.
+     * 
+     * @param file
+     */
+    public void start(final File file) {
+        if( writer != null )
+            return;
+        
+        running = true;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write(file);
+            }
+        }, "MobReducer-trace");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /** Stop the writer thread, once it has written out the events recorded
+     * so far.
+     */
+    public void stop() {
+        if( writer == null )
+            return;
+        
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+    
+    /** Writer thread loop: every interval, append whatever has been
+     * recorded to the file. The file is only opened once there is something
+     * to write.
+     * 
+     * @param file
+     */
+    private void write(final File file) {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss ");
+        final StringBuilder sb = new StringBuilder(8192);
+        Writer out = null;
+        try {
+            boolean last = false;
+            while( !last ) {
+                last = !running;
+                final TraceRing r = ring;
+                if( r != null && r.size() > 0 ) {
+                    sb.setLength(0);
+                    r.drain(sb, dateFormat.format(new Date()));
+                    if( out == null )
+                        out = new FileWriter(file, true);
+                    out.write(sb.toString());
+                    out.flush();
+                }
+                
+                if( !last ) {
+                    try {
+                        Thread.sleep(WRITE_INTERVAL_MILLIS);
+                    }
+                    catch(InterruptedException e) {
+                        // stop() was called, go round once more to write what's left
+                    }
+                }
+            }
+        }
+        catch(IOException e) {
+            log.severe("Error writing trace to "+file+": "+e);
+        }
+        finally {
+            if( out != null ) {
+                try { out.close(); } catch(IOException e) {}
+            }
+        }
+    }
+}
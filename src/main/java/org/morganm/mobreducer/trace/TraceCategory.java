@@ -0,0 +1,33 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.trace;
+
+/** Groups of trace events that are sampled together. Each category has its
+ * own sample rate under trace.sample in config.yml, keyed by {@link #getKey()}.
+ * 
+ * @author morganm
+ *
+ */
+public enum TraceCategory {
+    /** Idle checks and removals of monsters, and virtualized animals. */
+    PURGE("purge"),
+    /** Spawns that are let through, refused or make room for themselves. */
+    SPAWN("spawn"),
+    /** Damage and potion splashes on mobs. */
+    DAMAGE("damage");
+    
+    private final String key;
+    
+    private TraceCategory(final String key) {
+        this.key = key;
+    }
+    
+    /**
+     * 
+     * @return the category's key in the trace.sample config section
+     */
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.trace;
+
+import org.bukkit.entity.EntityType;
+import org.bukkit.event.entity.CreatureSpawnEvent.SpawnReason;
+import org.bukkit.event.entity.EntityDamageEvent.DamageCause;
+import org.morganm.mobreducer.manager.SweepSnapshot;
+
+/** The kinds of event that can be traced. A recorded event is only an
+ * event constant, the entity's id and type and two numbers; each constant
+ * knows how to turn those into a line of text, which is done later on the
+ * trace writer thread.
+ * 
+ * @author morganm
+ *
+ */
+public enum TraceEvent {
+    /** A monster's idle check. a = ticks since its last interaction, b = the
+     * decision, one of the SweepSnapshot decision constants.
+     */
+    PURGE_CHECK(TraceCategory.PURGE) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append("idle check of ").append(type).append(" #").append(id).append(", ").append(a)
+                .append(" ticks since last interaction: ");
+            if( b == SweepSnapshot.PURGE )
+                sb.append("purge");
+            else if( b == SweepSnapshot.KEEP_TARGETING_PLAYER )
+                sb.append("keep, entity is targeting player");
+            else if( b == SweepSnapshot.KEEP_PLAYER_NEARBY )
+                sb.append("keep, player is nearby");
+            else
+                sb.append("keep, entity is not idle");
+        }
+    },
+    /** A queued monster was removed. a = ticks since its last interaction. */
+    PURGED(TraceCategory.PURGE) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append("purged ").append(type).append(" #").append(id).append(", ").append(a)
+                .append(" ticks since last interaction");
+        }
+    },
+    /** An idle animal was taken out of the world until a player comes near.
+     * a = ticks since its last interaction.
+     */
+    VIRTUALIZED(TraceCategory.PURGE) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append("virtualized ").append(type).append(" #").append(id).append(", ").append(a)
+                .append(" ticks since last interaction");
+        }
+    },
+    /** A spawn was let through. b = SpawnReason ordinal. */
+    SPAWNED(TraceCategory.SPAWN) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append("spawned ").append(type).append(" #").append(id).append(" (").append(name(SPAWN_REASONS, b)).append(')');
+        }
+    },
+    /** A spawn was refused. a = one of the REFUSED_ constants, b = SpawnReason ordinal. */
+    SPAWN_REFUSED(TraceCategory.SPAWN) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append("refused ").append(type).append(" spawn (").append(name(SPAWN_REASONS, b)).append("): ");
+            if( a == REFUSED_SPAWN_REASON )
+                sb.append("spawn reason is denied");
+            else if( a == REFUSED_ANIMAL_LIMIT )
+                sb.append("segment animal limit reached");
+            else if( a == REFUSED_TYPE_LIMIT )
+                sb.append("segment limit for type reached");
+            else
+                sb.append("spawner is in cooldown");
+        }
+    },
+    /** The oldest animal of a segment was killed to make room for a spawn. */
+    KILLED_OLDEST(TraceCategory.SPAWN) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append("killed oldest ").append(type).append(" #").append(id).append(" to make room for a spawn");
+        }
+    },
+    /** A mob was damaged by another entity. a = DamageCause ordinal, b = the
+     * damager's EntityType ordinal.
+     */
+    DAMAGED(TraceCategory.DAMAGE) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append(type).append(" #").append(id).append(" damaged by ").append(name(TYPES, b))
+                .append(" (").append(name(DAMAGE_CAUSES, a)).append(')');
+        }
+    },
+    /** A mob was hit by an arrow. b = the shooter's EntityType ordinal, or -1
+     * if it has no shooter.
+     */
+    SHOT(TraceCategory.DAMAGE) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append(type).append(" #").append(id).append(" shot by ").append(name(TYPES, b));
+        }
+    },
+    /** A mob was splashed by a potion. b = the thrower's EntityType ordinal,
+     * or -1 if it has no thrower.
+     */
+    POTION_SPLASH(TraceCategory.DAMAGE) {
+        void format(final StringBuilder sb, final String type, final int id, final long a, final long b) {
+            sb.append(type).append(" #").append(id).append(" splashed by a potion from ").append(name(TYPES, b));
+        }
+    };
+    
+    public static final int REFUSED_SPAWN_REASON = 0;
+    public static final int REFUSED_ANIMAL_LIMIT = 1;
+    public static final int REFUSED_TYPE_LIMIT = 2;
+    public static final int REFUSED_SPAWNER = 3;
+    
+    private static final EntityType[] TYPES = EntityType.values();
+    private static final SpawnReason[] SPAWN_REASONS = SpawnReason.values();
+    private static final DamageCause[] DAMAGE_CAUSES = DamageCause.values();
+    
+    private final TraceCategory category;
+    
+    private TraceEvent(final TraceCategory category) {
+        this.category = category;
+    }
+    
+    public TraceCategory getCategory() {
+        return category;
+    }
+    
+    /** Append the text of a recorded event. Called on the trace writer
+     * thread, so it must only use the recorded values.
+     * 
+     * @param sb
+     * @param type the entity's type name
+     * @param id the entity's id
+     * @param a
+     * @param b
+     */
+    abstract void format(StringBuilder sb, String type, int id, long a, long b);
+    
+    /**
+     * 
+     * @param values
+     * @param ordinal
+     * @return the name of the enum constant with the given ordinal, or "unknown"
+     */
+    static String name(final Enum<?>[] values, final long ordinal) {
+        return ordinal >= 0 && ordinal < values.length ? values[(int) ordinal].name() : "unknown";
+    }
+    
+    /**
+     * 
+     * @param ordinal
+     * @return the name of the EntityType with the given ordinal, or "unknown"
+     */
+    static String typeName(final int ordinal) {
+        return name(TYPES, ordinal);
+    }
+}
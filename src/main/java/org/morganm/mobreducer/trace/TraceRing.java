@@ -0,0 +1,123 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Preallocated ring buffer of fixed size trace records, with one thread
+ * writing (the main thread) and one thread reading (the trace writer).
+ * Records are stored as columns of primitives, so recording allocates
+ * nothing, and neither side ever takes a lock: the writer publishes a
+ * record by advancing the head after filling it in, and the reader frees
+ * records by advancing the tail once it has formatted them.
+ * 
+ * When the reader falls a full buffer behind, new records are dropped
+ * rather than holding up the main thread.
+ * 
+ * @author morganm
+ *
+ */
+class TraceRing {
+    private static final TraceEvent[] EVENTS = TraceEvent.values();
+    
+    private final int capacity;
+    private final int mask;
+    
+    // record columns
+    private final long[] ticks;
+    private final byte[] events;
+    private final int[] entityIds;
+    private final short[] types;
+    private final long[] as;
+    private final long[] bs;
+    
+    // next record to be written, published to the reader with an ordered write
+    private final AtomicLong head = new AtomicLong();
+    // next record to be read, published to the writer with an ordered write
+    private final AtomicLong tail = new AtomicLong();
+    // writer thread's copy of head, and its last look at tail
+    private long writeHead = 0;
+    private long cachedTail = 0;
+    
+    /**
+     * 
+     * @param size the number of records, rounded up to a power of two
+     */
+    TraceRing(final int size) {
+        int capacity = 1;
+        while( capacity < size )
+            capacity <<= 1;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        
+        ticks = new long[capacity];
+        events = new byte[capacity];
+        entityIds = new int[capacity];
+        types = new short[capacity];
+        as = new long[capacity];
+        bs = new long[capacity];
+    }
+    
+    /** Add a record. Writer thread only.
+     * 
+     * @param tick
+     * @param event
+     * @param entityId
+     * @param type EntityType ordinal, or -1
+     * @param a
+     * @param b
+     * @return false if the buffer is full and the record was dropped
+     */
+    boolean offer(final long tick, final TraceEvent event, final int entityId, final int type,
+            final long a, final long b)
+    {
+        final long h = writeHead;
+        if( h - cachedTail >= capacity ) {
+            cachedTail = tail.get();
+            if( h - cachedTail >= capacity )
+                return false;
+        }
+        
+        final int i = (int) h & mask;
+        ticks[i] = tick;
+        events[i] = (byte) event.ordinal();
+        entityIds[i] = entityId;
+        types[i] = (short) type;
+        as[i] = a;
+        bs[i] = b;
+        writeHead = h + 1;
+        head.lazySet(h + 1);
+        return true;
+    }
+    
+    /**
+     * 
+     * @return the number of records written but not yet read
+     */
+    long size() {
+        return head.get() - tail.get();
+    }
+    
+    /** Format the records written since the last call, one line each, then
+     * free them. Reader thread only.
+     * 
+     * @param sb
+     * @param linePrefix appended at the start of each line
+     * @return the number of records formatted
+     */
+    int drain(final StringBuilder sb, final String linePrefix) {
+        final long t = tail.get();
+        final long h = head.get();
+        for(long seq=t; seq < h; seq++) {
+            final int i = (int) seq & mask;
+            final TraceEvent event = EVENTS[events[i]];
+            sb.append(linePrefix).append("tick ").append(ticks[i])
+                .append(" [").append(event.getCategory().getKey()).append("] ");
+            event.format(sb, TraceEvent.typeName(types[i]), entityIds[i], as[i], bs[i]);
+            sb.append('\n');
+        }
+        tail.lazySet(h);
+        return (int) (h - t);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+/** Count-min sketch of event counts keyed by primitive long. Uses a fixed
+ * amount of memory no matter how many distinct keys are counted, at the cost
+ * of estimates that can be too high (never too low) when keys collide.
+ * 
+ * Updates are conservative: only the counters that currently hold the
+ * minimum for a key are raised, which noticeably reduces over-estimation.
+ * 
+ * @author morganm
+ *
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int widthMask;
+    private final int[] counts;       // depth rows of width counters
+    
+    /**
+     * 
+     * @param depth number of hash rows; more rows lower the chance of a bad estimate
+     * @param width counters per row, rounded up to a power of two; wider rows
+     * lower the size of estimation errors
+     */
+    public CountMinSketch(final int depth, final int width) {
+        int w = 16;
+        while( w < width )
+            w <<= 1;
+        
+        this.depth = depth;
+        this.widthMask = w - 1;
+        this.counts = new int[depth * w];
+    }
+    
+    private int index(final int row, final long key) {
+        // a different seed per row gives independent-enough hashes
+        final int h = LongHash.mix(key + row * 0x9E3779B97F4A7C15L);
+        return row * (widthMask + 1) + (h & widthMask);
+    }
+    
+    /** Add to the count for key.
+     * 
+     * @param key
+     * @param amount
+     * @return the new estimated count for key
+     */
+    public int add(final long key, final int amount) {
+        final int estimate = estimate(key) + amount;
+        for(int row=0; row < depth; row++) {
+            final int i = index(row, key);
+            if( counts[i] < estimate )
+                counts[i] = estimate;
+        }
+        return estimate;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return the estimated count for key, which is never less than the true count
+     */
+    public int estimate(final long key) {
+        int min = Integer.MAX_VALUE;
+        for(int row=0; row < depth; row++) {
+            final int c = counts[index(row, key)];
+            if( c < min )
+                min = c;
+        }
+        return min;
+    }
+    
+    /** Halve every counter, used to age out old events.
+     * 
+     * @param times how many times to halve
+     */
+    public void decay(final int times) {
+        final int shift = Math.min(times, 31);
+        for(int i=0; i < counts.length; i++)
+            counts[i] >>>= shift;
+    }
+    
+    public void clear() {
+        java.util.Arrays.fill(counts, 0);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+/** Fixed-size map of exponentially decaying scores keyed by primitive long.
+ * Each entry remembers when it was last updated and is decayed on access, so
+ * updates and reads are O(1) and no background timer is needed.
+ * 
+ * The table is 2-way set associative: each key can live in one of two slots,
+ * and when both are taken by other keys the one with the lower current score
+ * is evicted. Cold keys are therefore forgotten first and memory stays fixed.
+ * 
+ * @author morganm
+ *
+ */
+public class DecayingHeatmap {
+    private final long[] keys;
+    private final double[] scores;
+    private final long[] updated;
+    private final boolean[] used;
+    private final int mask;
+    private double decayPerMilli;       // ln(2) / half life
+    
+    /**
+     * 
+     * @param size number of slots, rounded up to a power of two
+     * @param halfLifeMillis time it takes for a score to decay to half
+     */
+    public DecayingHeatmap(final int size, final long halfLifeMillis) {
+        int capacity = 16;
+        while( capacity < size )
+            capacity <<= 1;
+        
+        keys = new long[capacity];
+        scores = new double[capacity];
+        updated = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        setHalfLife(halfLifeMillis);
+    }
+    
+    public void setHalfLife(final long halfLifeMillis) {
+        decayPerMilli = Math.log(2) / Math.max(1, halfLifeMillis);
+    }
+    
+    private double decayed(final int slot, final long now) {
+        final long elapsed = now - updated[slot];
+        return elapsed <= 0 ? scores[slot] : scores[slot] * Math.exp(-decayPerMilli * elapsed);
+    }
+    
+    private int find(final long key, final int first) {
+        if( used[first] && keys[first] == key )
+            return first;
+        final int second = first ^ 1;
+        if( used[second] && keys[second] == key )
+            return second;
+        return -1;
+    }
+    
+    /** Add to the score for key.
+     * 
+     * @param key
+     * @param amount
+     * @param now current time in milliseconds
+     * @return the new score for key
+     */
+    public double add(final long key, final double amount, final long now) {
+        final int first = LongHash.mix(key) & mask;
+        int slot = find(key, first);
+        double score = amount;
+        
+        if( slot >= 0 )
+            score += decayed(slot, now);
+        else {
+            // take an empty slot if there is one, otherwise evict the colder entry
+            final int second = first ^ 1;
+            if( !used[first] )
+                slot = first;
+            else if( !used[second] )
+                slot = second;
+            else
+                slot = decayed(first, now) <= decayed(second, now) ? first : second;
+            keys[slot] = key;
+            used[slot] = true;
+        }
+        
+        scores[slot] = score;
+        updated[slot] = now;
+        return score;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @param now current time in milliseconds
+     * @return the current score for key, 0 if it isn't tracked
+     */
+    public double get(final long key, final long now) {
+        final int slot = find(key, LongHash.mix(key) & mask);
+        return slot >= 0 ? decayed(slot, now) : 0;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+/** Hashing helpers shared by the primitive long-keyed collections.
+ * 
+ * @author morganm
+ *
+ */
+public final class LongHash {
+    private LongHash() {}
+    
+    /** Scramble a long key into a well distributed int. Packed keys have most
+     * of their entropy in a few bit ranges, so they can't be used directly as
+     * a table index.
+     * 
+     * @param key
+     * @return
+     */
+    public static int mix(long key) {
+        // finalizer from MurmurHash3
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+    
+    /** Return a power of two table size that holds the expected number
+     * of entries at a load factor of no more than 0.5.
+     * 
+     * @param expectedSize
+     * @return
+     */
+    public static int tableSizeFor(final int expectedSize) {
+        int capacity = 16;
+        while( capacity < expectedSize * 2 && capacity < (1 << 30) )
+            capacity <<= 1;
+        return capacity;
+    }
+}
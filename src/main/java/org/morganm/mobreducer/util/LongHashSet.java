@@ -0,0 +1,133 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+import java.util.Arrays;
+
+/** Open-addressing hash set of primitive longs. Meant for sets that are
+ * rebuilt often and probed many times, such as sets of packed chunk keys.
+ * 
+ * @author morganm
+ *
+ */
+public class LongHashSet {
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    
+    public LongHashSet() {
+        this(16);
+    }
+    
+    public LongHashSet(int expectedSize) {
+        allocate(LongHash.tableSizeFor(expectedSize));
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 2;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean contains(final long key) {
+        int i = LongHash.mix(key) & mask;
+        while( used[i] ) {
+            if( keys[i] == key )
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return true if the key was added, false if it was already present
+     */
+    public boolean add(final long key) {
+        int i = LongHash.mix(key) & mask;
+        while( used[i] ) {
+            if( keys[i] == key )
+                return false;
+            i = (i + 1) & mask;
+        }
+        
+        keys[i] = key;
+        used[i] = true;
+        if( ++size > resizeAt )
+            rehash(used.length * 2);
+        return true;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return true if the key was present
+     */
+    public boolean remove(final long key) {
+        int i = LongHash.mix(key) & mask;
+        while( used[i] ) {
+            if( keys[i] == key ) {
+                removeSlot(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+    
+    /** Remove the key at the given slot, shifting back any following keys
+     * in the probe chain so lookups don't need tombstones.
+     * 
+     * @param slot
+     */
+    private void removeSlot(int slot) {
+        size--;
+        int gap = slot;
+        int i = slot;
+        while( true ) {
+            i = (i + 1) & mask;
+            if( !used[i] )
+                break;
+            
+            // move key i back into the gap unless its home slot lies
+            // cyclically within (gap, i]
+            final int home = LongHash.mix(keys[i]) & mask;
+            if( gap <= i ? (home <= gap || home > i) : (home <= gap && home > i) ) {
+                keys[gap] = keys[i];
+                gap = i;
+            }
+        }
+        used[gap] = false;
+    }
+    
+    public void clear() {
+        if( size > 0 )
+            Arrays.fill(used, false);
+        size = 0;
+    }
+    
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = keys;
+        final boolean[] oldUsed = used;
+        allocate(newCapacity);
+        
+        for(int j=0; j < oldUsed.length; j++) {
+            if( !oldUsed[j] )
+                continue;
+            int i = LongHash.mix(oldKeys[j]) & mask;
+            while( used[i] )
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            used[i] = true;
+        }
+    }
+}
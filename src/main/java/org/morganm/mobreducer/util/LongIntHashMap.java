@@ -0,0 +1,175 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+import java.util.Arrays;
+
+/** Open-addressing hash map from primitive long keys to primitive int values,
+ * for counters keyed by packed chunk or location keys. Missing keys read as 0.
+ * 
+ * Uses linear probing with backward-shift deletion, see
+ * {@link LongObjectHashMap} for details.
+ * 
+ * @author morganm
+ *
+ */
+public class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    
+    public LongIntHashMap() {
+        this(16);
+    }
+    
+    public LongIntHashMap(int expectedSize) {
+        allocate(LongHash.tableSizeFor(expectedSize));
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 2;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    private int slotOf(final long key) {
+        int i = LongHash.mix(key) & mask;
+        while( used[i] ) {
+            if( keys[i] == key )
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+    
+    public boolean containsKey(final long key) {
+        return slotOf(key) >= 0;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return the value for the key, or 0 if the key is not present
+     */
+    public int get(final long key) {
+        final int i = slotOf(key);
+        return i >= 0 ? values[i] : 0;
+    }
+    
+    public void put(final long key, final int value) {
+        int i = LongHash.mix(key) & mask;
+        while( used[i] ) {
+            if( keys[i] == key ) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        if( ++size > resizeAt )
+            rehash(used.length * 2);
+    }
+    
+    /** Add delta to the value for key, treating a missing key as 0.
+     * 
+     * @param key
+     * @param delta
+     * @return the new value
+     */
+    public int addTo(final long key, final int delta) {
+        int i = LongHash.mix(key) & mask;
+        while( used[i] ) {
+            if( keys[i] == key )
+                return values[i] += delta;
+            i = (i + 1) & mask;
+        }
+        
+        keys[i] = key;
+        values[i] = delta;
+        used[i] = true;
+        if( ++size > resizeAt )
+            rehash(used.length * 2);
+        return delta;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return true if the key was present
+     */
+    public boolean remove(final long key) {
+        final int slot = slotOf(key);
+        if( slot < 0 )
+            return false;
+        
+        size--;
+        int gap = slot;
+        int i = slot;
+        while( true ) {
+            i = (i + 1) & mask;
+            if( !used[i] )
+                break;
+            
+            final int home = LongHash.mix(keys[i]) & mask;
+            if( gap <= i ? (home <= gap || home > i) : (home <= gap && home > i) ) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        used[gap] = false;
+        return true;
+    }
+    
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+    
+    public int capacity() {
+        return used.length;
+    }
+    
+    public boolean isUsed(final int slot) {
+        return used[slot];
+    }
+    
+    public long keyAt(final int slot) {
+        return keys[slot];
+    }
+    
+    public int valueAt(final int slot) {
+        return values[slot];
+    }
+    
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        final boolean[] oldUsed = used;
+        allocate(newCapacity);
+        
+        for(int j=0; j < oldUsed.length; j++) {
+            if( !oldUsed[j] )
+                continue;
+            int i = LongHash.mix(oldKeys[j]) & mask;
+            while( used[i] )
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+            used[i] = true;
+        }
+    }
+}
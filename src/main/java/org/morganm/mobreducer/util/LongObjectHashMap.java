@@ -0,0 +1,181 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+import java.util.Arrays;
+
+/** Open-addressing hash map keyed by primitive longs. Avoids the key boxing
+ * and per-entry node allocation of a HashMap, which matters for maps that are
+ * hit many times per tick (such as chunk lookups by packed chunk key).
+ * 
+ * Uses linear probing with backward-shift deletion so there are no
+ * tombstones. Null values are not allowed; a null value marks an empty slot.
+ * 
+ * Iteration is done by slot index:
+ * <pre>
+ * for(int i=0; i &lt; map.capacity(); i++)
+ *     if( map.isUsed(i) ) ... map.keyAt(i), map.valueAt(i)
+ * </pre>
+ * The map must not be modified while iterating this way.
+ * 
+ * @author morganm
+ *
+ */
+public class LongObjectHashMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    
+    public LongObjectHashMap() {
+        this(16);
+    }
+    
+    public LongObjectHashMap(int expectedSize) {
+        allocate(LongHash.tableSizeFor(expectedSize));
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 2;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        int i = LongHash.mix(key) & mask;
+        Object v;
+        while( (v = values[i]) != null ) {
+            if( keys[i] == key )
+                return (V) v;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+    
+    public boolean containsKey(final long key) {
+        return get(key) != null;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @param value the value to store, must not be null
+     * @return the previous value for the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final long key, final V value) {
+        if( value == null )
+            throw new NullPointerException("null values are not supported");
+        
+        int i = LongHash.mix(key) & mask;
+        Object v;
+        while( (v = values[i]) != null ) {
+            if( keys[i] == key ) {
+                values[i] = value;
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        
+        keys[i] = key;
+        values[i] = value;
+        if( ++size > resizeAt )
+            rehash(values.length * 2);
+        return null;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return the removed value, or null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(final long key) {
+        int i = LongHash.mix(key) & mask;
+        Object v;
+        while( (v = values[i]) != null ) {
+            if( keys[i] == key ) {
+                removeSlot(i);
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+    
+    /** Remove the entry at the given slot, shifting back any following
+     * entries in the probe chain so lookups don't need tombstones.
+     * 
+     * @param slot
+     */
+    private void removeSlot(int slot) {
+        size--;
+        int gap = slot;
+        int i = slot;
+        while( true ) {
+            i = (i + 1) & mask;
+            if( values[i] == null )
+                break;
+            
+            // move entry i back into the gap unless its home slot lies
+            // cyclically within (gap, i]
+            final int home = LongHash.mix(keys[i]) & mask;
+            if( gap <= i ? (home <= gap || home > i) : (home <= gap && home > i) ) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+    
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+    
+    public int capacity() {
+        return values.length;
+    }
+    
+    public boolean isUsed(final int slot) {
+        return values[slot] != null;
+    }
+    
+    public long keyAt(final int slot) {
+        return keys[slot];
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V valueAt(final int slot) {
+        return (V) values[slot];
+    }
+    
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(newCapacity);
+        
+        for(int j=0; j < oldValues.length; j++) {
+            if( oldValues[j] == null )
+                continue;
+            int i = LongHash.mix(oldKeys[j]) & mask;
+            while( values[i] != null )
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+/** Space-Saving heavy hitter tracker: keeps the (approximately) most frequent
+ * keys out of an unbounded stream using a fixed number of counters. When a new
+ * key arrives and all counters are taken, it replaces the key with the lowest
+ * count and inherits that count as its possible error.
+ * 
+ * Any key whose true count exceeds total/capacity is guaranteed to be tracked.
+ * 
+ * @author morganm
+ *
+ */
+public class SpaceSaving {
+    private final long[] keys;
+    private final int[] counts;
+    private final int[] errors;
+    private final LongIntHashMap slots;     // key -> index into the arrays
+    private int size = 0;
+    
+    public SpaceSaving(final int capacity) {
+        keys = new long[capacity];
+        counts = new int[capacity];
+        errors = new int[capacity];
+        slots = new LongIntHashMap(capacity);
+    }
+    
+    /** Count an occurrence of key.
+     * 
+     * @param key
+     * @param amount
+     * @return the new count for key (an upper bound on its true count)
+     */
+    public int offer(final long key, final int amount) {
+        if( slots.containsKey(key) ) {
+            final int i = slots.get(key);
+            return counts[i] += amount;
+        }
+        
+        if( size < keys.length ) {
+            keys[size] = key;
+            counts[size] = amount;
+            errors[size] = 0;
+            slots.put(key, size);
+            return counts[size++];
+        }
+        
+        // evict the key with the lowest count. Capacity is small, so a linear
+        // scan is cheaper than maintaining a heap on every increment.
+        int min = 0;
+        for(int i=1; i < size; i++) {
+            if( counts[i] < counts[min] )
+                min = i;
+        }
+        slots.remove(keys[min]);
+        keys[min] = key;
+        errors[min] = counts[min];
+        counts[min] += amount;
+        slots.put(key, min);
+        return counts[min];
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return the count for key, or 0 if it is not currently tracked
+     */
+    public int getCount(final long key) {
+        return slots.containsKey(key) ? counts[slots.get(key)] : 0;
+    }
+    
+    /** Halve all counts and drop keys that reach zero, used to age out
+     * old events.
+     * 
+     * @param times how many times to halve
+     */
+    public void decay(final int times) {
+        final int shift = Math.min(times, 31);
+        int j = 0;
+        for(int i=0; i < size; i++) {
+            final int count = counts[i] >>> shift;
+            if( count == 0 )
+                continue;
+            keys[j] = keys[i];
+            counts[j] = count;
+            errors[j] = errors[i] >>> shift;
+            j++;
+        }
+        size = j;
+        
+        slots.clear();
+        for(int i=0; i < size; i++)
+            slots.put(keys[i], i);
+    }
+    
+    public int size() {
+        return size;
+    }
+    public long keyAt(final int i) {
+        return keys[i];
+    }
+    public int countAt(final int i) {
+        return counts[i];
+    }
+    public int errorAt(final int i) {
+        return errors[i];
+    }
+}
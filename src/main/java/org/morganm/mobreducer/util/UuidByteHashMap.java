@@ -0,0 +1,168 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.util;
+
+/** Open-addressing hash map from UUIDs, taken as their two longs, to
+ * primitive byte values, for indexes with an entry per tracked entity that
+ * would otherwise hold a boxed UUID and a boxed value per entry. A value of
+ * 0 marks an empty slot, so values must not be 0; get() returns 0 for a
+ * missing key.
+ * 
+ * Uses linear probing with backward-shift deletion, see
+ * {@link LongObjectHashMap} for details. Since this map is meant to hold
+ * an entry per entity, it is let fill to 3/4 before it grows, rather than
+ * the 1/2 of the other maps.
+ * 
+ * @author morganm
+ *
+ */
+public class UuidByteHashMap {
+    private long[] hi;
+    private long[] lo;
+    private byte[] values;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    
+    public UuidByteHashMap() {
+        this(16);
+    }
+    
+    public UuidByteHashMap(int expectedSize) {
+        allocate(LongHash.tableSizeFor(expectedSize));
+    }
+    
+    private void allocate(int capacity) {
+        hi = new long[capacity];
+        lo = new long[capacity];
+        values = new byte[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 4 * 3;
+    }
+    
+    private static int hash(final long hi, final long lo) {
+        return LongHash.mix(hi ^ (lo * 31));
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    private int slotOf(final long keyHi, final long keyLo) {
+        int i = hash(keyHi, keyLo) & mask;
+        while( values[i] != 0 ) {
+            if( hi[i] == keyHi && lo[i] == keyLo )
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+    
+    /**
+     * 
+     * @param keyHi
+     * @param keyLo
+     * @return the value for the key, or 0 if the key is not present
+     */
+    public byte get(final long keyHi, final long keyLo) {
+        final int i = slotOf(keyHi, keyLo);
+        return i >= 0 ? values[i] : 0;
+    }
+    
+    /**
+     * 
+     * @param keyHi
+     * @param keyLo
+     * @param value must not be 0
+     * @return the previous value for the key, or 0 if it wasn't present
+     */
+    public byte put(final long keyHi, final long keyLo, final byte value) {
+        return put(keyHi, keyLo, value, true);
+    }
+    
+    /** Add the key with the given value, unless it is already present.
+     * 
+     * @param keyHi
+     * @param keyLo
+     * @param value must not be 0
+     * @return the value already there, or 0 if the key was added
+     */
+    public byte putIfAbsent(final long keyHi, final long keyLo, final byte value) {
+        return put(keyHi, keyLo, value, false);
+    }
+    
+    private byte put(final long keyHi, final long keyLo, final byte value, final boolean replace) {
+        int i = hash(keyHi, keyLo) & mask;
+        while( values[i] != 0 ) {
+            if( hi[i] == keyHi && lo[i] == keyLo ) {
+                final byte previous = values[i];
+                if( replace )
+                    values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+    
+        hi[i] = keyHi;
+        lo[i] = keyLo;
+        values[i] = value;
+        if( ++size > resizeAt )
+            rehash(values.length * 2);
+        return 0;
+    }
+    
+    /**
+     * 
+     * @param keyHi
+     * @param keyLo
+     * @return the value the key had, or 0 if it wasn't present
+     */
+    public byte remove(final long keyHi, final long keyLo) {
+        final int slot = slotOf(keyHi, keyLo);
+        if( slot < 0 )
+            return 0;
+        final byte previous = values[slot];
+    
+        size--;
+        int gap = slot;
+        int i = slot;
+        while( true ) {
+            i = (i + 1) & mask;
+            if( values[i] == 0 )
+                break;
+    
+            final int home = hash(hi[i], lo[i]) & mask;
+            if( gap <= i ? (home <= gap || home > i) : (home <= gap && home > i) ) {
+                hi[gap] = hi[i];
+                lo[gap] = lo[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = 0;
+        return previous;
+    }
+    
+    public int capacity() {
+        return values.length;
+    }
+    
+    private void rehash(final int newCapacity) {
+        final long[] oldHi = hi;
+        final long[] oldLo = lo;
+        final byte[] oldValues = values;
+        allocate(newCapacity);
+    
+        for(int j=0; j < oldValues.length; j++) {
+            if( oldValues[j] == 0 )
+                continue;
+            int i = hash(oldHi[j], oldLo[j]) & mask;
+            while( values[i] != 0 )
+                i = (i + 1) & mask;
+            hi[i] = oldHi[j];
+            lo[i] = oldLo[j];
+            values[i] = oldValues[j];
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.morganm.mobreducer.util.LongObjectHashMap;
+
+/** Tests for the packed chunk and location keys, including a comparison of
+ * the garbage created by packed keys against the String keys they replaced.
+ * 
+ * @author morganm
+ *
+ */
+public class UtilKeyTest {
+    private static final int CHUNKS = 32;          // chunks per side of the area looked up
+    private static final int LOOKUPS = 200000;
+    
+    private Util util;
+    private World world;
+    private Location[] locations;
+    
+    @Before
+    public void setUp() {
+        util = new Util();
+        world = mock(World.class);
+        when(world.getName()).thenReturn("world");
+        
+        locations = new Location[CHUNKS * CHUNKS];
+        for(int i=0; i < locations.length; i++)
+            locations[i] = new Location(world, (i % CHUNKS - CHUNKS/2) * 16 + 7.5, 64, (i / CHUNKS - CHUNKS/2) * 16 + 7.5);
+    }
+    
+    @Test
+    public void chunkKeyRoundTrip() {
+        final int[] coords = { 0, 1, -1, 15, -16, 123456, -123456, 8388607, -8388608 };
+        for(int x : coords) {
+            for(int z : coords) {
+                final long key = Util.packChunkKey(5, x, z);
+                assertEquals(5, Util.getChunkKeyWorld(key));
+                assertEquals(x, Util.getChunkKeyX(key));
+                assertEquals(z, Util.getChunkKeyZ(key));
+            }
+        }
+    }
+    
+    @Test
+    public void locationKeysDifferForNeighbouringBlocks() {
+        final long key = util.getLocationKey(new Location(world, -1.5, 64, 3.2));
+        assertEquals(key, util.getLocationKey(new Location(world, -1.1, 64.9, 3.8)));
+        assertTrue(key != util.getLocationKey(new Location(world, -0.5, 64, 3.2)));
+        assertTrue(key != util.getLocationKey(new Location(world, -1.5, 65, 3.2)));
+        assertTrue(key != util.getLocationKey(new Location(world, -1.5, 64, 4.2)));
+    }
+    
+    /** The packed keys exist so that chunk lookups stop creating a String
+     * per call. Look up the same chunks both ways, the old way (a String key
+     * into a HashMap) and the new way (a packed key into a LongObjectHashMap),
+     * and compare the bytes allocated by each. Both build their keys from
+     * a world name or index looked up beforehand, so only the keys and the
+     * lookups themselves are measured, not the mock world.
+     */
+    @Test
+    public void packedKeysAllocateLessThanStringKeys() {
+        final com.sun.management.ThreadMXBean threads = getThreadBean();
+        Assume.assumeTrue(threads != null);
+        
+        final HashMap<String, Object> byString = new HashMap<String, Object>();
+        final LongObjectHashMap<Object> byPacked = new LongObjectHashMap<Object>();
+        final String worldName = world.getName();
+        final int worldIndex = util.getWorldIndex(world);
+        for(Location l : locations) {
+            byString.put(stringChunkKey(worldName, l), l);
+            byPacked.put(util.getChunkKey(l), l);
+        }
+        
+        // warm up both paths so the comparison isn't measuring the JIT
+        lookupByString(byString, worldName, LOOKUPS);
+        lookupByPacked(byPacked, worldIndex, LOOKUPS);
+        
+        final long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        lookupByString(byString, worldName, LOOKUPS);
+        final long stringBytes = threads.getThreadAllocatedBytes(threadId) - before;
+        
+        before = threads.getThreadAllocatedBytes(threadId);
+        lookupByPacked(byPacked, worldIndex, LOOKUPS);
+        final long packedBytes = threads.getThreadAllocatedBytes(threadId) - before;
+        
+        // every String key costs at least a String and its backing array
+        assertTrue("String keys allocated " + stringBytes + " bytes", stringBytes / LOOKUPS >= 16);
+        // packed keys shouldn't allocate per lookup at all; allow a little
+        // for whatever the measurement itself allocates
+        assertTrue("packed keys allocated " + packedBytes + " bytes", packedBytes < LOOKUPS);
+    }
+    
+    private void lookupByString(final HashMap<String, Object> map, final String worldName, final int count) {
+        for(int i=0; i < count; i++)
+            assertNotNull(map.get(stringChunkKey(worldName, locations[i % locations.length])));
+    }
+    
+    private void lookupByPacked(final LongObjectHashMap<Object> map, final int worldIndex, final int count) {
+        for(int i=0; i < count; i++) {
+            final Location l = locations[i % locations.length];
+            assertNotNull(map.get(Util.packChunkKey(worldIndex, l.getBlockX() >> 4, l.getBlockZ() >> 4)));
+        }
+    }
+    
+    /** The chunk key as it was built before packed keys. */
+    private static String stringChunkKey(final String worldName, final Location l) {
+        return worldName+","+(l.getBlockX() >> 4)+","+(l.getBlockZ() >> 4);
+    }
+    
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( !(bean instanceof com.sun.management.ThreadMXBean) )
+            return null;
+        
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if( !threads.isThreadAllocatedMemorySupported() )
+            return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}
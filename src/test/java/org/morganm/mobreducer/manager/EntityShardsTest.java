@@ -0,0 +1,304 @@
+/**
+ * 
+ */
+package org.morganm.mobreducer.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.morganm.mobreducer.Util;
+
+/** Tests for EntityShards, mostly that entities moving between regions on
+ * several threads at once are never tracked twice or lost.
+ * 
+ * @author morganm
+ * 
+ */
+public class EntityShardsTest {
+    private static final int THREADS = 8;
+    private static final int ENTITIES = 2000;
+    private static final int OPERATIONS = 50000;   // per thread
+    private static final int REGIONS = 16;         // per side of the area used
+    private static final int OWNERS = 4;
+    private static final int ROUNDS = 20;
+    private static final int ROUND_OPERATIONS = 5000;  // per thread
+    
+    private EntityShards shards;
+    private UUID[] uuids;
+    
+    @Before
+    public void setUp() {
+        shards = new EntityShards(16, 16);
+        uuids = new UUID[ENTITIES];
+        final Random random = new Random(12);
+        for(int i=0; i < uuids.length; i++)
+            uuids[i] = new UUID(random.nextLong(), random.nextLong());
+    }
+    
+    @Test
+    public void findHandsOffFromAnotherShard() {
+        final long from = chunkKey(0, 0);
+        long to = chunkKey(1, 0);
+        for(int x=2; shards.shardFor(to) == shards.shardFor(from); x++)
+            to = chunkKey(x, 0);
+        final int fromShard = shards.shardFor(from);
+        final int toShard = shards.shardFor(to);
+        
+        final int slot = shards.findOrAllocate(fromShard, uuids[0], from, 5);
+        shards.getStore(fromShard).setStackCount(slot, 3);
+        
+        final int moved = shards.find(toShard, uuids[0]);
+        assertTrue(moved >= 0);
+        assertEquals(3, shards.getStore(toShard).getStackCount(moved));
+        assertEquals(5, shards.getStore(toShard).getLastInteract(moved));
+        assertTrue(shards.getStore(fromShard).find(uuids[0]) < 0);
+        assertEquals(1, shards.size());
+        
+        // and the original shard now misses, but finds it through the directory
+        assertTrue(shards.find(fromShard, uuids[0]) >= 0);
+        assertTrue(shards.release(toShard, uuids[0]));
+        assertEquals(0, shards.size());
+        assertEquals(-1, shards.find(toShard, uuids[0]));
+        assertTrue(!shards.release(fromShard, uuids[0]));
+    }
+    
+    /** Several threads look up, start tracking and release a shared set of
+     * entities from random regions of shards no thread owns, so entities are
+     * handed between locked shards while other threads are allocating and
+     * releasing them. Afterwards each entity must be in at most one shard,
+     * and size() must agree with what the shards hold.
+     */
+    @Test
+    public void concurrentAllocateAndRelease() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread[] threads = new Thread[THREADS];
+        for(int t=0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread("shard-test-" + t) {
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i=0; i < OPERATIONS; i++) {
+                            final UUID uuid = uuids[random.nextInt(uuids.length)];
+                            final long chunkKey = chunkKey(random.nextInt(REGIONS << EntityShards.REGION_SHIFT),
+                                    random.nextInt(REGIONS << EntityShards.REGION_SHIFT));
+                            final int home = shards.shardFor(chunkKey);
+                            final int op = random.nextInt(10);
+                            if( op < 6 )
+                                assertTrue(shards.findOrAllocate(home, uuid, chunkKey, i) >= 0);
+                            else if( op < 8 )
+                                shards.find(home, uuid);
+                            else
+                                shards.release(random.nextInt(shards.getShardCount()), uuid);
+                        }
+                    }
+                    catch(Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+        
+        if( !failures.isEmpty() ) {
+            final Throwable first = failures.get(0);
+            final AssertionError error = new AssertionError(failures.size() + " threads failed, first: " + first);
+            error.initCause(first);
+            throw error;
+        }
+        
+        int tracked = 0;
+        for(UUID uuid : uuids) {
+            int holders = 0;
+            for(int i=0; i < shards.getShardCount(); i++) {
+                if( shards.getStore(i).find(uuid) >= 0 )
+                    holders++;
+            }
+            if( holders > 1 )
+                fail(uuid + " is tracked by " + holders + " shards");
+            tracked += holders;
+            
+            // whichever shard holds it, a lookup from any other shard finds it
+            if( holders == 1 )
+                assertTrue(shards.find(0, uuid) >= 0);
+            else
+                assertEquals(-1, shards.find(0, uuid));
+        }
+        
+        int stored = 0;
+        for(int i=0; i < shards.getShardCount(); i++)
+            stored += shards.getStore(i).size();
+        assertEquals(tracked, stored);
+        assertEquals(tracked, shards.size());
+    }
+    
+    /** Each of several threads owns some of the shards and only uses the
+     * regions of those, as on a region-threaded server. Entities are passed
+     * between the threads, so their state has to be requested across
+     * threads, and are touched, moved around a thread's own regions and
+     * killed along the way. Once every hand-off has been answered, each live
+     * entity must be in exactly one shard with every touch counted and the
+     * directory pointing at it, and killed ones must be gone.
+     */
+    @Test
+    public void ownedShardsHandOffAcrossThreads() throws InterruptedException {
+        final List<List<Long>> regions = new ArrayList<List<Long>>();
+        for(int t=0; t < OWNERS; t++)
+            regions.add(new ArrayList<Long>());
+        for(int x=0; x < REGIONS; x++) {
+            for(int z=0; z < REGIONS; z++) {
+                final long chunkKey = chunkKey(x << EntityShards.REGION_SHIFT, z << EntityShards.REGION_SHIFT);
+                regions.get(shards.shardFor(chunkKey) % OWNERS).add(chunkKey);
+            }
+        }
+        
+        final List<ConcurrentLinkedQueue<Integer>> mailboxes = new ArrayList<ConcurrentLinkedQueue<Integer>>();
+        for(int t=0; t < OWNERS; t++)
+            mailboxes.add(new ConcurrentLinkedQueue<Integer>());
+        for(int e=0; e < uuids.length; e++)
+            mailboxes.get(e % OWNERS).add(e);
+        
+        // only written by the thread holding the entity, handed over through the mailboxes
+        final int[] expected = new int[uuids.length];
+        final int[] lastShard = new int[uuids.length];
+        final boolean[] killed = new boolean[uuids.length];
+        
+        final CyclicBarrier barrier = new CyclicBarrier(OWNERS);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread[] threads = new Thread[OWNERS];
+        for(int t=0; t < threads.length; t++) {
+            final int self = t;
+            final Random random = new Random(100 + t);
+            threads[t] = new Thread("shard-owner-" + t) {
+                public void run() {
+                    try {
+                        final List<Long> ownRegions = regions.get(self);
+                        final List<Integer> held = new ArrayList<Integer>();
+                        for(int round=0; round < ROUNDS; round++) {
+                            for(int i=0; i < ROUND_OPERATIONS; i++) {
+                                Integer arrived;
+                                while( (arrived = mailboxes.get(self).poll()) != null )
+                                    held.add(arrived);
+                                if( held.isEmpty() ) {
+                                    shards.drainHandOffs();
+                                    continue;
+                                }
+                                
+                                final int index = random.nextInt(held.size());
+                                final int e = held.get(index);
+                                final long region = ownRegions.get(random.nextInt(ownRegions.size()));
+                                final long chunkKey = chunkKey(Util.getChunkKeyX(region) + random.nextInt(1 << EntityShards.REGION_SHIFT),
+                                        Util.getChunkKeyZ(region) + random.nextInt(1 << EntityShards.REGION_SHIFT));
+                                final int home = shards.shardFor(chunkKey);
+                                final int op = random.nextInt(20);
+                                if( op < 12 ) {
+                                    final int slot = shards.findOrAllocate(home, uuids[e], chunkKey, i);
+                                    final EntityStore store = shards.getStore(home);
+                                    if( expected[e] == 0 )
+                                        expected[e] = 1;
+                                    else {
+                                        // a slot started while the state is on its way counts the same
+                                        store.setStackCount(slot, store.getStackCount(slot) + 1);
+                                        expected[e]++;
+                                    }
+                                    lastShard[e] = home;
+                                }
+                                else if( op < 16 ) {
+                                    held.set(index, held.get(held.size() - 1));
+                                    held.remove(held.size() - 1);
+                                    mailboxes.get((self + 1 + random.nextInt(OWNERS - 1)) % OWNERS).add(e);
+                                }
+                                else if( op < 17 ) {
+                                    held.set(index, held.get(held.size() - 1));
+                                    held.remove(held.size() - 1);
+                                    shards.release(shards.isOwner(lastShard[e]) ? lastShard[e] : home, uuids[e]);
+                                    killed[e] = true;
+                                }
+                                else if( op < 19 )
+                                    shards.find(home, uuids[e]);
+                                else
+                                    shards.drainHandOffs();
+                            }
+                            
+                            // answer hand-offs until none are left on any thread
+                            for(int settle=0; ; settle++) {
+                                if( settle == 100 )
+                                    throw new AssertionError("hand-offs never settled");
+                                shards.drainHandOffs();
+                                barrier.await(10, TimeUnit.SECONDS);
+                                final boolean pending = shards.hasPendingHandOffs();
+                                barrier.await(10, TimeUnit.SECONDS);
+                                if( !pending )
+                                    break;
+                            }
+                        }
+                    }
+                    catch(Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+        }
+        for(int i=0; i < shards.getShardCount(); i++)
+            shards.setOwner(i, threads[i % OWNERS]);
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads)
+            thread.join();
+        
+        if( !failures.isEmpty() ) {
+            final Throwable first = failures.get(0);
+            final AssertionError error = new AssertionError(failures.size() + " threads failed, first: " + first);
+            error.initCause(first);
+            throw error;
+        }
+        assertFalse(shards.hasPendingHandOffs());
+        
+        int tracked = 0;
+        for(int e=0; e < uuids.length; e++) {
+            int holders = 0;
+            int holder = -1;
+            for(int i=0; i < shards.getShardCount(); i++) {
+                if( shards.getStore(i).find(uuids[e]) >= 0 ) {
+                    holders++;
+                    holder = i;
+                }
+            }
+            
+            if( expected[e] == 0 || killed[e] ) {
+                assertEquals("killed or never seen entity " + e + " is tracked", 0, holders);
+                assertEquals(-1, shards.getDirectoryShard(uuids[e]));
+            }
+            else {
+                assertEquals("entity " + e + " holders", 1, holders);
+                final EntityStore store = shards.getStore(holder);
+                assertEquals("entity " + e + " stack count", expected[e], store.getStackCount(store.find(uuids[e])));
+                assertEquals(holder, shards.getDirectoryShard(uuids[e]));
+                tracked++;
+            }
+        }
+        assertEquals(tracked, shards.size());
+    }
+    
+    private static long chunkKey(final int chunkX, final int chunkZ) {
+        return Util.packChunkKey(0, chunkX, chunkZ);
+    }
+}